@@ -3,22 +3,21 @@ package ca.psiphon.psicash;
 import android.net.Uri;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Map;
 
 import ca.psiphon.psicashlib.PsiCashLib;
+import ca.psiphon.psicashlib.ResponseBodyReader;
 
 public class PsiCashLibHelper implements PsiCashLib.HTTPRequester {
     public PsiCashLib.HTTPRequester.Result httpRequest(PsiCashLib.HTTPRequester.ReqParams reqParams) {
         PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
 
         HttpURLConnection urlConn = null;
-        BufferedReader reader = null;
+        InputStream inputStream = null;
 
         try {
             URL url = new URL(reqParams.uri.toString());
@@ -38,8 +37,7 @@ public class PsiCashLibHelper implements PsiCashLib.HTTPRequester {
             res.code = urlConn.getResponseCode();
             res.headers = urlConn.getHeaderFields();
 
-            // Read the input stream into a String
-            InputStream inputStream;
+            // Read the response body
             if (200 <= res.code && res.code <= 399) {
                 inputStream = urlConn.getInputStream();
             } else {
@@ -51,20 +49,13 @@ public class PsiCashLibHelper implements PsiCashLib.HTTPRequester {
                 return res;
             }
 
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            StringBuffer buffer = new StringBuffer();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                buffer.append(line);
-            }
-
-            if (buffer.length() == 0) {
+            byte[] body = ResponseBodyReader.readBytes(inputStream, urlConn.getContentLength(), ResponseBodyReader.DEFAULT_MAX_BODY_SIZE);
+            if (body.length == 0) {
                 // Stream was empty.
                 return res;
             }
 
-            res.body = buffer.toString();
+            res.bodyBytes = body;
         }
         catch (IOException e) {
             Log.e("PsiCashLibHelper", "httpRequest: failed with IOException ", e);
@@ -0,0 +1,73 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Decoding a batch of distinct authorizations with decodeAuthorizations, against a loop of
+// decodeAuthorization. The time reported is per batch. Every batch is larger than the
+// decode cache and is decoded in the same order each time, so the least recently used
+// entry is always the next one needed: nothing is answered from the cache, and both
+// measure decoding.
+@RunWith(Parameterized.class)
+public class DecodeAuthorizationsBenchmark {
+    @Parameterized.Parameters(name = "batch={0}")
+    public static Collection<Object[]> batchSizes() {
+        return Arrays.asList(new Object[][]{{128}, {1024}});
+    }
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private final int batch;
+    private final List<String> encoded = new ArrayList<>();
+
+    public DecodeAuthorizationsBenchmark(int batch) {
+        this.batch = batch;
+    }
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < batch; i++) {
+            encoded.add(InProcessServer.authorization(i, "speed-boost-test", "2030-01-01T00:00:00.000Z"));
+        }
+
+        PsiCashLib.DecodeAuthorizationsResult res = PsiCashLib.decodeAuthorizations(encoded);
+        assertNull(res.error);
+        assertEquals(batch, res.results.size());
+        for (PsiCashLib.DecodeAuthorizationResult r : res.results) {
+            assertNull(r.error);
+        }
+        assertTrue(batch > PsiCashLib.getDecodeAuthorizationCacheStats().capacity);
+    }
+
+    @Test
+    public void looped() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (String e : encoded) {
+                PsiCashLib.decodeAuthorization(e);
+            }
+        }
+    }
+
+    @Test
+    public void bulk() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PsiCashLib.decodeAuthorizations(encoded);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import android.util.Base64;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+/**
+ * An HTTPRequester that answers the library's requests in-process, without a network or
+ * sockets, so that the library can be populated and exercised with nothing but the library
+ * itself being measured. It gives out tokens, answers refresh-state with a fixed balance and
+ * price list, and grants every purchase (with an authorization for half of them).
+ */
+class InProcessServer implements PsiCashLib.HTTPRequester {
+    static final String PURCHASE_CLASS = "speed-boost";
+    static final long PRICE = 100000000000L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private long balance = 1000 * PRICE;
+    private int nextID = 1;
+    private int requests;
+
+    synchronized int requestCount() {
+        return requests;
+    }
+
+    @Override
+    public synchronized Result httpRequest(ReqParams reqParams) {
+        requests++;
+        String endpoint = reqParams.uri.getLastPathSegment();
+        switch (reqParams.method + " " + endpoint) {
+            case "POST tracker":
+                return result(200, "{\"earner\":\"" + token("earner") + "\",\"indicator\":\"" + token("indicator")
+                        + "\",\"spender\":\"" + token("spender") + "\"}");
+            case "GET refresh-state":
+                return refreshState(reqParams);
+            case "POST transaction":
+                return transaction(reqParams);
+            default:
+                return result(404, "");
+        }
+    }
+
+    private Result refreshState(ReqParams reqParams) {
+        String auth = reqParams.headers == null ? null : reqParams.headers.get("X-PsiCash-Auth");
+        if (auth == null) {
+            return result(401, "");
+        }
+        StringBuilder body = new StringBuilder("{\"TokensValid\":{");
+        String[] tokens = auth.split(",");
+        for (int i = 0; i < tokens.length; i++) {
+            body.append(i > 0 ? "," : "").append('"').append(tokens[i].trim()).append("\":true");
+        }
+        body.append("},\"IsAccount\":false,\"AccountUsername\":null,\"Balance\":").append(balance)
+                .append(",\"PurchasePrices\":[");
+        for (int i = 0; i < 24; i++) {
+            body.append(i > 0 ? "," : "").append("{\"Class\":\"").append(PURCHASE_CLASS)
+                    .append("\",\"Distinguisher\":\"").append(i + 1).append("hr\",\"Price\":")
+                    .append((i + 1) * PRICE).append('}');
+        }
+        return result(200, body.append("]}").toString());
+    }
+
+    private Result transaction(ReqParams reqParams) {
+        String transactionClass = reqParams.uri.getQueryParameter("class");
+        String distinguisher = reqParams.uri.getQueryParameter("distinguisher");
+        int id = nextID++;
+        balance -= PRICE;
+
+        String expires = isoDate(System.currentTimeMillis() + 60L * 60 * 1000);
+        StringBuilder body = new StringBuilder();
+        body.append("{\"TransactionID\":\"txn-").append(id).append("\",\"Balance\":").append(balance)
+                .append(",\"TransactionResponse\":{\"Type\":\"expiring-purchase\",\"Values\":{\"Expires\":\"")
+                .append(expires).append("\"}}");
+        if (id % 2 == 0) {
+            body.append(",\"Authorization\":\"").append(authorization(id, transactionClass + "-" + distinguisher, expires))
+                    .append('"');
+        }
+        return result(200, body.append('}').toString());
+    }
+
+    static String authorization(int id, String accessType, String expires) {
+        String json = "{\"Authorization\":{\"ID\":\"auth-" + id + "\",\"AccessType\":\"" + accessType
+                + "\",\"Expires\":\"" + expires + "\"},\"SigningKeyID\":\"a2V5\",\"Signature\":\"c2ln\"}";
+        return Base64.encodeToString(json.getBytes(UTF8), Base64.NO_WRAP);
+    }
+
+    private String token(String type) {
+        return Base64.encodeToString((type + "-" + nextID++).getBytes(UTF8), Base64.NO_WRAP);
+    }
+
+    private static Result result(int code, String body) {
+        Result res = new Result();
+        res.code = code;
+        res.bodyBytes = body.getBytes(UTF8);
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("Date", Collections.singletonList(httpDate(System.currentTimeMillis())));
+        headers.put("Content-Type", Arrays.asList("application/json"));
+        res.headers = headers;
+        return res;
+    }
+
+    static String isoDate(long millis) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt.format(new Date(millis));
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return fmt.format(new Date(millis));
+    }
+}
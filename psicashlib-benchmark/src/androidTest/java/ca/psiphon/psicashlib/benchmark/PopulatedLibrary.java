@@ -0,0 +1,59 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+/**
+ * A PsiCashLib with a populated datastore: tokens, a balance, purchase prices, and
+ * PURCHASES unexpired purchases (half with authorizations), all from an InProcessServer.
+ */
+class PopulatedLibrary {
+    static final int PURCHASES = 50;
+    static final List<String> CLASSES = Collections.singletonList(InProcessServer.PURCHASE_CLASS);
+
+    final PsiCashLib pcl = new PsiCashLib();
+    final InProcessServer server = new InProcessServer();
+    // The datastore directory.
+    final File dir;
+    final List<String> transactionIDs = new ArrayList<>();
+    final List<String> authorizationIDs = new ArrayList<>();
+    final List<String> encodedAuthorizations = new ArrayList<>();
+
+    PopulatedLibrary() {
+        dir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(),
+                "benchmark");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("cannot create " + dir);
+        }
+
+        PsiCashLib.Error err = pcl.init(dir.toString(), server, true);
+        assertNull(err == null ? "" : err.message, err);
+
+        PsiCashLib.RefreshStateResult rsr = pcl.refreshState(false, CLASSES);
+        assertNull(rsr.error == null ? "" : rsr.error.message, rsr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, rsr.status);
+
+        for (int i = 0; i < PURCHASES; i++) {
+            // Distinct distinguishers, so that every purchase is kept
+            PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(
+                    InProcessServer.PURCHASE_CLASS, "benchmark-" + i, InProcessServer.PRICE);
+            assertNull(nepr.error == null ? "" : nepr.error.message, nepr.error);
+            assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+            transactionIDs.add(nepr.purchase.id);
+            if (nepr.purchase.authorization != null) {
+                authorizationIDs.add(nepr.purchase.authorization.id);
+                encodedAuthorizations.add(nepr.purchase.authorization.encoded);
+            }
+        }
+        assertEquals(PURCHASES, pcl.getPurchases().purchases.size());
+        assertFalse(authorizationIDs.isEmpty());
+    }
+}
@@ -0,0 +1,198 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// The read-only public methods, on a populated datastore. Each result is checked once
+// before measuring, so that an error path isn't what gets measured.
+@RunWith(AndroidJUnit4.class)
+public class ReadBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private PopulatedLibrary lib;
+    private PsiCashLib pcl;
+
+    @Before
+    public void setUp() {
+        lib = new PopulatedLibrary();
+        pcl = lib.pcl;
+    }
+
+    @Test
+    public void balance() {
+        assertNull(pcl.balance().error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.balance();
+        }
+    }
+
+    @Test
+    public void hasTokens() {
+        assertTrue(pcl.hasTokens().hasTokens);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.hasTokens();
+        }
+    }
+
+    @Test
+    public void isAccount() {
+        assertNull(pcl.isAccount().error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.isAccount();
+        }
+    }
+
+    @Test
+    public void getAccountUsername() {
+        assertNull(pcl.getAccountUsername().error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getAccountUsername();
+        }
+    }
+
+    @Test
+    public void getPurchasePrices() {
+        assertFalse(pcl.getPurchasePrices().purchasePrices.isEmpty());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getPurchasePrices();
+        }
+    }
+
+    @Test
+    public void getPurchases() {
+        assertEquals(PopulatedLibrary.PURCHASES, pcl.getPurchases().purchases.size());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getPurchases();
+        }
+    }
+
+    @Test
+    public void activePurchases() {
+        assertEquals(PopulatedLibrary.PURCHASES, pcl.activePurchases().purchases.size());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.activePurchases();
+        }
+    }
+
+    @Test
+    public void getAuthorizations() {
+        assertEquals(lib.authorizationIDs.size(), pcl.getAuthorizations(false).authorizations.size());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getAuthorizations(false);
+        }
+    }
+
+    @Test
+    public void getAuthorizationsActiveOnly() {
+        assertEquals(lib.authorizationIDs.size(), pcl.getAuthorizations(true).authorizations.size());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getAuthorizations(true);
+        }
+    }
+
+    @Test
+    public void getPurchasesByAuthorizationID() {
+        List<String> ids = lib.authorizationIDs.subList(0, 5);
+        assertEquals(ids.size(), pcl.getPurchasesByAuthorizationID(ids).purchases.size());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getPurchasesByAuthorizationID(ids);
+        }
+    }
+
+    @Test
+    public void nextExpiringPurchase() {
+        assertNotNull(pcl.nextExpiringPurchase().purchase);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.nextExpiringPurchase();
+        }
+    }
+
+    @Test
+    public void decodeAuthorization() {
+        String encoded = lib.encodedAuthorizations.get(0);
+        assertNotNull(PsiCashLib.decodeAuthorization(encoded).authorization);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PsiCashLib.decodeAuthorization(encoded);
+        }
+    }
+
+    @Test
+    public void snapshot() {
+        assertNull(pcl.snapshot().error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.snapshot();
+        }
+    }
+
+    @Test
+    public void modifyLandingPage() {
+        String url = "https://psiphon.ca/en/index.html?a=b#c";
+        assertNull(pcl.modifyLandingPage(url).error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.modifyLandingPage(url);
+        }
+    }
+
+    @Test
+    public void getRewardedActivityData() {
+        assertNull(pcl.getRewardedActivityData().error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getRewardedActivityData();
+        }
+    }
+
+    @Test
+    public void getDiagnosticInfo() {
+        assertNull(pcl.getDiagnosticInfo(false).error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getDiagnosticInfo(false);
+        }
+    }
+
+    @Test
+    public void getDiagnosticInfoLite() {
+        assertNull(pcl.getDiagnosticInfo(true).error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getDiagnosticInfo(true);
+        }
+    }
+
+    @Test
+    public void getAccountURLs() {
+        assertNotNull(pcl.getAccountSignupURL());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.getAccountSignupURL();
+            pcl.getAccountForgotURL();
+            pcl.getAccountManagementURL();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Time to the first balance() result after starting init, as an app's startup sees it, on
+// a populated datastore. Each iteration initializes a new PsiCashLib on the same datastore,
+// like an app restart (except that the native library is already loaded; that's a one-time
+// cost that initAsync also moves off the calling thread).
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private PopulatedLibrary lib;
+    private String dir;
+    private long balance;
+
+    @Before
+    public void setUp() {
+        lib = new PopulatedLibrary();
+        dir = lib.dir.toString();
+        balance = lib.pcl.balance().balance;
+    }
+
+    @Test
+    public void initThenBalance() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PsiCashLib pcl = new PsiCashLib();
+            pcl.init(dir, lib.server, false);
+            pcl.balance();
+        }
+    }
+
+    @Test
+    public void initAsyncThenBalance() throws ExecutionException, InterruptedException {
+        // The balance comes from the startup cache, while the datastore is read in the background
+        PsiCashLib first = new PsiCashLib();
+        Future<PsiCashLib.InitResult> f = first.initAsync(dir, lib.server, false, null);
+        assertEquals(balance, first.balance().balance);
+        assertNull(f.get().error);
+
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PsiCashLib pcl = new PsiCashLib();
+            f = pcl.initAsync(dir, lib.server, false, null);
+            pcl.balance();
+
+            // So that iterations don't overlap
+            state.pauseTiming();
+            f.get();
+            state.resumeTiming();
+        }
+    }
+
+    @Test
+    public void initAsyncToCompletion() throws ExecutionException, InterruptedException {
+        // The whole of init, on the init thread: the cost of initAsync over init
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            PsiCashLib pcl = new PsiCashLib();
+            pcl.initAsync(dir, lib.server, false, null).get();
+        }
+    }
+}
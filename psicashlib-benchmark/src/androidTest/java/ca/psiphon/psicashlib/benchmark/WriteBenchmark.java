@@ -0,0 +1,99 @@
+package ca.psiphon.psicashlib.benchmark;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.*;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// The public methods that write to the datastore, on a populated datastore. Each is given
+// arguments that leave the state as it was, so every iteration does the same work.
+@RunWith(AndroidJUnit4.class)
+public class WriteBenchmark {
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private PopulatedLibrary lib;
+    private PsiCashLib pcl;
+
+    @Before
+    public void setUp() {
+        lib = new PopulatedLibrary();
+        pcl = lib.pcl;
+    }
+
+    @Test
+    public void expirePurchases() {
+        // Nothing has expired, but it's a full read and write of the purchases
+        assertTrue(pcl.expirePurchases().purchases.isEmpty());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.expirePurchases();
+        }
+    }
+
+    @Test
+    public void removePurchases() {
+        List<String> ids = Arrays.asList("no-such-id-1", "no-such-id-2");
+        assertTrue(pcl.removePurchases(ids).purchases.isEmpty());
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.removePurchases(ids);
+        }
+    }
+
+    @Test
+    public void setRequestMetadataItems() {
+        Map<String, String> items = new HashMap<>();
+        items.put("client_region", "CA");
+        items.put("client_version", "123");
+        assertNull(pcl.setRequestMetadataItems(items));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.setRequestMetadataItems(items);
+        }
+    }
+
+    @Test
+    public void setLocale() {
+        assertNull(pcl.setLocale("en"));
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.setLocale("en");
+        }
+    }
+
+    @Test
+    public void refreshStateLocal() {
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(true, PopulatedLibrary.CLASSES);
+        assertNull(res.error);
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.refreshState(true, PopulatedLibrary.CLASSES);
+        }
+    }
+
+    @Test
+    public void refreshStateInProcess() {
+        // A full refresh, with the request answered by the in-process server: everything but
+        // the network.
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, PopulatedLibrary.CLASSES);
+        assertNull(res.error);
+        int requests = lib.server.requestCount();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            pcl.refreshState(false, PopulatedLibrary.CLASSES);
+        }
+        assertTrue(lib.server.requestCount() > requests);
+    }
+}
@@ -0,0 +1,69 @@
+package ca.psiphon.psicashlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a date with ISO8601, against the SimpleDateFormat approach it replaced in
+ * JSON.nullableDate. Dates without milliseconds are the legacy parser's slow path, as it
+ * tries (and fails) the format with milliseconds first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ISO8601Benchmark {
+    @Param({"2019-01-14T17:22:23.168Z", "2019-01-14T17:22:23Z"})
+    public String date;
+
+    // This is how JSON.nullableDate used to parse.
+    private static Date legacyParse(String dateString) throws ParseException {
+        SimpleDateFormat isoFormatWithMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        isoFormatWithMS.setTimeZone(TimeZone.getTimeZone("UTC"));
+        isoFormatWithMS.setLenient(false);
+        try {
+            return isoFormatWithMS.parse(dateString);
+        } catch (ParseException e1) {
+            SimpleDateFormat isoFormatWithoutMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+            isoFormatWithoutMS.setTimeZone(TimeZone.getTimeZone("UTC"));
+            isoFormatWithoutMS.setLenient(false);
+            return isoFormatWithoutMS.parse(dateString);
+        }
+    }
+
+    @Setup
+    public void setUp() throws ParseException {
+        // Make sure both give the same result
+        if (legacyParse(date).getTime() != ISO8601.parseMillis(date)) {
+            throw new IllegalStateException("parsers disagree on " + date);
+        }
+    }
+
+    @Benchmark
+    public long iso8601() throws ParseException {
+        return ISO8601.parseMillis(date);
+    }
+
+    @Benchmark
+    public long legacy() throws ParseException {
+        return legacyParse(date).getTime();
+    }
+}
@@ -0,0 +1,103 @@
+package ca.psiphon.psicashlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up LOOKUPS authorization IDs (as at a handshake) among `purchases` purchases,
+ * with the PurchaseIndex and with a scan of all purchases per ID (which is how the core
+ * matches them). Also the cost of building the index after a write, and of deriving it
+ * after a removal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PurchaseIndexBenchmark {
+    private static final int LOOKUPS = 5;
+
+    @Param({"10", "1000", "10000"})
+    public int purchases;
+
+    private List<PsiCashLib.Purchase> purchaseList;
+    private PurchaseIndex index;
+    // Spread across the list, and one that doesn't match.
+    private List<String> authorizationIDs;
+    private List<PsiCashLib.Purchase> removed;
+
+    @Setup
+    public void setUp() {
+        purchaseList = new ArrayList<>(purchases);
+        for (int i = 0; i < purchases; i++) {
+            PsiCashLib.Purchase p = new PsiCashLib.Purchase();
+            p.id = "transaction-" + i;
+            p.transactionClass = "speed-boost";
+            p.distinguisher = "1hr";
+            p.expiry = new Date(1600000000000L + i * 1000L);
+            p.authorization = new PsiCashLib.Authorization();
+            p.authorization.id = "authorization-" + i;
+            p.authorization.accessType = "speed-boost-test";
+            p.authorization.expires = p.expiry;
+            p.authorization.encoded = "encoded-" + i;
+            purchaseList.add(p);
+        }
+        index = new PurchaseIndex(0, purchaseList);
+
+        authorizationIDs = new ArrayList<>();
+        for (int i = 0; i < LOOKUPS - 1; i++) {
+            authorizationIDs.add("authorization-" + (i * purchases / (LOOKUPS - 1)));
+        }
+        authorizationIDs.add("no-such-authorization");
+        removed = purchaseList.subList(0, 1);
+
+        // Make sure both find the same purchases
+        if (indexed().size() != LOOKUPS - 1 || scan().size() != LOOKUPS - 1) {
+            throw new IllegalStateException("unexpected lookup result");
+        }
+    }
+
+    @Benchmark
+    public List<PsiCashLib.Purchase> indexed() {
+        return index.byAuthorizationIDs(authorizationIDs);
+    }
+
+    @Benchmark
+    public List<PsiCashLib.Purchase> scan() {
+        List<PsiCashLib.Purchase> res = new ArrayList<>();
+        for (String id : authorizationIDs) {
+            for (PsiCashLib.Purchase p : purchaseList) {
+                if (p.authorization != null && id.equals(p.authorization.id)) {
+                    res.add(p);
+                    break;
+                }
+            }
+        }
+        return res;
+    }
+
+    @Benchmark
+    public PurchaseIndex build() {
+        return new PurchaseIndex(0, purchaseList);
+    }
+
+    @Benchmark
+    public PurchaseIndex without() {
+        return index.without(2, removed);
+    }
+}
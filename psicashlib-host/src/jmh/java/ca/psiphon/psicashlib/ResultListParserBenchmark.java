@@ -0,0 +1,71 @@
+package ca.psiphon.psicashlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the list results, at each payload size. Run with `-prof gc` (the default for
+ * the jmh task) for bytes allocated per op (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultListParserBenchmark {
+    @Param({ResultPayloads.SMALL, ResultPayloads.MEDIUM, ResultPayloads.LARGE})
+    public String size;
+
+    private String getPurchasesJSON;
+    private String getAuthorizationsJSON;
+    private String getPurchasePricesJSON;
+
+    @Setup
+    public void setUp() {
+        int count = ResultPayloads.count(size);
+        getPurchasesJSON = ResultPayloads.getPurchases(size);
+        getAuthorizationsJSON = ResultPayloads.getAuthorizations(size);
+        getPurchasePricesJSON = ResultPayloads.getPurchasePrices(size);
+
+        // Make sure the success path is what's measured
+        check(getPurchases(), count == getPurchases().purchases.size());
+        check(getAuthorizations(), count == getAuthorizations().authorizations.size());
+        check(getPurchasePrices(), count == getPurchasePrices().purchasePrices.size());
+    }
+
+    static void check(PsiCashLib.JNI.Result.Base result, boolean ok) {
+        if (result.error != null) {
+            throw new IllegalStateException("parse failed: " + result.error.message);
+        }
+        if (!ok) {
+            throw new IllegalStateException("unexpected parse result");
+        }
+    }
+
+    @Benchmark
+    public PsiCashLib.JNI.Result.GetPurchases getPurchases() {
+        return new PsiCashLib.JNI.Result.GetPurchases(getPurchasesJSON);
+    }
+
+    @Benchmark
+    public PsiCashLib.JNI.Result.GetAuthorizations getAuthorizations() {
+        return new PsiCashLib.JNI.Result.GetAuthorizations(getAuthorizationsJSON);
+    }
+
+    @Benchmark
+    public PsiCashLib.JNI.Result.GetPurchasePrices getPurchasePrices() {
+        return new PsiCashLib.JNI.Result.GetPurchasePrices(getPurchasePricesJSON);
+    }
+}
@@ -0,0 +1,47 @@
+package ca.psiphon.psicashlib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the single-object results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultObjectParserBenchmark {
+    private String newExpiringPurchaseJSON;
+    private String decodeAuthorizationJSON;
+
+    @Setup
+    public void setUp() {
+        newExpiringPurchaseJSON = ResultPayloads.newExpiringPurchase();
+        decodeAuthorizationJSON = ResultPayloads.decodeAuthorization();
+
+        ResultListParserBenchmark.check(newExpiringPurchase(), newExpiringPurchase().purchase != null);
+        ResultListParserBenchmark.check(decodeAuthorization(), decodeAuthorization().authorization != null);
+    }
+
+    @Benchmark
+    public PsiCashLib.JNI.Result.NewExpiringPurchase newExpiringPurchase() {
+        return new PsiCashLib.JNI.Result.NewExpiringPurchase(newExpiringPurchaseJSON);
+    }
+
+    @Benchmark
+    public PsiCashLib.JNI.Result.DecodeAuthorization decodeAuthorization() {
+        return new PsiCashLib.JNI.Result.DecodeAuthorization(decodeAuthorizationJSON);
+    }
+}
@@ -0,0 +1,105 @@
+package ca.psiphon.psicashlib;
+
+import java.util.Locale;
+
+/**
+ * Builds glue JSON payloads in the shapes the native core returns, for the parser
+ * benchmarks. The values are modelled on real ones: speed-boost purchases with their
+ * authorizations, ISO 8601 timestamps with milliseconds, and the fields the parsers skip
+ * (like serverTimeExpiry) so that skipping is measured too.
+ */
+final class ResultPayloads {
+    private ResultPayloads() {
+    }
+
+    // The sizes the benchmarks are run with: a typical user, a heavy user, and a
+    // pathological one.
+    static final String SMALL = "small";
+    static final String MEDIUM = "medium";
+    static final String LARGE = "large";
+
+    static int count(String size) {
+        switch (size) {
+            case SMALL:
+                return 2;
+            case MEDIUM:
+                return 20;
+            case LARGE:
+                return 500;
+            default:
+                throw new IllegalArgumentException("unknown size: " + size);
+        }
+    }
+
+    private static String timestamp(int i) {
+        return String.format(Locale.US, "2021-%02d-%02dT%02d:%02d:%02d.%03dZ",
+                1 + i % 12, 1 + i % 28, i % 24, i % 60, (i * 7) % 60, (i * 37) % 1000);
+    }
+
+    // A base64 string about as long as a real encoded authorization.
+    private static String encodedAuthorization(int i) {
+        StringBuilder sb = new StringBuilder(360);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int j = 0; j < 356; j++) {
+            sb.append(alphabet.charAt((i * 31 + j * 17) % alphabet.length()));
+        }
+        return sb.append("==").toString();
+    }
+
+    static String authorization(int i) {
+        return "{\"ID\":\"" + String.format(Locale.US, "%032x", i * 2654435761L) + "=\""
+                + ",\"AccessType\":\"speed-boost-test\""
+                + ",\"Expires\":\"" + timestamp(i + 1) + "\""
+                + ",\"Encoded\":\"" + encodedAuthorization(i) + "\"}";
+    }
+
+    static String purchase(int i) {
+        String expiry = timestamp(i + 1);
+        return "{\"id\":\"" + timestamp(i) + "\""
+                + ",\"class\":\"speed-boost\""
+                + ",\"distinguisher\":\"" + (1 + i % 24) + "hr\""
+                + ",\"serverTimeExpiry\":\"" + expiry + "\""
+                + ",\"localTimeExpiry\":\"" + expiry + "\""
+                + ",\"authorization\":" + (i % 4 == 3 ? "null" : authorization(i))
+                + "}";
+    }
+
+    static String purchasePrice(int i) {
+        return "{\"class\":\"speed-boost\",\"distinguisher\":\"" + (1 + i) + "hr\",\"price\":" + (1 + i) * 100000000000L + "}";
+    }
+
+    private interface Element {
+        String make(int i);
+    }
+
+    private static String resultList(int count, Element element) {
+        StringBuilder sb = new StringBuilder("{\"error\":null,\"result\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(element.make(i));
+        }
+        return sb.append("]}").toString();
+    }
+
+    static String getPurchases(String size) {
+        return resultList(count(size), ResultPayloads::purchase);
+    }
+
+    static String getAuthorizations(String size) {
+        return resultList(count(size), ResultPayloads::authorization);
+    }
+
+    static String getPurchasePrices(String size) {
+        return resultList(count(size), ResultPayloads::purchasePrice);
+    }
+
+    static String newExpiringPurchase() {
+        return "{\"error\":null,\"result\":{\"status\":0,\"purchase\":" + purchase(0) + "}}";
+    }
+
+    static String decodeAuthorization() {
+        return "{\"error\":null,\"result\":" + authorization(0) + "}";
+    }
+}
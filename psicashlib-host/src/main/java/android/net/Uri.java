@@ -0,0 +1,434 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package android.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Host-JVM shim for Android's android.net.Uri, covering hierarchical URIs (like HTTP
+ * URLs). Like Android's, parsing is lenient and keeps the parts in their encoded form;
+ * the decoded getters decode on demand.
+ */
+public final class Uri implements Comparable<Uri> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // All encoded; null if absent.
+    private final String scheme;
+    private final String authority;
+    private final String path;
+    private final String query;
+    private final String fragment;
+    private final String uriString;
+
+    private Uri(String scheme, String authority, String path, String query, String fragment, String uriString) {
+        this.scheme = scheme;
+        this.authority = authority;
+        this.path = path;
+        this.query = query;
+        this.fragment = fragment;
+        this.uriString = uriString;
+    }
+
+    private static Uri fromParts(String scheme, String authority, String path, String query, String fragment) {
+        StringBuilder sb = new StringBuilder();
+        if (scheme != null) {
+            sb.append(scheme).append(':');
+        }
+        if (authority != null) {
+            sb.append("//").append(authority);
+        }
+        if (path != null) {
+            if (authority != null && !path.isEmpty() && !path.startsWith("/")) {
+                sb.append('/');
+            }
+            sb.append(path);
+        }
+        if (query != null) {
+            sb.append('?').append(query);
+        }
+        if (fragment != null) {
+            sb.append('#').append(fragment);
+        }
+        return new Uri(scheme, authority, path, query, fragment, sb.toString());
+    }
+
+    public static Uri parse(String uriString) {
+        if (uriString == null) {
+            throw new NullPointerException("uriString");
+        }
+
+        String rest = uriString;
+        String fragment = null;
+        int hash = rest.indexOf('#');
+        if (hash >= 0) {
+            fragment = rest.substring(hash + 1);
+            rest = rest.substring(0, hash);
+        }
+
+        String scheme = null;
+        int colon = rest.indexOf(':');
+        if (colon > 0) {
+            String candidate = rest.substring(0, colon);
+            if (candidate.indexOf('/') < 0 && candidate.indexOf('?') < 0) {
+                scheme = candidate;
+                rest = rest.substring(colon + 1);
+            }
+        }
+
+        String query = null;
+        int question = rest.indexOf('?');
+        if (question >= 0) {
+            query = rest.substring(question + 1);
+            rest = rest.substring(0, question);
+        }
+
+        String authority = null;
+        if (rest.startsWith("//")) {
+            int slash = rest.indexOf('/', 2);
+            if (slash < 0) {
+                slash = rest.length();
+            }
+            authority = rest.substring(2, slash);
+            rest = rest.substring(slash);
+        }
+
+        // Keep the original form for toString, as Android does.
+        return new Uri(scheme, authority, rest, query, fragment, uriString);
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getEncodedAuthority() {
+        return authority;
+    }
+
+    public String getAuthority() {
+        return decode(authority);
+    }
+
+    public String getHost() {
+        if (authority == null) {
+            return null;
+        }
+        String hostPort = authority.substring(authority.lastIndexOf('@') + 1);
+        int colon = hostPort.lastIndexOf(':');
+        if (colon >= 0 && colon > hostPort.lastIndexOf(']')) {
+            hostPort = hostPort.substring(0, colon);
+        }
+        return decode(hostPort);
+    }
+
+    public int getPort() {
+        if (authority == null) {
+            return -1;
+        }
+        String hostPort = authority.substring(authority.lastIndexOf('@') + 1);
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0 || colon < hostPort.lastIndexOf(']')) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(hostPort.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public String getEncodedPath() {
+        return path;
+    }
+
+    public String getPath() {
+        return decode(path);
+    }
+
+    public List<String> getPathSegments() {
+        List<String> segments = new ArrayList<>();
+        if (path != null) {
+            for (String s : path.split("/")) {
+                if (!s.isEmpty()) {
+                    segments.add(decode(s));
+                }
+            }
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    public String getLastPathSegment() {
+        List<String> segments = getPathSegments();
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    public String getEncodedQuery() {
+        return query;
+    }
+
+    public String getQuery() {
+        return decode(query);
+    }
+
+    public String getEncodedFragment() {
+        return fragment;
+    }
+
+    public String getFragment() {
+        return decode(fragment);
+    }
+
+    /**
+     * Returns the decoded values of all query parameters with the given (decoded) key.
+     */
+    public List<String> getQueryParameters(String key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        List<String> values = new ArrayList<>();
+        if (query != null) {
+            for (String param : query.split("&", -1)) {
+                int eq = param.indexOf('=');
+                String name = eq < 0 ? param : param.substring(0, eq);
+                if (decodeQueryComponent(name).equals(key)) {
+                    values.add(eq < 0 ? "" : decodeQueryComponent(param.substring(eq + 1)));
+                }
+            }
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    public String getQueryParameter(String key) {
+        List<String> values = getQueryParameters(key);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    public Builder buildUpon() {
+        return new Builder()
+                .scheme(scheme)
+                .encodedAuthority(authority)
+                .encodedPath(path)
+                .encodedQuery(query)
+                .encodedFragment(fragment);
+    }
+
+    @Override
+    public String toString() {
+        return uriString;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && uriString.equals(((Uri)o).uriString);
+    }
+
+    @Override
+    public int hashCode() {
+        return uriString.hashCode();
+    }
+
+    @Override
+    public int compareTo(Uri other) {
+        return uriString.compareTo(other.uriString);
+    }
+
+    //
+    // Encoding
+    //
+
+    /**
+     * Percent-encodes s as UTF-8, leaving letters, digits and "_-!.~'()*" unencoded.
+     */
+    public static String encode(String s) {
+        return encode(s, null);
+    }
+
+    /**
+     * Like encode(s), but also leaves the characters in allow unencoded.
+     */
+    public static String encode(String s, String allow) {
+        if (s == null) {
+            return null;
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isAllowed(c, allow)) {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            }
+            // Encode the whole run of disallowed characters, so surrogate pairs stay together.
+            int end = i + 1;
+            while (end < s.length() && !isAllowed(s.charAt(end), allow)) {
+                end++;
+            }
+            for (byte b : s.substring(i, end).getBytes(UTF8)) {
+                sb.append('%').append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+            }
+            i = end - 1;
+        }
+        return sb == null ? s : sb.toString();
+    }
+
+    private static boolean isAllowed(char c, String allow) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "_-!.~'()*".indexOf(c) >= 0
+                || (allow != null && allow.indexOf(c) >= 0);
+    }
+
+    /**
+     * Decodes percent-encoded UTF-8. Invalid escapes are left as they are.
+     */
+    public static String decode(String s) {
+        return decode(s, false);
+    }
+
+    private static String decodeQueryComponent(String s) {
+        return decode(s, true);
+    }
+
+    private static String decode(String s, boolean plusAsSpace) {
+        if (s == null || (s.indexOf('%') < 0 && !(plusAsSpace && s.indexOf('+') >= 0))) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < s.length()
+                    && Character.digit(s.charAt(i + 1), 16) >= 0 && Character.digit(s.charAt(i + 2), 16) >= 0) {
+                bytes.write((Character.digit(s.charAt(i + 1), 16) << 4) | Character.digit(s.charAt(i + 2), 16));
+                i += 2;
+                continue;
+            }
+            if (bytes.size() > 0) {
+                sb.append(new String(bytes.toByteArray(), UTF8));
+                bytes.reset();
+            }
+            sb.append(plusAsSpace && c == '+' ? ' ' : c);
+        }
+        if (bytes.size() > 0) {
+            sb.append(new String(bytes.toByteArray(), UTF8));
+        }
+        return sb.toString();
+    }
+
+    public static final class Builder {
+        private String scheme;
+        private String authority;
+        private String path;
+        private String query;
+        private String fragment;
+
+        public Builder() {
+        }
+
+        public Builder scheme(String scheme) {
+            this.scheme = scheme;
+            return this;
+        }
+
+        public Builder authority(String authority) {
+            this.authority = encode(authority, "@:[]");
+            return this;
+        }
+
+        public Builder encodedAuthority(String authority) {
+            this.authority = authority;
+            return this;
+        }
+
+        public Builder path(String path) {
+            this.path = encode(path, "/");
+            return this;
+        }
+
+        public Builder encodedPath(String path) {
+            this.path = path;
+            return this;
+        }
+
+        public Builder appendPath(String segment) {
+            return appendEncodedPath(encode(segment));
+        }
+
+        public Builder appendEncodedPath(String segment) {
+            if (path == null || path.isEmpty()) {
+                path = "/" + segment;
+            }
+            else if (path.endsWith("/")) {
+                path = path + segment;
+            }
+            else {
+                path = path + "/" + segment;
+            }
+            return this;
+        }
+
+        public Builder query(String query) {
+            this.query = encode(query, "=&");
+            return this;
+        }
+
+        public Builder encodedQuery(String query) {
+            this.query = query;
+            return this;
+        }
+
+        public Builder appendQueryParameter(String key, String value) {
+            String param = encode(key) + "=" + encode(value);
+            query = query == null ? param : query + "&" + param;
+            return this;
+        }
+
+        public Builder clearQuery() {
+            this.query = null;
+            return this;
+        }
+
+        public Builder fragment(String fragment) {
+            this.fragment = encode(fragment);
+            return this;
+        }
+
+        public Builder encodedFragment(String fragment) {
+            this.fragment = fragment;
+            return this;
+        }
+
+        public Uri build() {
+            return fromParts(scheme, authority, path, query, fragment);
+        }
+
+        @Override
+        public String toString() {
+            return build().toString();
+        }
+    }
+}
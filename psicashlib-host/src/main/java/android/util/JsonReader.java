@@ -0,0 +1,509 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Host-JVM shim for Android's android.util.JsonReader: a strict, streaming JSON reader
+ * with the same API and behaviour for the methods the library uses.
+ *
+ * Like Android's, nextString() returns number literals as strings, and nextLong() and
+ * nextInt() accept numbers in strings, and numbers in exponent form if they're exact.
+ */
+public final class JsonReader implements Closeable {
+    // Scopes on the stack
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+    private static final int CLOSED = 7;
+
+    private final Reader in;
+    private final char[] buffer = new char[1024];
+    private int pos = 0;
+    private int limit = 0;
+
+    private int[] stack = new int[32];
+    private int stackSize = 0;
+
+    // The peeked token, or null if the next token hasn't been read yet.
+    private JsonToken token;
+    // The text of the peeked NAME, STRING, NUMBER or BOOLEAN.
+    private String value;
+
+    private final StringBuilder scratch = new StringBuilder();
+
+    public JsonReader(Reader in) {
+        if (in == null) {
+            throw new NullPointerException("in == null");
+        }
+        this.in = in;
+        push(EMPTY_DOCUMENT);
+    }
+
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+    }
+
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+    }
+
+    public boolean hasNext() throws IOException {
+        JsonToken t = peek();
+        return t != JsonToken.END_OBJECT && t != JsonToken.END_ARRAY && t != JsonToken.END_DOCUMENT;
+    }
+
+    public JsonToken peek() throws IOException {
+        if (token != null) {
+            return token;
+        }
+
+        switch (stack[stackSize - 1]) {
+            case EMPTY_DOCUMENT:
+                stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+                return nextValue();
+            case NONEMPTY_DOCUMENT:
+                if (nextNonWhitespace(false) == -1) {
+                    return token = JsonToken.END_DOCUMENT;
+                }
+                throw syntaxError("Expected end of document");
+            case EMPTY_ARRAY:
+                return nextInArray(true);
+            case NONEMPTY_ARRAY:
+                return nextInArray(false);
+            case EMPTY_OBJECT:
+                return nextInObject(true);
+            case DANGLING_NAME:
+                return objectValue();
+            case NONEMPTY_OBJECT:
+                return nextInObject(false);
+            case CLOSED:
+                throw new IllegalStateException("JsonReader is closed");
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    public String nextName() throws IOException {
+        peek();
+        if (token != JsonToken.NAME) {
+            throw new IllegalStateException("Expected a name but was " + token);
+        }
+        return consumeValue();
+    }
+
+    public String nextString() throws IOException {
+        peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a string but was " + token);
+        }
+        return consumeValue();
+    }
+
+    public boolean nextBoolean() throws IOException {
+        peek();
+        if (token != JsonToken.BOOLEAN) {
+            throw new IllegalStateException("Expected a boolean but was " + token);
+        }
+        return "true".equals(consumeValue());
+    }
+
+    public void nextNull() throws IOException {
+        peek();
+        if (token != JsonToken.NULL) {
+            throw new IllegalStateException("Expected null but was " + token);
+        }
+        consumeValue();
+    }
+
+    public double nextDouble() throws IOException {
+        peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a double but was " + token);
+        }
+        double result = Double.parseDouble(value);
+        consumeValue();
+        return result;
+    }
+
+    public long nextLong() throws IOException {
+        peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected a long but was " + token);
+        }
+        long result;
+        try {
+            result = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            double asDouble = Double.parseDouble(value);
+            result = (long)asDouble;
+            if (result != asDouble) {
+                throw new NumberFormatException("Expected a long but was " + value);
+            }
+        }
+        consumeValue();
+        return result;
+    }
+
+    public int nextInt() throws IOException {
+        peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+            throw new IllegalStateException("Expected an int but was " + token);
+        }
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            double asDouble = Double.parseDouble(value);
+            result = (int)asDouble;
+            if (result != asDouble) {
+                throw new NumberFormatException("Expected an int but was " + value);
+            }
+        }
+        consumeValue();
+        return result;
+    }
+
+    /**
+     * Skips the next value, including all of its nested elements if it's an array or
+     * object.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            JsonToken t = peek();
+            if (t == JsonToken.END_DOCUMENT) {
+                throw new IllegalStateException("Expected a value but was " + t);
+            }
+            if (t == JsonToken.BEGIN_ARRAY || t == JsonToken.BEGIN_OBJECT) {
+                depth++;
+            }
+            else if (t == JsonToken.END_ARRAY || t == JsonToken.END_OBJECT) {
+                depth--;
+            }
+            consumeValue();
+        } while (depth > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        token = null;
+        value = null;
+        stack[0] = CLOSED;
+        stackSize = 1;
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " near " + new String(buffer, pos, Math.min(limit - pos, 20));
+    }
+
+    //
+    // Tokenizing
+    //
+
+    private void expect(JsonToken expected) throws IOException {
+        peek();
+        if (token != expected) {
+            throw new IllegalStateException("Expected " + expected + " but was " + token);
+        }
+        consumeValue();
+    }
+
+    // Consumes the peeked token and returns its value (if any).
+    private String consumeValue() {
+        String result = value;
+        token = null;
+        value = null;
+        return result;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] newStack = new int[stackSize * 2];
+            System.arraycopy(stack, 0, newStack, 0, stackSize);
+            stack = newStack;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private JsonToken nextInArray(boolean first) throws IOException {
+        if (first) {
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+        }
+        else {
+            int c = nextNonWhitespace(true);
+            if (c == ']') {
+                stackSize--;
+                return token = JsonToken.END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+            return nextValue();
+        }
+
+        if (nextNonWhitespace(true) == ']') {
+            stackSize--;
+            return token = JsonToken.END_ARRAY;
+        }
+        pos--;
+        return nextValue();
+    }
+
+    private JsonToken nextInObject(boolean first) throws IOException {
+        int c = nextNonWhitespace(true);
+        if (c == '}') {
+            stackSize--;
+            return token = JsonToken.END_OBJECT;
+        }
+        if (!first) {
+            if (c != ',') {
+                throw syntaxError("Unterminated object");
+            }
+            c = nextNonWhitespace(true);
+        }
+        if (c != '"') {
+            throw syntaxError("Expected name");
+        }
+        value = readString();
+        stack[stackSize - 1] = DANGLING_NAME;
+        return token = JsonToken.NAME;
+    }
+
+    private JsonToken objectValue() throws IOException {
+        if (nextNonWhitespace(true) != ':') {
+            throw syntaxError("Expected ':'");
+        }
+        stack[stackSize - 1] = NONEMPTY_OBJECT;
+        return nextValue();
+    }
+
+    private JsonToken nextValue() throws IOException {
+        int c = nextNonWhitespace(true);
+        switch (c) {
+            case '{':
+                push(EMPTY_OBJECT);
+                return token = JsonToken.BEGIN_OBJECT;
+            case '[':
+                push(EMPTY_ARRAY);
+                return token = JsonToken.BEGIN_ARRAY;
+            case '"':
+                value = readString();
+                return token = JsonToken.STRING;
+            default:
+                pos--;
+                return readLiteral();
+        }
+    }
+
+    private JsonToken readLiteral() throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            char c = buffer[pos];
+            if (c == ',' || c == ':' || c == ']' || c == '}' || c == '[' || c == '{' || c == '"'
+                    || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            scratch.append(c);
+            pos++;
+        }
+
+        String literal = scratch.toString();
+        switch (literal) {
+            case "true":
+            case "false":
+                value = literal;
+                return token = JsonToken.BOOLEAN;
+            case "null":
+                value = null;
+                return token = JsonToken.NULL;
+            default:
+                if (!isNumber(literal)) {
+                    throw syntaxError("Expected value");
+                }
+                value = literal;
+                return token = JsonToken.NUMBER;
+        }
+    }
+
+    // Whether s matches the JSON number grammar.
+    private static boolean isNumber(String s) {
+        int i = 0;
+        int len = s.length();
+        if (i < len && s.charAt(i) == '-') {
+            i++;
+        }
+        if (i == len) {
+            return false;
+        }
+        if (s.charAt(i) == '0') {
+            i++;
+        }
+        else if (isDigit(s.charAt(i))) {
+            while (i < len && isDigit(s.charAt(i))) {
+                i++;
+            }
+        }
+        else {
+            return false;
+        }
+        if (i < len && s.charAt(i) == '.') {
+            i++;
+            int start = i;
+            while (i < len && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < len && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < len && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            while (i < len && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == len;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Reads a string whose opening quote has been consumed, up to and including its closing
+    // quote.
+    private String readString() throws IOException {
+        scratch.setLength(0);
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                char c = buffer[pos++];
+                if (c == '"') {
+                    scratch.append(buffer, start, pos - start - 1);
+                    return scratch.toString();
+                }
+                if (c == '\\') {
+                    scratch.append(buffer, start, pos - start - 1);
+                    scratch.append(readEscape());
+                    start = pos;
+                }
+            }
+            scratch.append(buffer, start, pos - start);
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        char c = buffer[pos++];
+        switch (c) {
+            case 'u':
+                int result = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (pos == limit && !fill()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    int digit = Character.digit(buffer[pos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("Bad \\u escape");
+                    }
+                    result = (result << 4) | digit;
+                }
+                return (char)result;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            default:
+                throw syntaxError("Bad escape sequence");
+        }
+    }
+
+    // Returns the next non-whitespace character and consumes it, or -1 at the end of input.
+    // If required, the end of input is a syntax error.
+    private int nextNonWhitespace(boolean required) throws IOException {
+        while (pos < limit || fill()) {
+            char c = buffer[pos++];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return c;
+            }
+        }
+        if (required) {
+            throw syntaxError("End of input");
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = 0;
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+
+    private MalformedJsonException syntaxError(String message) {
+        return new MalformedJsonException(message + " near " + this);
+    }
+}
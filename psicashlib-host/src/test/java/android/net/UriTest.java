@@ -0,0 +1,57 @@
+package android.net;
+
+import org.junit.*;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UriTest {
+    @Test
+    public void parse() {
+        Uri uri = Uri.parse("https://user@api.example.com:8443/v1/refresh-state?class=speed-boost&class=a%20b&x=1+2#frag");
+        assertEquals("https", uri.getScheme());
+        assertEquals("user@api.example.com:8443", uri.getEncodedAuthority());
+        assertEquals("api.example.com", uri.getHost());
+        assertEquals(8443, uri.getPort());
+        assertEquals("/v1/refresh-state", uri.getPath());
+        assertEquals("refresh-state", uri.getLastPathSegment());
+        assertEquals(Arrays.asList("speed-boost", "a b"), uri.getQueryParameters("class"));
+        assertEquals("1 2", uri.getQueryParameter("x"));
+        assertNull(uri.getQueryParameter("missing"));
+        assertEquals("frag", uri.getFragment());
+
+        assertEquals(-1, Uri.parse("http://[::1]/").getPort());
+        assertEquals("[::1]", Uri.parse("http://[::1]:80/").getHost());
+    }
+
+    @Test
+    public void build() {
+        Uri uri = new Uri.Builder()
+                .scheme("https")
+                .encodedAuthority("api.example.com:443")
+                .encodedPath("/v1/transaction")
+                .appendQueryParameter("class", "speed-boost")
+                .appendQueryParameter("distinguisher", "1hr & more/ü")
+                .build();
+        assertEquals("https://api.example.com:443/v1/transaction?class=speed-boost&distinguisher=1hr%20%26%20more%2F%C3%BC",
+                uri.toString());
+        assertEquals("1hr & more/ü", uri.getQueryParameter("distinguisher"));
+
+        // Round trip, replacing the host
+        Uri other = Uri.parse(uri.toString()).buildUpon().scheme("http").encodedAuthority("127.0.0.1:1234").build();
+        assertEquals("http://127.0.0.1:1234/v1/transaction?class=speed-boost&distinguisher=1hr%20%26%20more%2F%C3%BC",
+                other.toString());
+        assertEquals(other, Uri.parse(other.toString()));
+    }
+
+    @Test
+    public void encoding() {
+        assertEquals("abc-_.!~*'()", Uri.encode("abc-_.!~*'()"));
+        assertEquals("a%20b%2Fc", Uri.encode("a b/c"));
+        assertEquals("a%20b/c", Uri.encode("a b/c", "/"));
+        assertEquals("%F0%9D%84%9E", Uri.encode("𝄞"));
+        assertEquals("𝄞 %zz", Uri.decode("%F0%9D%84%9E%20%zz"));
+        assertNull(Uri.encode(null));
+    }
+}
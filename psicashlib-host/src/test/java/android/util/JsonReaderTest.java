@@ -0,0 +1,109 @@
+package android.util;
+
+import org.junit.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class JsonReaderTest {
+    // Returns one char per read, so that every token crosses a buffer boundary.
+    private static Reader trickle(String s) {
+        return new StringReader(s) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    public void document() throws IOException {
+        String json = " {\"status\":0, \"purchases\": [ {\"id\":\"a\\\"b\\u00e9\\n\", \"price\":-1000000000000,"
+                + "\"rate\":1.5e2, \"ok\":true, \"auth\":null, \"nested\":{\"x\":[1,[2],{}]}}, {} ] } ";
+        for (Reader in : new Reader[]{new StringReader(json), trickle(json)}) {
+            try (JsonReader reader = new JsonReader(in)) {
+                reader.beginObject();
+                assertEquals("status", reader.nextName());
+                assertEquals(JsonToken.NUMBER, reader.peek());
+                assertEquals(0, reader.nextInt());
+                assertEquals("purchases", reader.nextName());
+                reader.beginArray();
+                assertTrue(reader.hasNext());
+                reader.beginObject();
+                assertEquals("id", reader.nextName());
+                assertEquals("a\"bé\n", reader.nextString());
+                assertEquals("price", reader.nextName());
+                assertEquals(-1000000000000L, reader.nextLong());
+                assertEquals("rate", reader.nextName());
+                assertEquals(150, reader.nextLong());
+                assertEquals("ok", reader.nextName());
+                assertEquals(JsonToken.BOOLEAN, reader.peek());
+                assertTrue(reader.nextBoolean());
+                assertEquals("auth", reader.nextName());
+                assertEquals(JsonToken.NULL, reader.peek());
+                reader.nextNull();
+                assertEquals("nested", reader.nextName());
+                reader.skipValue();
+                assertFalse(reader.hasNext());
+                reader.endObject();
+                reader.beginObject();
+                assertFalse(reader.hasNext());
+                reader.endObject();
+                assertFalse(reader.hasNext());
+                reader.endArray();
+                reader.endObject();
+                assertEquals(JsonToken.END_DOCUMENT, reader.peek());
+            }
+        }
+    }
+
+    @Test
+    public void numbers() throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader("[\"123\", 45, 1.5, 9223372036854775807]"))) {
+            reader.beginArray();
+            assertEquals(123, reader.nextLong());
+            assertEquals("45", reader.nextString());
+            try {
+                reader.nextLong();
+                fail("expected NumberFormatException");
+            } catch (NumberFormatException e) {
+                // expected; the value isn't consumed
+            }
+            assertEquals(1.5, reader.nextDouble(), 0);
+            assertEquals(Long.MAX_VALUE, reader.nextLong());
+            reader.endArray();
+        }
+    }
+
+    @Test
+    public void wrongType() throws IOException {
+        try (JsonReader reader = new JsonReader(new StringReader("{\"a\":1}"))) {
+            reader.beginObject();
+            try {
+                reader.nextString();
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            assertEquals("a", reader.nextName());
+        }
+    }
+
+    @Test
+    public void malformed() throws IOException {
+        String[] bad = {"{\"a\" 1}", "[1 2]", "{a:1}", "[tru]", "\"abc", "[1,", "[01]", "[-]", "[\"\\x\"]", "{} {}"};
+        for (String json : bad) {
+            try (JsonReader reader = new JsonReader(new StringReader(json))) {
+                while (reader.peek() != JsonToken.END_DOCUMENT) {
+                    reader.skipValue();
+                }
+                fail("expected MalformedJsonException: " + json);
+            } catch (MalformedJsonException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+// Loads the host build of the native library and makes calls through the glue, to check
+// that the library works outside Android.
+public class HostLibraryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void initAndRead() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        PsiCashLib pcl = new PsiCashLib();
+        PsiCashLib.Error err = pcl.init(folder.newFolder().getAbsolutePath(), reqParams -> {
+            requests.incrementAndGet();
+            assertNotNull(reqParams.uri.getHost());
+            PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
+            res.code = PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR;
+            res.error = "no network";
+            return res;
+        }, false);
+        assertNull(err);
+
+        assertNull(pcl.hasTokens().error);
+        assertFalse(pcl.hasTokens().hasTokens);
+        assertEquals(0, pcl.balance().balance);
+        assertTrue(pcl.getPurchases().purchases.isEmpty());
+
+        // The request goes through the Uri shim to the requester, and the failure comes back
+        // as an error rather than a crash.
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNotNull(res.error);
+        assertTrue(requests.get() > 0);
+    }
+}
@@ -0,0 +1,41 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Checks that the library works with an AsyncHTTPRequester.
+public class AsyncHTTPRequesterTest extends TestBase {
+    // Completes requests from its own thread, like an event-driven client would.
+    private class ExecutorRequester implements PsiCashLib.AsyncHTTPRequester {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final PsiCashLibHelper delegate = new PsiCashLibHelper();
+
+        @Override
+        public void httpRequest(PsiCashLib.HTTPRequester.ReqParams reqParams, Completion completion) {
+            executor.execute(() -> completion.complete(delegate.httpRequest(reqParams)));
+        }
+    }
+
+    @Test
+    public void refreshState() {
+        ExecutorRequester requester = new ExecutorRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), PsiCashLib.wrapAsyncHTTPRequester(requester), false);
+        assertNull(err);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(pcl.hasTokens().hasTokens);
+        assertNotEquals(0, pcl.getPurchasePrices().purchasePrices.size());
+
+        requester.executor.shutdown();
+    }
+}
@@ -0,0 +1,98 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Tests the *Async variants of the network-backed calls.
+public class AsyncTest extends TestBase {
+    private class BlockingRequester implements PsiCashLib.HTTPRequester {
+        final CountDownLatch requestStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final PsiCashLibHelper delegate = new PsiCashLibHelper();
+
+        @Override
+        public Result httpRequest(ReqParams reqParams) {
+            requestStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // A timed-out call interrupts the requesting thread; carry on regardless
+                Thread.currentThread().interrupt();
+            }
+            return delegate.httpRequest(reqParams);
+        }
+    }
+
+    @Test
+    public void refreshStateAsync() throws InterruptedException, ExecutionException, TimeoutException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+        pcl.setAsyncExecutor(Executors.newFixedThreadPool(2));
+
+        AtomicReference<PsiCashLib.RefreshStateResult> callbackResult = new AtomicReference<>();
+        CountDownLatch called = new CountDownLatch(1);
+        Future<PsiCashLib.RefreshStateResult> f = pcl.refreshStateAsync(false, Arrays.asList("speed-boost"), 0,
+                result -> {
+                    callbackResult.set(result);
+                    called.countDown();
+                });
+
+        PsiCashLib.RefreshStateResult res = f.get(60, TimeUnit.SECONDS);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertSame(res, callbackResult.get());
+        assertTrue(pcl.hasTokens().hasTokens);
+    }
+
+    @Test
+    public void timeout() throws InterruptedException, ExecutionException, TimeoutException {
+        BlockingRequester requester = new BlockingRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+
+        Future<PsiCashLib.RefreshStateResult> f = pcl.refreshStateAsync(false, null, 100, null);
+        PsiCashLib.RefreshStateResult res = f.get(10, TimeUnit.SECONDS);
+        assertNotNull(res.error);
+        assertFalse(res.error.critical);
+
+        // The library is still usable once the abandoned request finishes. (Different
+        // purchase classes, so that this doesn't get coalesced with the abandoned call.)
+        requester.release.countDown();
+        res = pcl.refreshStateAsync(false, Arrays.asList("speed-boost"), 0, null).get(60, TimeUnit.SECONDS);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        BlockingRequester requester = new BlockingRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+
+        AtomicReference<PsiCashLib.RefreshStateResult> callbackResult = new AtomicReference<>();
+        Future<PsiCashLib.RefreshStateResult> f = pcl.refreshStateAsync(false, null, 0, callbackResult::set);
+        assertTrue(requester.requestStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(f.cancel(true));
+        assertTrue(f.isCancelled());
+
+        requester.release.countDown();
+        Thread.sleep(500);
+        assertNull(callbackResult.get());
+    }
+}
@@ -2,7 +2,11 @@ package ca.psiphon.psicashlib.test;
 
 import org.junit.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import ca.psiphon.psicashlib.PsiCashLib;
 
@@ -59,4 +63,87 @@ public class DecodeAuthorizationTest extends TestBase {
         assertNotNull(decodeRes.error);
         assertTrue(decodeRes.error.critical);
     }
+
+    @Test
+    public void cached() {
+        PsiCashLib.DecodeAuthorizationResult first = PsiCashLib.decodeAuthorization(encodedAuth1);
+        assertNull(first.error);
+        PsiCashLib.DecodeAuthorizationCacheStats before = PsiCashLib.getDecodeAuthorizationCacheStats();
+        assertThat(before.size, greaterThan(0));
+        assertThat(before.size, lessThanOrEqualTo(before.capacity));
+
+        // The same result, from the cache
+        PsiCashLib.DecodeAuthorizationResult second = PsiCashLib.decodeAuthorization(encodedAuth1);
+        assertNull(second.error);
+        assertEquals(first.authorization.id, second.authorization.id);
+        assertEquals(first.authorization.accessType, second.authorization.accessType);
+        assertEquals(first.authorization.expires, second.authorization.expires);
+        assertEquals(first.authorization.encoded, second.authorization.encoded);
+        PsiCashLib.DecodeAuthorizationCacheStats after = PsiCashLib.getDecodeAuthorizationCacheStats();
+        assertEquals(before.hits + 1, after.hits);
+        assertEquals(before.misses, after.misses);
+
+        // Changing a result doesn't change the cached one
+        second.authorization.id = "changed";
+        assertEquals(first.authorization.id, PsiCashLib.decodeAuthorization(encodedAuth1).authorization.id);
+
+        // Errors aren't cached
+        assertNotNull(PsiCashLib.decodeAuthorization("$@%^%^^%&====").error);
+        before = PsiCashLib.getDecodeAuthorizationCacheStats();
+        assertNotNull(PsiCashLib.decodeAuthorization("$@%^%^^%&====").error);
+        after = PsiCashLib.getDecodeAuthorizationCacheStats();
+        assertEquals(before.misses + 1, after.misses);
+    }
+
+    @Test
+    public void bulk() {
+        // Results in input order, with per-item errors, and repeats decoded the same
+        List<String> encoded = Arrays.asList(encodedAuth1, "$@%^%^^%&====", encodedAuth2, null, encodedAuth1);
+        PsiCashLib.DecodeAuthorizationsResult res = PsiCashLib.decodeAuthorizations(encoded);
+        assertNull(res.error);
+        assertThat(res.results, hasSize(encoded.size()));
+        assertNull(res.results.get(0).error);
+        assertThat(res.results.get(0).authorization.encoded, equalTo(encodedAuth1));
+        assertNotNull(res.results.get(1).error);
+        assertTrue(res.results.get(1).error.critical);
+        assertNull(res.results.get(1).authorization);
+        assertNull(res.results.get(2).error);
+        assertThat(res.results.get(2).authorization.encoded, equalTo(encodedAuth2));
+        assertNotNull(res.results.get(3).error);
+        assertNull(res.results.get(4).error);
+        assertThat(res.results.get(4).authorization.id, equalTo(res.results.get(0).authorization.id));
+        assertNotSame(res.results.get(0).authorization, res.results.get(4).authorization);
+
+        // Same as the single-item call
+        PsiCashLib.DecodeAuthorizationResult single = PsiCashLib.decodeAuthorization(encodedAuth2);
+        assertEquals(single.authorization.id, res.results.get(2).authorization.id);
+        assertEquals(single.authorization.accessType, res.results.get(2).authorization.accessType);
+        assertEquals(single.authorization.expires, res.results.get(2).authorization.expires);
+
+        // Empty and null input
+        res = PsiCashLib.decodeAuthorizations(Collections.emptyList());
+        assertNull(res.error);
+        assertThat(res.results, empty());
+        res = PsiCashLib.decodeAuthorizations(null);
+        assertNull(res.error);
+        assertThat(res.results, empty());
+    }
+
+    @Test
+    public void bulkLarge() {
+        // Enough distinct inputs to be decoded on multiple threads
+        List<String> encoded = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            encoded.add(i % 2 == 0 ? encodedAuth1 : encodedAuth2);
+            encoded.add("bad-" + i);
+        }
+        PsiCashLib.DecodeAuthorizationsResult res = PsiCashLib.decodeAuthorizations(encoded);
+        assertNull(res.error);
+        assertThat(res.results, hasSize(encoded.size()));
+        for (int i = 0; i < encoded.size(); i += 2) {
+            assertNull(res.results.get(i).error);
+            assertThat(res.results.get(i).authorization.encoded, equalTo(encoded.get(i)));
+            assertNotNull(res.results.get(i + 1).error);
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ExpiryListenerTest extends TestBase {
+    @Test
+    public void expiresOnTime() throws InterruptedException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        err = pcl.testReward(2);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        LinkedBlockingQueue<List<PsiCashLib.Purchase>> expired = new LinkedBlockingQueue<>();
+        err = pcl.setExpiryListener(expired::add);
+        assertNull(err);
+
+        // Made after the listener is set, so it's picked up from newExpiringPurchase
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_SECOND_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+        PsiCashLib.NewExpiringPurchaseResult longer = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(longer.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, longer.status);
+
+        // No polling: the listener gets it, already removed from the datastore
+        List<PsiCashLib.Purchase> batch = expired.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertThat(batch, hasSize(1));
+        assertEquals(nepr.purchase.id, batch.get(0).id);
+        assertThat(System.currentTimeMillis(), greaterThanOrEqualTo(nepr.purchase.expiry.getTime()));
+        PsiCashLib.GetPurchasesResult gpr = pcl.getPurchases();
+        assertNull(gpr.error);
+        assertThat(gpr.purchases, hasSize(1));
+        assertEquals(longer.purchase.id, gpr.purchases.get(0).id);
+
+        // Removed purchases aren't reported
+        PsiCashLib.RemovePurchasesResult rpr = pcl.removePurchases(Collections.singletonList(longer.purchase.id));
+        assertNull(rpr.error);
+        assertThat(rpr.purchases, hasSize(1));
+
+        assertNull(pcl.setExpiryListener(null));
+        assertNull(expired.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void existingPurchases() throws InterruptedException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        err = pcl.testReward(1);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_SECOND_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+
+        // Let it expire before there's a listener; it's reported as soon as there is one
+        sleep(1500);
+        LinkedBlockingQueue<List<PsiCashLib.Purchase>> expired = new LinkedBlockingQueue<>();
+        err = pcl.setExpiryListener(expired::add);
+        assertNull(err);
+        List<PsiCashLib.Purchase> batch = expired.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertThat(batch, hasSize(1));
+        assertEquals(nepr.purchase.id, batch.get(0).id);
+        assertNull(pcl.setExpiryListener(null));
+    }
+}
@@ -157,4 +157,59 @@ public class GetPurchasesByAuthorizationIDTest extends TestBase {
         assertEquals(1, grbaidr.purchases.size());
         assertEquals(grbaidr.purchases.get(0).id, neprTenSec.purchase.id);
     }
+
+    @Test
+    public void afterChanges() {
+        // Lookups are answered from an index of the purchases, which must follow every change
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        err = pcl.testReward(2);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        PsiCashLib.NewExpiringPurchaseResult first = pcl.newExpiringPurchase(TEST_DEBIT_WITH_AUTHORIZATION_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(first.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, first.status);
+        List<String> firstAuth = Arrays.asList(first.purchase.authorization.id);
+        PsiCashLib.GetPurchasesByAuthorizationIDResult grbaidr = pcl.getPurchasesByAuthorizationID(firstAuth);
+        assertNull(conds(grbaidr.error, "message"), grbaidr.error);
+        assertEquals(1, grbaidr.purchases.size());
+
+        // Removing unknown IDs changes nothing
+        PsiCashLib.RemovePurchasesResult rpr = pcl.removePurchases(Arrays.asList("no-such-id"));
+        assertNull(rpr.error);
+        assertThat(rpr.purchases, hasSize(0));
+        grbaidr = pcl.getPurchasesByAuthorizationID(firstAuth);
+        assertEquals(1, grbaidr.purchases.size());
+
+        // A purchase made after the index was built is found
+        PsiCashLib.NewExpiringPurchaseResult second = pcl.newExpiringPurchase(TEST_DEBIT_WITH_AUTHORIZATION_TRANSACTION_CLASS, TEST_ONE_TRILLION_TEN_SECOND_DISTINGUISHER, ONE_TRILLION);
+        assertNull(second.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, second.status);
+        List<String> bothAuths = Arrays.asList(second.purchase.authorization.id, first.purchase.authorization.id);
+        grbaidr = pcl.getPurchasesByAuthorizationID(bothAuths);
+        assertNull(conds(grbaidr.error, "message"), grbaidr.error);
+        assertEquals(2, grbaidr.purchases.size());
+
+        // A removed purchase isn't
+        rpr = pcl.removePurchases(Arrays.asList(first.purchase.id, "no-such-id"));
+        assertNull(rpr.error);
+        assertThat(rpr.purchases, hasSize(1));
+        assertEquals(first.purchase.id, rpr.purchases.get(0).id);
+        grbaidr = pcl.getPurchasesByAuthorizationID(bothAuths);
+        assertNull(conds(grbaidr.error, "message"), grbaidr.error);
+        assertEquals(1, grbaidr.purchases.size());
+        assertEquals(second.purchase.id, grbaidr.purchases.get(0).id);
+
+        // Nor is anything after a reset
+        err = pcl.resetUser();
+        assertNull(err);
+        grbaidr = pcl.getPurchasesByAuthorizationID(bothAuths);
+        assertNull(conds(grbaidr.error, "message"), grbaidr.error);
+        assertEquals(0, grbaidr.purchases.size());
+    }
 }
@@ -0,0 +1,76 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Measures the per-request overhead of the HTTP request glue (native -> makeHTTPRequest ->
+// requester -> native), using a requester that does no I/O. Also checks that the request
+// parameters survive the trip. Timings are logged.
+public class HTTPRequestGlueBenchmarkTest extends TestBase {
+    private static final int ITERATIONS = 2000;
+
+    private static class CannedRequester implements PsiCashLib.HTTPRequester {
+        final Result canned = new Result();
+        ReqParams lastReqParams;
+
+        CannedRequester() {
+            StringBuilder body = new StringBuilder("{\"TokensValid\":true,\"IsAccount\":false,\"Balance\":123456789,\"PurchasePrices\":[");
+            for (int i = 0; i < 40; i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append("{\"Class\":\"speed-boost\",\"Distinguisher\":\"").append(i).append("hr\",\"Price\":").append(i * 1000000000L).append('}');
+            }
+            body.append("]}");
+
+            canned.code = 200;
+            canned.body = body.toString();
+            canned.headers = new HashMap<>();
+            canned.headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+            canned.headers.put("Content-Type", Collections.singletonList("application/json"));
+            canned.headers.put("Date", Collections.singletonList("Mon, 14 Jan 2019 17:22:23 GMT"));
+            canned.headers.put("Set-Cookie", Arrays.asList("a=b", "c=d"));
+        }
+
+        @Override
+        public Result httpRequest(ReqParams reqParams) {
+            lastReqParams = reqParams;
+            return canned;
+        }
+    }
+
+    @Test
+    public void glue() {
+        CannedRequester requester = new CannedRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+
+        assertNull(pcl.httpRequestGlue(1));
+
+        PsiCashLib.HTTPRequester.ReqParams params = requester.lastReqParams;
+        assertEquals("GET", params.method);
+        assertEquals("https", params.uri.getScheme());
+        assertEquals("api.psi.cash", params.uri.getHost());
+        assertEquals(443, params.uri.getPort());
+        assertEquals("/v1/refresh-state", params.uri.getPath());
+        List<String> classes = params.uri.getQueryParameters("class");
+        assertEquals(Arrays.asList("speed-boost", "other"), classes);
+        Map<String, String> headers = params.headers;
+        assertEquals("Psiphon-PsiCash-Android", headers.get("User-Agent"));
+        // Non-ASCII, including a character outside the BMP
+        assertEquals("Grüße ✓ 𝄞", headers.get("X-Test-Unicode"));
+        assertNull(params.body);
+
+        benchmark("HTTP request glue", ITERATIONS, () -> assertNull(pcl.httpRequestGlue(1)));
+    }
+}
@@ -0,0 +1,133 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class InitAsyncTest extends TestBase {
+    // Creates a tracker with a nonzero balance in dir, and returns the balance.
+    private long populate(String dir) {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(dir, new PsiCashLibHelper(), false);
+        assertNull(conds(err, "message"), err);
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        err = pcl.testReward(1);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        long balance = pcl.balance().balance;
+        assertThat(balance, greaterThan(0L));
+        return balance;
+    }
+
+    @Test
+    public void cachedBalance() throws InterruptedException, ExecutionException, TimeoutException {
+        String dir = getTempDir();
+        long balance = populate(dir);
+
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        AtomicReference<PsiCashLib.InitResult> callbackResult = new AtomicReference<>();
+        CountDownLatch called = new CountDownLatch(1);
+        Future<PsiCashLib.InitResult> f = pcl.initAsync(dir, new PsiCashLibHelper(), false, result -> {
+            callbackResult.set(result);
+            called.countDown();
+        });
+
+        // Either from the cache or, if init is already done, from the datastore
+        PsiCashLib.BalanceResult br = pcl.balance();
+        assertNull(br.error);
+        assertEquals(balance, br.balance);
+        PsiCashLib.HasTokensResult htr = pcl.hasTokens();
+        assertNull(htr.error);
+        assertTrue(htr.hasTokens);
+        PsiCashLib.IsAccountResult iar = pcl.isAccount();
+        assertNull(iar.error);
+        assertFalse(iar.isAccount);
+
+        // Can't be cancelled
+        assertFalse(f.cancel(true));
+
+        PsiCashLib.InitResult res = f.get(60, TimeUnit.SECONDS);
+        assertNull(conds(res.error, "message"), res.error);
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertSame(res, callbackResult.get());
+
+        br = pcl.balance();
+        assertNull(br.error);
+        assertFalse(br.cached);
+        assertEquals(balance, br.balance);
+    }
+
+    @Test
+    public void otherCallsWait() throws InterruptedException, ExecutionException, TimeoutException {
+        String dir = getTempDir();
+        populate(dir);
+
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        Future<PsiCashLib.InitResult> f = pcl.initAsync(dir, new PsiCashLibHelper(), false, null);
+
+        // Not cached, so this waits for init rather than hitting an uninitialized core
+        PsiCashLib.GetPurchasesResult gpr = pcl.getPurchases();
+        assertNull(conds(gpr.error, "message"), gpr.error);
+        PsiCashLib.RefreshStateResult rsr = pcl.refreshState(false, null);
+        assertNull(conds(rsr.error, "message"), rsr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, rsr.status);
+
+        assertNull(f.get(60, TimeUnit.SECONDS).error);
+    }
+
+    @Test
+    public void noCache() throws InterruptedException, ExecutionException, TimeoutException {
+        // First run: nothing cached, so the getters wait for init
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        Future<PsiCashLib.InitResult> f = pcl.initAsync(getTempDir(), new PsiCashLibHelper(), false, null);
+        PsiCashLib.BalanceResult br = pcl.balance();
+        assertNull(br.error);
+        assertFalse(br.cached);
+        assertEquals(0L, br.balance);
+        assertNull(f.get(60, TimeUnit.SECONDS).error);
+    }
+
+    @Test
+    public void forceReset() throws InterruptedException, ExecutionException, TimeoutException {
+        String dir = getTempDir();
+        populate(dir);
+
+        // The cache isn't used, since it's for the datastore being reset
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        Future<PsiCashLib.InitResult> f = pcl.initAsync(dir, new PsiCashLibHelper(), true, null);
+        PsiCashLib.BalanceResult br = pcl.balance();
+        assertNull(br.error);
+        assertFalse(br.cached);
+        assertEquals(0L, br.balance);
+        assertNull(f.get(60, TimeUnit.SECONDS).error);
+
+        // ...and is rewritten for the reset datastore
+        pcl = new PsiCashLibTester();
+        f = pcl.initAsync(dir, new PsiCashLibHelper(), false, null);
+        assertEquals(0L, pcl.balance().balance);
+        assertNull(f.get(60, TimeUnit.SECONDS).error);
+    }
+
+    @Test
+    public void error() throws InterruptedException, ExecutionException, TimeoutException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        Future<PsiCashLib.InitResult> f = pcl.initAsync("/a:%$*&/b/c/d/e/f", new PsiCashLibHelper(), false, null);
+        assertNotNull(f.get(60, TimeUnit.SECONDS).error);
+
+        // Still usable with good params
+        f = pcl.initAsync(getTempDir(), new PsiCashLibHelper(), false, null);
+        assertNull(f.get(60, TimeUnit.SECONDS).error);
+    }
+}
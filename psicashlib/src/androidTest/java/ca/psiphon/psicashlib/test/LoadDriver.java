@@ -0,0 +1,150 @@
+package ca.psiphon.psicashlib.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+/**
+ * Drives concurrent clients against a PsiCashLib instance (normally one pointed at a
+ * MockPsiCashServer) and reports throughput and exact latency percentiles.
+ *
+ * The native core is a process-wide singleton, so the clients are threads sharing one
+ * library instance rather than independent libraries. That is also how an app uses it:
+ * UI, background refreshes and purchases all call into the same instance concurrently.
+ *
+ * Each client does opsPerClient operations: a refreshState, or every purchaseEvery-th op a
+ * newExpiringPurchase. Latencies are recorded into preallocated arrays so that recording
+ * doesn't disturb what's being measured.
+ */
+public class LoadDriver {
+    public static class Report {
+        public final int clients;
+        public final long ops;
+        public final long errors;
+        // Operations that completed without error but with a non-SUCCESS status.
+        public final long failedStatuses;
+        public final long elapsedNanos;
+        // Sorted.
+        private final long[] latencies;
+
+        Report(int clients, long errors, long failedStatuses, long elapsedNanos, long[] latencies) {
+            this.clients = clients;
+            this.ops = latencies.length;
+            this.errors = errors;
+            this.failedStatuses = failedStatuses;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        public double opsPerSecond() {
+            return elapsedNanos == 0 ? 0 : ops * 1e9 / elapsedNanos;
+        }
+
+        // Exact percentile (nearest rank), for p in (0, 100].
+        public long percentileNanos(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int rank = (int)Math.ceil(p / 100.0 * latencies.length);
+            return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)];
+        }
+
+        public long maxNanos() {
+            return latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "clients=%d ops=%d errors=%d failedStatuses=%d %.1f ops/s p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                    clients, ops, errors, failedStatuses, opsPerSecond(),
+                    percentileNanos(50) / 1e6, percentileNanos(99) / 1e6,
+                    percentileNanos(99.9) / 1e6, maxNanos() / 1e6);
+        }
+    }
+
+    private final PsiCashLib pcl;
+    private final List<String> purchaseClasses;
+    private String purchaseClass;
+    private String purchaseDistinguisher;
+    private long purchasePrice;
+
+    public LoadDriver(PsiCashLib pcl, List<String> purchaseClasses) {
+        this.pcl = pcl;
+        this.purchaseClasses = purchaseClasses;
+    }
+
+    // The purchase made every purchaseEvery-th op.
+    public LoadDriver setPurchase(String transactionClass, String distinguisher, long price) {
+        this.purchaseClass = transactionClass;
+        this.purchaseDistinguisher = distinguisher;
+        this.purchasePrice = price;
+        return this;
+    }
+
+    /**
+     * Runs clients threads, each doing opsPerClient operations, and waits for them all.
+     * @param purchaseEvery Make a purchase every this many ops; 0 for none.
+     */
+    public Report run(int clients, int opsPerClient, int purchaseEvery) throws InterruptedException {
+        long[][] latencies = new long[clients][opsPerClient];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong failedStatuses = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+
+        for (int c = 0; c < clients; c++) {
+            long[] clientLatencies = latencies[c];
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < opsPerClient; i++) {
+                        long opStart = System.nanoTime();
+                        PsiCashLib.Error error;
+                        PsiCashLib.Status status;
+                        if (purchaseEvery > 0 && purchaseClass != null && i % purchaseEvery == purchaseEvery - 1) {
+                            PsiCashLib.NewExpiringPurchaseResult res =
+                                    pcl.newExpiringPurchase(purchaseClass, purchaseDistinguisher, purchasePrice);
+                            error = res.error;
+                            status = res.status;
+                        }
+                        else {
+                            PsiCashLib.RefreshStateResult res = pcl.refreshState(false, purchaseClasses);
+                            error = res.error;
+                            status = res.status;
+                        }
+                        clientLatencies[i] = System.nanoTime() - opStart;
+
+                        if (error != null) {
+                            errors.incrementAndGet();
+                        }
+                        else if (status != PsiCashLib.Status.SUCCESS) {
+                            failedStatuses.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "LoadDriver-" + c);
+            thread.start();
+        }
+
+        long runStart = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - runStart;
+
+        long[] all = new long[clients * opsPerClient];
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, c * opsPerClient, opsPerClient);
+        }
+        Arrays.sort(all);
+        return new Report(clients, errors.get(), failedStatuses.get(), elapsed, all);
+    }
+}
@@ -0,0 +1,132 @@
+package ca.psiphon.psicashlib.test;
+
+import android.util.Log;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ca.psiphon.psicashlib.PooledHTTPRequester;
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+// Runs the library against a local MockPsiCashServer, so these work offline. The load runs
+// are kept small enough for a test run; throughput and latency are logged.
+public class LoadTest extends TestBase {
+    private static final List<String> CLASSES = Arrays.asList(TEST_DEBIT_TRANSACTION_CLASS);
+
+    private MockPsiCashServer mock;
+
+    @Before
+    public void startMock() throws Exception {
+        mock = MockPsiCashServer.forTests();
+        // Enough for every purchase any of these runs makes
+        mock.setStartingBalance(1000000 * ONE_TRILLION);
+    }
+
+    @After
+    public void stopMock() throws Exception {
+        mock.close();
+    }
+
+    private PsiCashLibTester initWithMock() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), mock.redirect(new PooledHTTPRequester()), false);
+        assertNull(conds(err, "message"), err);
+        return pcl;
+    }
+
+    @Test
+    public void offline() {
+        PsiCashLibTester pcl = initWithMock();
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, CLASSES);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(pcl.hasTokens().hasTokens);
+        long balance = pcl.balance().balance;
+        assertEquals(1000000 * ONE_TRILLION, balance);
+        assertThat(pcl.getPurchasePrices().purchasePrices, not(empty()));
+
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(
+                TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(conds(nepr.error, "message"), nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+        assertEquals(balance - ONE_TRILLION, pcl.balance().balance);
+        assertThat(pcl.getPurchases().purchases, hasSize(1));
+
+        // Still active, so a second purchase of the class is refused
+        nepr = pcl.newExpiringPurchase(
+                TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.EXISTING_TRANSACTION, nepr.status);
+
+        nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, "no-such-distinguisher", ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.TRANSACTION_TYPE_NOT_FOUND, nepr.status);
+
+        res = pcl.refreshState(false, CLASSES);
+        assertNull(conds(res.error, "message"), res.error);
+
+        // Nothing has changed since, so the next refresh is answered with a 304
+        long notModified = mock.notModifiedResponses.get();
+        res = pcl.refreshState(false, CLASSES);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(mock.notModifiedResponses.get(), greaterThan(notModified));
+    }
+
+    private void load(int clients, int opsPerClient, int purchaseEvery) throws InterruptedException {
+        PsiCashLibTester pcl = initWithMock();
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, CLASSES);
+        assertNull(conds(res.error, "message"), res.error);
+
+        LoadDriver driver = new LoadDriver(pcl, CLASSES).setPurchase(
+                TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MICROSECOND_DISTINGUISHER, ONE_TRILLION);
+        LoadDriver.Report report = driver.run(clients, opsPerClient, purchaseEvery);
+        Log.i("PsiCashLibBenchmark", "load: " + report);
+
+        assertEquals((long)clients * opsPerClient, report.ops);
+        assertEquals(0, report.errors);
+        assertEquals(0, report.failedStatuses);
+        assertThat(report.percentileNanos(50), lessThanOrEqualTo(report.percentileNanos(99)));
+    }
+
+    @Test
+    public void loadRefreshOnly() throws InterruptedException {
+        for (int clients : new int[]{1, 4, 16}) {
+            load(clients, 100, 0);
+        }
+    }
+
+    @Test
+    public void loadWithPurchases() throws InterruptedException {
+        for (int clients : new int[]{1, 4, 16}) {
+            load(clients, 100, 10);
+        }
+    }
+
+    @Test
+    public void loadWithLatency() throws InterruptedException {
+        // A round trip like a real network's makes the serialization of requests visible
+        mock.setLatencyMillis(20);
+        load(8, 20, 5);
+    }
+
+    @Test
+    public void serverErrors() throws InterruptedException {
+        PsiCashLibTester pcl = initWithMock();
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, CLASSES);
+        assertNull(conds(res.error, "message"), res.error);
+
+        // Failures must come back as errors or statuses, not crashes or hangs
+        mock.setServerErrorRate(0.3);
+        LoadDriver.Report report = new LoadDriver(pcl, CLASSES).run(4, 50, 0);
+        Log.i("PsiCashLibBenchmark", "serverErrors: " + report);
+        assertEquals(200, report.ops);
+        assertThat(mock.statusCounts.get(500).get(), greaterThan(0L));
+    }
+}
@@ -0,0 +1,311 @@
+package ca.psiphon.psicashlib.test;
+
+import android.util.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface, for testing requesters without a
+ * network. Supports keep-alive and, optionally, TLS with a self-signed certificate (see
+ * clientSSLContext). Each connection is served on its own thread.
+ */
+public class LocalHTTPServer implements AutoCloseable {
+    // A PKCS12 keystore (password "password") with a self-signed certificate for
+    // localhost/127.0.0.1, valid until 2125.
+    private static final String TEST_KEYSTORE_BASE64 = "" +
+            "MIIJkQIBAzCCCUoGCSqGSIb3DQEHAaCCCTsEggk3MIIJMzCCBW8GCSqGSIb3DQEHAaCCBWAEggVcMIIFWDCCBVQGCyqGSIb3" +
+            "DQEMCgECoIIE+zCCBPcwKQYKKoZIhvcNAQwBAzAbBBT6a7izEVTmrikvxrcgcz/t3uMwugIDAMNQBIIEyM/FfU9det1QQASE" +
+            "OJmX3aOT5tAFjX6qk1eaaJBY7yTa7RrcdkNzqAsHMhqZQwfUdXslgUsQGKmdNX8KxcjlL+ezmvpKAimA7w9UKECeswVzaoas" +
+            "nwvjps9BbLLi6Q6QMrBPaepySq1CDEveEU4MRC3vLTfkXnyzlTNI2NtL60vAHuJPTCsWviMk1emXSR0cqSU0P9ctWdNY+HvA" +
+            "EHDNWvYRGGHXJQkyFQU4HBfW3dXm09ErQdrVdfjZdrECfnTKufVXCSZzUe8v0WEPmmEmJZo+vcSmahqAMspTvJ2k3kbQIjaA" +
+            "Ha4qbchwBM4TtKfldyRydmS43wsiADPm2G7gClfkGiKX0GPGMU5gZ0ocOZbc/D/OQqsiV0IpmZKxV4Jvs0NzMVhv25Tb6J7R" +
+            "QDJVjowMqD6MuNmlg41tiIzgOpPeHjfL6spLOvtQe+eKAIJCAUF3ZVD6bOsXHRAIhLY8gN5+GFzQdySZ35Rs1pTxwWZLvfEU" +
+            "z3ticeUIqgLRiCpnHs83U7mZUcDe8GkRzeHNWM/75lWn8WGEUP4GZIpPCWj41wDXGYJBpOFdXAaiuS1YanvMIs7ZzUaaCtWr" +
+            "cw3+/K/yRlvyBrHYbUXV9xxsvcYQY8DER47R2f3sWPHvT5SW5zQjIjB34+G+DDNGizoAc3nQVyjcxhteaaWJVS1gEfizBaIB" +
+            "2LzR87cayQ4jmr8JimSDDJQk1dklt+Qspyt4idMl/ucv056Nn9M9K4mMRK9amNQrUF239iJCsjZR1B4C/cx9SoSCNk555tKl" +
+            "Qn6Y2Q7ZDgtjfStvetX/WXHa8g7PFycH/kKB3glWUN/yLnN7HFrO8uJi3UD9fFFMpWsCkzWz3Y8ziRKmJo7F86jFhvpNe66r" +
+            "sVmF+SZt48uU6QolLkaFJTO0KkFQRrGE+bepvTFgxaIgWcAT0vlpvjFsUFnzUU3Wbrgxwz1rKoNEiYJZS0byPSWLXC4eLRh3" +
+            "Tiy4ylYZUJ9wCjjnob+M+vqO8QIqW3ZEQ4GBHptnGSB18TcV+obzw5BJg1KeTtIQkswaqew+SJZj9ocCCbIHnDfbQvOr4A1I" +
+            "zS7QRL6ymRDQNbIYNcR2Oc44mQ45i640a4jtKi0qf2vchb5ccG70tdiGOXcW637MJWa52KYjswHIkxqFvUo4Dda5ZHVHihhT" +
+            "eOiZ7zmDCUHXXYYB+6afmRUfpmgHF5EX8bSV08WzX/mQqLvnpl9JjAXOxe2chDybnAGpJGdDc+SD0tr4V3ajkJW25fchOol6" +
+            "KgYnsa/rZNnfElRNLh33vMuIwnKb4Mmhv6/Y/SLWctj1oOllWske4pdQMj43i7O3T0isPSs4UB+u7yEhBUKBa2tj5lw2evUb" +
+            "hhyJbq/S6vhX8C0+ZOAc8+0L4UMSR2DydFC4RK2gsDlrfDlTb8zULwCxJKlcQGvnijZIcOAWDbZlyhjIHUqHGY6TNCuC7YII" +
+            "iBzitiW1yOdEbxjcU+CFKaIytRNvWirtqTWVdnSlMV+KucWDefW5iIh0RoHIRIatJjda0qEK/ocMvw9L/eiss8C+/P8NoFbE" +
+            "h2L/x0g4JGzZbd0PHDTbeDsefXazNU1b/R2jR7JDfQmzkqW6mlnoovAzLwphwQwLsoZC9mDXZgRCb4YU7jFGMCEGCSqGSIb3" +
+            "DQEJFDEUHhIAbABvAGMAYQBsAGgAbwBzAHQwIQYJKoZIhvcNAQkVMRQEElRpbWUgMTc5MjIwMDc4OTA3MDCCA7wGCSqGSIb3" +
+            "DQEHBqCCA60wggOpAgEAMIIDogYJKoZIhvcNAQcBMCkGCiqGSIb3DQEMAQYwGwQU6YnlQIfdShLIQmydkjWpdlIFxWACAwDD" +
+            "UICCA2iHniARCV4jZHOLL6WpXH0W8F7d439YrIGdJj/vPZSg0rUFbSw8EACwuRt2lQjLNFEGKYRhkkJpPyuea4jYen5fbMQX" +
+            "hTsS3IaLH7lNcoVhguNigrD5B/1gqXfjqdLONBDGrQiWn4B4xDHYVdhTL/pVaB+kEtoPoh7WwwTIc/Rvgl3lBWoZh23BlpBj" +
+            "K77rkAmThdn1mcoFz4KX2IqZS4qSjIkTXEmIT+/Xng7639XKvdIVP5npuKfXAr3+F84Z0h/8O9Go8CUP1pmqYZjc93Eoo6fy" +
+            "yaK1n1kNCdC4KzZfD52zbsRZS9CCgq4nzF1gkk+CjnJewAAx00sRYHSVn7JVmofuy1K6PQRvOXC5NUl6/jGUd1mS9Rkdiwbq" +
+            "3UHrivThm3SlFyOSjATz9hhftRnp6X/UdqO6TlFhoYmNwj34DRoQtyS4WdhX9lek5lFwANn68GC/AMGu8GTp0XAui4Tefst8" +
+            "Sqj9+V+yanyH8mQ0TKmu94tQVKvliNoIALHmrhaBEjkK9w1oV/aUssb71+sAp7ufew+WSJLntWMKHpZ1Kzqid80DNh6e5egf" +
+            "OQrk7Ulg+lvorhKdFrT1u52P9pf/GX4S38YE67qrXUeJa8+9Kabdtr67WqM9ZqkiokO6oa/EdrmLOqFdnGKbATEub9qedUc6" +
+            "rO7BijvfUJH097GI7tnLJFHpqND939Xy1EPolQNPGHMCA3CMaeCcEv0uxjhH7EpZgv5K5i0qViueMPilsuQSh14070CaZWMt" +
+            "3MSrkOwmgLqWTyI6pj3lgrFzcWLkRlO7qVeBD23ktjdl6QeAaThVAFUEzXOF8iSzeLTtyrIsanhwdD0BB+T8gmyLrrzrcT66" +
+            "MPSAvuDaSH/3xdYbESzleAxhvkGxUREldEYH02O2GUNaTPtpN0tJpTI9tCtN917+8D2fn88iLdNeSG6xzCzwxHgEUsA9fI/E" +
+            "nrvpAz77qhUDERsp7x3k7GSr4swK3s90+gsIAh13mHPXdM+S7r7G5tG4VlguYT5TqvZugCvhNyuuSn6XKE+b/rYaM9h1jpS1" +
+            "QB5mblTn7ob5gBtNBrPLGLSKy/CBGMgNJcjbEJxOk2Vg8Nk1WWWd3fLi7yQB5RPM4KJECpLAPlNC4pmqxxBuDkdh79qF8tnt" +
+            "Vshusqi7Tt6cuahnBjA+MCEwCQYFKw4DAhoFAAQUrUZ2tk9jj+BB0fPlsjhLh/pB17sEFDv36OAtoW1BkOjMoyO37TSjbJC3" +
+            "AgMBhqA=" +
+            "";
+    private static final char[] TEST_KEYSTORE_PASSWORD = "password".toCharArray();
+
+    public static class Request {
+        public String method;
+        public String target;
+        public Map<String, String> headers = new LinkedHashMap<>();
+        public byte[] body;
+    }
+
+    public static class Response {
+        public int code = 200;
+        public Map<String, String> headers = new LinkedHashMap<>();
+        public byte[] body = new byte[0];
+
+        public Response() {
+        }
+
+        public Response(int code, String body) {
+            this.code = code;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    private final ServerSocket serverSocket;
+    private final boolean tls;
+    private volatile Handler handler;
+    private volatile boolean closeAfterResponse = false;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+    public final AtomicInteger connections = new AtomicInteger();
+    public final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    public final AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Starts a server on an ephemeral port.
+     * @param tls If true, serves HTTPS using the test certificate.
+     */
+    public LocalHTTPServer(boolean tls, Handler handler) throws Exception {
+        this.tls = tls;
+        this.handler = handler;
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        if (tls) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(testKeyStore(), TEST_KEYSTORE_PASSWORD);
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf.getKeyManagers(), null, null);
+            serverSocket = ctx.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        }
+        else {
+            serverSocket = new ServerSocket(0, 50, loopback);
+        }
+
+        Thread acceptor = new Thread(this::acceptLoop, "LocalHTTPServer-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * An SSLContext that trusts the test certificate, for clients of a TLS server.
+     */
+    public static SSLContext clientSSLContext() throws Exception {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(testKeyStore());
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    private static KeyStore testKeyStore() throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        ks.load(new ByteArrayInputStream(Base64.decode(TEST_KEYSTORE_BASE64, Base64.DEFAULT)), TEST_KEYSTORE_PASSWORD);
+        return ks;
+    }
+
+    public String baseURL() {
+        return (tls ? "https" : "http") + "://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * If true, the server closes each connection after responding, forcing clients to
+     * reconnect.
+     */
+    public void setCloseAfterResponse(boolean closeAfterResponse) {
+        this.closeAfterResponse = closeAfterResponse;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (Socket s : sockets) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                sockets.add(socket);
+                Thread t = new Thread(() -> serve(socket), "LocalHTTPServer-conn");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                Request req = readRequest(in);
+                if (req == null) {
+                    return;
+                }
+                requests.incrementAndGet();
+                int n = inFlight.incrementAndGet();
+                int max;
+                while ((max = maxInFlight.get()) < n && !maxInFlight.compareAndSet(max, n)) {
+                    // retry
+                }
+                Response resp;
+                try {
+                    resp = handler.handle(req);
+                } catch (Exception e) {
+                    resp = new Response(500, e.toString());
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                }
+                boolean close = closeAfterResponse || "close".equalsIgnoreCase(req.headers.get("connection"));
+                writeResponse(out, resp, close);
+                if (close) {
+                    return;
+                }
+            }
+        } catch (SocketException e) {
+            // Connection closed by the client or by close()
+        } catch (IOException e) {
+            // ditto
+        }
+        finally {
+            sockets.remove(socket);
+        }
+    }
+
+    // Returns null at end of stream.
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("bad request line: " + requestLine);
+        }
+        Request req = new Request();
+        req.method = parts[0];
+        req.target = parts[1];
+
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                req.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+
+        String contentLength = req.headers.get("content-length");
+        int len = contentLength == null ? 0 : Integer.parseInt(contentLength);
+        req.body = new byte[len];
+        int off = 0;
+        while (off < len) {
+            int n = in.read(req.body, off, len - off);
+            if (n < 0) {
+                throw new IOException("unexpected end of request body");
+            }
+            off += n;
+        }
+        return req;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                buf.write(c);
+            }
+        }
+        if (c == -1 && buf.size() == 0) {
+            return null;
+        }
+        return new String(buf.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void writeResponse(OutputStream out, Response resp, boolean close) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(resp.code).append(' ').append(resp.code < 400 ? "OK" : "Error").append("\r\n");
+        for (Map.Entry<String, String> h : resp.headers.entrySet()) {
+            head.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(resp.body.length).append("\r\n");
+        if (close) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(resp.body);
+        out.flush();
+    }
+}
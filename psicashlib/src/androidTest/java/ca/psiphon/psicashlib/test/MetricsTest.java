@@ -0,0 +1,89 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MetricsTest extends TestBase {
+    @Test
+    public void refreshState() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        AtomicInteger timings = new AtomicInteger();
+        AtomicInteger httpResults = new AtomicInteger();
+        pcl.setMetricsSink(new PsiCashLib.MetricsSink() {
+            @Override
+            public void onTiming(PsiCashLib.Metrics.Call call, PsiCashLib.Metrics.Phase phase, long nanos) {
+                timings.incrementAndGet();
+            }
+
+            @Override
+            public void onHTTPResult(PsiCashLib.Metrics.Call call, int code, long bytesOut, long bytesIn) {
+                httpResults.incrementAndGet();
+            }
+        });
+
+        // The first call gets tokens and then refreshes, so makes two requests
+        for (int i = 0; i < 2; i++) {
+            PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList(TEST_DEBIT_TRANSACTION_CLASS));
+            assertNull(conds(res.error, "message"), res.error);
+            assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        }
+        // Local refreshes aren't recorded
+        pcl.refreshState(true, null);
+
+        PsiCashLib.Metrics.Call call = PsiCashLib.Metrics.Call.REFRESH_STATE;
+        PsiCashLib.Metrics metrics = pcl.getMetrics();
+        for (PsiCashLib.Metrics.Phase phase : new PsiCashLib.Metrics.Phase[]{
+                PsiCashLib.Metrics.Phase.TOTAL, PsiCashLib.Metrics.Phase.LOCK_WAIT,
+                PsiCashLib.Metrics.Phase.NATIVE, PsiCashLib.Metrics.Phase.PARSE}) {
+            assertEquals(phase.toString(), 2, metrics.latency(call, phase).count);
+        }
+        PsiCashLib.Metrics.Histogram network = metrics.latency(call, PsiCashLib.Metrics.Phase.NETWORK);
+        assertThat(network.count, greaterThanOrEqualTo(2L));
+        assertEquals(network.count, metrics.requests(call));
+        assertThat(network.percentileMicros(50), greaterThan(0L));
+        // The call includes its requests
+        PsiCashLib.Metrics.Histogram total = metrics.latency(call, PsiCashLib.Metrics.Phase.TOTAL);
+        assertThat(total.sumNanos, greaterThanOrEqualTo(network.sumNanos));
+
+        assertEquals(metrics.requests(call), metrics.statusCount(call, 2));
+        assertEquals(0, metrics.recoverableErrors(call));
+        assertEquals(0, metrics.criticalErrors(call));
+        assertThat(metrics.bytesIn(call), greaterThan(0L));
+
+        assertEquals(network.count, httpResults.get());
+        assertThat(timings.get(), greaterThanOrEqualTo(8 + (int)network.count));
+        assertEquals(0, metrics.requests(PsiCashLib.Metrics.Call.NEW_EXPIRING_PURCHASE));
+    }
+
+    @Test
+    public void requestFailure() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), reqParams -> {
+            PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
+            res.code = PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR;
+            res.error = "no network";
+            return res;
+        }, false);
+        assertNull(err);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNotNull(res.error);
+
+        PsiCashLib.Metrics metrics = pcl.getMetrics();
+        PsiCashLib.Metrics.Call call = PsiCashLib.Metrics.Call.REFRESH_STATE;
+        assertThat(metrics.recoverableErrors(call), greaterThan(0L));
+        assertEquals(metrics.recoverableErrors(call), metrics.requests(call));
+        assertEquals(1, metrics.latency(call, PsiCashLib.Metrics.Phase.TOTAL).count);
+    }
+}
@@ -0,0 +1,513 @@
+package ca.psiphon.psicashlib.test;
+
+import android.net.Uri;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+/**
+ * A local stand-in for the PsiCash API server, for running the library offline and under
+ * load. Implements the tracker (tokens), refresh-state, transaction, login and logout
+ * endpoints over LocalHTTPServer, with users, balances, purchase prices, expiring
+ * purchases and accounts kept in memory.
+ *
+ * Requests reach it through redirect(), which wraps an HTTPRequester so that requests to
+ * the real API host go to this server instead. Running the instrumented tests with
+ * `-e mockServer true` does this for every test that uses TestBase.PsiCashLibHelper.
+ *
+ * The response shapes follow the API as consumed by the core library. Like any stand-in,
+ * it only covers the behaviour the library depends on; the real server remains the
+ * reference. refresh-state responses support ETag/If-None-Match and gzip, so conditional
+ * and compressed requests are exercised too.
+ */
+public class MockPsiCashServer implements AutoCloseable {
+    public static class PriceEntry {
+        final String transactionClass;
+        final String distinguisher;
+        // Negative for a credit (reward).
+        final long price;
+        final long durationMillis;
+
+        PriceEntry(String transactionClass, String distinguisher, long price, long durationMillis) {
+            this.transactionClass = transactionClass;
+            this.distinguisher = distinguisher;
+            this.price = price;
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    private static class Purchase {
+        final String id;
+        final String transactionClass;
+        final String distinguisher;
+        final long expiry;
+
+        Purchase(String id, String transactionClass, String distinguisher, long expiry) {
+            this.id = id;
+            this.transactionClass = transactionClass;
+            this.distinguisher = distinguisher;
+            this.expiry = expiry;
+        }
+    }
+
+    // A tracker or account. Guarded by itself.
+    private static class User {
+        final String id;
+        final String accountUsername;
+        long balance;
+        // Incremented on every change, for the refresh-state ETag.
+        long version;
+        final List<Purchase> purchases = new ArrayList<>();
+
+        User(String id, String accountUsername, long balance) {
+            this.id = id;
+            this.accountUsername = accountUsername;
+            this.balance = balance;
+        }
+    }
+
+    private static class Account {
+        final String password;
+        final User user;
+
+        Account(String password, User user) {
+            this.password = password;
+            this.user = user;
+        }
+    }
+
+    private final LocalHTTPServer server;
+    private final Map<String, User> usersByToken = new ConcurrentHashMap<>();
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<String, PriceEntry> prices = new ConcurrentHashMap<>();
+    private final AtomicLong nextID = new AtomicLong(1);
+    private final Random random = new Random();
+    private volatile long startingBalance = 0;
+    private volatile int latencyMillis = 0;
+    private volatile double serverErrorRate = 0;
+
+    // Requests per endpoint path, and responses per status code.
+    public final ConcurrentHashMap<String, AtomicLong> endpointRequests = new ConcurrentHashMap<>();
+    public final ConcurrentHashMap<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<>();
+    public final AtomicLong notModifiedResponses = new AtomicLong();
+
+    public MockPsiCashServer() throws Exception {
+        this.server = new LocalHTTPServer(false, this::handle);
+        addPrice("speed-boost", "1hr", 100000000000L, 60L * 60 * 1000);
+        addPrice("speed-boost", "24hr", 1000000000000L, 24L * 60 * 60 * 1000);
+    }
+
+    /**
+     * A server set up for the instrumented tests: with the test transaction classes and
+     * accounts from SecretTestValues.
+     */
+    public static MockPsiCashServer forTests() throws Exception {
+        MockPsiCashServer mock = new MockPsiCashServer();
+        long trillion = SecretTestValues.ONE_TRILLION;
+        for (String cls : new String[]{SecretTestValues.TEST_DEBIT_TRANSACTION_CLASS,
+                SecretTestValues.TEST_DEBIT_WITH_AUTHORIZATION_TRANSACTION_CLASS}) {
+            mock.addPrice(cls, SecretTestValues.TEST_ONE_TRILLION_ONE_MICROSECOND_DISTINGUISHER, trillion, 0);
+            mock.addPrice(cls, SecretTestValues.TEST_ONE_TRILLION_TEN_MICROSECOND_DISTINGUISHER, trillion, 0);
+            mock.addPrice(cls, SecretTestValues.TEST_ONE_TRILLION_ONE_SECOND_DISTINGUISHER, trillion, 1000);
+            mock.addPrice(cls, SecretTestValues.TEST_ONE_TRILLION_TEN_SECOND_DISTINGUISHER, trillion, 10000);
+            mock.addPrice(cls, SecretTestValues.TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, trillion, 60000);
+        }
+        mock.addPrice(SecretTestValues.TEST_CREDIT_TRANSACTION_CLASS,
+                SecretTestValues.TEST_ONE_TRILLION_ONE_MICROSECOND_DISTINGUISHER, -trillion, 0);
+        mock.addAccount(SecretTestValues.TEST_ACCOUNT_ONE_USERNAME, SecretTestValues.TEST_ACCOUNT_ONE_PASSWORD);
+        mock.addAccount(SecretTestValues.TEST_ACCOUNT_UNICODE_USERNAME, SecretTestValues.TEST_ACCOUNT_UNICODE_PASSWORD);
+        return mock;
+    }
+
+    public void addPrice(String transactionClass, String distinguisher, long price, long durationMillis) {
+        prices.put(transactionClass + "\n" + distinguisher,
+                new PriceEntry(transactionClass, distinguisher, price, durationMillis));
+    }
+
+    public void addAccount(String username, String password) {
+        accounts.put(username, new Account(password, new User(newID("account"), username, startingBalance)));
+    }
+
+    // The balance given to each new tracker.
+    public void setStartingBalance(long balance) {
+        this.startingBalance = balance;
+    }
+
+    // Delay added to every response, to simulate a network round trip.
+    public void setLatencyMillis(int millis) {
+        this.latencyMillis = millis;
+    }
+
+    // The fraction (0 to 1) of requests that fail with 500.
+    public void setServerErrorRate(double rate) {
+        this.serverErrorRate = rate;
+    }
+
+    public String baseURL() {
+        return server.baseURL();
+    }
+
+    public LocalHTTPServer httpServer() {
+        return server;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Returns uri with its scheme and authority replaced by this server's.
+     */
+    public Uri redirectURI(Uri uri) {
+        Uri base = Uri.parse(baseURL());
+        return uri.buildUpon()
+                .scheme(base.getScheme())
+                .encodedAuthority(base.getEncodedAuthority())
+                .build();
+    }
+
+    /**
+     * Wraps requester so that its requests go to this server, whatever host the library
+     * addresses them to.
+     */
+    public PsiCashLib.HTTPRequester redirect(PsiCashLib.HTTPRequester requester) {
+        return reqParams -> {
+            reqParams.uri = redirectURI(reqParams.uri);
+            return requester.httpRequest(reqParams);
+        };
+    }
+
+    //
+    // Request handling
+    //
+
+    private LocalHTTPServer.Response handle(LocalHTTPServer.Request req) throws Exception {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+
+        Uri uri = Uri.parse(req.target);
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        String endpoint = path.substring(path.lastIndexOf('/') + 1);
+        count(endpointRequests, endpoint);
+
+        LocalHTTPServer.Response resp;
+        if (serverErrorRate > 0 && nextRandom() < serverErrorRate) {
+            resp = new LocalHTTPServer.Response(500, "injected failure");
+        }
+        else {
+            switch (req.method + " " + endpoint) {
+                case "POST tracker":
+                    resp = tracker();
+                    break;
+                case "GET refresh-state":
+                    resp = refreshState(req, uri);
+                    break;
+                case "POST transaction":
+                    resp = transaction(req, uri);
+                    break;
+                case "POST login":
+                    resp = login(req);
+                    break;
+                case "POST logout":
+                    resp = logout(req);
+                    break;
+                default:
+                    resp = new LocalHTTPServer.Response(404, "");
+            }
+        }
+
+        resp.headers.put("Date", httpDate(System.currentTimeMillis()));
+        count(statusCounts, resp.code);
+        return resp;
+    }
+
+    private LocalHTTPServer.Response tracker() {
+        User user = new User(newID("tracker"), null, startingBalance);
+        return json(200, tokensJSON(user));
+    }
+
+    private LocalHTTPServer.Response refreshState(LocalHTTPServer.Request req, Uri uri) throws IOException {
+        List<String> tokens = authTokens(req);
+        if (tokens.isEmpty()) {
+            return new LocalHTTPServer.Response(401, "");
+        }
+        User user = usersByToken.get(tokens.get(0));
+
+        StringBuilder tokensValid = new StringBuilder("{");
+        for (String token : tokens) {
+            if (tokensValid.length() > 1) {
+                tokensValid.append(',');
+            }
+            tokensValid.append(quote(token)).append(':').append(user != null && usersByToken.get(token) == user);
+        }
+        tokensValid.append('}');
+        if (user == null) {
+            return json(200, "{\"TokensValid\":" + tokensValid + "}");
+        }
+
+        List<String> classes = uri.getQueryParameters("class");
+        StringBuilder body = new StringBuilder();
+        long version;
+        synchronized (user) {
+            version = user.version;
+            body.append("{\"TokensValid\":").append(tokensValid)
+                    .append(",\"IsAccount\":").append(user.accountUsername != null)
+                    .append(",\"AccountUsername\":").append(quote(user.accountUsername))
+                    .append(",\"Balance\":").append(user.balance)
+                    .append(",\"PurchasePrices\":[");
+        }
+        boolean first = true;
+        for (PriceEntry p : prices.values()) {
+            if (p.price <= 0 || !classes.contains(p.transactionClass)) {
+                continue;
+            }
+            if (!first) {
+                body.append(',');
+            }
+            first = false;
+            body.append("{\"Class\":").append(quote(p.transactionClass))
+                    .append(",\"Distinguisher\":").append(quote(p.distinguisher))
+                    .append(",\"Price\":").append(p.price).append('}');
+        }
+        body.append("]}");
+
+        String etag = "\"" + user.id + "-" + version + "-" + classes.hashCode() + "\"";
+        if (etag.equals(req.headers.get("if-none-match"))) {
+            notModifiedResponses.incrementAndGet();
+            LocalHTTPServer.Response resp = new LocalHTTPServer.Response(304, "");
+            resp.headers.put("ETag", etag);
+            return resp;
+        }
+
+        LocalHTTPServer.Response resp = json(200, body.toString());
+        resp.headers.put("ETag", etag);
+        String accept = req.headers.get("accept-encoding");
+        if (accept != null && accept.contains("gzip") && resp.body.length > 256) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+                zip.write(resp.body);
+            }
+            resp.body = out.toByteArray();
+            resp.headers.put("Content-Encoding", "gzip");
+        }
+        return resp;
+    }
+
+    private LocalHTTPServer.Response transaction(LocalHTTPServer.Request req, Uri uri) {
+        List<String> tokens = authTokens(req);
+        User user = tokens.isEmpty() ? null : usersByToken.get(tokens.get(0));
+        if (user == null) {
+            return new LocalHTTPServer.Response(401, "");
+        }
+
+        PriceEntry entry = prices.get(uri.getQueryParameter("class") + "\n" + uri.getQueryParameter("distinguisher"));
+        if (entry == null) {
+            return new LocalHTTPServer.Response(404, "");
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (user) {
+            if (entry.price < 0) {
+                // A credit
+                user.balance -= entry.price;
+                user.version++;
+                return json(200, "{\"TransactionID\":" + quote(newID("txn")) + ",\"Balance\":" + user.balance + "}");
+            }
+
+            String expected = uri.getQueryParameter("expectedAmount");
+            if (expected == null || Long.parseLong(expected) != -entry.price) {
+                return json(417, "{\"Balance\":" + user.balance + "}");
+            }
+            for (Purchase p : user.purchases) {
+                if (p.transactionClass.equals(entry.transactionClass) && p.expiry > now) {
+                    return json(409, "{\"TransactionID\":" + quote(p.id) + ",\"Balance\":" + user.balance + "}");
+                }
+            }
+            if (user.balance < entry.price) {
+                return json(402, "{\"Balance\":" + user.balance + "}");
+            }
+
+            Purchase purchase = new Purchase(newID("txn"), entry.transactionClass, entry.distinguisher,
+                    now + entry.durationMillis);
+            user.purchases.add(purchase);
+            user.balance -= entry.price;
+            user.version++;
+
+            String expires = isoDate(purchase.expiry);
+            StringBuilder body = new StringBuilder();
+            body.append("{\"TransactionID\":").append(quote(purchase.id))
+                    .append(",\"Balance\":").append(user.balance)
+                    .append(",\"TransactionResponse\":{\"Type\":\"expiring-purchase\",\"Values\":{\"Expires\":")
+                    .append(quote(expires)).append("}}");
+            if (entry.transactionClass.equals("speed-boost")
+                    || entry.transactionClass.equals(SecretTestValues.TEST_DEBIT_WITH_AUTHORIZATION_TRANSACTION_CLASS)) {
+                body.append(",\"Authorization\":").append(quote(authorization(purchase, expires)));
+            }
+            body.append('}');
+            return json(200, body.toString());
+        }
+    }
+
+    private LocalHTTPServer.Response login(LocalHTTPServer.Request req) throws IOException {
+        Map<String, String> fields = readStringFields(req.body);
+        Account account = accounts.get(String.valueOf(fields.get("username")));
+        if (account == null || !account.password.equals(fields.get("password"))) {
+            return new LocalHTTPServer.Response(401, "");
+        }
+        return json(200, "{\"Tokens\":" + tokensJSON(account.user) + ",\"TrackerMerged\":false}");
+    }
+
+    private LocalHTTPServer.Response logout(LocalHTTPServer.Request req) {
+        for (String token : authTokens(req)) {
+            usersByToken.remove(token);
+        }
+        return new LocalHTTPServer.Response(200, "");
+    }
+
+    //
+    // Helpers
+    //
+
+    // Issues a new set of tokens for user, and returns them as a JSON object.
+    private String tokensJSON(User user) {
+        StringBuilder sb = new StringBuilder("{");
+        String[] types = user.accountUsername != null
+                ? new String[]{"earner", "indicator", "spender", "logout"}
+                : new String[]{"earner", "indicator", "spender"};
+        for (String type : types) {
+            String token = Base64.encodeToString(newID(type).getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+            usersByToken.put(token, user);
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(quote(type)).append(':').append(quote(token));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static List<String> authTokens(LocalHTTPServer.Request req) {
+        List<String> tokens = new ArrayList<>();
+        String header = req.headers.get("x-psicash-auth");
+        if (header != null) {
+            for (String t : header.split(",")) {
+                if (!t.trim().isEmpty()) {
+                    tokens.add(t.trim());
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private String authorization(Purchase purchase, String expires) {
+        String json = "{\"Authorization\":{\"ID\":" + quote(newID("auth"))
+                + ",\"AccessType\":" + quote(purchase.transactionClass + "-" + purchase.distinguisher)
+                + ",\"Expires\":" + quote(expires) + "}"
+                + ",\"SigningKeyID\":\"bW9jaw==\",\"Signature\":\"bW9jaw==\"}";
+        return Base64.encodeToString(json.getBytes(StandardCharsets.UTF_8), Base64.NO_WRAP);
+    }
+
+    private static Map<String, String> readStringFields(byte[] body) throws IOException {
+        Map<String, String> fields = new HashMap<>();
+        if (body == null || body.length == 0) {
+            return fields;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.STRING) {
+                    fields.put(name, reader.nextString());
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static LocalHTTPServer.Response json(int code, String body) {
+        LocalHTTPServer.Response resp = new LocalHTTPServer.Response(code, body);
+        resp.headers.put("Content-Type", "application/json");
+        return resp;
+    }
+
+    static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int)c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String isoDate(long millis) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt.format(new Date(millis));
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return fmt.format(new Date(millis));
+    }
+
+    private String newID(String prefix) {
+        return prefix + "-" + nextID.getAndIncrement() + "-" + Long.toHexString(nextRandomLong());
+    }
+
+    private double nextRandom() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private long nextRandomLong() {
+        synchronized (random) {
+            return random.nextLong();
+        }
+    }
+
+    private static <K> void count(ConcurrentHashMap<K, AtomicLong> counts, K key) {
+        AtomicLong n = counts.get(key);
+        if (n == null) {
+            counts.putIfAbsent(key, new AtomicLong());
+            n = counts.get(key);
+        }
+        n.incrementAndGet();
+    }
+}
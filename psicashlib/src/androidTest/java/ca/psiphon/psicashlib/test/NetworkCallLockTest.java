@@ -0,0 +1,153 @@
+package ca.psiphon.psicashlib.test;
+
+import android.net.Uri;
+
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Checks that neither readers nor local mutators wait for a network-backed call's request,
+// and that the mutators' writes are applied after the call rather than while the core is
+// partway through it.
+public class NetworkCallLockTest extends TestBase {
+    // Blocks each request until released.
+    private class BlockingRequester implements PsiCashLib.HTTPRequester {
+        final CountDownLatch requestStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final PsiCashLibHelper delegate = new PsiCashLibHelper();
+
+        @Override
+        public Result httpRequest(ReqParams reqParams) {
+            requestStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                fail("interrupted");
+            }
+            return delegate.httpRequest(reqParams);
+        }
+    }
+
+    @Test
+    public void readersDontWait() throws InterruptedException {
+        BlockingRequester requester = new BlockingRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+        long balance = pcl.balance().balance;
+
+        AtomicReference<PsiCashLib.RefreshStateResult> refreshResult = new AtomicReference<>();
+        Thread refresher = new Thread(() -> refreshResult.set(pcl.refreshState(false, null)));
+        refresher.start();
+        assertTrue(requester.requestStarted.await(10, TimeUnit.SECONDS));
+
+        // The request is blocked, but reads return the state from before it
+        CountDownLatch read = new CountDownLatch(1);
+        AtomicReference<PsiCashLib.BalanceResult> balanceResult = new AtomicReference<>();
+        AtomicReference<PsiCashLib.HasTokensResult> hasTokensResult = new AtomicReference<>();
+        AtomicReference<PsiCashLib.GetPurchasesResult> purchasesResult = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            balanceResult.set(pcl.balance());
+            hasTokensResult.set(pcl.hasTokens());
+            purchasesResult.set(pcl.getPurchases());
+            read.countDown();
+        });
+        reader.start();
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+        assertTrue(refresher.isAlive());
+        assertNull(balanceResult.get().error);
+        assertEquals(balance, balanceResult.get().balance);
+        assertNull(hasTokensResult.get().error);
+        assertFalse(hasTokensResult.get().hasTokens);
+        assertNull(purchasesResult.get().error);
+
+        requester.release.countDown();
+        refresher.join();
+        PsiCashLib.RefreshStateResult res = refreshResult.get();
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(pcl.hasTokens().hasTokens);
+    }
+
+    @Test
+    public void localMutatorsDontWait() throws InterruptedException {
+        BlockingRequester requester = new BlockingRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+
+        AtomicReference<PsiCashLib.RefreshStateResult> refreshResult = new AtomicReference<>();
+        Thread refresher = new Thread(() -> refreshResult.set(pcl.refreshState(false, null)));
+        refresher.start();
+        assertTrue(requester.requestStarted.await(10, TimeUnit.SECONDS));
+
+        // The request is blocked, but local mutators return; their writes are queued
+        CountDownLatch mutated = new CountDownLatch(1);
+        AtomicReference<PsiCashLib.ExpirePurchasesResult> expireResult = new AtomicReference<>();
+        AtomicReference<PsiCashLib.RemovePurchasesResult> removeResult = new AtomicReference<>();
+        AtomicReference<PsiCashLib.Error> localeResult = new AtomicReference<>();
+        Thread mutator = new Thread(() -> {
+            expireResult.set(pcl.expirePurchases());
+            removeResult.set(pcl.removePurchases(Collections.singletonList("nonexistent")));
+            localeResult.set(pcl.setLocale("fr"));
+            mutated.countDown();
+        });
+        mutator.start();
+        assertTrue(mutated.await(5, TimeUnit.SECONDS));
+        assertTrue(refresher.isAlive());
+        assertNull(conds(expireResult.get().error, "message"), expireResult.get().error);
+        assertEquals(0, expireResult.get().purchases.size());
+        assertNull(conds(removeResult.get().error, "message"), removeResult.get().error);
+        assertEquals(0, removeResult.get().purchases.size());
+        assertNull(localeResult.get());
+
+        requester.release.countDown();
+        refresher.join();
+
+        PsiCashLib.RefreshStateResult res = refreshResult.get();
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(pcl.hasTokens().hasTokens);
+        // The locale was set after the refresh
+        Uri uri = Uri.parse(pcl.getAccountForgotURL());
+        assertNotNull(uri);
+        assertEquals("fr", uri.getQueryParameter("locale"));
+    }
+
+    @Test
+    public void resetDuringRequest() throws InterruptedException {
+        BlockingRequester requester = new BlockingRequester();
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(err);
+
+        AtomicReference<PsiCashLib.RefreshStateResult> refreshResult = new AtomicReference<>();
+        Thread refresher = new Thread(() -> refreshResult.set(pcl.refreshState(false, null)));
+        refresher.start();
+        assertTrue(requester.requestStarted.await(10, TimeUnit.SECONDS));
+
+        // The reset returns without waiting, and is applied after the refresh, undoing it
+        AtomicReference<PsiCashLib.Error> resetResult = new AtomicReference<>();
+        Thread resetter = new Thread(() -> resetResult.set(pcl.resetUser()));
+        resetter.start();
+        resetter.join(5000);
+        assertFalse(resetter.isAlive());
+        assertTrue(refresher.isAlive());
+        assertNull(resetResult.get());
+
+        requester.release.countDown();
+        refresher.join();
+
+        PsiCashLib.RefreshStateResult res = refreshResult.get();
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertFalse(pcl.hasTokens().hasTokens);
+    }
+}
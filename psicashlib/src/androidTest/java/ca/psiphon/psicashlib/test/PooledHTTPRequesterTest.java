@@ -0,0 +1,195 @@
+package ca.psiphon.psicashlib.test;
+
+import android.net.Uri;
+
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import ca.psiphon.psicashlib.PooledHTTPRequester;
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Tests PooledHTTPRequester against LocalHTTPServer.
+public class PooledHTTPRequesterTest {
+    private static PsiCashLib.HTTPRequester.ReqParams get(LocalHTTPServer server, String path) {
+        PsiCashLib.HTTPRequester.ReqParams params = new PsiCashLib.HTTPRequester.ReqParams();
+        params.method = "GET";
+        params.uri = Uri.parse(server.baseURL() + path);
+        params.headers = new HashMap<>();
+        params.headers.put("X-Test", "value");
+        return params;
+    }
+
+    private static String body(PsiCashLib.HTTPRequester.Result res) {
+        return new String(res.bodyBytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void keepAlive() throws Exception {
+        try (LocalHTTPServer server = new LocalHTTPServer(false,
+                req -> new LocalHTTPServer.Response(200, "hello " + req.target + " " + req.headers.get("x-test")))) {
+            PooledHTTPRequester requester = new PooledHTTPRequester();
+            for (int i = 0; i < 10; i++) {
+                PsiCashLib.HTTPRequester.Result res = requester.httpRequest(get(server, "/path?i=" + i));
+                assertNull(res.error);
+                assertEquals(200, res.code);
+                assertEquals("hello /path?i=" + i + " value", body(res));
+            }
+
+            assertEquals(10, server.requests.get());
+            assertEquals(1, server.connections.get());
+            assertEquals(10, requester.getStats().requests);
+            assertEquals(0, requester.getStats().failures);
+        }
+    }
+
+    @Test
+    public void errorResponseKeepsConnection() throws Exception {
+        try (LocalHTTPServer server = new LocalHTTPServer(false,
+                req -> new LocalHTTPServer.Response(req.target.equals("/missing") ? 404 : 200, "body"))) {
+            PooledHTTPRequester requester = new PooledHTTPRequester();
+            PsiCashLib.HTTPRequester.Result res = requester.httpRequest(get(server, "/missing"));
+            assertEquals(404, res.code);
+            assertEquals("body", body(res));
+            res = requester.httpRequest(get(server, "/"));
+            assertEquals(200, res.code);
+            assertEquals(1, server.connections.get());
+        }
+    }
+
+    @Test
+    public void postBody() throws Exception {
+        AtomicReference<String> received = new AtomicReference<>();
+        try (LocalHTTPServer server = new LocalHTTPServer(false, req -> {
+            received.set(new String(req.body, StandardCharsets.UTF_8));
+            return new LocalHTTPServer.Response(200, "");
+        })) {
+            PooledHTTPRequester requester = new PooledHTTPRequester();
+            PsiCashLib.HTTPRequester.ReqParams params = get(server, "/transaction");
+            params.method = "POST";
+            params.body = "{\"a\":\"Grüße\"}";
+            PsiCashLib.HTTPRequester.Result res = requester.httpRequest(params);
+            assertNull(res.error);
+            assertEquals(200, res.code);
+            assertNull(res.bodyBytes);
+            assertEquals("{\"a\":\"Grüße\"}", received.get());
+        }
+    }
+
+    @Test
+    public void connectionFailure() throws Exception {
+        LocalHTTPServer server = new LocalHTTPServer(false, req -> new LocalHTTPServer.Response());
+        PsiCashLib.HTTPRequester.ReqParams params = get(server, "/");
+        server.close();
+
+        PooledHTTPRequester requester = new PooledHTTPRequester();
+        PsiCashLib.HTTPRequester.Result res = requester.httpRequest(params);
+        assertEquals(PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR, res.code);
+        assertNotNull(res.error);
+        assertEquals(1, requester.getStats().failures);
+    }
+
+    @Test
+    public void tlsReuseAndResumption() throws Exception {
+        try (LocalHTTPServer server = new LocalHTTPServer(true, req -> new LocalHTTPServer.Response(200, "secure"))) {
+            PooledHTTPRequester requester = new PooledHTTPRequester(4, LocalHTTPServer.clientSSLContext());
+
+            // Kept-alive connection: one TLS connection for all requests
+            for (int i = 0; i < 5; i++) {
+                PsiCashLib.HTTPRequester.Result res = requester.httpRequest(get(server, "/"));
+                assertNull(res.error);
+                assertEquals("secure", body(res));
+            }
+            assertEquals(1, server.connections.get());
+            assertEquals(1, requester.getStats().tlsConnections);
+
+            // Force new connections; their handshakes should resume the session
+            server.setCloseAfterResponse(true);
+            for (int i = 0; i < 5; i++) {
+                PsiCashLib.HTTPRequester.Result res = requester.httpRequest(get(server, "/"));
+                assertNull(res.error);
+                assertEquals("secure", body(res));
+            }
+            PooledHTTPRequester.Stats stats = requester.getStats();
+            assertTrue(stats.tlsConnections > 1);
+            assertTrue(stats.tlsResumptions > 0);
+        }
+    }
+
+    @Test
+    public void concurrencyBound() throws Exception {
+        try (LocalHTTPServer server = new LocalHTTPServer(false, req -> {
+            Thread.sleep(100);
+            return new LocalHTTPServer.Response(200, "slow");
+        })) {
+            PooledHTTPRequester requester = new PooledHTTPRequester(2, null);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                Thread t = new Thread(() -> assertEquals(200, requester.httpRequest(get(server, "/")).code));
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            assertEquals(6, server.requests.get());
+            assertTrue(server.maxInFlight.get() <= 2);
+            assertTrue(requester.getStats().permitWaits > 0);
+        }
+    }
+
+    @Test
+    public void compressedResponse() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("{\"id\":\"").append(i).append("\",\"class\":\"speed-boost\",\"distinguisher\":\"1hr\"},");
+        }
+        String payload = sb.toString();
+
+        try (LocalHTTPServer server = new LocalHTTPServer(false, req -> {
+            LocalHTTPServer.Response resp = new LocalHTTPServer.Response(200, payload);
+            String accept = req.headers.get("accept-encoding");
+            String encoding = req.target.equals("/deflate") ? "deflate" : "gzip";
+            if (accept != null && accept.contains(encoding)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (OutputStream zip = encoding.equals("gzip") ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+                    zip.write(resp.body);
+                }
+                resp.body = out.toByteArray();
+                resp.headers.put("Content-Encoding", encoding);
+            }
+            return resp;
+        })) {
+            PooledHTTPRequester requester = new PooledHTTPRequester();
+            for (String path : new String[]{"/gzip", "/deflate"}) {
+                PsiCashLib.HTTPRequester.Result res = requester.httpRequest(get(server, path));
+                assertNull(res.error);
+                assertEquals(200, res.code);
+                assertEquals(payload, body(res));
+                // The body was decoded, so the encoding no longer applies
+                for (String name : res.headers.keySet()) {
+                    assertFalse("Content-Encoding".equalsIgnoreCase(name));
+                }
+                assertTrue(res.wireBodyLength > 0);
+                assertTrue(res.wireBodyLength < res.bodyBytes.length / 5);
+            }
+
+            PooledHTTPRequester.Stats stats = requester.getStats();
+            assertEquals(2L * payload.length(), stats.bytesDecoded);
+            assertTrue(stats.bytesReceived < stats.bytesDecoded / 5);
+            // The decoded stream was read to the end, so the connection was reused
+            assertEquals(1, server.connections.get());
+        }
+    }
+}
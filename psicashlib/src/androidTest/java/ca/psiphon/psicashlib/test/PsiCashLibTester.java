@@ -41,4 +41,21 @@ public class PsiCashLibTester extends PsiCashLib {
     public void setRequestMutator(String mutator) {
         this.NativeTestSetRequestMutators(new String[]{mutator});
     }
+
+    public String hasTokensJSON() {
+        return this.NativeTestHasTokensJSON();
+    }
+
+    public String isAccountJSON() {
+        return this.NativeTestIsAccountJSON();
+    }
+
+    public String balanceJSON() {
+        return this.NativeTestBalanceJSON();
+    }
+
+    @Nullable
+    public String httpRequestGlue(int iterations) {
+        return this.NativeTestHTTPRequestGlue(iterations);
+    }
 }
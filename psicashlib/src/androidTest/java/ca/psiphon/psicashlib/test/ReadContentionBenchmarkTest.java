@@ -0,0 +1,100 @@
+package ca.psiphon.psicashlib.test;
+
+import android.util.Log;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.junit.Assert.*;
+
+// Measures read throughput as the number of reader threads grows, with and without a
+// concurrent writer. Throughput is logged; the only assertions are about correctness.
+public class ReadContentionBenchmarkTest extends TestBase {
+    private static final int DURATION_MS = 2000;
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    // Runs readerCount threads calling balance() and getPurchases() for DURATION_MS,
+    // optionally alongside a thread repeatedly calling expirePurchases(). Returns total reads.
+    private long run(PsiCashLibTester pcl, int readerCount, boolean withWriter, long expectedBalance) throws InterruptedException {
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        int threadCount = readerCount + (withWriter ? 1 : 0);
+        CountDownLatch done = new CountDownLatch(threadCount);
+
+        for (int i = 0; i < readerCount; i++) {
+            new Thread(() -> {
+                long count = 0;
+                while (!stop.get()) {
+                    PsiCashLib.BalanceResult br = pcl.balance();
+                    if (br.error != null || br.balance != expectedBalance) {
+                        failures.incrementAndGet();
+                    }
+                    PsiCashLib.GetPurchasesResult gpr = pcl.getPurchases();
+                    if (gpr.error != null || gpr.purchases.size() != 1) {
+                        failures.incrementAndGet();
+                    }
+                    count += 2;
+                }
+                reads.addAndGet(count);
+                done.countDown();
+            }).start();
+        }
+
+        if (withWriter) {
+            new Thread(() -> {
+                while (!stop.get()) {
+                    // Nothing will actually be expired, but it's a full write.
+                    if (pcl.expirePurchases().error != null) {
+                        failures.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(DURATION_MS);
+        stop.set(true);
+        done.await();
+
+        assertEquals(0, failures.get());
+
+        long readsPerSec = reads.get() * 1000 / DURATION_MS;
+        Log.i("PsiCashLibBenchmark", "readers=" + readerCount + " writer=" + withWriter + ": " + readsPerSec + " reads/s");
+        return reads.get();
+    }
+
+    @Test
+    public void readerScaling() throws InterruptedException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        err = pcl.testReward(2);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        // A long-lived purchase, so the readers have something non-trivial to read.
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+
+        long balance = pcl.balance().balance;
+
+        for (int threads : THREAD_COUNTS) {
+            run(pcl, threads, false, balance);
+        }
+        for (int threads : THREAD_COUNTS) {
+            run(pcl, threads, true, balance);
+        }
+    }
+}
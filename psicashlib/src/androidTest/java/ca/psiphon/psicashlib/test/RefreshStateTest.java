@@ -3,7 +3,10 @@ package ca.psiphon.psicashlib.test;
 
 import org.junit.*;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
@@ -263,6 +266,248 @@ public class RefreshStateTest extends TestBase {
         }
     }
 
+    @Test
+    public void coalescing() throws InterruptedException {
+        // Slow the requests down so that concurrent calls overlap.
+        PsiCashLibHelper slowRequester = new PsiCashLibHelper() {
+            @Override
+            public Result httpRequest(ReqParams reqParams) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return super.httpRequest(reqParams);
+            }
+        };
+
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), slowRequester, false);
+        assertNull(conds(err, "message"), err);
+
+        int threads = 10;
+        CountDownLatch signal = new CountDownLatch(threads);
+        Executor exec = new ThreadPerTaskExecutor();
+        for (int i = 0; i < threads; i++) {
+            exec.execute(new ReqRunnable(pcl, signal, 1));
+        }
+        signal.await();
+
+        PsiCashLib.RefreshStateStats stats = pcl.getRefreshStateStats();
+        assertEquals(threads, stats.calls);
+        assertEquals(stats.calls, stats.requests + stats.coalesced);
+        assertThat(stats.coalesced, greaterThan(0L));
+        assertThat(stats.requests, lessThan((long)threads));
+        assertTrue(pcl.hasTokens().hasTokens);
+    }
+
+    @Test
+    public void minInterval() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(conds(err, "message"), err);
+
+        pcl.setRefreshStateMinInterval(60 * 1000);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+
+        // Within the interval; no request is made
+        res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertFalse(res.reconnectRequired);
+        assertTrue(res.throttled);
+        assertFalse(res.notModified);
+        PsiCashLib.RefreshStateStats stats = pcl.getRefreshStateStats();
+        assertEquals(2, stats.calls);
+        assertEquals(1, stats.requests);
+        assertEquals(1, stats.throttled);
+
+        // Local-only refreshes aren't affected
+        res = pcl.refreshState(true, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(2, pcl.getRefreshStateStats().calls);
+
+        // Resetting the user clears the throttle
+        err = pcl.resetUser();
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertEquals(2, pcl.getRefreshStateStats().requests);
+        assertTrue(pcl.hasTokens().hasTokens);
+    }
+
+    @Test
+    public void conditional() {
+        ETagRequester requester = new ETagRequester(new PsiCashLibHelper());
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(conds(err, "message"), err);
+
+        // First call gets tokens and a validator
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertFalse(res.notModified);
+        assertNull(requester.lastIfNoneMatch);
+        long balance = pcl.balance().balance;
+        int priceCount = pcl.getPurchasePrices().purchasePrices.size();
+        assertThat(priceCount, greaterThan(0));
+
+        // Nothing changed on the server
+        res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertTrue(res.notModified);
+        assertFalse(res.throttled);
+        assertFalse(res.reconnectRequired);
+        assertEquals(requester.etag(), requester.lastIfNoneMatch);
+        assertEquals(balance, pcl.balance().balance);
+        assertEquals(priceCount, pcl.getPurchasePrices().purchasePrices.size());
+        assertEquals(1, pcl.getRefreshStateStats().notModified);
+
+        // Different purchase classes don't match the validator
+        res = pcl.refreshState(false, Arrays.asList("speed-boost", TEST_DEBIT_TRANSACTION_CLASS));
+        assertNull(conds(res.error, "message"), res.error);
+        assertFalse(res.notModified);
+        assertNull(requester.lastIfNoneMatch);
+
+        // Server state changes
+        err = pcl.testReward(1);
+        assertNull(conds(err, "message"), err);
+        requester.modified();
+        res = pcl.refreshState(false, Arrays.asList("speed-boost", TEST_DEBIT_TRANSACTION_CLASS));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertFalse(res.notModified);
+        assertNotNull(requester.lastIfNoneMatch);
+        assertEquals(balance + ONE_TRILLION, pcl.balance().balance);
+
+        // Resetting the user clears the validator
+        err = pcl.resetUser();
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, Arrays.asList("speed-boost", TEST_DEBIT_TRANSACTION_CLASS));
+        assertNull(conds(res.error, "message"), res.error);
+        assertFalse(res.notModified);
+        assertNull(requester.lastIfNoneMatch);
+    }
+
+    @Test
+    public void compression() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(conds(err, "message"), err);
+        // The helper returns bodyBytes, so can pass compressed bodies through
+        pcl.setAcceptCompressedResponses(true);
+
+        // Whether or not the server compresses, the response must be decoded by the library
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertThat(pcl.getPurchasePrices().purchasePrices.size(), greaterThan(0));
+
+        PsiCashLib.ResponseBodyStats stats = pcl.getResponseBodyStats();
+        assertThat(stats.responses, greaterThan(0L));
+        assertThat(stats.decodedBytes, greaterThan(0L));
+        if (stats.compressedResponses == 0) {
+            assertEquals(stats.wireBytes, stats.decodedBytes);
+        }
+
+        // Without compression
+        pcl.setAcceptCompressedResponses(false);
+        res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertEquals(stats.compressedResponses, pcl.getResponseBodyStats().compressedResponses);
+    }
+
+    @Test
+    public void legacyStringRequester() {
+        LegacyStringRequester requester = new LegacyStringRequester(new PsiCashLibHelper());
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), requester, false);
+        assertNull(conds(err, "message"), err);
+
+        // Compression isn't asked for by default, so the String body is usable
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList("speed-boost"));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        assertThat(requester.requests, greaterThan(0));
+        assertFalse(requester.sawAcceptEncoding);
+        assertTrue(pcl.hasTokens().hasTokens);
+        assertThat(pcl.getPurchasePrices().purchasePrices.size(), greaterThan(0));
+    }
+
+    // Stands in for a requester written before Result.bodyBytes: it reads the response body
+    // into Result.body as a String, so a compressed body would be mangled.
+    private static class LegacyStringRequester implements PsiCashLib.HTTPRequester {
+        private final PsiCashLib.HTTPRequester requester;
+        volatile int requests;
+        volatile boolean sawAcceptEncoding;
+
+        LegacyStringRequester(PsiCashLib.HTTPRequester requester) {
+            this.requester = requester;
+        }
+
+        @Override
+        public Result httpRequest(ReqParams reqParams) {
+            requests++;
+            if (reqParams.headers.containsKey("Accept-Encoding")) {
+                sawAcceptEncoding = true;
+            }
+            Result res = requester.httpRequest(reqParams);
+            if (res.bodyBytes != null) {
+                res.body = new String(res.bodyBytes, Charset.forName("UTF-8"));
+                res.bodyBytes = null;
+            }
+            return res;
+        }
+    }
+
+    // Stands in for a server that supports conditional refresh-state requests. The
+    // response's ETag is a version number that the test bumps when it changes server state.
+    private static class ETagRequester implements PsiCashLib.HTTPRequester {
+        private final PsiCashLib.HTTPRequester requester;
+        private volatile int version = 1;
+        volatile String lastIfNoneMatch;
+
+        ETagRequester(PsiCashLib.HTTPRequester requester) {
+            this.requester = requester;
+        }
+
+        String etag() {
+            return "\"" + version + "\"";
+        }
+
+        void modified() {
+            version++;
+        }
+
+        @Override
+        public Result httpRequest(ReqParams reqParams) {
+            if (!reqParams.uri.getPath().endsWith("/refresh-state")) {
+                return requester.httpRequest(reqParams);
+            }
+
+            lastIfNoneMatch = reqParams.headers.remove("If-None-Match");
+            if (etag().equals(lastIfNoneMatch)) {
+                Result res = new Result();
+                res.code = 304;
+                return res;
+            }
+
+            Result res = requester.httpRequest(reqParams);
+            if (res.code == 200) {
+                res.headers = new HashMap<>(res.headers);
+                res.headers.put("ETag", Collections.singletonList(etag()));
+            }
+            return res;
+        }
+    }
+
     private class ReqRunnable implements Runnable {
         PsiCashLibTester pcl;
         CountDownLatch signal;
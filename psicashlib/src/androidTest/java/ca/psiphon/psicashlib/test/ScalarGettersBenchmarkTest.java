@@ -0,0 +1,58 @@
+package ca.psiphon.psicashlib.test;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.*;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static org.junit.Assert.*;
+
+// Compares the primitive-returning scalar getters against the JSON-returning versions
+// they replaced. Timings are logged; the only assertions are about correctness.
+public class ScalarGettersBenchmarkTest extends TestBase {
+    private static final int ITERATIONS = 10000;
+
+    @Test
+    public void typedVersusJSON() throws JSONException {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+
+        // Both paths must agree
+        assertEquals(new JSONObject(pcl.balanceJSON()).getLong("result"), pcl.balance().balance);
+        assertEquals(new JSONObject(pcl.hasTokensJSON()).getBoolean("result"), pcl.hasTokens().hasTokens);
+        assertEquals(new JSONObject(pcl.isAccountJSON()).getBoolean("result"), pcl.isAccount().isAccount);
+
+        benchmark("balance typed", ITERATIONS, () -> assertNull(pcl.balance().error));
+        benchmark("balance JSON", ITERATIONS, () -> {
+            try {
+                new JSONObject(pcl.balanceJSON()).getLong("result");
+            } catch (JSONException e) {
+                fail(e.toString());
+            }
+        });
+
+        benchmark("hasTokens typed", ITERATIONS, () -> assertNull(pcl.hasTokens().error));
+        benchmark("hasTokens JSON", ITERATIONS, () -> {
+            try {
+                new JSONObject(pcl.hasTokensJSON()).getBoolean("result");
+            } catch (JSONException e) {
+                fail(e.toString());
+            }
+        });
+
+        benchmark("isAccount typed", ITERATIONS, () -> assertNull(pcl.isAccount().error));
+        benchmark("isAccount JSON", ITERATIONS, () -> {
+            try {
+                new JSONObject(pcl.isAccountJSON()).getBoolean("result");
+            } catch (JSONException e) {
+                fail(e.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,99 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.junit.Assert.*;
+
+public class SnapshotTest extends TestBase {
+    @Test
+    public void simpleSuccess() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        // Default values, before the first RefreshState
+        PsiCashLib.StateSnapshotResult ssr = pcl.snapshot();
+        assertNull(conds(ssr.error, "message"), ssr.error);
+        assertNotNull(ssr.snapshot);
+        assertEquals(0L, ssr.snapshot.balance);
+        assertEquals(0, ssr.snapshot.purchasePrices.size());
+        assertEquals(0, ssr.snapshot.activePurchases.size());
+        assertNull(ssr.snapshot.nextExpiringPurchase);
+        assertFalse(ssr.snapshot.isAccount);
+        assertFalse(ssr.snapshot.hasTokens);
+        assertNull(ssr.snapshot.accountUsername);
+
+        // First RefreshState, which creates the tracker
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, Arrays.asList(TEST_DEBIT_TRANSACTION_CLASS));
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        ssr = pcl.snapshot();
+        assertNull(ssr.error);
+        assertTrue(ssr.snapshot.hasTokens);
+        assertFalse(ssr.snapshot.isAccount);
+        assertNotEquals(0, ssr.snapshot.purchasePrices.size());
+        assertEquals(pcl.getPurchasePrices().purchasePrices.size(), ssr.snapshot.purchasePrices.size());
+    }
+
+    @Test
+    public void matchesIndividualGetters() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+
+        err = pcl.testReward(2);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_TEN_SECOND_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+        nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+
+        PsiCashLib.StateSnapshotResult ssr = pcl.snapshot();
+        assertNull(conds(ssr.error, "message"), ssr.error);
+        PsiCashLib.StateSnapshot snapshot = ssr.snapshot;
+
+        assertEquals(pcl.balance().balance, snapshot.balance);
+        assertEquals(pcl.hasTokens().hasTokens, snapshot.hasTokens);
+        assertEquals(pcl.isAccount().isAccount, snapshot.isAccount);
+        assertEquals(pcl.getAccountUsername().username, snapshot.accountUsername);
+        assertEquals(pcl.getPurchasePrices().purchasePrices.size(), snapshot.purchasePrices.size());
+        assertEquals(2, snapshot.activePurchases.size());
+        assertEquals(pcl.activePurchases().purchases.size(), snapshot.activePurchases.size());
+        assertNotNull(snapshot.nextExpiringPurchase);
+        assertEquals(TEST_ONE_TRILLION_TEN_SECOND_DISTINGUISHER, snapshot.nextExpiringPurchase.distinguisher);
+        assertEquals(pcl.nextExpiringPurchase().purchase.id, snapshot.nextExpiringPurchase.id);
+
+        // The snapshot must not change after the fact
+        List<String> ids = new ArrayList<>();
+        for (PsiCashLib.Purchase p : snapshot.activePurchases) {
+            ids.add(p.id);
+        }
+        PsiCashLib.RemovePurchasesResult rpr = pcl.removePurchases(ids);
+        assertNull(rpr.error);
+        assertEquals(2, snapshot.activePurchases.size());
+        assertEquals(0, pcl.snapshot().snapshot.activePurchases.size());
+
+        try {
+            snapshot.activePurchases.clear();
+            fail("snapshot lists must be unmodifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
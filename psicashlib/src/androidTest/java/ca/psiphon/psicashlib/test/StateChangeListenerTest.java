@@ -0,0 +1,127 @@
+package ca.psiphon.psicashlib.test;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ca.psiphon.psicashlib.PsiCashLib;
+
+import static ca.psiphon.psicashlib.test.SecretTestValues.*;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class StateChangeListenerTest extends TestBase {
+    @Test
+    public void changes() {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        PsiCashLib.Error err = pcl.init(getTempDir(), new PsiCashLibHelper(), false);
+        assertNull(err);
+
+        List<PsiCashLib.StateChange> changes = new ArrayList<>();
+        err = pcl.setStateChangeListener(changes::add);
+        assertNull(err);
+
+        // Getting tokens
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(changes, hasSize(1));
+        assertEquals(Boolean.TRUE, changes.get(0).hasTokens);
+        assertNull(changes.get(0).isAccount);
+        assertThat(changes.get(0).purchasesAdded, empty());
+
+        // A refresh that changes nothing isn't reported
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(changes, hasSize(1));
+
+        // Balance
+        long balance = pcl.balance().balance;
+        err = pcl.testReward(1);
+        assertNull(conds(err, "message"), err);
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(changes, hasSize(2));
+        assertEquals(Long.valueOf(balance + ONE_TRILLION), changes.get(1).balance);
+        assertNull(changes.get(1).hasTokens);
+
+        // A purchase
+        PsiCashLib.NewExpiringPurchaseResult nepr = pcl.newExpiringPurchase(TEST_DEBIT_TRANSACTION_CLASS, TEST_ONE_TRILLION_ONE_MINUTE_DISTINGUISHER, ONE_TRILLION);
+        assertNull(nepr.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, nepr.status);
+        assertThat(changes, hasSize(3));
+        assertEquals(Long.valueOf(balance), changes.get(2).balance);
+        assertThat(changes.get(2).purchasesAdded, hasSize(1));
+        assertEquals(nepr.purchase.id, changes.get(2).purchasesAdded.get(0).id);
+        assertThat(changes.get(2).purchasesRemoved, empty());
+
+        // Its removal
+        PsiCashLib.RemovePurchasesResult rpr = pcl.removePurchases(Collections.singletonList(nepr.purchase.id));
+        assertNull(rpr.error);
+        assertThat(changes, hasSize(4));
+        assertNull(changes.get(3).balance);
+        assertThat(changes.get(3).purchasesAdded, empty());
+        assertThat(changes.get(3).purchasesRemoved, hasSize(1));
+        assertEquals(nepr.purchase.id, changes.get(3).purchasesRemoved.get(0).id);
+
+        // Removing nothing isn't reported
+        rpr = pcl.removePurchases(Collections.singletonList("no-such-purchase"));
+        assertNull(rpr.error);
+        assertThat(changes, hasSize(4));
+
+        // Reset
+        err = pcl.resetUser();
+        assertNull(err);
+        assertThat(changes, hasSize(5));
+        assertEquals(Boolean.FALSE, changes.get(4).hasTokens);
+
+        // Stopped
+        assertNull(pcl.setStateChangeListener(null));
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(changes, hasSize(5));
+    }
+
+    @Test
+    public void listenerWaitsOnOtherThread() throws Exception {
+        PsiCashLibTester pcl = new PsiCashLibTester();
+        String dir = getTempDir();
+        PsiCashLib.Error err = pcl.init(dir, new PsiCashLibHelper(), false);
+        assertNull(err);
+        PsiCashLib.RefreshStateResult res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+
+        // A listener that hands a getter to another thread (as to a UI thread) and waits
+        // for it. That thread must not be blocked by a lock the listener's caller holds.
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        List<Long> balances = new ArrayList<>();
+        err = pcl.setStateChangeListener(change ->
+                balances.add(assertCompletes(other.submit(() -> pcl.balance().balance))));
+        assertNull(err);
+
+        // Re-init with a reset, which loses the tokens
+        err = pcl.init(dir, new PsiCashLibHelper(), true);
+        assertNull(err);
+        assertThat(balances, hasSize(1));
+
+        // And a mutator
+        res = pcl.refreshState(false, null);
+        assertNull(conds(res.error, "message"), res.error);
+        assertThat(balances, hasSize(2));
+        other.shutdown();
+    }
+
+    private static <T> T assertCompletes(Future<T> f) {
+        try {
+            return f.get(10, TimeUnit.SECONDS);
+        }
+        catch (Exception e) {
+            throw new AssertionError("getter didn't complete: " + e);
+        }
+    }
+}
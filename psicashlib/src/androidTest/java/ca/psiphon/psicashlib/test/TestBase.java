@@ -8,11 +8,9 @@ import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.junit.*;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
@@ -23,12 +21,16 @@ import java.util.Map;
 import java.util.Random;
 
 import ca.psiphon.psicashlib.PsiCashLib;
+import ca.psiphon.psicashlib.ResponseBodyReader;
 
 public class TestBase {
     private static File testSubDir;
 
     static long MAX_STARTING_BALANCE = 100000000000L;
 
+    // Shared by all tests when the "mockServer" instrumentation argument is "true".
+    private static MockPsiCashServer mockServer;
+
     @BeforeClass
     public static void makeTestDir() {
         String cacheDirPath = InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir().toString();
@@ -61,6 +63,20 @@ public class TestBase {
         return tempDir.toString();
     }
 
+    // Returns the local server that PsiCashLibHelper sends requests to, or null if requests
+    // go to the real (dev) server. Run with `-e mockServer true` to use it.
+    protected static synchronized MockPsiCashServer mockServer() {
+        if (mockServer == null
+                && "true".equals(InstrumentationRegistry.getArguments().getString("mockServer"))) {
+            try {
+                mockServer = MockPsiCashServer.forTests();
+            } catch (Exception e) {
+                throw new RuntimeException("mockServer: cannot start server", e);
+            }
+        }
+        return mockServer;
+    }
+
     // Used to conditionally access a field on an object that may be null.
     // Like: assertNull(cond(res.error, "message"), res.error);
     private Object cond(Object nullable, String fieldName) {
@@ -102,6 +118,21 @@ public class TestBase {
         }
     }
 
+    // Runs op repeatedly (after a warmup) and returns the mean time per call in nanoseconds.
+    // The result is also logged, tagged with name.
+    protected long benchmark(String name, int iterations, Runnable op) {
+        for (int i = 0; i < iterations / 10; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long nsPerOp = (System.nanoTime() - start) / iterations;
+        Log.i("PsiCashLibBenchmark", name + ": " + nsPerOp + " ns/op");
+        return nsPerOp;
+    }
+
     Matcher<List<PsiCashLib.Purchase>> containsPurchase(String transactionClass, String distinguisher) {
         return new BaseMatcher<List<PsiCashLib.Purchase>>() {
             @Override
@@ -130,8 +161,13 @@ public class TestBase {
         public PsiCashLib.HTTPRequester.Result httpRequest(PsiCashLib.HTTPRequester.ReqParams reqParams) {
             PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
 
+            MockPsiCashServer mock = mockServer();
+            if (mock != null) {
+                reqParams.uri = mock.redirectURI(reqParams.uri);
+            }
+
             HttpURLConnection urlConn = null;
-            BufferedReader reader = null;
+            InputStream inputStream = null;
 
             try {
                 URL url = new URL(reqParams.uri.toString());
@@ -162,8 +198,7 @@ public class TestBase {
                 res.code = urlConn.getResponseCode();
                 res.headers = urlConn.getHeaderFields();
 
-                // Read the input stream into a String
-                InputStream inputStream;
+                // Read the response body
                 if (200 <= res.code && res.code <= 399) {
                     inputStream = urlConn.getInputStream();
                 } else {
@@ -175,20 +210,13 @@ public class TestBase {
                     return res;
                 }
 
-                reader = new BufferedReader(new InputStreamReader(inputStream));
-
-                StringBuffer buffer = new StringBuffer();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    buffer.append(line);
-                }
-
-                if (buffer.length() == 0) {
+                byte[] body = ResponseBodyReader.readBytes(inputStream, urlConn.getContentLength(), ResponseBodyReader.DEFAULT_MAX_BODY_SIZE);
+                if (body.length == 0) {
                     // Stream was empty.
                     return res;
                 }
 
-                res.body = buffer.toString();
+                res.bodyBytes = body;
             } catch (IOException e) {
                 Log.e("PsiCashLibHelper", "httpRequest: failed with IOException ", e);
                 res.error = "httpRequest: failed with IOException: " + e.toString();
@@ -20,6 +20,10 @@
 #include <jni.h>
 #include <string>
 #include <cstdio>
+#include <algorithm>
+#include <system_error>
+#include <thread>
+#include <vector>
 #include "jnihelpers.hpp"
 #include "error.hpp"
 #include "psicash.hpp"
@@ -28,7 +32,8 @@
 using json = nlohmann::json;
 
 #define HTTP_REQUEST_FN_NAME    "makeHTTPRequest"
-#define HTTP_REQUEST_FN_SIG     "(Ljava/lang/String;)Ljava/lang/String;"
+#define HTTP_REQUEST_FN_SIG     "(Ljava/lang/String;Ljava/lang/String;ILjava/lang/String;Ljava/lang/String;[Ljava/lang/String;[Ljava/lang/String;[B)Lca/psiphon/psicashlib/PsiCashLib$JNI$HTTPResult;"
+#define HTTP_RESULT_CLASS       "ca/psiphon/psicashlib/PsiCashLib$JNI$HTTPResult"
 
 static constexpr const char* kPsiCashUserAgent = "Psiphon-PsiCash-Android";
 
@@ -48,6 +53,34 @@ Java_ca_psiphon_psicashlib_PsiCashLib_NativeStaticInit(JNIEnv* env, jclass type)
         return static_cast<jboolean>(false);
     }
 
+    auto http_result_class = env->FindClass(HTTP_RESULT_CLASS);
+    if (!http_result_class) {
+        CheckJNIException(env);
+        return static_cast<jboolean>(false);
+    }
+    g_httpResultCodeFID = env->GetFieldID(http_result_class, "code", "I");
+    g_httpResultBodyFID = env->GetFieldID(http_result_class, "body", "[B");
+    g_httpResultHeadersFID = env->GetFieldID(http_result_class, "headers", "[Ljava/lang/String;");
+    g_httpResultErrorFID = env->GetFieldID(http_result_class, "error", "Ljava/lang/String;");
+    env->DeleteLocalRef(http_result_class);
+    if (!g_httpResultCodeFID || !g_httpResultBodyFID || !g_httpResultHeadersFID || !g_httpResultErrorFID) {
+        CheckJNIException(env);
+        return static_cast<jboolean>(false);
+    }
+
+    auto string_class = env->FindClass("java/lang/String");
+    if (!string_class) {
+        CheckJNIException(env);
+        return static_cast<jboolean>(false);
+    }
+    g_jStringClass = reinterpret_cast<jclass>(env->NewGlobalRef(string_class));
+    env->DeleteLocalRef(string_class);
+    g_stringFromBytesMID = env->GetMethodID(g_jStringClass, "<init>", "([BLjava/lang/String;)V");
+    if (!g_stringFromBytesMID) {
+        CheckJNIException(env);
+        return static_cast<jboolean>(false);
+    }
+
     return static_cast<jboolean>(true);
 }
 
@@ -123,32 +156,53 @@ Java_ca_psiphon_psicashlib_PsiCashLib_NativeSetLocale(
     return JNI_(WRAP_ERROR(GetPsiCash().SetLocale(*value)));
 }
 
-extern "C" JNIEXPORT jstring
+// The scalar getters return their values directly rather than as JSON. See the comment
+// in PsiCashLib.java for details. On failure a Java exception is thrown and the returned
+// value is ignored.
+
+extern "C" JNIEXPORT jboolean
 JNICALL
 Java_ca_psiphon_psicashlib_PsiCashLib_NativeHasTokens(
         JNIEnv* env,
         jobject /*this_obj*/)
 {
-    return JNI_(SuccessResponse(GetPsiCash().HasTokens()));
+    try {
+        return static_cast<jboolean>(GetPsiCash().HasTokens());
+    }
+    catch (std::exception& e) {
+        THROW_CRITICAL(utils::Stringer("HasTokens failed: ", e.what()));
+        return static_cast<jboolean>(false);
+    }
 }
 
-extern "C" JNIEXPORT jstring
+extern "C" JNIEXPORT jboolean
 JNICALL
 Java_ca_psiphon_psicashlib_PsiCashLib_NativeIsAccount(
         JNIEnv* env,
         jobject /*this_obj*/)
 {
-    return JNI_(SuccessResponse(GetPsiCash().IsAccount()));
+    try {
+        return static_cast<jboolean>(GetPsiCash().IsAccount());
+    }
+    catch (std::exception& e) {
+        THROW_CRITICAL(utils::Stringer("IsAccount failed: ", e.what()));
+        return static_cast<jboolean>(false);
+    }
 }
 
-extern "C" JNIEXPORT jstring
+extern "C" JNIEXPORT jlong
 JNICALL
 Java_ca_psiphon_psicashlib_PsiCashLib_NativeBalance(
         JNIEnv* env,
         jobject /*this_obj*/)
 {
-    auto b = GetPsiCash().Balance();
-    return JNI_(SuccessResponse(b));
+    try {
+        return static_cast<jlong>(GetPsiCash().Balance());
+    }
+    catch (std::exception& e) {
+        THROW_CRITICAL(utils::Stringer("Balance failed: ", e.what()));
+        return 0;
+    }
 }
 
 extern "C" JNIEXPORT jstring
@@ -239,6 +293,102 @@ Java_ca_psiphon_psicashlib_PsiCashLib_NativeDecodeAuthorization(
     return JNI_(SuccessResponse(*result));
 }
 
+// Batches are split between threads so that each decodes at least this many, as starting a
+// thread costs about as much as decoding a few dozen authorizations.
+static constexpr size_t kMinDecodeAuthorizationsPerThread = 64;
+
+// Returns the response object for one authorization, the same as NativeDecodeAuthorization
+// gives. Doesn't use the JNIEnv, so may be called from any thread. As it's run on worker
+// threads, where an escaping exception would terminate the process, any exception becomes
+// an error response (though building that may itself throw, if out of memory).
+static json DecodeAuthorizationItem(const nonstd::optional<string>& encoded_authorization)
+{
+    try {
+        if (!encoded_authorization) {
+            return json::parse(ERROR_CRITICAL("encoded authorization is required"));
+        }
+
+        auto result = psicash::DecodeAuthorization(*encoded_authorization);
+        if (!result) {
+            return json::parse(WRAP_ERROR(result.error()));
+        }
+        return json({{"result", *result}});
+    }
+    catch (json::exception& e) {
+        return json({{"error", {{"message", utils::Stringer("DecodeAuthorizationItem json failed: ", e.what(), "; id:", e.id)},
+                                {"critical", true}}}});
+    }
+    catch (std::exception& e) {
+        return json({{"error", {{"message", utils::Stringer("DecodeAuthorizationItem failed: ", e.what())},
+                                {"critical", true}}}});
+    }
+    catch (...) {
+        return json({{"error", {{"message", "DecodeAuthorizationItem failed: unknown exception"},
+                                {"critical", true}}}});
+    }
+}
+
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeDecodeAuthorizations(
+        JNIEnv* env,
+        jclass /*type*/, // jclass and not jobject because it's a static call
+        jobjectArray j_encoded_authorizations)
+{
+    if (!j_encoded_authorizations) {
+        return JNI_(SuccessResponse(json::array()));
+    }
+
+    // The strings are all copied out first, as the JNIEnv can only be used on this thread.
+    const size_t count = env->GetArrayLength(j_encoded_authorizations);
+    vector<nonstd::optional<string>> encoded_authorizations;
+    encoded_authorizations.reserve(count);
+    for (size_t i = 0; i < count; ++i) {
+        auto j_encoded = (jstring)(env->GetObjectArrayElement(j_encoded_authorizations, i));
+        encoded_authorizations.push_back(JStringToString(env, j_encoded));
+        env->DeleteLocalRef(j_encoded);
+    }
+
+    // Each item starts as an empty object, which the Java side reads as an error for that
+    // item, in case even its error response can't be built.
+    vector<json> items(count, json::object());
+    auto decode_range = [&encoded_authorizations, &items](size_t begin, size_t end) {
+        for (size_t i = begin; i < end; ++i) {
+            try {
+                items[i] = DecodeAuthorizationItem(encoded_authorizations[i]);
+            }
+            catch (...) {
+                // Nothing may escape a worker thread; the item is left empty.
+            }
+        }
+    };
+
+    // Decoding is a pure function of the input, so the items can be split into contiguous
+    // shares, one per thread, with each thread writing only its own results. This thread
+    // takes the first share.
+    // hardware_concurrency is 0 if it can't be determined.
+    size_t threads = min<size_t>(max(1u, thread::hardware_concurrency()),
+                                 max<size_t>(1, count / kMinDecodeAuthorizationsPerThread));
+    size_t share = (count + threads - 1) / threads;
+    vector<thread> workers;
+    for (size_t begin = share; begin < count; begin += share) {
+        size_t end = min(count, begin + share);
+        try {
+            workers.emplace_back(decode_range, begin, end);
+        }
+        catch (system_error&) {
+            // Couldn't start a thread; do this share here instead.
+            decode_range(begin, end);
+        }
+    }
+    decode_range(0, min(count, share));
+    for (auto& worker : workers) {
+        worker.join();
+    }
+
+    return JNI_(SuccessResponse(items));
+}
+
 extern "C" JNIEXPORT jstring
 JNICALL
 Java_ca_psiphon_psicashlib_PsiCashLib_NativeNextExpiringPurchase(
@@ -382,6 +532,59 @@ Java_ca_psiphon_psicashlib_PsiCashLib_NativeGetDiagnosticInfo(
     return JNI_(SuccessResponse(json.dump(-1, ' ', true)));
 }
 
+/*
+ * Gathers the commonly-rendered state in a single call, so that the caller doesn't need
+ * multiple JNI crossings and JSON round trips. The Java side (readState) discards the
+ * result and reads again if a write overlapped it, but doesn't catch failures: like the
+ * other entry points, exceptions are returned here as a critical error.
+ * Response JSON structure is:
+ * {
+ *      error: { ... },
+ *      result: {
+ *          balance: int64,
+ *          purchase_prices: [ PurchasePrice, ... ],
+ *          active_purchases: [ Purchase, ... ],
+ *          next_expiring_purchase: Purchase or null,
+ *          is_account: boolean,
+ *          has_tokens: boolean,
+ *          account_username: string or null
+ *      }
+ * }
+ */
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeSnapshot(
+        JNIEnv* env,
+        jobject /*this_obj*/)
+{
+    try {
+        auto& psicash = GetPsiCash();
+
+        auto output = json::object({{"balance",                psicash.Balance()},
+                                    {"purchase_prices",        psicash.GetPurchasePrices()},
+                                    {"active_purchases",       psicash.ActivePurchases()},
+                                    {"next_expiring_purchase", nullptr},
+                                    {"is_account",             psicash.IsAccount()},
+                                    {"has_tokens",             psicash.HasTokens()},
+                                    {"account_username",       nullptr}});
+
+        auto next_expiring_purchase = psicash.NextExpiringPurchase();
+        if (next_expiring_purchase) {
+            output["next_expiring_purchase"] = *next_expiring_purchase;
+        }
+
+        auto account_username = psicash.AccountUsername();
+        if (account_username) {
+            output["account_username"] = *account_username;
+        }
+
+        return JNI_(SuccessResponse(output));
+    }
+    catch (std::exception& e) {
+        return JNI_(ERROR_CRITICAL(utils::Stringer("Snapshot failed: ", e.what())));
+    }
+}
+
 /*
  * Response JSON structure is:
  * {
@@ -19,6 +19,7 @@
 
 #include <memory>
 #include <functional>
+#include <initializer_list>
 #include "vendor/nlohmann/json.hpp"
 #include "jnihelpers.hpp"
 
@@ -29,6 +30,12 @@ using json = nlohmann::json;
 bool g_testing = false;
 jclass g_jGlueClass;
 jmethodID g_makeHTTPRequestMID;
+jfieldID g_httpResultCodeFID;
+jfieldID g_httpResultBodyFID;
+jfieldID g_httpResultHeadersFID;
+jfieldID g_httpResultErrorFID;
+jclass g_jStringClass;
+jmethodID g_stringFromBytesMID;
 
 
 psicash::PsiCash& GetPsiCash() {
@@ -67,6 +74,18 @@ nonstd::optional<std::string> JStringToString(JNIEnv* env, jstring j_s) {
     // want to be sending that through to the core library and the server, so we'll need
     // to make some special effort. For details, see: https://stackoverflow.com/a/32215302
 
+    // But if the modified UTF-8 length equals the UTF-16 length, every character is in
+    // [U+0001, U+007F], for which modified UTF-8 and UTF-8 are identical. That's almost
+    // always the case (tokens, headers, etc.), and is much cheaper than the general case.
+    const jsize len = env->GetStringLength(j_s);
+    if (env->GetStringUTFLength(j_s) == len) {
+        // Room for the terminator that some JNI implementations write.
+        std::string res(static_cast<size_t>(len) + 1, '\0');
+        env->GetStringUTFRegion(j_s, 0, len, &res[0]);
+        res.resize(len);
+        return res;
+    }
+
     const jclass stringClass = env->GetObjectClass(j_s);
     const jmethodID getBytes = env->GetMethodID(stringClass, "getBytes", "(Ljava/lang/String;)[B");
 
@@ -85,6 +104,79 @@ nonstd::optional<std::string> JStringToString(JNIEnv* env, jstring j_s) {
     return res;
 }
 
+jstring StringToJString(JNIEnv* env, const string& s) {
+    // NewStringUTF takes modified UTF-8, which is only safe to give it for ASCII (without
+    // NUL). Anything else is decoded by Java, which also copes with malformed UTF-8.
+    bool ascii = true;
+    for (unsigned char c : s) {
+        if (c == 0 || c >= 0x80) {
+            ascii = false;
+            break;
+        }
+    }
+    if (ascii) {
+        return env->NewStringUTF(s.c_str());
+    }
+
+    auto j_bytes = StringToJByteArray(env, s);
+    auto j_charset = env->NewStringUTF("UTF-8");
+    jstring res = nullptr;
+    if (j_bytes && j_charset) {
+        res = (jstring)env->NewObject(g_jStringClass, g_stringFromBytesMID, j_bytes, j_charset);
+    }
+    env->DeleteLocalRef(j_charset);
+    env->DeleteLocalRef(j_bytes);
+    return res;
+}
+
+jbyteArray StringToJByteArray(JNIEnv* env, const string& s) {
+    const auto len = static_cast<jsize>(s.size());
+    auto j_bytes = env->NewByteArray(len);
+    if (!j_bytes) {
+        return nullptr;
+    }
+    if (len > 0) {
+        env->SetByteArrayRegion(j_bytes, 0, len, reinterpret_cast<const jbyte*>(s.data()));
+    }
+    return j_bytes;
+}
+
+nonstd::optional<string> JByteArrayToString(JNIEnv* env, jbyteArray j_bytes) {
+    if (!j_bytes) {
+        return nonstd::nullopt;
+    }
+    const jsize len = env->GetArrayLength(j_bytes);
+    string res(static_cast<size_t>(len), '\0');
+    if (len > 0) {
+        env->GetByteArrayRegion(j_bytes, 0, len, reinterpret_cast<jbyte*>(&res[0]));
+    }
+    return res;
+}
+
+// Flattens a collection of string pairs (a map or vector of pairs) into a Java String
+// array of alternating names and values. Returns null on failure.
+template<typename Pairs>
+static jobjectArray StringPairsToJArray(JNIEnv* env, const Pairs& pairs) {
+    auto j_arr = env->NewObjectArray(static_cast<jsize>(pairs.size() * 2), g_jStringClass, nullptr);
+    if (!j_arr) {
+        return nullptr;
+    }
+
+    jsize i = 0;
+    for (const auto& pair : pairs) {
+        for (const string* s : {&pair.first, &pair.second}) {
+            auto j_s = StringToJString(env, *s);
+            if (!j_s) {
+                env->DeleteLocalRef(j_arr);
+                return nullptr;
+            }
+            env->SetObjectArrayElement(j_arr, i++, j_s);
+            env->DeleteLocalRef(j_s);
+        }
+    }
+    return j_arr;
+}
+
 nonstd::optional<std::map<std::string, std::string>> JMapToStdMapStrings(JNIEnv* env, jobject j_map) {
     if (!j_map) {
         return nonstd::nullopt;
@@ -122,6 +214,16 @@ nonstd::optional<std::map<std::string, std::string>> JMapToStdMapStrings(JNIEnv*
     return result;
 }
 
+void ThrowRuntimeException(JNIEnv* env, const string& message) {
+    jclass exClass = env->FindClass("java/lang/RuntimeException");
+    if (!exClass) {
+        // FindClass has already thrown NoClassDefFoundError, which will have to do.
+        return;
+    }
+    env->ThrowNew(exClass, message.c_str());
+    env->DeleteLocalRef(exClass);
+}
+
 jstring JNIify(JNIEnv* env, const char* str) {
     return str ? env->NewStringUTF(str) : nullptr;
 }
@@ -175,72 +277,90 @@ psicash::MakeHTTPRequestFn GetHTTPReqFn(JNIEnv* env, jobject& this_obj) {
         psicash::HTTPResult error_result;
         error_result.code = psicash::HTTPResult::CRITICAL_ERROR;
 
-        string params_json;
-        try {
-            json j = {
-                {"scheme", params.scheme},
-                {"hostname", params.hostname},
-                {"port", params.port},
-                {"method", params.method},
-                {"path", params.path},
-                {"headers", params.headers},
-                {"query", params.query},
-                {"body", params.body}};
-
-            params_json = j.dump(-1, ' ', true);
-        }
-        catch (json::exception& e) {
-            error_result.error = psicash::error::MakeCriticalError(utils::Stringer(
-                "ErrorResponse json dump failed: ", e.what(), "; id:", e.id)).ToString();
-            return error_result;
+        // The request is passed as typed arguments and the result is read from the fields
+        // of the returned PsiCashLib.JNI.HTTPResult, so there's no JSON in either direction.
+        auto j_scheme = StringToJString(env, params.scheme);
+        auto j_hostname = StringToJString(env, params.hostname);
+        auto j_method = StringToJString(env, params.method);
+        auto j_path = StringToJString(env, params.path);
+        auto j_headers = StringPairsToJArray(env, params.headers);
+        auto j_query = StringPairsToJArray(env, params.query);
+        auto j_body = StringToJByteArray(env, params.body);
+
+        jobject j_result = nullptr;
+        bool marshaled = j_scheme && j_hostname && j_method && j_path && j_headers && j_query && j_body;
+        if (marshaled) {
+            j_result = env->CallObjectMethod(this_obj, g_makeHTTPRequestMID,
+                                             j_scheme, j_hostname, static_cast<jint>(params.port),
+                                             j_method, j_path, j_headers, j_query, j_body);
         }
 
-        auto j_params = env->NewStringUTF(params_json.c_str());
-        if (!j_params) {
+        env->DeleteLocalRef(j_scheme);
+        env->DeleteLocalRef(j_hostname);
+        env->DeleteLocalRef(j_method);
+        env->DeleteLocalRef(j_path);
+        env->DeleteLocalRef(j_headers);
+        env->DeleteLocalRef(j_query);
+        env->DeleteLocalRef(j_body);
+
+        if (!marshaled) {
             CheckJNIException(env);
-            error_result.error = psicash::error::MakeCriticalError("NewStringUTF failed").ToString();
+            error_result.error = psicash::error::MakeCriticalError("request marshaling failed").ToString();
             return error_result;
         }
 
-        auto j_result = (jstring)env->CallObjectMethod(this_obj, g_makeHTTPRequestMID, j_params);
         if (!j_result) {
             CheckJNIException(env);
             error_result.error = psicash::error::MakeCriticalError("CallObjectMethod failed").ToString();
             return error_result;
         }
 
-        auto result_json = JStringToString(env, j_result);
-        if (!result_json) {
-            CheckJNIException(env);
-            error_result.error = psicash::error::MakeCriticalError("JStringToString failed").ToString();
-            return error_result;
-        }
-
-        try {
-            auto j = json::parse(*result_json);
+        psicash::HTTPResult result;
+        result.code = env->GetIntField(j_result, g_httpResultCodeFID);
 
-            psicash::HTTPResult result;
-            result.code = j["code"].get<int>();
-
-            if (!j["body"].is_null()) {
-                result.body = j["body"].get<string>();
-            }
+        auto j_res_body = (jbyteArray)env->GetObjectField(j_result, g_httpResultBodyFID);
+        if (j_res_body) {
+            result.body = std::move(*JByteArrayToString(env, j_res_body));
+            env->DeleteLocalRef(j_res_body);
+        }
 
-            if (!j["headers"].is_null()) {
-                result.headers = j["headers"].get<map<string, vector<string>>>();
+        auto j_res_error = (jstring)env->GetObjectField(j_result, g_httpResultErrorFID);
+        if (j_res_error) {
+            auto res_error = JStringToString(env, j_res_error);
+            env->DeleteLocalRef(j_res_error);
+            if (!res_error) {
+                CheckJNIException(env);
+                env->DeleteLocalRef(j_result);
+                error_result.error = psicash::error::MakeCriticalError("error conversion failed").ToString();
+                return error_result;
             }
+            result.error = std::move(*res_error);
+        }
 
-            if (!j["error"].is_null()) {
-                result.error = j["error"].get<string>();
+        auto j_res_headers = (jobjectArray)env->GetObjectField(j_result, g_httpResultHeadersFID);
+        if (j_res_headers) {
+            const jsize len = env->GetArrayLength(j_res_headers);
+            for (jsize i = 0; i + 1 < len; i += 2) {
+                auto j_name = (jstring)env->GetObjectArrayElement(j_res_headers, i);
+                auto j_value = (jstring)env->GetObjectArrayElement(j_res_headers, i + 1);
+                auto name = JStringToString(env, j_name);
+                auto value = JStringToString(env, j_value);
+                env->DeleteLocalRef(j_name);
+                env->DeleteLocalRef(j_value);
+                if (!name || !value) {
+                    CheckJNIException(env);
+                    env->DeleteLocalRef(j_res_headers);
+                    env->DeleteLocalRef(j_result);
+                    error_result.error = psicash::error::MakeCriticalError("header conversion failed").ToString();
+                    return error_result;
+                }
+                result.headers[*name].push_back(std::move(*value));
             }
-
-            return result;
-        }
-        catch (json::exception& e) {
-            error_result.error = psicash::error::MakeCriticalError(utils::Stringer(
-                "json parse failed: ", e.what(), "; id:", e.id)).ToString();
-            return error_result;
+            env->DeleteLocalRef(j_res_headers);
         }
+
+        env->DeleteLocalRef(j_result);
+        return result;
     };
 
     return http_req_fn;
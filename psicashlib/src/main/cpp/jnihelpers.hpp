@@ -33,6 +33,14 @@
 extern bool g_testing;
 extern jclass g_jGlueClass;
 extern jmethodID g_makeHTTPRequestMID;
+/// Field IDs of PsiCashLib.JNI.HTTPResult, the type returned by makeHTTPRequest.
+extern jfieldID g_httpResultCodeFID;
+extern jfieldID g_httpResultBodyFID;
+extern jfieldID g_httpResultHeadersFID;
+extern jfieldID g_httpResultErrorFID;
+extern jclass g_jStringClass;
+/// java.lang.String(byte[], String charsetName)
+extern jmethodID g_stringFromBytesMID;
 
 /// Get PsiCash instance to use (might actually be PsiCashTester).
 psicash::PsiCash& GetPsiCash();
@@ -47,6 +55,15 @@ bool CheckJNIException(JNIEnv* env);
 
 nonstd::optional<std::string> JStringToString(JNIEnv* env, jstring j_s);
 
+/// Converts a (standard) UTF-8 string to a Java String. Returns null on failure.
+jstring StringToJString(JNIEnv* env, const std::string& s);
+
+/// Copies the bytes of a string into a new Java byte array. Returns null on failure.
+jbyteArray StringToJByteArray(JNIEnv* env, const std::string& s);
+
+/// Copies the contents of a Java byte array into a string.
+nonstd::optional<std::string> JByteArrayToString(JNIEnv* env, jbyteArray j_bytes);
+
 nonstd::optional<std::map<std::string, std::string>> JMapToStdMapStrings(JNIEnv* env, jobject j_map);
 
 /// Creates a JSON error string appropriate for a JNI response.
@@ -67,6 +84,13 @@ std::string ErrorResponse(const psicash::error::Error& error, const std::string&
 #define WRAP_ERROR1(err, msg)   (ErrorResponse(err, msg, __FILE__, __PRETTY_FUNCTION__, __LINE__).c_str())
 #define WRAP_ERROR(err)         WRAP_ERROR1(err, "")
 
+/// Throws a Java RuntimeException with the given message. For use by glue functions that
+/// return primitive values and so can't return a JSON error. The caller must return
+/// immediately after this.
+void ThrowRuntimeException(JNIEnv* env, const std::string& message);
+
+#define THROW_CRITICAL(msg)     (ThrowRuntimeException(env, psicash::error::Error(true, msg, __FILE__, __PRETTY_FUNCTION__, __LINE__).ToString()))
+
 jstring JNIify(JNIEnv* env, const char* str);
 jstring JNIify(JNIEnv* env, const std::string& str);
 #define JNI_(str)               (JNIify(env, str))
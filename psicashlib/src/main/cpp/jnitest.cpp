@@ -97,4 +97,72 @@ Java_ca_psiphon_psicashlib_PsiCashLib_NativeTestSetRequestMutators(
     return true;
 }
 
+// The JSON-returning versions of the scalar getters, retained for benchmark comparison
+// against the primitive-returning versions in jniglue.cpp.
+
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeTestHasTokensJSON(
+        JNIEnv* env,
+        jobject /*this_obj*/)
+{
+    return JNI_(SuccessResponse(GetPsiCash().HasTokens()));
+}
+
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeTestIsAccountJSON(
+        JNIEnv* env,
+        jobject /*this_obj*/)
+{
+    return JNI_(SuccessResponse(GetPsiCash().IsAccount()));
+}
+
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeTestBalanceJSON(
+        JNIEnv* env,
+        jobject /*this_obj*/)
+{
+    return JNI_(SuccessResponse(GetPsiCash().Balance()));
+}
+
+// Makes requests through the HTTP glue (GetHTTPReqFn) with representative parameters,
+// to benchmark the per-request marshaling overhead. The Java requester is expected to
+// return a canned 200 result without doing any I/O.
+// Returns null on success, error message otherwise.
+extern "C" JNIEXPORT jstring
+JNICALL
+Java_ca_psiphon_psicashlib_PsiCashLib_NativeTestHTTPRequestGlue(
+        JNIEnv* env,
+        jobject this_obj,
+        jint iterations)
+{
+    HTTPParams params;
+    params.scheme = "https";
+    params.hostname = "api.psi.cash";
+    params.port = 443;
+    params.method = "GET";
+    params.path = "/v1/refresh-state";
+    params.headers = {
+            {"User-Agent", "Psiphon-PsiCash-Android"},
+            {"X-PsiCash-Auth", "ADk8ZV+oxxc1wAvUDS+WbGSGgNpTsBgDwXyPhhxIcfs=,/vyv/YzW4eBhUkN/R96pAfLD1tuoKsQWGPdXdBK7q54=,vJz5uXv8J5YiHy0jg8ru6WyW5F/J1kGKgb7wNL1YR3s="},
+            {"X-PsiCash-Metadata", R"({"client_region":"CA","client_version":"123","propagation_channel_id":"ABCD1234","sponsor_id":"EFGH5678","user_agent":"Psiphon-PsiCash-Android","v":1})"},
+            {"X-Test-Unicode", "Gr\xc3\xbc\xc3\x9f\x65 \xe2\x9c\x93 \xf0\x9d\x84\x9e"}};
+    params.query = {{"class", "speed-boost"}, {"class", "other"}};
+
+    auto http_req_fn = GetHTTPReqFn(env, this_obj);
+    for (jint i = 0; i < iterations; ++i) {
+        auto result = http_req_fn(params);
+        if (result.code != kHTTPStatusOK) {
+            return JNI_(utils::Stringer("unexpected result: ", result.code, "; ", result.error));
+        }
+        if (result.body.empty() || result.headers.empty()) {
+            return JNI_("result body or headers missing");
+        }
+    }
+
+    return nullptr;
+}
+
 #endif // NDEBUG
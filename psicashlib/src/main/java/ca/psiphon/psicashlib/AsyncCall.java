@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A library call run on an Executor, with an optional timeout and completion callback.
+ * (CompletableFuture would be the obvious choice, but it requires API 24.)
+ *
+ * Failures (timeout, rejection by the executor, an unexpected exception) complete the
+ * future with an error result, rather than throwing from get(), so that async results
+ * can be handled exactly like sync ones. Cancellation is the exception: get() throws
+ * CancellationException and the callback is not invoked.
+ *
+ * Timeout and cancellation interrupt the worker thread. The native call can't be
+ * abandoned part way through, but makeHTTPRequest won't start a request on an
+ * interrupted thread, so the call finishes at the next request boundary.
+ */
+class AsyncCall<T> extends FutureTask<T> {
+    interface ErrorResult<T> {
+        @NonNull
+        T fromError(@NonNull PsiCashLib.Error error);
+    }
+
+    private static ScheduledExecutorService timer;
+
+    private final ErrorResult<T> errorResult;
+    @Nullable
+    private final PsiCashLib.Callback<T> callback;
+    @Nullable
+    private volatile ScheduledFuture<?> timeoutFuture;
+    // The thread running the call, if it's running. Guarded by this.
+    private Thread runner;
+
+    private AsyncCall(Callable<T> call, ErrorResult<T> errorResult, @Nullable PsiCashLib.Callback<T> callback) {
+        super(call);
+        this.errorResult = errorResult;
+        this.callback = callback;
+    }
+
+    /**
+     * Run call on executor.
+     * @param timeoutMillis If greater than zero, the future is completed with a timeout
+     *                      error result if call hasn't finished in this time.
+     * @param callback If non-null, invoked with the result when the future completes
+     *                 (other than by cancellation). It's called on whichever thread
+     *                 completed the future, which won't be the UI thread.
+     */
+    @NonNull
+    static <T> Future<T> submit(Executor executor, Callable<T> call, ErrorResult<T> errorResult,
+                                long timeoutMillis, @Nullable PsiCashLib.Callback<T> callback) {
+        AsyncCall<T> task = new AsyncCall<>(call, errorResult, callback);
+        if (timeoutMillis > 0) {
+            task.timeoutFuture = timer().schedule(task::timeout, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.set(errorResult.fromError(new PsiCashLib.Error("Executor rejected call: " + e.getMessage())));
+        }
+        return task;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            this.runner = Thread.currentThread();
+        }
+        try {
+            super.run();
+        }
+        finally {
+            synchronized (this) {
+                this.runner = null;
+            }
+            // Don't leak a timeout interrupt into the executor's next task.
+            Thread.interrupted();
+        }
+    }
+
+    @Override
+    protected void done() {
+        ScheduledFuture<?> tf = this.timeoutFuture;
+        if (tf != null) {
+            tf.cancel(false);
+        }
+
+        if (this.callback == null || isCancelled()) {
+            return;
+        }
+
+        T result;
+        try {
+            result = get();
+        } catch (ExecutionException | InterruptedException e) {
+            // get() can't block here, and the library calls don't throw, so this is unexpected.
+            result = this.errorResult.fromError(new PsiCashLib.Error("Async call failed: " + e.getMessage(), true));
+        }
+        this.callback.onResult(result);
+    }
+
+    @Override
+    protected void setException(Throwable t) {
+        // Report as a result rather than an exception; see class comment.
+        set(this.errorResult.fromError(new PsiCashLib.Error("Async call threw: " + t, true)));
+    }
+
+    private void timeout() {
+        if (isDone()) {
+            return;
+        }
+        // No-op if the call completed in the meantime.
+        set(this.errorResult.fromError(new PsiCashLib.Error("Call timed out")));
+        synchronized (this) {
+            if (this.runner != null) {
+                this.runner.interrupt();
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("PsiCashLib-timeout"));
+        }
+        return timer;
+    }
+
+    static ThreadFactory daemonThreadFactory(final String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
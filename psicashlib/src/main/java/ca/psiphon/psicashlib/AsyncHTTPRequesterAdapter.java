@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Presents an AsyncHTTPRequester as an HTTPRequester.
+ *
+ * This only adapts the API's shape; it saves no threads. The core library's request
+ * callback is synchronous, so the calling (native) thread is parked, uninterruptibly, for
+ * the whole request, just as with an HTTPRequester. (And network-backed calls are still
+ * made one at a time.) What it allows is a requester built on an event-driven client,
+ * which completes requests from its own thread.
+ */
+class AsyncHTTPRequesterAdapter implements PsiCashLib.HTTPRequester {
+    private final PsiCashLib.AsyncHTTPRequester requester;
+
+    AsyncHTTPRequesterAdapter(@NonNull PsiCashLib.AsyncHTTPRequester requester) {
+        this.requester = requester;
+    }
+
+    private static class Completion implements PsiCashLib.AsyncHTTPRequester.Completion {
+        final CountDownLatch done = new CountDownLatch(1);
+        // Written before done is counted down, read after it's awaited.
+        Result result;
+        volatile boolean cancelled;
+
+        @Override
+        public void complete(Result result) {
+            synchronized (this) {
+                if (this.done.getCount() == 0) {
+                    // Only the first completion counts.
+                    return;
+                }
+                this.result = result;
+                this.done.countDown();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+    }
+
+    @Override
+    public Result httpRequest(ReqParams reqParams) {
+        Completion completion = new Completion();
+        this.requester.httpRequest(reqParams, completion);
+
+        // Wait uninterruptibly: once a request is sent, its response must still be
+        // committed. An interrupt is passed on to the requester as cancellation, which
+        // it may use to abort the request (completing with an error).
+        boolean interrupted = false;
+        while (true) {
+            try {
+                completion.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                completion.cancelled = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (completion.result == null) {
+            Result res = new Result();
+            res.code = Result.CRITICAL_ERROR;
+            res.error = "AsyncHTTPRequester completed with null result";
+            return res;
+        }
+        return completion.result;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of decoded authorizations, keyed by the encoded string, for
+ * decodeAuthorization. Decoding is a pure function of the encoded string, so entries never
+ * go stale; the bound is only to limit memory.
+ *
+ * Only successful decodes are cached. Authorizations are copied in and out, since their
+ * fields are public and the caller may change them.
+ */
+class AuthorizationCache {
+    private final int capacity;
+    // Guarded by itself.
+    private final LinkedHashMap<String, PsiCashLib.Authorization> map;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    AuthorizationCache(final int capacity) {
+        this.capacity = capacity;
+        // Access order, so that the eldest entry is the least recently used.
+        this.map = new LinkedHashMap<String, PsiCashLib.Authorization>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PsiCashLib.Authorization> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return A copy of the cached authorization, or null (counting a miss).
+     */
+    @Nullable
+    PsiCashLib.Authorization get(String encoded) {
+        PsiCashLib.Authorization auth;
+        synchronized (this.map) {
+            auth = this.map.get(encoded);
+        }
+        if (auth == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return auth.copy();
+    }
+
+    void put(@NonNull String encoded, @NonNull PsiCashLib.Authorization auth) {
+        PsiCashLib.Authorization copy = auth.copy();
+        synchronized (this.map) {
+            this.map.put(encoded, copy);
+        }
+    }
+
+    void clear() {
+        synchronized (this.map) {
+            this.map.clear();
+        }
+    }
+
+    @NonNull
+    PsiCashLib.DecodeAuthorizationCacheStats stats() {
+        int size;
+        synchronized (this.map) {
+            size = this.map.size();
+        }
+        return new PsiCashLib.DecodeAuthorizationCacheStats(this.hits.get(), this.misses.get(), size, this.capacity);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires purchases as their local expiry times arrive, and reports them to an
+ * ExpiryListener, so that the app doesn't have to poll nextExpiringPurchase and
+ * expirePurchases.
+ *
+ * The purchases are kept in a min-heap by expiry, with a single timer set for the head.
+ * When it fires, one expirePurchases call removes every purchase that has expired by then,
+ * and the listener gets them as one batch. So there's one wakeup per distinct expiry time,
+ * and none while no purchase is due.
+ *
+ * Removal from the heap is lazy: a removed purchase is dropped from the live map, and its
+ * heap entry is discarded when it reaches the head.
+ *
+ * The heap is only maintained while a listener is set. PsiCashLib keeps it in step with
+ * the datastore: purchases are added by newExpiringPurchase, removed by expirePurchases
+ * and removePurchases, and reloaded (on the timer thread, see reloadLater) after the calls
+ * that may change them wholesale.
+ */
+class ExpiryScheduler {
+    interface Expirer {
+        /**
+         * Removes the expired purchases from the datastore.
+         * @return The purchases removed, or null on error.
+         */
+        @Nullable
+        List<PsiCashLib.Purchase> expirePurchases();
+    }
+
+    interface Loader {
+        /**
+         * Reads the stored purchases.
+         * @return The purchases, or null on error.
+         */
+        @Nullable
+        Collection<PsiCashLib.Purchase> loadPurchases();
+    }
+
+    // The timer fires this long after the head's expiry, so that the core (which compares
+    // with its own reading of the clock) sees it as past rather than just equal.
+    static final long FIRE_DELAY_MILLIS = 10;
+    // If the timer fires but the core doesn't consider the head purchase expired (the
+    // clocks can differ slightly), retry after this long, doubling up to the max.
+    static final long MIN_RETRY_MILLIS = 100;
+    static final long MAX_RETRY_MILLIS = 60 * 1000;
+
+    private static class Entry {
+        final String id;
+        final long expiry;
+
+        Entry(String id, long expiry) {
+            this.id = id;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Expirer expirer;
+    // All guarded by this.
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(11, (a, b) -> Long.compare(a.expiry, b.expiry));
+    // Transaction ID to expiry, for the purchases in the heap that haven't been removed.
+    private final Map<String, Long> live = new HashMap<>();
+    @Nullable
+    private PsiCashLib.ExpiryListener listener;
+    private ScheduledThreadPoolExecutor timer;
+    @Nullable
+    private ScheduledFuture<?> scheduled;
+    // When the scheduled timer will fire, in wall-clock millis.
+    private long scheduledAt;
+    private long retryMillis = MIN_RETRY_MILLIS;
+    // Incremented for every timer set, so that a timer that was replaced does nothing.
+    private long generation;
+    // Whether a reloadLater is queued and hasn't yet loaded the purchases.
+    private boolean reloadPending;
+    // Incremented by add and removed, so that reloadLater can tell whether purchases it
+    // loaded were overtaken.
+    private long changes;
+
+    ExpiryScheduler(Expirer expirer) {
+        this.expirer = expirer;
+    }
+
+    synchronized boolean isActive() {
+        return this.listener != null;
+    }
+
+    /**
+     * Sets the listener, and loads the heap from purchases. A null listener stops the
+     * scheduler, and purchases are ignored.
+     */
+    synchronized void setListener(@Nullable PsiCashLib.ExpiryListener listener,
+                                  @Nullable Collection<PsiCashLib.Purchase> purchases) {
+        this.listener = listener;
+        reset(listener == null ? null : purchases);
+    }
+
+    /**
+     * Replaces the heap contents with purchases (for after a change to the stored purchases
+     * that isn't an addition or removal of known ones).
+     */
+    synchronized void reset(@Nullable Collection<PsiCashLib.Purchase> purchases) {
+        this.heap.clear();
+        this.live.clear();
+        this.retryMillis = MIN_RETRY_MILLIS;
+        if (this.listener != null && purchases != null) {
+            for (PsiCashLib.Purchase p : purchases) {
+                addEntry(p);
+            }
+        }
+        reschedule();
+    }
+
+    /**
+     * Like reset, but loads the purchases on the timer thread, so that the caller doesn't
+     * wait for the read. Does nothing if the scheduler isn't active, or if a reload is
+     * already pending (as that will load the purchases then).
+     */
+    synchronized void reloadLater(@NonNull Loader loader) {
+        if (this.listener == null || this.reloadPending) {
+            return;
+        }
+        this.reloadPending = true;
+        timer().execute(() -> {
+            synchronized (this) {
+                this.reloadPending = false;
+                if (this.listener == null) {
+                    return;
+                }
+            }
+            while (true) {
+                long changesBefore;
+                synchronized (this) {
+                    changesBefore = this.changes;
+                }
+                // Outside the lock, as it reads the library's state.
+                Collection<PsiCashLib.Purchase> purchases = loader.loadPurchases();
+                synchronized (this) {
+                    if (purchases == null) {
+                        return;
+                    }
+                    if (this.changes == changesBefore) {
+                        reset(purchases);
+                        return;
+                    }
+                }
+                // A purchase was added or removed while loading, which the loaded
+                // purchases may not reflect; load again.
+            }
+        });
+    }
+
+    synchronized void add(@NonNull PsiCashLib.Purchase purchase) {
+        if (this.listener == null) {
+            return;
+        }
+        this.changes++;
+        addEntry(purchase);
+        reschedule();
+    }
+
+    synchronized void removed(@Nullable Collection<PsiCashLib.Purchase> purchases) {
+        if (this.listener == null || purchases == null || purchases.isEmpty()) {
+            return;
+        }
+        this.changes++;
+        for (PsiCashLib.Purchase p : purchases) {
+            if (p.id != null) {
+                this.live.remove(p.id);
+            }
+        }
+        reschedule();
+    }
+
+    synchronized int size() {
+        return this.live.size();
+    }
+
+    private void addEntry(PsiCashLib.Purchase p) {
+        if (p.id == null || p.expiry == null) {
+            // Not an expiring purchase.
+            return;
+        }
+        long expiry = p.expiry.getTime();
+        Long prev = this.live.put(p.id, expiry);
+        if (prev == null || prev != expiry) {
+            this.heap.add(new Entry(p.id, expiry));
+        }
+    }
+
+    // Drops dead entries from the head of the heap, and returns the new head (or null).
+    @Nullable
+    private Entry liveHead() {
+        Entry head;
+        while ((head = this.heap.peek()) != null) {
+            Long expiry = this.live.get(head.id);
+            if (expiry != null && expiry == head.expiry) {
+                return head;
+            }
+            this.heap.poll();
+        }
+        return null;
+    }
+
+    // Sets the timer for the head of the heap, if it isn't already set for that time.
+    private void reschedule() {
+        Entry head = liveHead();
+        if (head == null) {
+            cancel();
+            return;
+        }
+        if (this.scheduled != null && this.scheduledAt == head.expiry) {
+            return;
+        }
+        schedule(head.expiry);
+    }
+
+    private void schedule(long at) {
+        cancel();
+        final long gen = ++this.generation;
+        long delay = Math.max(0, at + FIRE_DELAY_MILLIS - System.currentTimeMillis());
+        this.scheduledAt = at;
+        this.scheduled = timer().schedule(() -> fire(gen), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private ScheduledThreadPoolExecutor timer() {
+        if (this.timer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                    AsyncCall.daemonThreadFactory("PsiCashLib-expiry"));
+            // So that the thread only lives while a timer (or reload) is pending. (See
+            // cancel.)
+            timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+            timer.allowCoreThreadTimeOut(true);
+            this.timer = timer;
+        }
+        return this.timer;
+    }
+
+    private void cancel() {
+        if (this.scheduled != null) {
+            this.scheduled.cancel(false);
+            this.scheduled = null;
+            // Cancelled tasks otherwise stay queued (and keep the thread) until their time.
+            // (setRemoveOnCancelPolicy would do this, but requires API 21.)
+            this.timer.purge();
+        }
+    }
+
+    private void fire(long gen) {
+        PsiCashLib.ExpiryListener listener;
+        synchronized (this) {
+            if (gen != this.generation || this.listener == null) {
+                return;
+            }
+            this.scheduled = null;
+            listener = this.listener;
+        }
+
+        // Outside the lock, as it takes the library's write lock (and calls removed).
+        List<PsiCashLib.Purchase> expired = this.expirer.expirePurchases();
+
+        synchronized (this) {
+            removed(expired);
+            if (expired != null && !expired.isEmpty()) {
+                this.retryMillis = MIN_RETRY_MILLIS;
+            }
+            else {
+                Entry head = liveHead();
+                if (head != null && this.scheduled == null) {
+                    // Nothing expired (or the call failed), though the head was due.
+                    schedule(Math.max(head.expiry, System.currentTimeMillis() + this.retryMillis));
+                    this.retryMillis = Math.min(this.retryMillis * 2, MAX_RETRY_MILLIS);
+                }
+            }
+            if (this.listener != listener) {
+                // Replaced or stopped in the meantime.
+                return;
+            }
+        }
+
+        if (expired != null && !expired.isEmpty()) {
+            listener.onPurchasesExpired(expired);
+        }
+    }
+}
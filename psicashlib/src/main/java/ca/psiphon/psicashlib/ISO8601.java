@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import java.text.ParseException;
+
+/**
+ * Parser for the UTC ISO 8601 date strings produced by the core library and the PsiCash
+ * server. Exactly two forms are accepted:
+ *   yyyy-MM-ddTHH:mm:ssZ
+ *   yyyy-MM-ddTHH:mm:ss.fZ   (where f is 1 to 9 fractional-second digits)
+ * Server timestamps (like authorization "Expires") can have nanosecond precision, so
+ * fractional digits beyond milliseconds are accepted and truncated.
+ *
+ * Unlike SimpleDateFormat, this keeps no state, so it's thread-safe, and it does no
+ * allocation except when throwing on bad input.
+ */
+final class ISO8601 {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private ISO8601() {
+    }
+
+    /**
+     * Parses the given string into milliseconds since the Unix epoch.
+     * @throws ParseException if the string isn't in one of the accepted forms or
+     *         describes an invalid date or time.
+     */
+    static long parseMillis(CharSequence s) throws ParseException {
+        // Shortest possible is "yyyy-MM-ddTHH:mm:ssZ"
+        final int len = s.length();
+        if (len < 20) {
+            throw new ParseException("ISO8601: date string too short: " + s, len);
+        }
+
+        int year = digits(s, 0, 4);
+        expect(s, 4, '-');
+        int month = digits(s, 5, 2);
+        expect(s, 7, '-');
+        int day = digits(s, 8, 2);
+        expect(s, 10, 'T');
+        int hour = digits(s, 11, 2);
+        expect(s, 13, ':');
+        int minute = digits(s, 14, 2);
+        expect(s, 16, ':');
+        int second = digits(s, 17, 2);
+
+        int millis = 0;
+        int pos = 19;
+        if (s.charAt(pos) == '.') {
+            pos++;
+            int fracStart = pos;
+            while (pos < len && isDigit(s.charAt(pos))) {
+                int fracDigit = pos - fracStart;
+                if (fracDigit < 3) {
+                    millis = millis * 10 + (s.charAt(pos) - '0');
+                }
+                pos++;
+            }
+            int fracLen = pos - fracStart;
+            if (fracLen == 0 || fracLen > 9) {
+                throw new ParseException("ISO8601: bad fractional seconds: " + s, fracStart);
+            }
+            // Scale up if fewer than three digits were given (".5" is 500ms)
+            for (int i = fracLen; i < 3; i++) {
+                millis *= 10;
+            }
+        }
+
+        if (pos != len - 1) {
+            throw new ParseException("ISO8601: unexpected trailing characters: " + s, pos);
+        }
+        expect(s, pos, 'Z');
+
+        if (month < 1 || month > 12
+                || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            throw new ParseException("ISO8601: date field out of range: " + s, 0);
+        }
+
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute) * 60L + second) * 1000L
+                + millis;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(CharSequence s, int start, int count) throws ParseException {
+        int v = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                throw new ParseException("ISO8601: expected digit: " + s, i);
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static void expect(CharSequence s, int pos, char c) throws ParseException {
+        if (s.charAt(pos) != c) {
+            throw new ParseException("ISO8601: expected '" + c + "': " + s, pos);
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Days since 1970-01-01 of the given proleptic Gregorian date. This is Howard Hinnant's
+    // days_from_civil: http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yoe = year - era * 400;
+        final long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
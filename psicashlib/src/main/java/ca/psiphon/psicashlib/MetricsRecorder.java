@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latency histograms and HTTP counters for the network-backed calls.
+ *
+ * Everything is kept in preallocated AtomicLongArrays, so recording doesn't allocate or
+ * lock. A histogram has power-of-two microsecond buckets: bucket 0 counts durations under
+ * 1us, and bucket i (i > 0) counts durations in [2^(i-1), 2^i) us. The last bucket also
+ * counts anything longer.
+ */
+class MetricsRecorder {
+    static final int BUCKETS = 32;
+
+    private static final int CALLS = PsiCashLib.Metrics.Call.values().length;
+    private static final int PHASES = PsiCashLib.Metrics.Phase.values().length;
+
+    // Per (call, phase): BUCKETS bucket counts, then the total count and the sum of nanos.
+    private static final int HISTOGRAM_COUNT = BUCKETS;
+    private static final int HISTOGRAM_SUM = BUCKETS + 1;
+    private static final int HISTOGRAM_STRIDE = BUCKETS + 2;
+
+    // Per call: status classes 0 (other) to 5 (5xx), then the error and byte counters.
+    static final int STATUS_CLASSES = 6;
+    private static final int COUNTER_RECOVERABLE = STATUS_CLASSES;
+    private static final int COUNTER_CRITICAL = STATUS_CLASSES + 1;
+    private static final int COUNTER_BYTES_OUT = STATUS_CLASSES + 2;
+    private static final int COUNTER_BYTES_IN = STATUS_CLASSES + 3;
+    private static final int COUNTER_STRIDE = STATUS_CLASSES + 4;
+
+    private final AtomicLongArray histograms = new AtomicLongArray(CALLS * PHASES * HISTOGRAM_STRIDE);
+    private final AtomicLongArray counters = new AtomicLongArray(CALLS * COUNTER_STRIDE);
+    @Nullable
+    private volatile PsiCashLib.MetricsSink sink;
+
+    void setSink(@Nullable PsiCashLib.MetricsSink sink) {
+        this.sink = sink;
+    }
+
+    static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    void recordTiming(@NonNull PsiCashLib.Metrics.Call call, @NonNull PsiCashLib.Metrics.Phase phase, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int base = (call.ordinal() * PHASES + phase.ordinal()) * HISTOGRAM_STRIDE;
+        histograms.incrementAndGet(base + bucketFor(nanos));
+        histograms.incrementAndGet(base + HISTOGRAM_COUNT);
+        histograms.addAndGet(base + HISTOGRAM_SUM, nanos);
+
+        PsiCashLib.MetricsSink sink = this.sink;
+        if (sink != null) {
+            sink.onTiming(call, phase, nanos);
+        }
+    }
+
+    /**
+     * @param code The HTTP status code, or HTTPRequester.Result.RECOVERABLE_ERROR or
+     *             CRITICAL_ERROR.
+     */
+    void recordHTTPResult(@NonNull PsiCashLib.Metrics.Call call, int code, long bytesOut, long bytesIn) {
+        int base = call.ordinal() * COUNTER_STRIDE;
+        if (code == PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR) {
+            counters.incrementAndGet(base + COUNTER_RECOVERABLE);
+        }
+        else if (code == PsiCashLib.HTTPRequester.Result.CRITICAL_ERROR) {
+            counters.incrementAndGet(base + COUNTER_CRITICAL);
+        }
+        else {
+            int statusClass = code / 100;
+            counters.incrementAndGet(base + (statusClass > 0 && statusClass < STATUS_CLASSES ? statusClass : 0));
+        }
+        counters.addAndGet(base + COUNTER_BYTES_OUT, bytesOut);
+        counters.addAndGet(base + COUNTER_BYTES_IN, bytesIn);
+
+        PsiCashLib.MetricsSink sink = this.sink;
+        if (sink != null) {
+            sink.onHTTPResult(call, code, bytesOut, bytesIn);
+        }
+    }
+
+    /**
+     * Returns a copy of the current values. Values recorded concurrently may or may not
+     * be included.
+     */
+    @NonNull
+    PsiCashLib.Metrics snapshot() {
+        long[] h = new long[histograms.length()];
+        for (int i = 0; i < h.length; i++) {
+            h[i] = histograms.get(i);
+        }
+        long[] c = new long[counters.length()];
+        for (int i = 0; i < c.length; i++) {
+            c[i] = counters.get(i);
+        }
+        return new PsiCashLib.Metrics(h, c);
+    }
+
+    //
+    // Snapshot array layout, for PsiCashLib.Metrics
+    //
+
+    static int histogramBase(PsiCashLib.Metrics.Call call, PsiCashLib.Metrics.Phase phase) {
+        return (call.ordinal() * PHASES + phase.ordinal()) * HISTOGRAM_STRIDE;
+    }
+
+    static long histogramCount(long[] h, int base) {
+        return h[base + HISTOGRAM_COUNT];
+    }
+
+    static long histogramSum(long[] h, int base) {
+        return h[base + HISTOGRAM_SUM];
+    }
+
+    static long counter(long[] c, PsiCashLib.Metrics.Call call, int index) {
+        return c[call.ordinal() * COUNTER_STRIDE + index];
+    }
+
+    static long recoverableErrors(long[] c, PsiCashLib.Metrics.Call call) {
+        return counter(c, call, COUNTER_RECOVERABLE);
+    }
+
+    static long criticalErrors(long[] c, PsiCashLib.Metrics.Call call) {
+        return counter(c, call, COUNTER_CRITICAL);
+    }
+
+    static long bytesOut(long[] c, PsiCashLib.Metrics.Call call) {
+        return counter(c, call, COUNTER_BYTES_OUT);
+    }
+
+    static long bytesIn(long[] c, PsiCashLib.Metrics.Call call) {
+        return counter(c, call, COUNTER_BYTES_IN);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An HTTPRequester that can be used as-is. Compared to a naive HttpURLConnection requester:
+ * - Connections are kept alive and reused. Response bodies are always fully read and
+ *   closed, and connections are never explicitly disconnected, so the platform
+ *   connection pool can reuse them.
+ * - TLS sessions are resumed. All HTTPS connections use one SSLSocketFactory (and so
+ *   one client session cache), letting a new connection skip the full handshake.
+ * - The number of concurrent requests (and so open connections) is bounded.
+ * - Compressed responses are requested, and decoded as they're read.
+ * - Statistics are available from getStats().
+ *
+ * Requests are made on the calling thread, as with any HTTPRequester.
+ *
+ * Note that the number of idle connections kept by the platform pool is governed by the
+ * process-wide "http.maxConnections" system property (default 5 per route).
+ */
+public class PooledHTTPRequester implements PsiCashLib.HTTPRequester {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_MAX_CONCURRENT = 4;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+    private final Semaphore permits;
+    private final SSLSocketFactory sslSocketFactory;
+    private volatile Proxy proxy;
+    private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private volatile int maxBodySize = ResponseBodyReader.DEFAULT_MAX_BODY_SIZE;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong permitWaits = new AtomicLong();
+    private final AtomicLong tlsConnections = new AtomicLong();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumptions = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesDecoded = new AtomicLong();
+
+    /**
+     * Creates a requester that allows a default number of concurrent requests and uses the
+     * system's trusted certificates.
+     */
+    public PooledHTTPRequester() {
+        this(DEFAULT_MAX_CONCURRENT, null);
+    }
+
+    /**
+     * @param maxConcurrent The maximum number of requests in flight at once. Further
+     *                      requests wait for one to finish.
+     * @param sslContext The SSLContext to use for HTTPS connections. If null, the system
+     *                   default is used.
+     */
+    public PooledHTTPRequester(int maxConcurrent, @Nullable SSLContext sslContext) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.permits = new Semaphore(maxConcurrent, true);
+
+        this.sslSocketFactory = new CountingSSLSocketFactory(sslContext != null
+                ? sslContext.getSocketFactory() : HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /**
+     * Sets the proxy that requests should be made through, or null for none. Needed when
+     * the tunnel is connected, for example.
+     */
+    public void setProxy(@Nullable Proxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sets the largest response body that will be accepted. A request with a larger
+     * response fails with RECOVERABLE_ERROR.
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public static class Stats {
+        // Requests started.
+        public final long requests;
+        // Requests that failed to get a response (RECOVERABLE_ERROR results).
+        public final long failures;
+        // Requests that had to wait because maxConcurrent requests were in flight.
+        public final long permitWaits;
+        // New TLS connections opened. requests minus this (for an HTTPS-only server) is the
+        // number of requests that reused a pooled connection.
+        public final long tlsConnections;
+        // Completed TLS handshakes, and how many of those resumed an earlier session.
+        public final long tlsHandshakes;
+        public final long tlsResumptions;
+        // Response body bytes as received, and after decoding any compression.
+        public final long bytesReceived;
+        public final long bytesDecoded;
+
+        Stats(long requests, long failures, long permitWaits,
+              long tlsConnections, long tlsHandshakes, long tlsResumptions,
+              long bytesReceived, long bytesDecoded) {
+            this.requests = requests;
+            this.failures = failures;
+            this.permitWaits = permitWaits;
+            this.tlsConnections = tlsConnections;
+            this.tlsHandshakes = tlsHandshakes;
+            this.tlsResumptions = tlsResumptions;
+            this.bytesReceived = bytesReceived;
+            this.bytesDecoded = bytesDecoded;
+        }
+    }
+
+    @NonNull
+    public Stats getStats() {
+        return new Stats(requests.get(), failures.get(), permitWaits.get(),
+                tlsConnections.get(), tlsHandshakes.get(), tlsResumptions.get(),
+                bytesReceived.get(), bytesDecoded.get());
+    }
+
+    @Override
+    public Result httpRequest(ReqParams reqParams) {
+        Result res = new Result();
+        requests.incrementAndGet();
+
+        if (!permits.tryAcquire()) {
+            permitWaits.incrementAndGet();
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.incrementAndGet();
+                res.code = Result.RECOVERABLE_ERROR;
+                res.error = "httpRequest: interrupted while waiting for a connection";
+                return res;
+            }
+        }
+
+        try {
+            URL url = new URL(reqParams.uri.toString());
+            Proxy proxy = this.proxy;
+            HttpURLConnection urlConn = (HttpURLConnection)(proxy != null ? url.openConnection(proxy) : url.openConnection());
+            if (urlConn instanceof HttpsURLConnection) {
+                ((HttpsURLConnection)urlConn).setSSLSocketFactory(this.sslSocketFactory);
+            }
+            urlConn.setConnectTimeout(this.connectTimeoutMillis);
+            urlConn.setReadTimeout(this.readTimeoutMillis);
+            urlConn.setUseCaches(false);
+            urlConn.setRequestMethod(reqParams.method);
+
+            if (reqParams.headers != null) {
+                for (Map.Entry<String, String> h : reqParams.headers.entrySet()) {
+                    urlConn.setRequestProperty(h.getKey(), h.getValue());
+                }
+            }
+            if (urlConn.getRequestProperty("Accept-Encoding") == null) {
+                urlConn.setRequestProperty("Accept-Encoding", ResponseBodyReader.ACCEPT_ENCODING);
+            }
+
+            if (reqParams.body != null && !reqParams.body.isEmpty()) {
+                byte[] body = reqParams.body.getBytes(UTF_8);
+                urlConn.setDoOutput(true);
+                urlConn.setFixedLengthStreamingMode(body.length);
+                try (OutputStream os = urlConn.getOutputStream()) {
+                    os.write(body);
+                }
+            }
+
+            res.code = urlConn.getResponseCode();
+            res.headers = urlConn.getHeaderFields();
+
+            InputStream inputStream = res.code < 400 ? urlConn.getInputStream() : urlConn.getErrorStream();
+            if (inputStream != null) {
+                // Reading to the end and closing (but not disconnecting) returns the
+                // connection to the pool.
+                CountingInputStream wireStream = new CountingInputStream(inputStream);
+                InputStream bodyStream = wireStream;
+                try {
+                    // Compressed bodies are decoded as they're read. (The Content-Length
+                    // is then the compressed size, so it isn't used for presizing.)
+                    String encoding = urlConn.getContentEncoding();
+                    boolean compressed = ResponseBodyReader.isCompressed(encoding);
+                    if (compressed) {
+                        bodyStream = ResponseBodyReader.decodingStream(wireStream, encoding);
+                    }
+                    byte[] body = ResponseBodyReader.readBytes(bodyStream,
+                            compressed ? -1 : urlConn.getContentLength(), this.maxBodySize);
+
+                    bytesReceived.addAndGet(wireStream.count);
+                    bytesDecoded.addAndGet(body.length);
+                    if (compressed) {
+                        res.wireBodyLength = wireStream.count;
+                        res.headers = withoutHeader(res.headers, "Content-Encoding");
+                    }
+                    if (body.length > 0) {
+                        res.bodyBytes = body;
+                    }
+                }
+                finally {
+                    bodyStream.close();
+                }
+            }
+        }
+        catch (IOException e) {
+            failures.incrementAndGet();
+            res = new Result();
+            res.code = Result.RECOVERABLE_ERROR;
+            res.error = "httpRequest: failed with IOException: " + e.toString();
+        }
+        finally {
+            permits.release();
+        }
+
+        return res;
+    }
+
+    private static Map<String, List<String>> withoutHeader(Map<String, List<String>> headers, String name) {
+        Map<String, List<String>> res = new HashMap<>(headers.size());
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (!name.equalsIgnoreCase(entry.getKey())) {
+                res.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return res;
+    }
+
+    // Counts the bytes read through it.
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Delegates to another SSLSocketFactory, counting the sockets it creates and whether
+     * their handshakes resume a cached session.
+     */
+    private class CountingSSLSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSSLSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket count(Socket socket) {
+            tlsConnections.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                final long created = System.currentTimeMillis();
+                ((SSLSocket)socket).addHandshakeCompletedListener((HandshakeCompletedEvent event) -> {
+                    tlsHandshakes.incrementAndGet();
+                    // A resumed session was created by an earlier connection.
+                    if (event.getSession().getCreationTime() < created) {
+                        tlsResumptions.incrementAndGet();
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return count(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return count(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
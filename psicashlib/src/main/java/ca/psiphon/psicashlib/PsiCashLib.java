@@ -20,33 +20,158 @@
 package ca.psiphon.psicashlib;
 
 import android.net.Uri;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 /**
  * The PsiCash library interface. It provides a wrapper around the C++ core.
  */
 public class PsiCashLib {
-    private final Lock writeLock = new ReentrantLock();
-    private boolean initialized = false;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    // The number of decoded authorizations decodeAuthorization keeps. An app typically
+    // only has a handful of live authorizations.
+    static final int DECODE_AUTHORIZATION_CACHE_SIZE = 64;
+    private static final AuthorizationCache decodeAuthorizationCache =
+            new AuthorizationCache(DECODE_AUTHORIZATION_CACHE_SIZE);
+
+    // Mutating calls hold the write lock. Read-only calls do optimistic reads, validated
+    // against stateVersion, and retry if a write overlapped; see beginRead. They don't wait
+    // for the write lock, which a network-backed call holds for its whole request. (The core
+    // library synchronizes its own datastore access, so an overlapping read is safe; it just
+    // might observe a partially-applied mutation.)
+    // Note that StampedLock would be a natural fit, but it requires API 24.
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    // Incremented when a write begins and again when it ends, so it's odd while a write is
+    // in progress and any change means the state may have been modified. A network-backed
+    // call also makes it even for the duration of each HTTP request, as the core doesn't
+    // change the state while it waits for the response; see beginRequestPhase.
+    private final AtomicLong stateVersion = new AtomicLong();
+    // Readers waiting for stateVersion to become even wait on versionMonitor. Writers only
+    // notify it if versionWaiters is non-zero.
+    private final Object versionMonitor = new Object();
+    private final AtomicInteger versionWaiters = new AtomicInteger();
+    // After this many overlapped optimistic reads, a reader takes the read lock if it's
+    // free, so that a stream of (local) writes can't starve it.
+    private static final int MAX_OPTIMISTIC_READS = 4;
+    // The version beginRead returns when the read lock was taken instead.
+    private static final long READ_LOCKED = -1;
+    // Held by the network-backed calls (refreshState, etc.), around the write lock, for the
+    // whole native call. Besides serializing them, it marks the thread as being in one, for
+    // makeHTTPRequest and the metrics. The write lock is held across the HTTP request too:
+    // the core makes the request and applies the response in a single call, and releasing
+    // the lock in between would let local mutators change the datastore under it. Readers
+    // don't wait for the request, though (see beginRequestPhase), and neither do the local
+    // mutators: their writes are deferred until the network call completes (see
+    // beginLocalWrite).
+    private final ReentrantLock networkLock = new ReentrantLock();
+    // Guards deferringWrites and deferredWrites.
+    private final Object deferredWritesLock = new Object();
+    // Set by a network-backed call from before it takes the write lock until it has applied
+    // deferredWrites, just before releasing it. While set, local mutators add their writes
+    // to deferredWrites instead of waiting for the lock.
+    private boolean deferringWrites = false;
+    private final List<DeferredWrite> deferredWrites = new ArrayList<>();
+    // How long beginLocalWrite waits for the write lock at a time before checking again
+    // whether to defer instead.
+    private static final long LOCAL_WRITE_WAIT_MILLIS = 10;
+    private volatile boolean initialized = false;
+    // Whether the native library has been loaded. See loadLibrary.
+    private static volatile boolean libraryLoaded = false;
+    // Guards starting an initAsync. Only held briefly, and never while waiting (for a
+    // previous initAsync, say), so that the init thread can't be blocked on it.
+    private final Object initLock = new Object();
+    // While an initAsync is in progress: the latch that is released when it completes,
+    // and the thread running it. See awaitInit.
+    @Nullable
+    private volatile CountDownLatch initPending;
+    @Nullable
+    private volatile Thread initThread;
+    // While an initAsync is in progress, the values from the startup cache (if any), which
+    // balance(), hasTokens() and isAccount() return in the meantime.
+    @Nullable
+    private volatile StartupCache.Values startupValues;
+    // Set by init (or initAsync, which reads it first). Kept across inits of the same
+    // datastore, so that it knows the values stored and doesn't rewrite them.
+    @Nullable
+    private volatile StartupCache startupCache;
+    // How long initAsync waits for pending startup cache saves before reading it.
+    private static final long STARTUP_CACHE_AWAIT_MILLIS = 500;
+    // The stored purchases, indexed by transaction and authorization ID. Replaced (not
+    // modified) when it's out of date; see currentPurchaseIndex.
+    @Nullable
+    private volatile PurchaseIndex purchaseIndex;
+    // Expires purchases on time while an ExpiryListener is set. See setExpiryListener.
+    private final ExpiryScheduler expiryScheduler = new ExpiryScheduler(() -> {
+        ExpirePurchasesResult res = expirePurchases();
+        return res.error == null ? res.purchases : null;
+    });
+    // Reports state changes while a StateChangeListener is set. See setStateChangeListener.
+    private final StateChangeNotifier stateChangeNotifier = new StateChangeNotifier(this::observeState);
+    // Merges concurrent refreshState calls into a single request.
+    private final RefreshStateCoalescer refreshStateCoalescer = new RefreshStateCoalescer();
+    // Makes refresh-state requests conditional on the last response's ETag.
+    private final RefreshStateValidator refreshStateValidator = new RefreshStateValidator();
+    // The refreshState call in progress, if any. Guarded by networkLock.
+    @Nullable
+    private RefreshStateValidator.Call refreshStateCall;
+    // Runs the *Async calls. Created on first use if not set by setAsyncExecutor.
+    private Executor asyncExecutor;
+    // Whether to ask for compressed responses. See setAcceptCompressedResponses.
+    private volatile boolean acceptCompressedResponses = false;
+    // Response body counters. See getResponseBodyStats.
+    private final AtomicLong bodyResponses = new AtomicLong();
+    private final AtomicLong bodyCompressedResponses = new AtomicLong();
+    private final AtomicLong bodyWireBytes = new AtomicLong();
+    private final AtomicLong bodyDecodedBytes = new AtomicLong();
+    // Latency and HTTP metrics for the network-backed calls. See getMetrics.
+    private final MetricsRecorder metrics = new MetricsRecorder();
+    // The network-backed call in progress (null if it isn't recorded), and the time spent
+    // so far in its HTTP requests and parsing its result. Guarded by networkLock.
+    @Nullable
+    private Metrics.Call metricsCall;
+    private long metricsNetworkNanos;
+    private long metricsParseNanos;
+
+    /**
+     * Receives the result of an async call (refreshStateAsync, etc.).
+     */
+    public interface Callback<T> {
+        /**
+         * Called when the call completes, on a background thread. Not called if the call
+         * is cancelled.
+         */
+        void onResult(@NonNull T result);
+    }
 
     /**
      * The library user must implement this interface. It provides HTTP request
@@ -66,6 +191,9 @@ public class PsiCashLib {
         class ReqParams {
             public String method;
             public Uri uri;
+            // Includes Accept-Encoding if enabled by setAcceptCompressedResponses. The
+            // requester may then decode the response itself (see Result.wireBodyLength) or
+            // leave it to the library.
             public Map<String, String> headers;
             public String body;
         }
@@ -82,39 +210,44 @@ public class PsiCashLib {
             // On critical error (e.g., programming fault or out-of-memory): CRITICAL_ERROR
             public int code = CRITICAL_ERROR;
             public String body;
+            // Alternative to body: the raw (UTF-8) response body. If set, body is ignored.
+            // Saves a decode and re-encode for requesters that read bytes.
+            public byte[] bodyBytes;
+            // If the requester decoded a compressed response body itself: the size of the
+            // body as received. Otherwise -1, and the library decodes the body according
+            // to its Content-Encoding header.
+            public long wireBodyLength = -1;
             public Map<String, List<String>> headers;
             public String error;
+        }
+    }
 
-            String toJSON() {
-                JSONObject json = new JSONObject();
-                try {
-                    json.put("code", this.code);
-                    json.put("body", this.body);
-                    json.put("error", this.error);
-
-                    if (this.headers != null) {
-                        JSONObject headers = new JSONObject();
-                        for (Map.Entry<String, List<String>> entry : this.headers.entrySet()) {
-                            if (entry.getKey() == null) {
-                                // The Java headers object puts the first HTTP line under a null key
-                                continue;
-                            }
-                            headers.put(entry.getKey(), new JSONArray(entry.getValue()));
-                        }
-                        json.put("headers", headers);
-                    }
-                    else {
-                        json.put("headers", null);
-                    }
+    /**
+     * An alternative to HTTPRequester for requesters that are asynchronous, such as
+     * event-driven HTTP clients. Use wrapAsyncHTTPRequester to pass it to init.
+     * Note that the library call that makes a request still blocks until it's completed:
+     * this changes the requester's interface, not the library's threading.
+     */
+    public interface AsyncHTTPRequester {
+        /**
+         * Starts the request and returns. The requester must call completion.complete
+         * exactly once, from any thread, with the same Result an HTTPRequester would
+         * return. The library thread that made the request waits for the completion.
+         */
+        void httpRequest(HTTPRequester.ReqParams reqParams, Completion completion);
 
-                    return json.toString();
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+        /**
+         * Completion handle for a single request.
+         */
+        interface Completion {
+            void complete(HTTPRequester.Result result);
 
-                // Should never happen, and no sane recovery.
-                return null;
-            }
+            /**
+             * True if the library call that made this request was cancelled or timed out
+             * (see refreshStateAsync, etc.). The requester may then abort the request, but
+             * must still complete it (with an error).
+             */
+            boolean isCancelled();
         }
     }
 
@@ -182,23 +315,33 @@ public class PsiCashLib {
         }
 
         @Nullable // if null, there's no error in json
-        static Error fromJSON(JSONObject json) {
+        static Error fromJSON(JsonReader reader) throws IOException {
             // We don't know for sure that the JSON contains an Error at this point.
 
-            JSONObject errorObj = JSON.nullableObject(json, kErrorKey);
-            if (errorObj == null) {
-                // The object will be absent if this isn't actually an error
+            if (!JSON.beginNullableObject(reader)) {
+                // The object will be null if this isn't actually an error
                 return null;
             }
 
             Error error = new Error();
-            error.message = JSON.nullableString(errorObj, kErrorMessageKey);
+            Boolean critical = null;
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (kErrorMessageKey.equals(name)) {
+                    error.message = JSON.nextNullableString(reader);
+                } else if (kErrorCriticalKey.equals(name)) {
+                    critical = JSON.nextNullableBoolean(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
             if (error.message == null) {
                 // Message is required for this to be considered an error
                 return null;
             }
 
-            Boolean critical = JSON.nullableBoolean(errorObj, kErrorCriticalKey);
             error.critical = critical != null && critical;
 
             return error;
@@ -240,14 +383,32 @@ public class PsiCashLib {
         public String distinguisher;
         public long price;
 
-        static PurchasePrice fromJSON(JSONObject json) throws JSONException {
-            if (json == null) {
-                return null;
-            }
+        // The reader must be positioned at a non-null object, which will be fully consumed
+        // even if JSONException is thrown.
+        static PurchasePrice fromJSON(JsonReader reader) throws IOException, JSONException {
             PurchasePrice pp = new PurchasePrice();
-            pp.transactionClass = JSON.nonnullString(json, "class");
-            pp.distinguisher = JSON.nonnullString(json, "distinguisher");
-            pp.price = JSON.nonnullLong(json, "price");
+            Long price = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "class":
+                        pp.transactionClass = JSON.nextNullableString(reader);
+                        break;
+                    case "distinguisher":
+                        pp.distinguisher = JSON.nextNullableString(reader);
+                        break;
+                    case "price":
+                        price = JSON.nextNullableLong(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            JSON.requireNonnull(pp.transactionClass, "class");
+            JSON.requireNonnull(pp.distinguisher, "distinguisher");
+            pp.price = JSON.requireNonnull(price, "price");
             return pp;
         }
     }
@@ -262,20 +423,64 @@ public class PsiCashLib {
         public Date expiry;
         public Authorization authorization;
 
-        static Purchase fromJSON(JSONObject json) throws JSONException {
-            if (json == null) {
-                return null;
-            }
+        // A deep copy, for handing out a purchase that the library also keeps.
+        @NonNull
+        Purchase copy() {
+            Purchase res = new Purchase();
+            res.id = this.id;
+            res.transactionClass = this.transactionClass;
+            res.distinguisher = this.distinguisher;
+            res.expiry = this.expiry == null ? null : new Date(this.expiry.getTime());
+            res.authorization = this.authorization == null ? null : this.authorization.copy();
+            return res;
+        }
+
+        // The reader must be positioned at a non-null object, which will be fully consumed
+        // even if JSONException is thrown.
+        static Purchase fromJSON(JsonReader reader) throws IOException, JSONException {
             Purchase p = new Purchase();
-            p.id = JSON.nonnullString(json, "id");
-            p.transactionClass = JSON.nonnullString(json, "class");
-            p.distinguisher = JSON.nonnullString(json, "distinguisher");
-            p.expiry = JSON.nullableDate(json, "localTimeExpiry");
+            String expiry = null;
+            JSONException authException = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        p.id = JSON.nextNullableString(reader);
+                        break;
+                    case "class":
+                        p.transactionClass = JSON.nextNullableString(reader);
+                        break;
+                    case "distinguisher":
+                        p.distinguisher = JSON.nextNullableString(reader);
+                        break;
+                    case "localTimeExpiry":
+                        expiry = JSON.nextNullableString(reader);
+                        break;
+                    case "authorization":
+                        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                            reader.skipValue();
+                            break;
+                        }
+                        try {
+                            p.authorization = Authorization.fromJSON(reader);
+                        } catch (JSONException e) {
+                            // Deferred until the rest of the object is consumed
+                            authException = e;
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
 
-            JSONObject authJSON = JSON.nullableObject(json, "authorization");
-            if (authJSON != null) {
-                p.authorization = Authorization.fromJSON(authJSON);
+            if (authException != null) {
+                throw authException;
             }
+            JSON.requireNonnull(p.id, "id");
+            JSON.requireNonnull(p.transactionClass, "class");
+            JSON.requireNonnull(p.distinguisher, "distinguisher");
+            p.expiry = JSON.nullableDate(expiry, "localTimeExpiry");
             return p;
         }
     }
@@ -289,15 +494,47 @@ public class PsiCashLib {
         public Date expires;
         public String encoded;
 
-        static Authorization fromJSON(JSONObject json) throws JSONException {
-            if (json == null) {
-                return null;
-            }
+        // A deep copy, for handing out an authorization that the library also keeps.
+        @NonNull
+        Authorization copy() {
+            Authorization res = new Authorization();
+            res.id = this.id;
+            res.accessType = this.accessType;
+            res.expires = this.expires == null ? null : new Date(this.expires.getTime());
+            res.encoded = this.encoded;
+            return res;
+        }
+
+        // The reader must be positioned at a non-null object, which will be fully consumed
+        // even if JSONException is thrown.
+        static Authorization fromJSON(JsonReader reader) throws IOException, JSONException {
             Authorization auth = new Authorization();
-            auth.id = JSON.nonnullString(json, "ID");
-            auth.accessType = JSON.nonnullString(json, "AccessType");
-            auth.expires = JSON.nonnullDate(json, "Expires");
-            auth.encoded = JSON.nonnullString(json, "Encoded");
+            String expires = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "ID":
+                        auth.id = JSON.nextNullableString(reader);
+                        break;
+                    case "AccessType":
+                        auth.accessType = JSON.nextNullableString(reader);
+                        break;
+                    case "Expires":
+                        expires = JSON.nextNullableString(reader);
+                        break;
+                    case "Encoded":
+                        auth.encoded = JSON.nextNullableString(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            JSON.requireNonnull(auth.id, "ID");
+            JSON.requireNonnull(auth.accessType, "AccessType");
+            auth.expires = JSON.nonnullDate(expires, "Expires");
+            JSON.requireNonnull(auth.encoded, "Encoded");
             return auth;
         }
     }
@@ -319,19 +556,125 @@ public class PsiCashLib {
     @Nullable
     public Error init(String fileStoreRoot, HTTPRequester httpRequester, boolean forceReset) {
         Error res;
-        writeLock.lock();
+        lockWrite();
         try {
             res = init(fileStoreRoot, httpRequester, forceReset, false);
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
         if (res == null) {
             this.initialized = true;
+            // Now that the lock is released; see afterInit.
+            afterInit();
         }
         return res;
     }
 
+    /**
+     * Initializes the library in the background, and returns immediately. Loading the
+     * native library and reading the datastore (done by the core in init) are the bulk of
+     * startup time, so this lets the app show its UI without waiting for them.
+     *
+     * Until init completes, balance(), hasTokens() and isAccount() return the values
+     * last stored by a previous run, with `cached` set. (If there are none, such
+     * as on first run or with forceReset, they wait like other calls.) All other methods
+     * wait for init to complete.
+     *
+     * If an initAsync is already in progress, this first waits for it to complete.
+     * @param fileStoreRoot The directory where the library will store its data. Must exist.
+     * @param httpRequester Helper used to make HTTP requests.
+     * @param forceReset If true, the PsiCash datastore will be reset.
+     * @param callback If non-null, receives the result, on the init thread.
+     * @return A Future for the result. It can't be cancelled.
+     */
+    @NonNull
+    public Future<InitResult> initAsync(String fileStoreRoot, HTTPRequester httpRequester,
+                                        boolean forceReset, @Nullable Callback<InitResult> callback) {
+        CountDownLatch pending = new CountDownLatch(1);
+        FutureTask<InitResult> task = new FutureTask<InitResult>(() -> {
+            try {
+                return new InitResult(init(fileStoreRoot, httpRequester, forceReset));
+            }
+            catch (Throwable t) {
+                // Such as the native library failing to load. Reported like other
+                // async failures (see AsyncCall).
+                return new InitResult(new Error("init threw: " + t, true));
+            }
+            finally {
+                this.startupValues = null;
+                this.initPending = null;
+                pending.countDown();
+            }
+        }) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // Other calls are waiting on init, so it must run to completion.
+                return false;
+            }
+
+            @Override
+            protected void done() {
+                if (callback == null) {
+                    return;
+                }
+                InitResult result;
+                try {
+                    result = get();
+                } catch (ExecutionException | InterruptedException e) {
+                    // The task catches everything, so this is unexpected.
+                    result = new InitResult(new Error("initAsync failed: " + e.getMessage(), true));
+                }
+                callback.onResult(result);
+            }
+        };
+
+        Thread thread = AsyncCall.daemonThreadFactory("PsiCashLib-init").newThread(task);
+        while (true) {
+            awaitInit();
+            // Read once the previous init (if any) is done with it. init uses the same
+            // StartupCache, so it knows these values are already stored.
+            StartupCache cache = fileStoreRoot == null ? null : new StartupCache(fileStoreRoot);
+            if (cache != null && !forceReset) {
+                // A save from another instance (for the same datastore, say) may be pending.
+                StartupCache.awaitSaves(STARTUP_CACHE_AWAIT_MILLIS);
+            }
+            StartupCache.Values values = cache == null || forceReset ? null : cache.read();
+            synchronized (this.initLock) {
+                if (this.initPending != null) {
+                    // Another initAsync started meanwhile; wait for that one instead.
+                    continue;
+                }
+                this.startupCache = cache;
+                this.initThread = thread;
+                this.initPending = pending;
+                this.startupValues = values;
+            }
+            break;
+        }
+        thread.start();
+        return task;
+    }
+
+    public static class InitResult {
+        // Null if init succeeded.
+        @Nullable
+        public Error error;
+
+        InitResult(@Nullable Error error) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * Wraps an AsyncHTTPRequester so that it can be passed to init. The returned requester
+     * blocks the calling thread until the request is completed.
+     */
+    @NonNull
+    public static HTTPRequester wrapAsyncHTTPRequester(@NonNull AsyncHTTPRequester requester) {
+        return new AsyncHTTPRequesterAdapter(requester);
+    }
+
     /**
      * Indicates if the library has been successfully initialized.
      * @return true if initialized, false otherwise.
@@ -350,71 +693,136 @@ public class PsiCashLib {
      */
     @Nullable
     protected Error init(String fileStoreRoot, HTTPRequester httpRequester, boolean forceReset, boolean test) {
+        loadLibrary();
         this.httpRequester = httpRequester;
-        writeLock.lock();
+        StartupCache cache = this.startupCache;
+        if (fileStoreRoot == null) {
+            cache = null;
+        }
+        else if (cache == null || !cache.isFor(fileStoreRoot)) {
+            cache = new StartupCache(fileStoreRoot);
+            if (!forceReset) {
+                // So that values that are already stored aren't rewritten.
+                cache.read();
+            }
+        }
+        if (cache != null && forceReset) {
+            cache.clear();
+        }
+        this.startupCache = cache;
+        lockWrite();
         String jsonStr;
         try {
             jsonStr = this.NativeObjectInit(fileStoreRoot, forceReset, test);
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
+        this.refreshStateCoalescer.invalidate();
+        this.refreshStateValidator.invalidate();
         JNI.Result.ErrorOnly res = new JNI.Result.ErrorOnly(jsonStr);
+        if (res.error == null && !stateLock.isWriteLockedByCurrentThread()) {
+            // Otherwise the caller (the public init) holds the write lock, and runs this
+            // once it has released it.
+            afterInit();
+        }
         return res.error;
     }
 
+    // Brings the startup cache, expiry scheduler and state change listener up to date
+    // after a successful init. Must not be called with the write lock held, as the
+    // listener is app code (which may, say, wait on a thread that calls a getter).
+    private void afterInit() {
+        saveStartupCache();
+        reloadExpiryScheduler();
+        this.stateChangeNotifier.changed();
+    }
+
     /**
      * Resets the current user data. See psicash.hpp for full description.
+     * If a network-backed call (refreshState, etc.) is in progress, this doesn't wait for
+     * it: the reset is applied when the call completes, and this returns null.
      * @return error
      */
     @Nullable
     public Error resetUser() {
+        if (!beginLocalWrite(lib -> {
+            lib.NativeResetUser();
+            lib.refreshStateCoalescer.invalidate();
+            lib.refreshStateValidator.invalidate();
+        })) {
+            return null;
+        }
         String jsonStr;
-        writeLock.lock();
         try {
             jsonStr = this.NativeResetUser();
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
+        this.refreshStateCoalescer.invalidate();
+        this.refreshStateValidator.invalidate();
         JNI.Result.ErrorOnly res = new JNI.Result.ErrorOnly(jsonStr);
+        if (res.error == null) {
+            saveStartupCache();
+            reloadExpiryScheduler();
+            this.stateChangeNotifier.changed();
+        }
         return res.error;
     }
 
     /**
      * Set values that will be included in the request metadata. This includes
      * client_version, client_region, sponsor_id, and propagation_channel_id.
+     * If a network-backed call is in progress, this doesn't wait for it: the items are set
+     * when the call completes (so aren't in its request), and this returns null.
      * @return null if no error; Error otherwise.
      */
     @Nullable
     public Error setRequestMetadataItems(Map<String, String> items) {
+        if (!beginLocalWrite(lib -> lib.NativeSetRequestMetadataItems(items))) {
+            return null;
+        }
         String jsonStr;
-        writeLock.lock();
+        long writeVersion;
         try {
+            writeVersion = this.stateVersion.get();
             jsonStr = this.NativeSetRequestMetadataItems(items);
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
         JNI.Result.ErrorOnly res = new JNI.Result.ErrorOnly(jsonStr);
+        if (res.error == null) {
+            updatePurchaseIndex(writeVersion, null, Collections.emptyList());
+        }
         return res.error;
     }
 
     /**
      * Set locale string that will be included with user site URLs
+     * If a network-backed call is in progress, this doesn't wait for it: the locale is set
+     * when the call completes, and this returns null.
      * @return null if no error; Error otherwise.
      */
     @Nullable
     public Error setLocale(@NonNull String locale) {
+        if (!beginLocalWrite(lib -> lib.NativeSetLocale(locale))) {
+            return null;
+        }
         String jsonStr;
-        writeLock.lock();
+        long writeVersion;
         try {
+            writeVersion = this.stateVersion.get();
             jsonStr = this.NativeSetLocale(locale);
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
         JNI.Result.ErrorOnly res = new JNI.Result.ErrorOnly(jsonStr);
+        if (res.error == null) {
+            updatePurchaseIndex(writeVersion, null, Collections.emptyList());
+        }
         return res.error;
     }
 
@@ -431,22 +839,51 @@ public class PsiCashLib {
      */
     @NonNull
     public HasTokensResult hasTokens() {
-        String jsonStr = this.NativeHasTokens();
-        JNI.Result.HasTokens res = new JNI.Result.HasTokens(jsonStr);
-        return new HasTokensResult(res);
+        StartupCache.Values cached = this.startupValues;
+        if (cached != null && Thread.currentThread() != this.initThread) {
+            return new HasTokensResult(cached.hasTokens, true);
+        }
+        awaitInit();
+        try {
+            // Written out rather than using readState, to avoid boxing.
+            for (int attempt = 0; ; attempt++) {
+                long version = beginRead(attempt);
+                boolean v;
+                boolean valid;
+                try {
+                    v = this.NativeHasTokens();
+                }
+                finally {
+                    valid = endRead(version);
+                }
+                if (valid) {
+                    return new HasTokensResult(v);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            return new HasTokensResult(new Error("NativeHasTokens failed: " + e.getMessage(), true));
+        }
     }
 
     public static class HasTokensResult {
         // Expected to be null; indicates glue problem.
         public Error error;
         public boolean hasTokens;
+        // True if the value is from the startup cache, because initAsync hasn't completed.
+        public boolean cached;
 
-        HasTokensResult(JNI.Result.HasTokens res) {
-            this.error = res.error;
-            if (this.error != null) {
-                return;
-            }
-            this.hasTokens = res.hasTokens;
+        HasTokensResult(boolean hasTokens) {
+            this.hasTokens = hasTokens;
+        }
+
+        HasTokensResult(boolean hasTokens, boolean cached) {
+            this.hasTokens = hasTokens;
+            this.cached = cached;
+        }
+
+        HasTokensResult(Error error) {
+            this.error = error;
         }
     }
 
@@ -455,22 +892,51 @@ public class PsiCashLib {
      */
     @NonNull
     public IsAccountResult isAccount() {
-        String jsonStr = this.NativeIsAccount();
-        JNI.Result.IsAccount res = new JNI.Result.IsAccount(jsonStr);
-        return new IsAccountResult(res);
+        StartupCache.Values cached = this.startupValues;
+        if (cached != null && Thread.currentThread() != this.initThread) {
+            return new IsAccountResult(cached.isAccount, true);
+        }
+        awaitInit();
+        try {
+            // Written out rather than using readState, to avoid boxing.
+            for (int attempt = 0; ; attempt++) {
+                long version = beginRead(attempt);
+                boolean v;
+                boolean valid;
+                try {
+                    v = this.NativeIsAccount();
+                }
+                finally {
+                    valid = endRead(version);
+                }
+                if (valid) {
+                    return new IsAccountResult(v);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            return new IsAccountResult(new Error("NativeIsAccount failed: " + e.getMessage(), true));
+        }
     }
 
     public static class IsAccountResult {
         // Expected to be null; indicates glue problem.
         public Error error;
         public boolean isAccount;
+        // True if the value is from the startup cache, because initAsync hasn't completed.
+        public boolean cached;
 
-        IsAccountResult(JNI.Result.IsAccount res) {
-            this.error = res.error;
-            if (this.error != null) {
-                return;
-            }
-            this.isAccount = res.isAccount;
+        IsAccountResult(boolean isAccount) {
+            this.isAccount = isAccount;
+        }
+
+        IsAccountResult(boolean isAccount, boolean cached) {
+            this.isAccount = isAccount;
+            this.cached = cached;
+        }
+
+        IsAccountResult(Error error) {
+            this.error = error;
         }
     }
 
@@ -479,22 +945,51 @@ public class PsiCashLib {
      */
     @NonNull
     public BalanceResult balance() {
-        String jsonStr = this.NativeBalance();
-        JNI.Result.Balance res = new JNI.Result.Balance(jsonStr);
-        return new BalanceResult(res);
+        StartupCache.Values cached = this.startupValues;
+        if (cached != null && Thread.currentThread() != this.initThread) {
+            return new BalanceResult(cached.balance, true);
+        }
+        awaitInit();
+        try {
+            // Written out rather than using readState, to avoid boxing.
+            for (int attempt = 0; ; attempt++) {
+                long version = beginRead(attempt);
+                long v;
+                boolean valid;
+                try {
+                    v = this.NativeBalance();
+                }
+                finally {
+                    valid = endRead(version);
+                }
+                if (valid) {
+                    return new BalanceResult(v);
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            return new BalanceResult(new Error("NativeBalance failed: " + e.getMessage(), true));
+        }
     }
 
     public static class BalanceResult {
         // Expected to be null; indicates glue problem.
         public Error error;
         public long balance;
+        // True if the value is from the startup cache, because initAsync hasn't completed.
+        public boolean cached;
 
-        BalanceResult(JNI.Result.Balance res) {
-            this.error = res.error;
-            if (this.error != null) {
-                return;
-            }
-            this.balance = res.balance;
+        BalanceResult(long balance) {
+            this.balance = balance;
+        }
+
+        BalanceResult(long balance, boolean cached) {
+            this.balance = balance;
+            this.cached = cached;
+        }
+
+        BalanceResult(Error error) {
+            this.error = error;
         }
     }
 
@@ -504,7 +999,7 @@ public class PsiCashLib {
      */
     @NonNull
     public GetPurchasePricesResult getPurchasePrices() {
-        String jsonStr = this.NativeGetPurchasePrices();
+        String jsonStr = readState(PsiCashLib::NativeGetPurchasePrices);
         JNI.Result.GetPurchasePrices res = new JNI.Result.GetPurchasePrices(jsonStr);
         return new GetPurchasePricesResult(res);
     }
@@ -530,7 +1025,7 @@ public class PsiCashLib {
      */
     @NonNull
     public GetPurchasesResult getPurchases() {
-        String jsonStr = this.NativeGetPurchases();
+        String jsonStr = readState(PsiCashLib::NativeGetPurchases);
         JNI.Result.GetPurchases res = new JNI.Result.GetPurchases(jsonStr);
         return new GetPurchasesResult(res);
     }
@@ -556,7 +1051,7 @@ public class PsiCashLib {
      */
     @NonNull
     public ActivePurchasesResult activePurchases() {
-        String jsonStr = this.NativeActivePurchases();
+        String jsonStr = readState(PsiCashLib::NativeActivePurchases);
         JNI.Result.ActivePurchases res = new JNI.Result.ActivePurchases(jsonStr);
         return new ActivePurchasesResult(res);
     }
@@ -583,7 +1078,7 @@ public class PsiCashLib {
      */
     @NonNull
     public GetAuthorizationsResult getAuthorizations(boolean activeOnly) {
-        String jsonStr = this.NativeGetAuthorizations(activeOnly);
+        String jsonStr = readState(lib -> lib.NativeGetAuthorizations(activeOnly));
         JNI.Result.GetAuthorizations res = new JNI.Result.GetAuthorizations(jsonStr);
         return new GetAuthorizationsResult(res);
     }
@@ -607,15 +1102,20 @@ public class PsiCashLib {
      * Returns all purchases that match the given set of Authorization IDs.
      * @param authorizationIDs List of authorization IDs for which purchases should be
      *                         retrieved.
-     * @return List of purchases containing the given authorizations.
+     * @return List of purchases containing the given authorizations, in the order of
+     *         authorizationIDs. (Not in stored order, as the core returns them; that's
+     *         only still the case if the index couldn't be built, which is unexpected.)
      */
     @Nullable
     public GetPurchasesByAuthorizationIDResult getPurchasesByAuthorizationID(List<String> authorizationIDs) {
-        String[] idsArray = null;
-        if (authorizationIDs != null) {
-            idsArray = authorizationIDs.toArray(new String[0]);
+        PurchaseIndex index = currentPurchaseIndex();
+        if (index != null) {
+            return new GetPurchasesByAuthorizationIDResult(index.byAuthorizationIDs(authorizationIDs));
         }
-        String jsonStr = this.NativeGetPurchasesByAuthorizationID(idsArray);
+
+        // The index couldn't be built; let the core report the problem.
+        final String[] idsArray = authorizationIDs == null ? null : authorizationIDs.toArray(new String[0]);
+        String jsonStr = readState(lib -> lib.NativeGetPurchasesByAuthorizationID(idsArray));
         JNI.Result.GetPurchasesByAuthorizationID res = new JNI.Result.GetPurchasesByAuthorizationID(jsonStr);
         return new GetPurchasesByAuthorizationIDResult(res);
 
@@ -634,19 +1134,60 @@ public class PsiCashLib {
             }
             this.purchases = res.purchases;
         }
+
+        GetPurchasesByAuthorizationIDResult(List<Purchase> purchases) {
+            this.purchases = purchases;
+        }
     }
 
     /**
      * Decodes and deserializes the given encoded Authorization, returning the result.
+     * Recently decoded authorizations are cached, so decoding the same one again is just
+     * a lookup. See getDecodeAuthorizationCacheStats.
      * @return The decoded authorization.
      */
     @NonNull
     public static DecodeAuthorizationResult decodeAuthorization(String encodedAuthorization) {
+        if (encodedAuthorization != null) {
+            Authorization cached = decodeAuthorizationCache.get(encodedAuthorization);
+            if (cached != null) {
+                return new DecodeAuthorizationResult(cached);
+            }
+        }
+
+        loadLibrary();
         String jsonStr = NativeDecodeAuthorization(encodedAuthorization);
         JNI.Result.DecodeAuthorization res = new JNI.Result.DecodeAuthorization(jsonStr);
+        if (res.error == null && res.authorization != null && encodedAuthorization != null) {
+            decodeAuthorizationCache.put(encodedAuthorization, res.authorization);
+        }
         return new DecodeAuthorizationResult(res);
     }
 
+    /**
+     * Returns the decodeAuthorization cache counters, since the process started.
+     */
+    @NonNull
+    public static DecodeAuthorizationCacheStats getDecodeAuthorizationCacheStats() {
+        return decodeAuthorizationCache.stats();
+    }
+
+    public static class DecodeAuthorizationCacheStats {
+        // Decodes answered from the cache, and decodes that weren't.
+        public final long hits;
+        public final long misses;
+        // Authorizations currently cached, and the most that will be.
+        public final int size;
+        public final int capacity;
+
+        DecodeAuthorizationCacheStats(long hits, long misses, int size, int capacity) {
+            this.hits = hits;
+            this.misses = misses;
+            this.size = size;
+            this.capacity = capacity;
+        }
+    }
+
     public static class DecodeAuthorizationResult {
         // Expected to be null; indicates glue problem.
         public Error error;
@@ -660,6 +1201,101 @@ public class PsiCashLib {
             }
             this.authorization = res.authorization;
         }
+
+        DecodeAuthorizationResult(Authorization authorization) {
+            this.authorization = authorization;
+        }
+
+        DecodeAuthorizationResult(Error error) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * Decodes and deserializes each of the given encoded Authorizations, as
+     * decodeAuthorization does, but with a single native call for all of them. Those that
+     * are cached aren't decoded again, and large batches are decoded on multiple threads.
+     * @return One result per encoded authorization, in the same order, each with its own
+     * error.
+     */
+    @NonNull
+    public static DecodeAuthorizationsResult decodeAuthorizations(List<String> encodedAuthorizations) {
+        int count = encodedAuthorizations == null ? 0 : encodedAuthorizations.size();
+        List<DecodeAuthorizationResult> results = new ArrayList<>(Collections.nCopies(count, null));
+
+        // The ones that aren't cached, each once, and the index into them of each input
+        // (or -1 if it was cached).
+        List<String> misses = new ArrayList<>();
+        Map<String, Integer> missIndexes = new HashMap<>();
+        int[] missIndexFor = new int[count];
+        for (int i = 0; i < count; i++) {
+            String encoded = encodedAuthorizations.get(i);
+            Integer missIndex = missIndexes.get(encoded);
+            if (missIndex == null) {
+                Authorization cached = encoded == null ? null : decodeAuthorizationCache.get(encoded);
+                if (cached != null) {
+                    results.set(i, new DecodeAuthorizationResult(cached));
+                    missIndexFor[i] = -1;
+                    continue;
+                }
+                missIndex = misses.size();
+                misses.add(encoded);
+                missIndexes.put(encoded, missIndex);
+            }
+            missIndexFor[i] = missIndex;
+        }
+
+        if (misses.isEmpty()) {
+            return new DecodeAuthorizationsResult(results);
+        }
+
+        loadLibrary();
+        String jsonStr = NativeDecodeAuthorizations(misses.toArray(new String[0]));
+        JNI.Result.DecodeAuthorizations res = new JNI.Result.DecodeAuthorizations(jsonStr);
+        if (res.error == null && res.results.size() != misses.size()) {
+            res.error = new Error("decodeAuthorizations: got " + res.results.size() + " results for " + misses.size(), true);
+        }
+        if (res.error != null) {
+            return new DecodeAuthorizationsResult(res.error);
+        }
+
+        for (int m = 0; m < misses.size(); m++) {
+            DecodeAuthorizationResult decoded = res.results.get(m);
+            if (decoded.error == null && misses.get(m) != null) {
+                decodeAuthorizationCache.put(misses.get(m), decoded.authorization);
+            }
+        }
+        boolean[] handedOut = new boolean[misses.size()];
+        for (int i = 0; i < count; i++) {
+            int m = missIndexFor[i];
+            if (m < 0) {
+                continue;
+            }
+            DecodeAuthorizationResult decoded = res.results.get(m);
+            if (handedOut[m] && decoded.authorization != null) {
+                // A repeated input; each result gets its own authorization.
+                decoded = new DecodeAuthorizationResult(decoded.authorization.copy());
+            }
+            handedOut[m] = true;
+            results.set(i, decoded);
+        }
+        return new DecodeAuthorizationsResult(results);
+    }
+
+    public static class DecodeAuthorizationsResult {
+        // Expected to be null; indicates glue problem. Errors decoding particular
+        // authorizations are in their results.
+        public Error error;
+        // Null iff error. One per encoded authorization, in the same order.
+        public List<DecodeAuthorizationResult> results;
+
+        DecodeAuthorizationsResult(Error error) {
+            this.error = error;
+        }
+
+        DecodeAuthorizationsResult(List<DecodeAuthorizationResult> results) {
+            this.results = results;
+        }
     }
 
     /**
@@ -669,7 +1305,7 @@ public class PsiCashLib {
      */
     @NonNull
     public NextExpiringPurchaseResult nextExpiringPurchase() {
-        String jsonStr = this.NativeNextExpiringPurchase();
+        String jsonStr = readState(PsiCashLib::NativeNextExpiringPurchase);
         JNI.Result.NextExpiringPurchase res = new JNI.Result.NextExpiringPurchase(jsonStr);
         return new NextExpiringPurchaseResult(res);
     }
@@ -691,19 +1327,47 @@ public class PsiCashLib {
 
     /**
      * Clear out expired purchases. Return the ones that were expired, if any.
+     * If a network-backed call is in progress, this doesn't wait for it: it returns the
+     * purchases that have expired as of now, which are removed when the call completes.
      * @return List will be empty if there are no expired purchases.
      */
     @NonNull
     public ExpirePurchasesResult expirePurchases() {
+        long now = System.currentTimeMillis();
+        if (!beginLocalWrite(lib -> {
+            lib.NativeExpirePurchases();
+            lib.refreshStateValidator.invalidate();
+        })) {
+            // Report what has expired as of now. (Anything that expires before the write
+            // is applied is removed too, and reported to the listeners then.)
+            PurchaseIndex index = currentPurchaseIndex();
+            if (index == null) {
+                return new ExpirePurchasesResult(new Error("expirePurchases: failed to read purchases", true));
+            }
+            List<Purchase> expired = index.expiredBefore(now);
+            this.expiryScheduler.removed(expired);
+            return new ExpirePurchasesResult(expired);
+        }
         String jsonStr;
-        writeLock.lock();
+        long writeVersion;
         try {
+            writeVersion = this.stateVersion.get();
             jsonStr = this.NativeExpirePurchases();
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
         JNI.Result.ExpirePurchases res = new JNI.Result.ExpirePurchases(jsonStr);
+        if (res.error == null) {
+            updatePurchaseIndex(writeVersion, null, res.purchases);
+            if (!res.purchases.isEmpty()) {
+                // The stored state no longer matches the last refresh's, so a 304 to its
+                // validator wouldn't mean there's nothing to apply.
+                this.refreshStateValidator.invalidate();
+            }
+            this.expiryScheduler.removed(res.purchases);
+            this.stateChangeNotifier.changed();
+        }
         return new ExpirePurchasesResult(res);
     }
 
@@ -720,12 +1384,114 @@ public class PsiCashLib {
             }
             this.purchases = res.purchases;
         }
+
+        ExpirePurchasesResult(List<Purchase> purchases) {
+            this.purchases = purchases;
+        }
+
+        ExpirePurchasesResult(Error error) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * Receives purchases as they expire. See setExpiryListener.
+     */
+    public interface ExpiryListener {
+        /**
+         * Called, on a background thread, with purchases that have expired and been
+         * removed from the datastore (as by expirePurchases). Purchases that expire
+         * together are reported together.
+         */
+        void onPurchasesExpired(@NonNull List<Purchase> purchases);
+    }
+
+    /**
+     * Sets a listener to be called as purchases expire, or null to stop. While a listener
+     * is set, the library keeps a timer for the next purchase expiry, and when it arrives
+     * expires the due purchases and reports them. This replaces polling
+     * nextExpiringPurchase and expirePurchases.
+     *
+     * Purchases that have already expired are reported right away. Expiry is by the
+     * device clock; if it's changed, setting the listener again reschedules.
+     * @return Error if the stored purchases couldn't be read, in which case purchases
+     * will only be scheduled as they're made (or after the next refreshState).
+     */
+    @Nullable
+    public Error setExpiryListener(@Nullable ExpiryListener listener) {
+        if (listener == null) {
+            this.expiryScheduler.setListener(null, null);
+            return null;
+        }
+        GetPurchasesResult res = getPurchases();
+        this.expiryScheduler.setListener(listener, res.error == null ? res.purchases : null);
+        return res.error;
+    }
+
+    /**
+     * Receives changes to the state. See setStateChangeListener.
+     */
+    public interface StateChangeListener {
+        /**
+         * Called after a call that changed the state, normally on the thread that made it,
+         * before the call returns. Calls are serialized and in order: if a change is being
+         * delivered when another happens, the thread delivering it also delivers the new
+         * one, once this returns. It's not called with any library lock held, so it may
+         * call into the library (or wait on a thread that does).
+         */
+        void onStateChanged(@NonNull StateChange change);
+    }
+
+    /**
+     * A change to the state since the last one reported (or since the listener was set).
+     */
+    public static class StateChange {
+        // The new value, or null if unchanged.
+        @Nullable
+        public final Long balance;
+        @Nullable
+        public final Boolean hasTokens;
+        @Nullable
+        public final Boolean isAccount;
+        // Purchases stored or removed (including by expiry). Empty if none.
+        @NonNull
+        public final List<Purchase> purchasesAdded;
+        @NonNull
+        public final List<Purchase> purchasesRemoved;
+
+        StateChange(@Nullable Long balance, @Nullable Boolean hasTokens, @Nullable Boolean isAccount,
+                    @NonNull List<Purchase> purchasesAdded, @NonNull List<Purchase> purchasesRemoved) {
+            this.balance = balance;
+            this.hasTokens = hasTokens;
+            this.isAccount = isAccount;
+            this.purchasesAdded = purchasesAdded;
+            this.purchasesRemoved = purchasesRemoved;
+        }
+    }
+
+    /**
+     * Sets a listener to be told when the balance, token or account status, or purchases
+     * change, or null to stop. It's called after refreshState, newExpiringPurchase,
+     * expirePurchases, removePurchases, accountLogin, accountLogout and resetUser (and
+     * init), only if something changed, with just what changed. This replaces re-reading
+     * balance, hasTokens, isAccount and getPurchases after those calls.
+     * @return Error if the current state couldn't be read, in which case the next change
+     * isn't reported (but becomes the state later changes are relative to).
+     */
+    @Nullable
+    public Error setStateChangeListener(@Nullable StateChangeListener listener) {
+        if (this.stateChangeNotifier.setListener(listener)) {
+            return null;
+        }
+        return new Error("setStateChangeListener: failed to read state", true);
     }
 
     /**
      * Force removal of purchases with the given transaction IDs.
      * This is to be called when the Psiphon server indicates that a purchase has
      * expired (even if the local clock hasn't yet indicated it).
+     * If a network-backed call is in progress, this doesn't wait for it: it returns the
+     * given purchases that are stored now, which are removed when the call completes.
      * @param transactionIDs List of transaction IDs of purchases to remove. IDs not being
      *                       found does _not_ result in an error.
      * @return List will contain the purchases that were removed. Passing IDs that don't
@@ -733,19 +1499,56 @@ public class PsiCashLib {
      */
     @Nullable
     public RemovePurchasesResult removePurchases(List<String> transactionIDs) {
-        String[] idsArray = null;
-        if (transactionIDs != null) {
-            idsArray = transactionIDs.toArray(new String[0]);
+        PurchaseIndex index = currentPurchaseIndex();
+        if (index != null && index.knownTransactionIDs(transactionIDs).isEmpty()) {
+            // Nothing to remove, so no need to write.
+            return new RemovePurchasesResult(new ArrayList<>());
+        }
+
+        String[] requestedIDs = transactionIDs == null ? null : transactionIDs.toArray(new String[0]);
+        if (!beginLocalWrite(lib -> {
+            lib.NativeRemovePurchases(requestedIDs);
+            lib.refreshStateValidator.invalidate();
+        })) {
+            // Report what is stored now.
+            index = currentPurchaseIndex();
+            if (index == null) {
+                return new RemovePurchasesResult(new Error("removePurchases: failed to read purchases", true));
+            }
+            List<Purchase> removing = index.byTransactionIDs(transactionIDs);
+            this.expiryScheduler.removed(removing);
+            return new RemovePurchasesResult(removing);
         }
+
+        String[] idsArray = null;
         String jsonStr;
-        writeLock.lock();
+        long writeVersion;
         try {
+            writeVersion = this.stateVersion.get();
+            index = this.purchaseIndex;
+            if (index != null && index.version == writeVersion - 1) {
+                // The index is still current, so only the IDs it knows can match.
+                idsArray = index.knownTransactionIDs(transactionIDs).toArray(new String[0]);
+            }
+            else {
+                idsArray = requestedIDs;
+            }
             jsonStr = this.NativeRemovePurchases(idsArray);
         }
         finally {
-            writeLock.unlock();
+            unlockWrite();
         }
         JNI.Result.RemovePurchases res = new JNI.Result.RemovePurchases(jsonStr);
+        if (res.error == null) {
+            updatePurchaseIndex(writeVersion, null, res.purchases);
+            if (!res.purchases.isEmpty()) {
+                // The stored state no longer matches the last refresh's, so a 304 to its
+                // validator wouldn't mean there's nothing to apply.
+                this.refreshStateValidator.invalidate();
+            }
+            this.expiryScheduler.removed(res.purchases);
+            this.stateChangeNotifier.changed();
+        }
         return new RemovePurchasesResult(res);
 
     }
@@ -763,6 +1566,14 @@ public class PsiCashLib {
             }
             this.purchases = res.purchases;
         }
+
+        RemovePurchasesResult(List<Purchase> purchases) {
+            this.purchases = purchases;
+        }
+
+        RemovePurchasesResult(Error error) {
+            this.error = error;
+        }
     }
 
     /**
@@ -774,7 +1585,7 @@ public class PsiCashLib {
      */
     @NonNull
     public ModifyLandingPageResult modifyLandingPage(String url) {
-        String jsonStr = this.NativeModifyLandingPage(url);
+        String jsonStr = readState(lib -> lib.NativeModifyLandingPage(url));
         JNI.Result.ModifyLandingPage res = new JNI.Result.ModifyLandingPage(jsonStr);
         return new ModifyLandingPageResult(res);
     }
@@ -799,7 +1610,7 @@ public class PsiCashLib {
      */
     @NonNull
     public String getAccountSignupURL() {
-        return this.NativeGetAccountSignupURL();
+        return readState(PsiCashLib::NativeGetAccountSignupURL);
     }
 
     /**
@@ -808,7 +1619,7 @@ public class PsiCashLib {
      */
     @NonNull
     public String getAccountForgotURL() {
-        return this.NativeGetAccountForgotURL();
+        return readState(PsiCashLib::NativeGetAccountForgotURL);
     }
 
     /**
@@ -817,7 +1628,7 @@ public class PsiCashLib {
      */
     @NonNull
     public String getAccountManagementURL() {
-        return this.NativeGetAccountManagementURL();
+        return readState(PsiCashLib::NativeGetAccountManagementURL);
     }
 
     /**
@@ -826,7 +1637,7 @@ public class PsiCashLib {
      */
     @NonNull
     public AccountUsername getAccountUsername() {
-        String jsonStr = this.NativeGetAccountUsername();
+        String jsonStr = readState(PsiCashLib::NativeGetAccountUsername);
         JNI.Result.AccountUsername res = new JNI.Result.AccountUsername(jsonStr);
         return new AccountUsername(res);
     }
@@ -860,7 +1671,7 @@ public class PsiCashLib {
      */
     @NonNull
     public GetRewardedActivityDataResult getRewardedActivityData() {
-        String jsonStr = this.NativeGetRewardedActivityData();
+        String jsonStr = readState(PsiCashLib::NativeGetRewardedActivityData);
         JNI.Result.GetRewardedActivityData res = new JNI.Result.GetRewardedActivityData(jsonStr);
         return new GetRewardedActivityDataResult(res);
     }
@@ -889,7 +1700,7 @@ public class PsiCashLib {
      */
     @NonNull
     public GetDiagnosticInfoResult getDiagnosticInfo(boolean lite) {
-        String jsonStr = this.NativeGetDiagnosticInfo(lite);
+        String jsonStr = readState(lib -> lib.NativeGetDiagnosticInfo(lite));
         JNI.Result.GetDiagnosticInfo res = new JNI.Result.GetDiagnosticInfo(jsonStr);
         return new GetDiagnosticInfoResult(res);
     }
@@ -909,8 +1720,75 @@ public class PsiCashLib {
     }
 
     /**
-     * Refresh the local state (and obtain tokens, if necessary).
+     * Retrieves, in a single call, all of the stored state typically needed to render
+     * PsiCash UI. The values are read together while no mutating call is in progress, so
+     * they are consistent with each other (unlike a sequence of individual getter calls
+     * made while, say, refreshState is running on another thread).
+     * @return Snapshot of balance, purchase prices, active purchases, next expiring
+     * purchase, account and token status, and account username.
+     */
+    @NonNull
+    public StateSnapshotResult snapshot() {
+        String jsonStr = readState(PsiCashLib::NativeSnapshot);
+        JNI.Result.Snapshot res = new JNI.Result.Snapshot(jsonStr);
+        return new StateSnapshotResult(res);
+    }
+
+    public static class StateSnapshotResult {
+        // Expected to be null; indicates glue problem.
+        public Error error;
+        // Null iff error (which is not expected).
+        public StateSnapshot snapshot;
+
+        StateSnapshotResult(JNI.Result.Snapshot res) {
+            this.error = res.error;
+            if (this.error != null) {
+                return;
+            }
+            this.snapshot = res.snapshot;
+        }
+    }
+
+    /**
+     * Point-in-time view of the stored state. See snapshot().
+     * The fields and lists can't be changed, but the Purchase and PurchasePrice objects in
+     * the lists are ordinary (mutable) objects. Each snapshot() call returns new objects,
+     * not shared with the library or other callers, so changing them affects only that
+     * snapshot.
+     */
+    public static final class StateSnapshot {
+        public final long balance;
+        // Empty if there are no available purchase prices.
+        public final List<PurchasePrice> purchasePrices;
+        // Empty if there are no valid purchases.
+        public final List<Purchase> activePurchases;
+        // Null if there is no expiring purchase. May already be expired.
+        public final Purchase nextExpiringPurchase;
+        public final boolean isAccount;
+        public final boolean hasTokens;
+        // Null if not an account or logged out.
+        public final String accountUsername;
+
+        StateSnapshot(long balance, List<PurchasePrice> purchasePrices, List<Purchase> activePurchases,
+                      Purchase nextExpiringPurchase, boolean isAccount, boolean hasTokens,
+                      String accountUsername) {
+            this.balance = balance;
+            this.purchasePrices = Collections.unmodifiableList(new ArrayList<>(purchasePrices));
+            this.activePurchases = Collections.unmodifiableList(new ArrayList<>(activePurchases));
+            this.nextExpiringPurchase = nextExpiringPurchase;
+            this.isAccount = isAccount;
+            this.hasTokens = hasTokens;
+            this.accountUsername = accountUsername;
+        }
+    }
+
+    /**
+     * Refresh the local state (and obtain tokens, if necessary).
      * See psicash.hpp for full description.
+     * Concurrent non-local calls are merged: a call made while another is pending, with
+     * purchaseClasses that are a subset of the pending call's, waits for and shares that
+     * call's result rather than making its own request. See also
+     * setRefreshStateMinInterval.
      * @param purchaseClasses The purchase class names for which prices should be
      *                        retrieved, like `{"speed-boost"}`. If null or empty, no
      *                        purchase prices will be retrieved.
@@ -919,19 +1797,74 @@ public class PsiCashLib {
      */
     @NonNull
     public RefreshStateResult refreshState(boolean localOnly, List<String> purchaseClasses) {
-        if (purchaseClasses == null) {
-            purchaseClasses = new ArrayList<>();
+        RefreshStateResult res;
+        if (localOnly) {
+            // No network request, so nothing to gain by merging.
+            res = doRefreshState(true, purchaseClasses == null
+                    ? new String[0] : purchaseClasses.toArray(new String[0]));
+        }
+        else {
+            long start = System.nanoTime();
+            res = this.refreshStateCoalescer.refresh(purchaseClasses,
+                    classes -> doRefreshState(false, classes));
+            this.metrics.recordTiming(Metrics.Call.REFRESH_STATE, Metrics.Phase.TOTAL, System.nanoTime() - start);
+        }
+        // A throttled or not-modified result didn't change the state, so there's nothing
+        // new to pick up.
+        if (res.error == null && !res.throttled && !res.notModified) {
+            saveStartupCache();
+            reloadExpiryScheduler();
+            this.stateChangeNotifier.changed();
         }
-        String jsonStr;
-        writeLock.lock();
-        try {
-            jsonStr = this.NativeRefreshState(localOnly, purchaseClasses.toArray(new String[0]));
+        return res;
+    }
+
+    /**
+     * Async version of refreshState. Runs on the async executor (see setAsyncExecutor).
+     * @param timeoutMillis If greater than zero, the call completes with a recoverable
+     *                      error after this long. (See "Async calls" in the README for
+     *                      what happens to the underlying request.)
+     * @param callback If non-null, receives the result.
+     * @return A Future for the result. Cancelling it interrupts the call.
+     */
+    @NonNull
+    public Future<RefreshStateResult> refreshStateAsync(boolean localOnly, List<String> purchaseClasses,
+                                                        long timeoutMillis,
+                                                        @Nullable Callback<RefreshStateResult> callback) {
+        return AsyncCall.submit(getAsyncExecutor(), () -> refreshState(localOnly, purchaseClasses),
+                error -> new RefreshStateResult(error, null, false), timeoutMillis, callback);
+    }
+
+    @NonNull
+    private RefreshStateResult doRefreshState(boolean localOnly, String[] purchaseClasses) {
+        if (localOnly) {
+            String jsonStr = networkCall(null, lib -> lib.NativeRefreshState(true, purchaseClasses));
+            return new RefreshStateResult(new JNI.Result.RefreshState(jsonStr));
         }
-        finally {
-            writeLock.unlock();
+
+        RefreshStateValidator.Call call = new RefreshStateValidator.Call();
+        JNI.Result.RefreshState res = networkCall(Metrics.Call.REFRESH_STATE, lib -> {
+            lib.refreshStateCall = call;
+            try {
+                String jsonStr = lib.NativeRefreshState(false, purchaseClasses);
+                long parseStart = System.nanoTime();
+                JNI.Result.RefreshState r = new JNI.Result.RefreshState(jsonStr);
+                lib.metricsParseNanos = System.nanoTime() - parseStart;
+                // Still holding the network lock, so no other refresh can interleave.
+                lib.refreshStateValidator.finish(call, r.error == null && r.status == Status.SUCCESS);
+                return r;
+            }
+            finally {
+                lib.refreshStateCall = null;
+            }
+        });
+
+        if (call.notModified) {
+            // The core was given an error, so that it wouldn't apply anything; the refresh
+            // itself succeeded.
+            return new RefreshStateResult(null, Status.SUCCESS, false, true);
         }
-        JNI.Result.RefreshState res = new JNI.Result.RefreshState(jsonStr);
-        return new RefreshStateResult(res);
+        return new RefreshStateResult(res.error, res.status, res.reconnectRequired);
     }
 
     public static class RefreshStateResult {
@@ -941,14 +1874,283 @@ public class PsiCashLib {
         public Status status;
         // True when a tunnel reconnect is required as a result of this logout.
         public boolean reconnectRequired;
+        // True if the server responded 304 Not Modified: nothing changed since the last
+        // refresh, so the stored state was left as it was.
+        public boolean notModified;
+        // True if no request was made, as a refresh succeeded too recently (see
+        // setRefreshStateMinInterval). The result is that refresh's.
+        public boolean throttled;
 
         RefreshStateResult(JNI.Result.RefreshState res) {
-            this.error = res.error;
-            this.reconnectRequired = res.reconnectRequired;
+            this(res.error, res.status, res.reconnectRequired, false);
+        }
+
+        RefreshStateResult(Error error, Status status, boolean reconnectRequired) {
+            this(error, status, reconnectRequired, false);
+        }
+
+        RefreshStateResult(Error error, Status status, boolean reconnectRequired, boolean notModified) {
+            this(error, status, reconnectRequired, notModified, false);
+        }
+
+        RefreshStateResult(Error error, Status status, boolean reconnectRequired, boolean notModified,
+                           boolean throttled) {
+            this.error = error;
+            this.reconnectRequired = reconnectRequired;
+            this.notModified = notModified;
+            this.throttled = throttled;
             if (this.error != null) {
                 return;
             }
-            this.status = res.status;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Sets the minimum time between successful non-local refreshState requests. A call
+     * made sooner than this after a successful refresh (with compatible purchaseClasses)
+     * returns that refresh's result without making a request; reconnectRequired will be
+     * false in that result, as the reconnect was already signalled. The interval is
+     * cleared by init, resetUser, accountLogin and accountLogout. Defaults to 0 (disabled).
+     */
+    public void setRefreshStateMinInterval(long millis) {
+        this.refreshStateCoalescer.setMinInterval(millis);
+    }
+
+    /**
+     * Returns counters describing how refreshState calls have been handled.
+     */
+    @NonNull
+    public RefreshStateStats getRefreshStateStats() {
+        return this.refreshStateCoalescer.stats();
+    }
+
+    public static class RefreshStateStats {
+        // Non-local refreshState calls made.
+        public final long calls;
+        // Calls that resulted in a request to the server.
+        public final long requests;
+        // Calls that shared the result of another pending call.
+        public final long coalesced;
+        // Calls that returned a recent result due to the minimum refresh interval.
+        public final long throttled;
+        // Requests to which the server responded that nothing had changed.
+        public final long notModified;
+
+        RefreshStateStats(long calls, long requests, long coalesced, long throttled, long notModified) {
+            this.calls = calls;
+            this.requests = requests;
+            this.coalesced = coalesced;
+            this.throttled = throttled;
+            this.notModified = notModified;
+        }
+    }
+
+    /**
+     * Sets whether requests ask for compressed (gzip or deflate) responses. Disabled by
+     * default. Compressed responses are decoded by the library if the HTTPRequester doesn't
+     * decode them itself, but only if it returns them in Result.bodyBytes: a compressed
+     * body can't survive being read into Result.body, so don't enable this for a
+     * requester that does that. (PooledHTTPRequester asks for compressed responses
+     * whether or not this is set.)
+     */
+    public void setAcceptCompressedResponses(boolean accept) {
+        this.acceptCompressedResponses = accept;
+    }
+
+    /**
+     * Returns counters describing the response bodies received, such as how much
+     * compression saved.
+     */
+    @NonNull
+    public ResponseBodyStats getResponseBodyStats() {
+        return new ResponseBodyStats(bodyResponses.get(), bodyCompressedResponses.get(),
+                bodyWireBytes.get(), bodyDecodedBytes.get());
+    }
+
+    public static class ResponseBodyStats {
+        // Responses received with a body.
+        public final long responses;
+        // Of those, the number that were compressed.
+        public final long compressedResponses;
+        // Body bytes as received, and after decoding.
+        public final long wireBytes;
+        public final long decodedBytes;
+
+        ResponseBodyStats(long responses, long compressedResponses, long wireBytes, long decodedBytes) {
+            this.responses = responses;
+            this.compressedResponses = compressedResponses;
+            this.wireBytes = wireBytes;
+            this.decodedBytes = decodedBytes;
+        }
+    }
+
+    /**
+     * Receives metrics as they're recorded. See setMetricsSink.
+     */
+    public interface MetricsSink {
+        /**
+         * A phase of a network-backed call took the given time.
+         */
+        void onTiming(@NonNull Metrics.Call call, @NonNull Metrics.Phase phase, long nanos);
+
+        /**
+         * An HTTP request made by a network-backed call completed.
+         * @param code The HTTP status code, or HTTPRequester.Result.RECOVERABLE_ERROR or
+         *             CRITICAL_ERROR.
+         * @param bytesOut The request body size.
+         * @param bytesIn The response body size, as received.
+         */
+        void onHTTPResult(@NonNull Metrics.Call call, int code, long bytesOut, long bytesIn);
+    }
+
+    /**
+     * Sets a sink to receive metrics as they're recorded, in addition to their being
+     * accumulated for getMetrics. The sink is called synchronously on the thread making
+     * the call, possibly while holding library locks, so it must be quick and must not
+     * call back into the library. Null to remove.
+     */
+    public void setMetricsSink(@Nullable MetricsSink sink) {
+        this.metrics.setSink(sink);
+    }
+
+    /**
+     * Returns the metrics accumulated since the library was created.
+     */
+    @NonNull
+    public Metrics getMetrics() {
+        return this.metrics.snapshot();
+    }
+
+    /**
+     * Point-in-time copy of the metrics for the network-backed calls.
+     */
+    public static final class Metrics {
+        public enum Call {
+            REFRESH_STATE,
+            NEW_EXPIRING_PURCHASE,
+            ACCOUNT_LOGIN,
+            ACCOUNT_LOGOUT,
+            // HTTP requests not made by one of the above (such as by test helpers).
+            OTHER
+        }
+
+        public enum Phase {
+            // The whole call, as seen by the caller.
+            TOTAL,
+            // Waiting for the library's locks (other calls in progress).
+            LOCK_WAIT,
+            // In the native core, excluding HTTP requests. Includes applying any local
+            // writes deferred until the end of the call.
+            NATIVE,
+            // Each HTTP request, in the HTTPRequester. (A call may make several.)
+            NETWORK,
+            // Converting the native result into Java objects.
+            PARSE
+        }
+
+        /**
+         * A latency histogram with power-of-two microsecond buckets.
+         */
+        public static final class Histogram {
+            // Number of durations recorded, and their sum.
+            public final long count;
+            public final long sumNanos;
+            // bucketCounts[i] is the number of durations less than bucketUpperBoundMicros(i)
+            // (and not less than the previous bucket's bound). The last bucket also counts
+            // any longer durations.
+            public final long[] bucketCounts;
+
+            Histogram(long count, long sumNanos, long[] bucketCounts) {
+                this.count = count;
+                this.sumNanos = sumNanos;
+                this.bucketCounts = bucketCounts;
+            }
+
+            public static long bucketUpperBoundMicros(int bucket) {
+                return 1L << bucket;
+            }
+
+            /**
+             * Returns an upper bound for the given percentile (0 to 100) of the recorded
+             * durations, in microseconds: the upper bound of the bucket containing it. 0 if
+             * nothing was recorded.
+             */
+            public long percentileMicros(double percentile) {
+                if (this.count == 0) {
+                    return 0;
+                }
+                long rank = (long)Math.ceil(this.count * Math.min(Math.max(percentile, 0), 100) / 100.0);
+                long seen = 0;
+                for (int i = 0; i < this.bucketCounts.length; i++) {
+                    seen += this.bucketCounts[i];
+                    if (seen >= rank && seen > 0) {
+                        return bucketUpperBoundMicros(i);
+                    }
+                }
+                return bucketUpperBoundMicros(this.bucketCounts.length - 1);
+            }
+
+            public long meanNanos() {
+                return this.count == 0 ? 0 : this.sumNanos / this.count;
+            }
+        }
+
+        private final long[] histograms;
+        private final long[] counters;
+
+        Metrics(long[] histograms, long[] counters) {
+            this.histograms = histograms;
+            this.counters = counters;
+        }
+
+        @NonNull
+        public Histogram latency(@NonNull Call call, @NonNull Phase phase) {
+            int base = MetricsRecorder.histogramBase(call, phase);
+            long[] buckets = new long[MetricsRecorder.BUCKETS];
+            System.arraycopy(this.histograms, base, buckets, 0, buckets.length);
+            return new Histogram(MetricsRecorder.histogramCount(this.histograms, base),
+                    MetricsRecorder.histogramSum(this.histograms, base), buckets);
+        }
+
+        /**
+         * Returns the number of HTTP responses with the given status class: 1 for 1xx, up
+         * to 5 for 5xx. 0 counts any other status code.
+         */
+        public long statusCount(@NonNull Call call, int statusClass) {
+            if (statusClass < 0 || statusClass >= MetricsRecorder.STATUS_CLASSES) {
+                return 0;
+            }
+            return MetricsRecorder.counter(this.counters, call, statusClass);
+        }
+
+        // Requests that failed with RECOVERABLE_ERROR (unable to reach the server, etc.).
+        public long recoverableErrors(@NonNull Call call) {
+            return MetricsRecorder.recoverableErrors(this.counters, call);
+        }
+
+        // Requests that failed with CRITICAL_ERROR.
+        public long criticalErrors(@NonNull Call call) {
+            return MetricsRecorder.criticalErrors(this.counters, call);
+        }
+
+        // HTTP requests made, whatever their outcome.
+        public long requests(@NonNull Call call) {
+            long n = recoverableErrors(call) + criticalErrors(call);
+            for (int i = 0; i < MetricsRecorder.STATUS_CLASSES; i++) {
+                n += statusCount(call, i);
+            }
+            return n;
+        }
+
+        // Request body bytes sent.
+        public long bytesOut(@NonNull Call call) {
+            return MetricsRecorder.bytesOut(this.counters, call);
+        }
+
+        // Response body bytes received, before any decompression.
+        public long bytesIn(@NonNull Call call) {
+            return MetricsRecorder.bytesIn(this.counters, call);
         }
     }
 
@@ -966,18 +2168,44 @@ public class PsiCashLib {
     @NonNull
     public NewExpiringPurchaseResult newExpiringPurchase(
             String transactionClass, String distinguisher, long expectedPrice) {
-        String jsonStr;
-        writeLock.lock();
-        try {
-            jsonStr = this.NativeNewExpiringPurchase(transactionClass, distinguisher, expectedPrice);
+        long start = System.nanoTime();
+        long[] writeVersion = new long[1];
+        String jsonStr = networkCall(Metrics.Call.NEW_EXPIRING_PURCHASE, lib -> {
+            String r = lib.NativeNewExpiringPurchase(transactionClass, distinguisher, expectedPrice);
+            // After the request, as that ends with a new write (see beginRequestPhase).
+            writeVersion[0] = lib.stateVersion.get();
+            return r;
+        });
+        long parseStart = System.nanoTime();
+        JNI.Result.NewExpiringPurchase res = new JNI.Result.NewExpiringPurchase(jsonStr);
+        recordParseAndTotal(Metrics.Call.NEW_EXPIRING_PURCHASE, start, parseStart);
+        if (res.error == null && res.status == Status.SUCCESS && res.purchase != null) {
+            // Other statuses may come with other changes (such as to tokens), so leave
+            // those to a rebuild.
+            updatePurchaseIndex(writeVersion[0], res.purchase, Collections.emptyList());
         }
-        finally {
-            writeLock.unlock();
+        if (res.error == null) {
+            saveStartupCache();
+            if (res.purchase != null) {
+                this.expiryScheduler.add(res.purchase);
+            }
+            this.stateChangeNotifier.changed();
         }
-        JNI.Result.NewExpiringPurchase res = new JNI.Result.NewExpiringPurchase(jsonStr);
         return new NewExpiringPurchaseResult(res);
     }
 
+    /**
+     * Async version of newExpiringPurchase. See refreshStateAsync for the async parameters.
+     */
+    @NonNull
+    public Future<NewExpiringPurchaseResult> newExpiringPurchaseAsync(
+            String transactionClass, String distinguisher, long expectedPrice,
+            long timeoutMillis, @Nullable Callback<NewExpiringPurchaseResult> callback) {
+        return AsyncCall.submit(getAsyncExecutor(),
+                () -> newExpiringPurchase(transactionClass, distinguisher, expectedPrice),
+                NewExpiringPurchaseResult::new, timeoutMillis, callback);
+    }
+
     public static class NewExpiringPurchaseResult {
         // Indicates catastrophic inability to make request.
         public Error error;
@@ -986,6 +2214,10 @@ public class PsiCashLib {
         // Will be non-null on status==SUCCESS, but null for all other statuses.
         public Purchase purchase;
 
+        NewExpiringPurchaseResult(Error error) {
+            this.error = error;
+        }
+
         NewExpiringPurchaseResult(JNI.Result.NewExpiringPurchase res) {
             this.error = res.error;
             if (this.error != null) {
@@ -1002,24 +2234,41 @@ public class PsiCashLib {
      */
     @NonNull
     public AccountLogoutResult accountLogout() {
-        String jsonStr;
-        writeLock.lock();
-        try {
-            jsonStr = this.NativeAccountLogout();
-        }
-        finally {
-            writeLock.unlock();
-        }
+        long start = System.nanoTime();
+        String jsonStr = networkCall(Metrics.Call.ACCOUNT_LOGOUT, PsiCashLib::NativeAccountLogout);
+        this.refreshStateCoalescer.invalidate();
+        this.refreshStateValidator.invalidate();
+        long parseStart = System.nanoTime();
         JNI.Result.AccountLogout res = new JNI.Result.AccountLogout(jsonStr);
+        recordParseAndTotal(Metrics.Call.ACCOUNT_LOGOUT, start, parseStart);
+        if (res.error == null) {
+            saveStartupCache();
+            reloadExpiryScheduler();
+            this.stateChangeNotifier.changed();
+        }
         return new AccountLogoutResult(res);
     }
 
+    /**
+     * Async version of accountLogout. See refreshStateAsync for the async parameters.
+     */
+    @NonNull
+    public Future<AccountLogoutResult> accountLogoutAsync(long timeoutMillis,
+                                                          @Nullable Callback<AccountLogoutResult> callback) {
+        return AsyncCall.submit(getAsyncExecutor(), this::accountLogout,
+                AccountLogoutResult::new, timeoutMillis, callback);
+    }
+
     public static class AccountLogoutResult {
         // Indicates catastrophic inability to make request.
         public Error error;
         // True when a tunnel reconnect is required as a result of this logout.
         public boolean reconnectRequired;
 
+        AccountLogoutResult(Error error) {
+            this.error = error;
+        }
+
         AccountLogoutResult(JNI.Result.AccountLogout res) {
             this.error = res.error;
             this.reconnectRequired = res.reconnectRequired;
@@ -1032,18 +2281,32 @@ public class PsiCashLib {
      */
     @NonNull
     public AccountLoginResult accountLogin(String username, String password) {
-        String jsonStr;
-        writeLock.lock();
-        try {
-            jsonStr = this.NativeAccountLogin(username, password);
-        }
-        finally {
-            writeLock.unlock();
-        }
+        long start = System.nanoTime();
+        String jsonStr = networkCall(Metrics.Call.ACCOUNT_LOGIN, lib -> lib.NativeAccountLogin(username, password));
+        this.refreshStateCoalescer.invalidate();
+        this.refreshStateValidator.invalidate();
+        long parseStart = System.nanoTime();
         JNI.Result.AccountLogin res = new JNI.Result.AccountLogin(jsonStr);
+        recordParseAndTotal(Metrics.Call.ACCOUNT_LOGIN, start, parseStart);
+        if (res.error == null) {
+            saveStartupCache();
+            reloadExpiryScheduler();
+            this.stateChangeNotifier.changed();
+        }
         return new AccountLoginResult(res);
     }
 
+    /**
+     * Async version of accountLogin. See refreshStateAsync for the async parameters.
+     */
+    @NonNull
+    public Future<AccountLoginResult> accountLoginAsync(String username, String password,
+                                                        long timeoutMillis,
+                                                        @Nullable Callback<AccountLoginResult> callback) {
+        return AsyncCall.submit(getAsyncExecutor(), () -> accountLogin(username, password),
+                AccountLoginResult::new, timeoutMillis, callback);
+    }
+
     public static class AccountLoginResult {
         // Indicates catastrophic inability to make request.
         public Error error;
@@ -1052,6 +2315,10 @@ public class PsiCashLib {
         // Will be non-null iff tracker tokens were present to attempt to merge.
         public Boolean lastTrackerMerge;
 
+        AccountLoginResult(Error error) {
+            this.error = error;
+        }
+
         AccountLoginResult(JNI.Result.AccountLogin res) {
             this.error = res.error;
             if (this.error != null) {
@@ -1062,62 +2329,109 @@ public class PsiCashLib {
         }
     }
 
+    /**
+     * Sets the Executor that the *Async calls run on. If not set, a small pool of
+     * background threads is used. Network-backed calls are serialized with each other, so
+     * a large pool gains little.
+     */
+    public synchronized void setAsyncExecutor(@NonNull Executor executor) {
+        this.asyncExecutor = executor;
+    }
+
+    private synchronized Executor getAsyncExecutor() {
+        if (this.asyncExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), AsyncCall.daemonThreadFactory("PsiCashLib-async"));
+            pool.allowCoreThreadTimeOut(true);
+            this.asyncExecutor = pool;
+        }
+        return this.asyncExecutor;
+    }
+
     //
     // END API ////////////////////////////////////////////////////////////////
     ///
 
+    /**
+     * Called from native code to make an HTTP request with the httpRequester. The request
+     * and result are passed as typed values, so nothing is serialized on either side.
+     * @param port The port, or 0 to use the scheme's default.
+     * @param headers Flattened header name/value pairs. May be null.
+     * @param query Flattened query parameter name/value pairs. May be null.
+     * @param body UTF-8 request body. May be null or empty.
+     */
     @SuppressWarnings("unused") // used as a native callback
-    public String makeHTTPRequest(String jsonReqParams) {
+    @NonNull
+    JNI.HTTPResult makeHTTPRequest(String scheme, String hostname, int port, String method, String path,
+                                   String[] headers, String[] query, byte[] body) {
         HTTPRequester.Result result = new HTTPRequester.Result();
+        boolean inNetworkCall = networkLock.isHeldByCurrentThread() && this.metricsCall != null;
+        Metrics.Call metricsCall = inNetworkCall ? this.metricsCall : Metrics.Call.OTHER;
+        int bytesOut = body == null ? 0 : body.length;
 
         try {
             HTTPRequester.ReqParams reqParams = new HTTPRequester.ReqParams();
             Uri.Builder uriBuilder = new Uri.Builder();
-            reqParams.headers = new HashMap<>();
 
-            try {
-                JSONObject json = new JSONObject(jsonReqParams);
-                uriBuilder.scheme(JSON.nonnullString(json, "scheme"));
-                String hostname = JSON.nonnullString(json, "hostname");
-                Integer port = JSON.nullableInteger(json, "port");
-                if (port != null) {
-                    hostname += ":" + port;
-                }
-
-                uriBuilder.encodedAuthority(hostname);
-                reqParams.method = JSON.nonnullString(json, "method");
-                uriBuilder.encodedPath(JSON.nonnullString(json, "path"));
-
-                JSONObject jsonHeaders = JSON.nullableObject(json, "headers");
-                if (jsonHeaders != null) {
-                    Iterator<?> headerKeys = jsonHeaders.keys();
-                    while (headerKeys.hasNext()) {
-                        String key = (String)headerKeys.next();
-                        String value = JSON.nonnullString(jsonHeaders, key);
-                        reqParams.headers.put(key, value);
-                    }
-                }
+            uriBuilder.scheme(scheme);
+            uriBuilder.encodedAuthority(port > 0 ? hostname + ":" + port : hostname);
+            reqParams.method = method;
+            uriBuilder.encodedPath(path);
 
-                // Query params are an array of arrays of 2 strings.
-                JSONArray jsonQueryParams = JSON.nullableArray(json, "query");
-                if (jsonQueryParams != null) {
-                    for (int i = 0; i < jsonQueryParams.length(); i++) {
-                        JSONArray param = JSON.nonnullArray(jsonQueryParams, i);
-                        String key = JSON.nullableString(param, 0);
-                        String value = JSON.nullableString(param, 1);
-                        uriBuilder.appendQueryParameter(key, value);
-                    }
+            int headerCount = headers == null ? 0 : headers.length / 2;
+            reqParams.headers = new HashMap<>(headerCount * 2);
+            for (int i = 0; i < headerCount; i++) {
+                reqParams.headers.put(headers[2 * i], headers[2 * i + 1]);
+            }
+            if (this.acceptCompressedResponses && !reqParams.headers.containsKey(ACCEPT_ENCODING_HEADER)) {
+                reqParams.headers.put(ACCEPT_ENCODING_HEADER, ResponseBodyReader.ACCEPT_ENCODING);
+            }
+
+            if (query != null) {
+                for (int i = 0; i + 1 < query.length; i += 2) {
+                    uriBuilder.appendQueryParameter(query[i], query[i + 1]);
                 }
+            }
 
-                reqParams.body = JSON.nullableString(json, "body");
-            } catch (JSONException e) {
-                result.error = "Parsing request object failed: " + e.toString();
-                return result.toJSON();
+            if (body != null && body.length > 0) {
+                reqParams.body = new String(body, UTF_8);
             }
 
             reqParams.uri = uriBuilder.build();
 
-            result = httpRequester.httpRequest(reqParams);
+            // A refresh-state request made by refreshState is made conditional.
+            RefreshStateValidator.Call refreshCall = null;
+            if (networkLock.isHeldByCurrentThread() && RefreshStateValidator.isRefreshStateRequest(method, path)) {
+                refreshCall = this.refreshStateCall;
+            }
+            if (refreshCall != null) {
+                this.refreshStateValidator.prepare(refreshCall, reqParams.uri.toString(), reqParams.headers);
+            }
+
+            if (Thread.currentThread().isInterrupted()) {
+                // The calling thread was interrupted, probably by the cancellation or timeout
+                // of an async call. Don't start a request that nobody is waiting for.
+                result.code = HTTPRequester.Result.RECOVERABLE_ERROR;
+                result.error = "Request cancelled";
+                return JNI.HTTPResult.from(result);
+            }
+
+            long requestStart = System.nanoTime();
+            // Readers needn't wait for the request; see beginRequestPhase.
+            boolean requestPhase = beginRequestPhase();
+            try {
+                result = httpRequester.httpRequest(reqParams);
+            }
+            finally {
+                if (requestPhase) {
+                    endRequestPhase();
+                }
+            }
+            long requestNanos = System.nanoTime() - requestStart;
+            this.metrics.recordTiming(metricsCall, Metrics.Phase.NETWORK, requestNanos);
+            if (inNetworkCall) {
+                this.metricsNetworkNanos += requestNanos;
+            }
 
             // Check for consistency in the result.
             // Ensure sanity if there's an error: code must be negative iff there's an error message
@@ -1125,61 +2439,559 @@ public class PsiCashLib {
                 result.code = HTTPRequester.Result.CRITICAL_ERROR;
                 result.error = "Request result is not in sane error state: " + result.toString();
             }
+
+            if (result.code >= 0) {
+                result = decodeResponseBody(result, metricsCall, bytesOut);
+            }
+            else {
+                this.metrics.recordHTTPResult(metricsCall, result.code, bytesOut, 0);
+            }
+
+            if (refreshCall != null) {
+                result = this.refreshStateValidator.onResult(refreshCall, result);
+            }
         }
         catch (Throwable throwable) {
             // A runtime exception got thrown, probably from the requester. This can happen
             // if called from the main thread, for example.
+            result = new HTTPRequester.Result();
             result.code = HTTPRequester.Result.CRITICAL_ERROR;
             result.error = "httpRequester threw runtime exception: " + throwable.getMessage();
+            this.metrics.recordHTTPResult(metricsCall, result.code, bytesOut, 0);
         }
 
-        return result.toJSON();
+        return JNI.HTTPResult.from(result);
+    }
+
+    // Decodes the result body, if compressed, and updates the body counters and metrics.
+    private HTTPRequester.Result decodeResponseBody(HTTPRequester.Result result, Metrics.Call metricsCall, int bytesOut) {
+        if (result.bodyBytes == null) {
+            if (result.body == null) {
+                this.metrics.recordHTTPResult(metricsCall, result.code, bytesOut, 0);
+                return result;
+            }
+            // This encoding would otherwise be done when passing the result to native code.
+            result.bodyBytes = result.body.getBytes(UTF_8);
+        }
+
+        byte[] raw = result.bodyBytes;
+        boolean requesterDecoded = result.wireBodyLength >= 0;
+        long wireBytes = requesterDecoded ? result.wireBodyLength : raw.length;
+        this.metrics.recordHTTPResult(metricsCall, result.code, bytesOut, wireBytes);
+
+        byte[] decoded;
+        try {
+            decoded = ResponseBodyReader.decode(raw,
+                    ResponseBodyReader.firstHeader(result.headers, CONTENT_ENCODING_HEADER),
+                    ResponseBodyReader.DEFAULT_MAX_BODY_SIZE);
+        }
+        catch (IOException e) {
+            HTTPRequester.Result res = new HTTPRequester.Result();
+            res.code = HTTPRequester.Result.RECOVERABLE_ERROR;
+            res.error = "Failed to decode response body: " + e.getMessage();
+            return res;
+        }
+        result.bodyBytes = decoded;
+
+        bodyResponses.incrementAndGet();
+        if (requesterDecoded || decoded != raw) {
+            bodyCompressedResponses.incrementAndGet();
+        }
+        bodyWireBytes.addAndGet(wireBytes);
+        bodyDecodedBytes.addAndGet(decoded.length);
+        return result;
+    }
+
+    //
+    // State locking helpers
+    //
+
+    private void lockWrite() {
+        awaitInit();
+        stateLock.writeLock().lock();
+        if (stateLock.getWriteHoldCount() == 1) {
+            // Not a reentrant acquisition, so this starts a write.
+            stateVersion.incrementAndGet();
+        }
+    }
+
+    private void unlockWrite() {
+        if (stateLock.getWriteHoldCount() == 1) {
+            stateVersion.incrementAndGet();
+            signalReadable();
+        }
+        stateLock.writeLock().unlock();
+    }
+
+    // Called by makeHTTPRequest before a request. If the thread is in a network-backed call
+    // (and not nested in another write), makes the state readable for the duration of the
+    // request, and returns true; endRequestPhase must then be called after it. The write
+    // lock is kept, so no other write can happen in the meantime.
+    private boolean beginRequestPhase() {
+        if (!networkLock.isHeldByCurrentThread() || stateLock.getWriteHoldCount() != 1) {
+            return false;
+        }
+        stateVersion.incrementAndGet();
+        signalReadable();
+        return true;
+    }
+
+    // Called after the request, before returning the result to the core to apply.
+    private void endRequestPhase() {
+        stateVersion.incrementAndGet();
+    }
+
+    // Wakes readers waiting in awaitReadableVersion. Called after stateVersion is made even.
+    private void signalReadable() {
+        // A waiter increments versionWaiters before checking the version, and this is
+        // called after changing it, so one of them sees the other's change.
+        if (versionWaiters.get() > 0) {
+            synchronized (versionMonitor) {
+                versionMonitor.notifyAll();
+            }
+        }
+    }
+
+    // Waits until no write is changing the state (which doesn't include a network-backed
+    // call's HTTP request), and returns the version.
+    private long awaitReadableVersion() {
+        long version = stateVersion.get();
+        if ((version & 1) == 0) {
+            return version;
+        }
+        boolean interrupted = false;
+        synchronized (versionMonitor) {
+            versionWaiters.incrementAndGet();
+            try {
+                while (((version = stateVersion.get()) & 1) != 0) {
+                    try {
+                        versionMonitor.wait();
+                    } catch (InterruptedException e) {
+                        // Reads can't fail for this, so wait on and restore the interrupt.
+                        interrupted = true;
+                    }
+                }
+            }
+            finally {
+                versionWaiters.decrementAndGet();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return version;
+    }
+
+    // Begins a read of the state, for the given (zero-based) attempt. Returns the version to
+    // pass to endRead, or READ_LOCKED if the read lock was taken instead: by a thread that
+    // holds the write lock (as reads made within a write can't be overlapped), or after
+    // MAX_OPTIMISTIC_READS attempts, if the lock is free.
+    private long beginRead(int attempt) {
+        if ((attempt >= MAX_OPTIMISTIC_READS || stateLock.isWriteLockedByCurrentThread())
+                && stateLock.readLock().tryLock()) {
+            return READ_LOCKED;
+        }
+        return awaitReadableVersion();
+    }
+
+    // Ends a read begun with beginRead. Returns true if no write overlapped it, so values read
+    // in the meantime are consistent; otherwise the read is to be retried.
+    private boolean endRead(long version) {
+        if (version == READ_LOCKED) {
+            stateLock.readLock().unlock();
+            return true;
+        }
+        return stateVersion.get() == version;
+    }
+
+    // Waits for an in-progress initAsync to complete, unless called from its thread. Also
+    // loads the native library, in case a method is called before init.
+    private void awaitInit() {
+        CountDownLatch pending = this.initPending;
+        if (pending != null && Thread.currentThread() != this.initThread) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    pending.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // Calls can't fail for this, so wait on and restore the interrupt.
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!libraryLoaded) {
+            loadLibrary();
+        }
+    }
+
+    // Returns the purchase index for the current state, first rebuilding it if any write
+    // has happened since it was built. Returns null if the purchases can't be retrieved.
+    @Nullable
+    private PurchaseIndex currentPurchaseIndex() {
+        awaitInit();
+        PurchaseIndex index = this.purchaseIndex;
+        if (index != null && index.version == stateVersion.get()) {
+            return index;
+        }
+
+        String jsonStr;
+        long version;
+        for (int attempt = 0; ; attempt++) {
+            long readVersion = beginRead(attempt);
+            // With the read lock, no other write can be in progress, so this is the version
+            // of what's read.
+            version = readVersion == READ_LOCKED ? this.stateVersion.get() : readVersion;
+            boolean valid;
+            try {
+                jsonStr = this.NativeGetPurchases();
+            }
+            finally {
+                valid = endRead(readVersion);
+            }
+            if (valid) {
+                break;
+            }
+        }
+        JNI.Result.GetPurchases res = new JNI.Result.GetPurchases(jsonStr);
+        if (res.error != null) {
+            return null;
+        }
+        index = new PurchaseIndex(version, res.purchases);
+        if ((version & 1) == 0) {
+            // Not read within a write, which may yet change it.
+            this.purchaseIndex = index;
+        }
+        return index;
+    }
+
+    // Called after a write (that began at writeVersion) whose only change to the purchases
+    // was to add the given one (if non-null) and remove the given ones. If the index was
+    // current before the write, and there hasn't been another write since, the new index is
+    // derived rather than left to be rebuilt.
+    private void updatePurchaseIndex(long writeVersion, @Nullable Purchase added, List<Purchase> removed) {
+        PurchaseIndex index = this.purchaseIndex;
+        if (index == null || index.version != writeVersion - 1) {
+            return;
+        }
+        PurchaseIndex updated = removed.isEmpty()
+                ? index.at(writeVersion + 1) : index.without(writeVersion + 1, removed);
+        if (added != null) {
+            updated = updated.with(writeVersion + 1, added);
+        }
+        // Not atomic with the check, but an index is only used if its version is current,
+        // so losing a race here just means a rebuild.
+        if (this.stateVersion.get() == writeVersion + 1) {
+            this.purchaseIndex = updated;
+        }
+    }
+
+    // Reloads the expiry scheduler's purchases, if it's active, in the background. Called
+    // after the calls that may change the stored purchases other than by adding or removing
+    // known ones.
+    private void reloadExpiryScheduler() {
+        this.expiryScheduler.reloadLater(() -> {
+            GetPurchasesResult res = getPurchases();
+            return res.error == null ? res.purchases : null;
+        });
+    }
+
+    // Updates the startup cache (see initAsync) from the datastore, in the background.
+    // Called after init and after the calls that may change the cached values (balance,
+    // hasTokens, isAccount); not after local purchase changes, locale changes, etc.
+    private void saveStartupCache() {
+        StartupCache cache = this.startupCache;
+        if (cache == null) {
+            return;
+        }
+        cache.saveLater(() -> {
+            if (this.startupCache != cache) {
+                // Re-inited with another datastore meanwhile.
+                return null;
+            }
+            BalanceResult balance = balance();
+            HasTokensResult hasTokens = hasTokens();
+            IsAccountResult isAccount = isAccount();
+            if (balance.error != null || hasTokens.error != null || isAccount.error != null) {
+                return null;
+            }
+            return new StartupCache.Values(balance.balance, hasTokens.hasTokens, isAccount.isAccount);
+        });
+    }
+
+    // Reads the state for the state change notifier, or returns null on error. The values
+    // are read separately, so may straddle a write; if so, the next change corrects them.
+    @Nullable
+    private StateChangeNotifier.Observed observeState() {
+        PurchaseIndex purchases = currentPurchaseIndex();
+        BalanceResult balance = balance();
+        HasTokensResult hasTokens = hasTokens();
+        IsAccountResult isAccount = isAccount();
+        if (purchases == null || balance.error != null || hasTokens.error != null || isAccount.error != null) {
+            return null;
+        }
+        return new StateChangeNotifier.Observed(balance.balance, hasTokens.hasTokens, isAccount.isAccount, purchases);
+    }
+
+    private interface NativeCall<T> {
+        T call(PsiCashLib lib);
+    }
+
+    // Performs a network-backed native call, holding networkLock and the write lock
+    // throughout.
+    // metricsCall is the call to record lock wait and native time against, or null.
+    private <T> T networkCall(@Nullable Metrics.Call metricsCall, NativeCall<T> op) {
+        long start = System.nanoTime();
+        boolean appliedDeferred = false;
+        networkLock.lock();
+        try {
+            synchronized (deferredWritesLock) {
+                deferringWrites = true;
+            }
+            lockWrite();
+            long locked = System.nanoTime();
+            this.metricsCall = metricsCall;
+            this.metricsNetworkNanos = 0;
+            this.metricsParseNanos = 0;
+            try {
+                return op.call(this);
+            }
+            finally {
+                appliedDeferred = applyDeferredWrites();
+                unlockWrite();
+                if (metricsCall != null) {
+                    long elapsed = System.nanoTime() - locked;
+                    this.metrics.recordTiming(metricsCall, Metrics.Phase.LOCK_WAIT,
+                            locked - start);
+                    this.metrics.recordTiming(metricsCall, Metrics.Phase.NATIVE, elapsed
+                            - this.metricsNetworkNanos - this.metricsParseNanos);
+                    if (this.metricsParseNanos > 0) {
+                        this.metrics.recordTiming(metricsCall, Metrics.Phase.PARSE, this.metricsParseNanos);
+                    }
+                }
+                this.metricsCall = null;
+            }
+        }
+        finally {
+            networkLock.unlock();
+            if (appliedDeferred) {
+                afterDeferredWrites();
+            }
+        }
+    }
+
+    // A local write deferred while a network-backed call holds the write lock. See
+    // beginLocalWrite.
+    private interface DeferredWrite {
+        // Called with the write lock held. The result of the native call is discarded.
+        void apply(PsiCashLib lib);
+    }
+
+    // Begins a local (not network-backed) write. If a network-backed call holds the write
+    // lock, or is about to take it, adds deferred to the writes it applies when it completes
+    // and returns false. Otherwise takes the write lock, as lockWrite does, and returns true;
+    // the caller then makes the write itself, and must call unlockWrite.
+    private boolean beginLocalWrite(DeferredWrite deferred) {
+        awaitInit();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (deferredWritesLock) {
+                    if (deferringWrites) {
+                        deferredWrites.add(deferred);
+                        return false;
+                    }
+                }
+                // Don't wait long for the lock: a network call may take it first.
+                try {
+                    if (stateLock.writeLock().tryLock(LOCAL_WRITE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (stateLock.getWriteHoldCount() == 1) {
+            stateVersion.incrementAndGet();
+        }
+        return true;
+    }
+
+    // Applies the writes deferred during the current network-backed call, until there are
+    // none left, and stops deferring. Called with the write lock held, at the end of the
+    // call. Returns true if any were applied.
+    private boolean applyDeferredWrites() {
+        boolean applied = false;
+        while (true) {
+            List<DeferredWrite> writes;
+            synchronized (deferredWritesLock) {
+                if (deferredWrites.isEmpty()) {
+                    deferringWrites = false;
+                    return applied;
+                }
+                writes = new ArrayList<>(deferredWrites);
+                deferredWrites.clear();
+            }
+            if (!applied) {
+                // So that the purchase index (including one derived by the network call) is
+                // rebuilt. The version stays odd, as the write continues.
+                stateVersion.addAndGet(2);
+                applied = true;
+            }
+            for (DeferredWrite write : writes) {
+                write.apply(this);
+            }
+        }
+    }
+
+    // Brings the startup cache, expiry scheduler and state change listener up to date after
+    // deferred writes were applied. Called without the write lock (see afterInit).
+    private void afterDeferredWrites() {
+        saveStartupCache();
+        reloadExpiryScheduler();
+        this.stateChangeNotifier.changed();
+    }
+
+    // Records the PARSE and TOTAL time of a network-backed call whose result was parsed
+    // outside of networkCall.
+    private void recordParseAndTotal(Metrics.Call metricsCall, long start, long parseStart) {
+        long now = System.nanoTime();
+        this.metrics.recordTiming(metricsCall, Metrics.Phase.PARSE, now - parseStart);
+        this.metrics.recordTiming(metricsCall, Metrics.Phase.TOTAL, now - start);
+    }
+
+    // Performs the read-only native call optimistically, retrying it under the read lock
+    // if a write overlapped.
+    private <T> T readState(NativeCall<T> op) {
+        awaitInit();
+        for (int attempt = 0; ; attempt++) {
+            long version = beginRead(attempt);
+            T res;
+            boolean valid;
+            try {
+                res = op.call(this);
+            }
+            finally {
+                valid = endRead(version);
+            }
+            if (valid) {
+                return res;
+            }
+        }
     }
 
     //
     // JNI helpers class
     //
 
-    private static class JNI {
+    // Package-private, along with the JNI.Result parsers they use, for the parser benchmarks
+    // in psicashlib-host.
+    static class JNI {
+
+        // The HTTP result as read by the native code. The fields are accessed by name from
+        // jnihelpers.cpp.
+        static class HTTPResult {
+            int code;
+            byte[] body;
+            // Flattened header name/value pairs. A header with multiple values has a pair
+            // for each.
+            String[] headers;
+            String error;
+
+            static HTTPResult from(HTTPRequester.Result result) {
+                HTTPResult res = new HTTPResult();
+                res.code = result.code;
+                res.error = result.error;
+                if (result.bodyBytes != null) {
+                    res.body = result.bodyBytes;
+                }
+                else if (result.body != null) {
+                    res.body = result.body.getBytes(UTF_8);
+                }
 
-        private static class Result {
+                if (result.headers != null) {
+                    List<String> flat = new ArrayList<>(result.headers.size() * 2);
+                    for (Map.Entry<String, List<String>> entry : result.headers.entrySet()) {
+                        if (entry.getKey() == null || entry.getValue() == null) {
+                            // The Java headers object puts the first HTTP line under a null key
+                            continue;
+                        }
+                        for (String value : entry.getValue()) {
+                            if (value != null) {
+                                flat.add(entry.getKey());
+                                flat.add(value);
+                            }
+                        }
+                    }
+                    res.headers = flat.toArray(new String[0]);
+                }
+                return res;
+            }
+        }
 
-            private static abstract class Base {
+        static class Result {
+
+            static abstract class Base {
                 @Nullable
                 Error error; // Null iff there's no error
 
+                // The native JSON is read in a single streaming pass directly into the result
+                // objects; no intermediate JSONObject tree is built.
                 public Base(String jsonStr) {
                     if (jsonStr == null) {
                         this.error = new Error("Base: got null JSON string", true);
                         return;
                     }
 
-                    JSONObject json;
-                    try {
-                        json = new JSONObject(jsonStr);
-                    } catch (JSONException e) {
-                        this.error = new Error("Base: Overall JSON parse failed: " + e.getMessage(), true);
-                        return;
-                    }
-
-                    this.error = Error.fromJSON(json);
-                    if (this.error != null) {
-                        // The JSON encoded an error
-                        return;
-                    }
-
-                    // There's no error, so let's extract the result.
-                    try {
-                        this.fromJSON(json, kResultKey);
+                    try (JsonReader reader = new JsonReader(new StringReader(jsonStr))) {
+                        boolean gotResult = false;
+
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            if (this.error == null && kErrorKey.equals(name)) {
+                                this.error = Error.fromJSON(reader);
+                            } else if (this.error == null && kResultKey.equals(name)
+                                    && reader.peek() != JsonToken.NULL) {
+                                // There's no error (yet), so let's extract the result.
+                                this.fromJSON(reader);
+                                gotResult = true;
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+
+                        if (this.error == null && !gotResult) {
+                            this.fromNull();
+                        }
                     } catch (JSONException e) {
                         this.error = new Error("Base: Result JSON parse failed: " + e.getMessage(), true);
-                        return;
+                    } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+                        this.error = new Error("Base: Overall JSON parse failed: " + e.getMessage(), true);
                     }
                 }
 
-                // Will be called iff there's no error, so must produce a value (except for ErrorOnly)
-                // or throw an exception.
-                abstract void fromJSON(JSONObject json, String key) throws JSONException;
+                // Will be called iff the result is present and non-null. Must consume the
+                // whole value at the reader's position and produce a value, or throw an
+                // exception.
+                abstract void fromJSON(JsonReader reader) throws IOException, JSONException;
+
+                // Will be called iff there's no error and the result is null or absent.
+                // Must produce a value (except for ErrorOnly) or throw an exception.
+                void fromNull() throws JSONException {
+                    throw new JSONException("result is null or absent");
+                }
             }
 
             private static class ErrorOnly extends Base {
@@ -1188,75 +3000,49 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
+                public void fromJSON(JsonReader reader) throws IOException {
                     // There's no result besides error or not-error
-                }
-            }
-
-            private static class IsAccount extends Base {
-                boolean isAccount;
-
-                public IsAccount(String jsonStr) {
-                    super(jsonStr);
+                    reader.skipValue();
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.isAccount = JSON.nonnullBoolean(json, key);
+                void fromNull() {
                 }
             }
 
-            private static class HasTokens extends Base {
-                boolean hasTokens;
+            static class GetPurchasePrices extends Base {
+                List<PurchasePrice> purchasePrices;
 
-                public HasTokens(String jsonStr) {
+                public GetPurchasePrices(String jsonStr) {
                     super(jsonStr);
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.hasTokens = JSON.nonnullBoolean(json, key);
-                }
-            }
-
-            private static class Balance extends Base {
-                long balance;
-
-                public Balance(String jsonStr) {
-                    super(jsonStr);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchasePrices = JSON.nextList(reader, PsiCashLib.PurchasePrice::fromJSON);
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.balance = JSON.nonnullLong(json, key);
+                void fromNull() {
+                    this.purchasePrices = new ArrayList<>();
                 }
             }
 
-            private static class GetPurchasePrices extends Base {
-                List<PurchasePrice> purchasePrices;
+            static class GetPurchases extends Base {
+                List<Purchase> purchases;
 
-                public GetPurchasePrices(String jsonStr) {
+                public GetPurchases(String jsonStr) {
                     super(jsonStr);
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchasePrices = JSON.nullableList(
-                            PsiCashLib.PurchasePrice.class, json, key, PsiCashLib.PurchasePrice::fromJSON, true);
-                }
-            }
-
-            private static class GetPurchases extends Base {
-                List<Purchase> purchases;
-
-                public GetPurchases(String jsonStr) {
-                    super(jsonStr);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchases = JSON.nullableList(
-                            PsiCashLib.Purchase.class, json, key, PsiCashLib.Purchase::fromJSON, true);
+                void fromNull() {
+                    this.purchases = new ArrayList<>();
                 }
             }
 
@@ -1268,13 +3054,17 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchases = JSON.nullableList(
-                            PsiCashLib.Purchase.class, json, key, PsiCashLib.Purchase::fromJSON, true);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.purchases = new ArrayList<>();
                 }
             }
 
-            private static class GetAuthorizations extends Base {
+            static class GetAuthorizations extends Base {
                 List<Authorization> authorizations;
 
                 public GetAuthorizations(String jsonStr) {
@@ -1282,9 +3072,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.authorizations = JSON.nullableList(
-                            PsiCashLib.Authorization.class, json, key, PsiCashLib.Authorization::fromJSON, true);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.authorizations = JSON.nextList(reader, PsiCashLib.Authorization::fromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.authorizations = new ArrayList<>();
                 }
             }
 
@@ -1296,13 +3090,17 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchases = JSON.nullableList(
-                            PsiCashLib.Purchase.class, json, key, PsiCashLib.Purchase::fromJSON, true);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.purchases = new ArrayList<>();
                 }
             }
 
-            private static class DecodeAuthorization extends Base {
+            static class DecodeAuthorization extends Base {
                 Authorization authorization;
 
                 public DecodeAuthorization(String jsonStr) {
@@ -1310,9 +3108,58 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    json = JSON.nonnullObject(json, key);
-                    this.authorization = PsiCashLib.Authorization.fromJSON(json);
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    this.authorization = PsiCashLib.Authorization.fromJSON(reader);
+                }
+            }
+
+            static class DecodeAuthorizations extends Base {
+                List<DecodeAuthorizationResult> results;
+
+                public DecodeAuthorizations(String jsonStr) {
+                    super(jsonStr);
+                }
+
+                @Override
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.results = JSON.nextList(reader, DecodeAuthorizations::itemFromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.results = new ArrayList<>();
+                }
+
+                // Each item is an error-or-result object of its own. A bad item gives an
+                // error result rather than being skipped, so that the results stay in step
+                // with the inputs.
+                private static DecodeAuthorizationResult itemFromJSON(JsonReader reader) throws IOException {
+                    Error error = null;
+                    Authorization authorization = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (error == null && kErrorKey.equals(name)) {
+                            error = Error.fromJSON(reader);
+                        } else if (kResultKey.equals(name) && reader.peek() != JsonToken.NULL) {
+                            try {
+                                authorization = PsiCashLib.Authorization.fromJSON(reader);
+                            } catch (JSONException e) {
+                                error = new Error("DecodeAuthorizations: item JSON parse failed: " + e.getMessage(), true);
+                            }
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    if (error != null) {
+                        return new DecodeAuthorizationResult(error);
+                    }
+                    if (authorization == null) {
+                        return new DecodeAuthorizationResult(new Error("DecodeAuthorizations: item result is null or absent", true));
+                    }
+                    return new DecodeAuthorizationResult(authorization);
                 }
             }
 
@@ -1324,13 +3171,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    // Even a valid result may give a null value (iff no existing expiring purchases)                    json = JSON.nullableObject(json, key);
-                    json = JSON.nullableObject(json, key);
-                    if (json == null) {
-                        return;
-                    }
-                    this.purchase = PsiCashLib.Purchase.fromJSON(json);
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    this.purchase = PsiCashLib.Purchase.fromJSON(reader);
+                }
+
+                @Override
+                void fromNull() {
+                    // Even a valid result may give a null value (iff no existing expiring purchases)
                 }
             }
 
@@ -1342,9 +3189,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchases = JSON.nullableList(
-                            PsiCashLib.Purchase.class, json, key, PsiCashLib.Purchase::fromJSON, true);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.purchases = new ArrayList<>();
                 }
             }
 
@@ -1356,9 +3207,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
-                    this.purchases = JSON.nullableList(
-                            PsiCashLib.Purchase.class, json, key, PsiCashLib.Purchase::fromJSON, true);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.purchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
+                }
+
+                @Override
+                void fromNull() {
+                    this.purchases = new ArrayList<>();
                 }
             }
 
@@ -1370,8 +3225,8 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.url = JSON.nonnullString(json, key);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.url = reader.nextString();
                 }
             }
 
@@ -1383,8 +3238,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.username = JSON.nullableString(json, key);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.username = reader.nextString();
+                }
+
+                @Override
+                void fromNull() {
+                    // Null if not an account or logged out
                 }
             }
 
@@ -1396,9 +3256,13 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) {
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.data = reader.nextString();
+                }
+
+                @Override
+                void fromNull() {
                     // Can be null even on success
-                    this.data = JSON.nullableString(json, key);
                 }
             }
 
@@ -1410,8 +3274,70 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    this.jsonString = JSON.nonnullString(json, key);
+                public void fromJSON(JsonReader reader) throws IOException {
+                    this.jsonString = reader.nextString();
+                }
+            }
+
+            private static class Snapshot extends Base {
+                StateSnapshot snapshot;
+
+                public Snapshot(String jsonStr) {
+                    super(jsonStr);
+                }
+
+                @Override
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    Long balance = null;
+                    List<PurchasePrice> purchasePrices = new ArrayList<>();
+                    List<Purchase> activePurchases = new ArrayList<>();
+                    Purchase nextExpiringPurchase = null;
+                    Boolean isAccount = null;
+                    Boolean hasTokens = null;
+                    String accountUsername = null;
+
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "balance":
+                                balance = JSON.nextNullableLong(reader);
+                                break;
+                            case "purchase_prices":
+                                purchasePrices = JSON.nextList(reader, PsiCashLib.PurchasePrice::fromJSON);
+                                break;
+                            case "active_purchases":
+                                activePurchases = JSON.nextList(reader, PsiCashLib.Purchase::fromJSON);
+                                break;
+                            case "next_expiring_purchase":
+                                // Even a valid result may give a null value (iff no existing expiring purchases)
+                                if (JSON.isNextNull(reader)) {
+                                    break;
+                                }
+                                nextExpiringPurchase = PsiCashLib.Purchase.fromJSON(reader);
+                                break;
+                            case "is_account":
+                                isAccount = JSON.nextNullableBoolean(reader);
+                                break;
+                            case "has_tokens":
+                                hasTokens = JSON.nextNullableBoolean(reader);
+                                break;
+                            case "account_username":
+                                accountUsername = JSON.nextNullableString(reader);
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    this.snapshot = new StateSnapshot(
+                            JSON.requireNonnull(balance, "balance"),
+                            purchasePrices,
+                            activePurchases,
+                            nextExpiringPurchase,
+                            JSON.requireNonnull(isAccount, "is_account"),
+                            JSON.requireNonnull(hasTokens, "has_tokens"),
+                            accountUsername);
                 }
             }
 
@@ -1424,14 +3350,28 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    json = JSON.nonnullObject(json, key);
-                    this.status = Status.fromCode(JSON.nonnullInteger(json, kStatusKey));
-                    this.reconnectRequired = JSON.nonnullBoolean(json, "reconnect_required");
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    Integer status = null;
+                    Boolean reconnectRequired = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (kStatusKey.equals(name)) {
+                            status = JSON.nextNullableInteger(reader);
+                        } else if ("reconnect_required".equals(name)) {
+                            reconnectRequired = JSON.nextNullableBoolean(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    this.status = Status.fromCode(JSON.requireNonnull(status, kStatusKey));
+                    this.reconnectRequired = JSON.requireNonnull(reconnectRequired, "reconnect_required");
                 }
             }
 
-            private static class NewExpiringPurchase extends Base {
+            static class NewExpiringPurchase extends Base {
                 public Status status;
                 public Purchase purchase;
 
@@ -1440,13 +3380,25 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    json = JSON.nonnullObject(json, key);
-
-                    this.status = Status.fromCode(JSON.nonnullInteger(json, kStatusKey));
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    Integer status = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (kStatusKey.equals(name)) {
+                            status = JSON.nextNullableInteger(reader);
+                        } else if ("purchase".equals(name)) {
+                            // Allow for null purchase, as it will only be populated on status==success.
+                            if (!JSON.isNextNull(reader)) {
+                                this.purchase = Purchase.fromJSON(reader);
+                            }
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
 
-                    // Allow for null purchase, as it will only be populated on status==success.
-                    this.purchase = Purchase.fromJSON(JSON.nullableObject(json, "purchase"));
+                    this.status = Status.fromCode(JSON.requireNonnull(status, kStatusKey));
 
                     if (this.status == Status.SUCCESS && this.purchase == null) {
                         // Not a sane state.
@@ -1463,9 +3415,19 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    json = JSON.nonnullObject(json, key);
-                    this.reconnectRequired = JSON.nonnullBoolean(json, "reconnect_required");
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    Boolean reconnectRequired = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("reconnect_required".equals(reader.nextName())) {
+                            reconnectRequired = JSON.nextNullableBoolean(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    this.reconnectRequired = JSON.requireNonnull(reconnectRequired, "reconnect_required");
                 }
             }
 
@@ -1478,11 +3440,22 @@ public class PsiCashLib {
                 }
 
                 @Override
-                public void fromJSON(JSONObject json, String key) throws JSONException {
-                    json = JSON.nonnullObject(json, key);
+                public void fromJSON(JsonReader reader) throws IOException, JSONException {
+                    Integer status = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (kStatusKey.equals(name)) {
+                            status = JSON.nextNullableInteger(reader);
+                        } else if ("last_tracker_merge".equals(name)) {
+                            this.lastTrackerMerge = JSON.nextNullableBoolean(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
 
-                    this.status = Status.fromCode(JSON.nonnullInteger(json, kStatusKey));
-                    this.lastTrackerMerge = JSON.nullableBoolean(json, "last_tracker_merge");
+                    this.status = Status.fromCode(JSON.requireNonnull(status, kStatusKey));
                 }
             }
         }
@@ -1494,284 +3467,114 @@ public class PsiCashLib {
     //
 
     private static class JSON {
-        // The standard org.json.JSONObject does some unpleasant coercing of null into values, so
-        // we're going to provide a bunch of helpers that behave sanely and consistently.
-        // Please use these instead of the standard methods. (And consider adding more if any are missing.)
-
-        @Nullable
-        private static Boolean nullableBoolean(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optBoolean(key, false);
-        }
-
-        private static boolean nonnullBoolean(JSONObject json, String key) throws JSONException {
-            Boolean v = nullableBoolean(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullBoolean can't find non-null key: " + key);
-            }
-            return v;
-        }
-
-        @Nullable
-        private static Double nullableDouble(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optDouble(key, 0.0);
-        }
-
-        private static double nonnullDouble(JSONObject json, String key) throws JSONException {
-            Double v = nullableDouble(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullDouble can't find non-null key: " + key);
-            }
-            return v;
-        }
-
-        @Nullable
-        private static Integer nullableInteger(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optInt(key, 0);
-        }
-
-        private static int nonnullInteger(JSONObject json, String key) throws JSONException {
-            Integer v = nullableInteger(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullInteger can't find non-null key: " + key);
-            }
-            return v;
-        }
-
-        @Nullable
-        private static Long nullableLong(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optLong(key, 0L);
-        }
-
-        private static long nonnullLong(JSONObject json, String key) throws JSONException {
-            Long v = nullableLong(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullLong can't find non-null key: " + key);
-            }
-            return v;
-        }
-
-        @Nullable
-        private static String nullableString(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optString(key, null);
-        }
-
+        // This function throws if the date string is present, but cannot be converted to a Date.
         @Nullable
-        private static String nullableString(JSONArray json, int index) {
-            if (index >= json.length() || json.isNull(index)) {
+        private static Date nullableDate(@Nullable String dateString, String key) throws JSONException {
+            if (dateString == null) {
                 return null;
             }
-            return json.optString(index, null);
-        }
 
-        @NonNull
-        private static String nonnullString(JSONArray json, int index) throws JSONException {
-            String v = nullableString(json, index);
-            if (v == null) {
-                throw new JSONException("nonnullString can't find non-null index: " + index);
+            try {
+                return new Date(ISO8601.parseMillis(dateString));
+            } catch (ParseException e) {
+                // Should not happen. No way to recover.
+                throw new JSONException("Failed to parse date with key " + key + "; error: " + e);
             }
-            return v;
         }
 
         @NonNull
-        private static String nonnullString(JSONObject json, String key) throws JSONException {
-            String v = nullableString(json, key);
+        private static Date nonnullDate(@Nullable String dateString, String key) throws JSONException {
+            Date v = nullableDate(dateString, key);
             if (v == null) {
-                throw new JSONException("nonnullString can't find non-null key: " + key);
+                throw new JSONException("nonnullDate can't find non-null key: " + key);
             }
             return v;
         }
 
-        @Nullable
-        private static JSONObject nullableObject(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optJSONObject(key);
-        }
+        //
+        // Streaming helpers. These read the value at the current JsonReader position,
+        // treating a JSON null as a Java null. They throw IOException, IllegalStateException,
+        // or NumberFormatException if the JSON is malformed or of the wrong type; JNI.Result.Base
+        // turns those into a critical error.
+        //
 
         @NonNull
-        private static JSONObject nonnullObject(JSONObject json, String key) throws JSONException {
-            JSONObject v = nullableObject(json, key);
+        private static <T> T requireNonnull(@Nullable T v, String key) throws JSONException {
             if (v == null) {
-                throw new JSONException("nonnullObject can't find non-null key: " + key);
+                throw new JSONException("requireNonnull can't find non-null key: " + key);
             }
             return v;
         }
 
-        @Nullable
-        private static JSONObject nullableObject(JSONArray json, int index) {
-            if (index >= json.length() || json.isNull(index)) {
-                return null;
+        // If the next value is null, consumes it and returns true. Otherwise leaves it.
+        private static boolean isNextNull(JsonReader reader) throws IOException {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                return true;
             }
-            return json.optJSONObject(index);
+            return false;
         }
 
-        @NonNull
-        private static JSONObject nonnullObject(JSONArray json, int index) throws JSONException {
-            JSONObject v = nullableObject(json, index);
-            if (v == null) {
-                throw new JSONException("nonnullObject can't find non-null index: " + index);
+        // Begins reading an object, returning true; or consumes a null, returning false.
+        private static boolean beginNullableObject(JsonReader reader) throws IOException {
+            if (isNextNull(reader)) {
+                return false;
             }
-            return v;
+            reader.beginObject();
+            return true;
         }
 
         @Nullable
-        private static JSONArray nullableArray(JSONObject json, String key) {
-            if (!json.has(key) || json.isNull(key)) {
-                return null;
-            }
-            return json.optJSONArray(key);
-        }
-
-        @NonNull
-        private static JSONArray nonnullArray(JSONObject json, String key) throws JSONException {
-            JSONArray v = nullableArray(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullArray can't find non-null key: " + key);
-            }
-            return v;
+        private static String nextNullableString(JsonReader reader) throws IOException {
+            return isNextNull(reader) ? null : reader.nextString();
         }
 
         @Nullable
-        private static JSONArray nullableArray(JSONArray json, int index) {
-            if (index >= json.length() || json.isNull(index)) {
-                return null;
-            }
-            return json.optJSONArray(index);
-        }
-
-        @NonNull
-        private static JSONArray nonnullArray(JSONArray json, int index) throws JSONException {
-            JSONArray v = nullableArray(json, index);
-            if (v == null) {
-                throw new JSONException("nonnullArray can't find non-null index: " + index);
-            }
-            return v;
+        private static Boolean nextNullableBoolean(JsonReader reader) throws IOException {
+            return isNextNull(reader) ? null : reader.nextBoolean();
         }
 
-        // This function throws if the JSON field is present, but cannot be converted to a Date.
         @Nullable
-        private static Date nullableDate(JSONObject json, String key) throws JSONException {
-            String dateString = nullableString(json, key);
-            if (dateString == null) {
-                return null;
-            }
-
-            Date date;
-
-            // We need to try different formats depending on the presence of milliseconds.
-            // Note that we are setting parsing mode to strict (`setLenient(false)`) since
-            // lenient parsing may produce incorrect output if the input date string is
-            // not formatted exactly as expected.
-            SimpleDateFormat isoFormatWithMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-            isoFormatWithMS.setTimeZone(TimeZone.getTimeZone("UTC"));
-            isoFormatWithMS.setLenient(false);
-            try {
-                date = isoFormatWithMS.parse(dateString);
-            } catch (ParseException e1) {
-                SimpleDateFormat isoFormatWithoutMS = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-                isoFormatWithMS.setTimeZone(TimeZone.getTimeZone("UTC"));
-                isoFormatWithMS.setLenient(false);
-                try {
-                    date = isoFormatWithoutMS.parse(dateString);
-                } catch (ParseException e2) {
-                    // Should not happen. No way to recover.
-                    throw new JSONException("Failed to parse date with key " + key + "; error: " + e2);
-                }
-            }
-
-            return date;
-        }
-
-        @NonNull
-        private static Date nonnullDate(JSONObject json, String key) throws JSONException {
-            Date v = nullableDate(json, key);
-            if (v == null) {
-                throw new JSONException("nonnullDate can't find non-null key: " + key);
-            }
-            return v;
+        private static Integer nextNullableInteger(JsonReader reader) throws IOException {
+            return isNextNull(reader) ? null : reader.nextInt();
         }
 
-        // To be used for JSON-primitive types (String, boolean, etc.).
         @Nullable
-        private static <T> List<T> nullableList(Class<T> clazz, JSONObject json, String key) {
-            JSONArray jsonArray = nullableArray(json, key);
-            if (jsonArray == null) {
-                return null;
-            }
-
-            ArrayList<T> result = new ArrayList<>();
-
-            for (int i = 0; i < jsonArray.length(); i++) {
-                result.add(nullable(clazz, jsonArray, i));
-            }
-
-            return result;
+        private static Long nextNullableLong(JsonReader reader) throws IOException {
+            return isNextNull(reader) ? null : reader.nextLong();
         }
 
-        interface Deserializer {
-            Object fromJSON(JSONObject json) throws JSONException;
+        interface Deserializer<T> {
+            // Must fully consume the object at the reader position, even if JSONException
+            // is thrown.
+            T fromJSON(JsonReader reader) throws IOException, JSONException;
         }
 
-        // Deserialize a list using an object deserializer method. If supplyDefault is
-        // true, an empty list will be returned rather than null.
-        @Nullable
-        private static <T> List<T> nullableList(Class<T> clazz, JSONObject json, String key, Deserializer deserializer, boolean supplyDefault) {
-            JSONArray jsonArray = nullableArray(json, key);
-            if (jsonArray == null) {
-                return supplyDefault ? new ArrayList<>() : null;
-            }
-
+        // Deserialize a list using an object deserializer method. A null array gives an
+        // empty list. Null items, and items that fail to deserialize, are skipped.
+        @NonNull
+        private static <T> List<T> nextList(JsonReader reader, Deserializer<T> deserializer) throws IOException {
             ArrayList<T> result = new ArrayList<>();
+            if (isNextNull(reader)) {
+                return result;
+            }
 
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject j = JSON.nullableObject(jsonArray, i);
-                if (j == null) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
                     continue;
                 }
                 try {
-                    result.add(cast(clazz, deserializer.fromJSON(j)));
+                    result.add(deserializer.fromJSON(reader));
                 } catch (JSONException e) {
                     continue;
                 }
             }
+            reader.endArray();
 
             return result;
         }
-
-        // Helper; should (probably) not be used directly
-        @Nullable
-        private static <T> T cast(Class<T> clazz, Object o) {
-            if (o == null) {
-                return null;
-            }
-
-            assert clazz.isAssignableFrom(o.getClass());
-
-            return clazz.cast(o);
-        }
-
-        // Helper; should (probably) not be used directly
-        @Nullable
-        private static <T> T nullable(Class<T> clazz, JSONArray json, int key) {
-            Object o = json.opt(key);
-            return cast(clazz, o);
-        }
     }
 
     /*
@@ -1793,8 +3596,14 @@ public class PsiCashLib {
     Any field may be absent or null if not applicable, but either "error" or "result" must be present.
     */
 
-    static {
-        // Load the C++ library.
+    // Loads the C++ library, if it isn't already. This is done on first use rather than
+    // when the class loads, so that initAsync can do it off the calling thread, and so
+    // that the pure-Java parts of the library can be used without it.
+    private static synchronized void loadLibrary() {
+        if (libraryLoaded) {
+            return;
+        }
+
         System.loadLibrary("psicash");
 
         // Call the C++ init function each time the library loads.
@@ -1802,6 +3611,7 @@ public class PsiCashLib {
             // This shouldn't happen, unless the apk is misconfigured.
             throw new AssertionError("psicash library init failed");
         }
+        libraryLoaded = true;
     }
 
     private static native boolean NativeStaticInit();
@@ -1823,29 +3633,17 @@ public class PsiCashLib {
      */
     private native String NativeSetLocale(String locale);
 
-    /**
-     * @return {
-     * "error": {...},
-     * "result": boolean
-     * }
+    /*
+     * The following scalar getters are polled frequently, so they return their value
+     * directly rather than using the JSON structure. They cannot produce an error value;
+     * a glue failure is instead reported by throwing a RuntimeException.
      */
-    private native String NativeHasTokens();
 
-    /**
-     * @return {
-     * "error": {...},
-     * "result": boolean
-     * }
-     */
-    private native String NativeIsAccount();
+    private native boolean NativeHasTokens();
 
-    /**
-     * @return {
-     * "error": {...},
-     * "result": long
-     * }
-     */
-    private native String NativeBalance();
+    private native boolean NativeIsAccount();
+
+    private native long NativeBalance();
 
     /**
      * @return {
@@ -1887,6 +3685,16 @@ public class PsiCashLib {
      */
     private native static String NativeDecodeAuthorization(String encoded_authorization);
 
+    /**
+     * @return {
+     * "error": {...},
+     * "result": [ ... {"error": {...}, "result": Authorization} ... ]
+     * }
+     * With an item for each encoded authorization, in the same order, as
+     * NativeDecodeAuthorization would return for it.
+     */
+    private native static String NativeDecodeAuthorizations(String[] encoded_authorizations);
+
     /**
      * @return {
      * "error": {...},
@@ -1974,6 +3782,22 @@ public class PsiCashLib {
      */
     private native String NativeGetDiagnosticInfo(boolean lite);
 
+    /**
+     * @return {
+     * "error": {...},
+     * "result": {
+     *   "balance": long,
+     *   "purchase_prices": [ ... PurchasePrices ... ],
+     *   "active_purchases": [ ... Purchases ... ],
+     *   "next_expiring_purchase": Purchase or null,
+     *   "is_account": boolean,
+     *   "has_tokens": boolean,
+     *   "account_username": string or null
+     * }
+     * }
+     */
+    private native String NativeSnapshot();
+
     /**
      * @return {
      * "error": {...},
@@ -2015,4 +3839,19 @@ public class PsiCashLib {
     protected native String NativeTestReward(String transactionClass, String distinguisher);
 
     protected native boolean NativeTestSetRequestMutators(String[] mutators);
+
+    // The JSON-returning versions of the scalar getters, retained for benchmark comparison.
+
+    protected native String NativeTestHasTokensJSON();
+
+    protected native String NativeTestIsAccountJSON();
+
+    protected native String NativeTestBalanceJSON();
+
+    /**
+     * Makes the given number of requests through the HTTP request glue, with representative
+     * parameters. For benchmarking; the requester should return a canned 200 response.
+     * @return null on success, error message otherwise.
+     */
+    protected native String NativeTestHTTPRequestGlue(int iterations);
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the stored purchases, indexed by transaction ID and by
+ * authorization ID, so that looking up k IDs is O(k) rather than a scan of all purchases
+ * per ID.
+ *
+ * A snapshot is tagged with the PsiCashLib state version it was taken at, and is only
+ * valid while the version is unchanged. Writes that know exactly how the purchases changed
+ * derive the next snapshot: with without() for removals (removePurchases, expirePurchases),
+ * with() for a new purchase (newExpiringPurchase), and at() for writes that don't touch
+ * purchases. Other writes (refreshState, login, logout, reset) leave it to be rebuilt on
+ * the next lookup.
+ */
+class PurchaseIndex {
+    final long version;
+    private final Map<String, PsiCashLib.Purchase> byTransactionID;
+    private final Map<String, PsiCashLib.Purchase> byAuthorizationID;
+
+    PurchaseIndex(long version, @NonNull Collection<PsiCashLib.Purchase> purchases) {
+        this.version = version;
+        this.byTransactionID = new HashMap<>(capacity(purchases.size()));
+        this.byAuthorizationID = new HashMap<>(capacity(purchases.size()));
+        for (PsiCashLib.Purchase p : purchases) {
+            add(p);
+        }
+    }
+
+    private PurchaseIndex(long version, PurchaseIndex from, boolean copy) {
+        this.version = version;
+        this.byTransactionID = copy ? new HashMap<>(from.byTransactionID) : from.byTransactionID;
+        this.byAuthorizationID = copy ? new HashMap<>(from.byAuthorizationID) : from.byAuthorizationID;
+    }
+
+    private static int capacity(int size) {
+        // Enough that the maps don't resize at the default load factor.
+        return Math.max(16, (int)(size / 0.75f) + 1);
+    }
+
+    private void add(PsiCashLib.Purchase p) {
+        if (p.id != null) {
+            this.byTransactionID.put(p.id, p);
+        }
+        if (p.authorization != null && p.authorization.id != null) {
+            this.byAuthorizationID.put(p.authorization.id, p);
+        }
+    }
+
+    int size() {
+        return this.byTransactionID.size();
+    }
+
+    /**
+     * @return Copies of the purchases with the given authorization IDs, in the order of
+     * the IDs. Unknown (or null) IDs are skipped, as are repeats.
+     */
+    @NonNull
+    List<PsiCashLib.Purchase> byAuthorizationIDs(@Nullable Collection<String> authorizationIDs) {
+        if (authorizationIDs == null || authorizationIDs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<PsiCashLib.Purchase> res = new ArrayList<>(Math.min(authorizationIDs.size(), size()));
+        Set<PsiCashLib.Purchase> seen = authorizationIDs.size() > 1 ? new HashSet<>() : null;
+        for (String id : authorizationIDs) {
+            PsiCashLib.Purchase p = id == null ? null : this.byAuthorizationID.get(id);
+            if (p != null && (seen == null || seen.add(p))) {
+                // The snapshot's purchases must not be changed, and their fields are public.
+                res.add(p.copy());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return Copies of the purchases with the given transaction IDs, in the order of the
+     * IDs. Unknown (or null) IDs are skipped, as are repeats.
+     */
+    @NonNull
+    List<PsiCashLib.Purchase> byTransactionIDs(@Nullable Collection<String> transactionIDs) {
+        List<String> known = knownTransactionIDs(transactionIDs);
+        List<PsiCashLib.Purchase> res = new ArrayList<>(known.size());
+        for (String id : known) {
+            res.add(this.byTransactionID.get(id).copy());
+        }
+        return res;
+    }
+
+    /**
+     * @return Copies of the purchases whose (local) expiry is before nowMillis, in no
+     * particular order. This is a scan of all purchases.
+     */
+    @NonNull
+    List<PsiCashLib.Purchase> expiredBefore(long nowMillis) {
+        List<PsiCashLib.Purchase> res = new ArrayList<>();
+        for (PsiCashLib.Purchase p : this.byTransactionID.values()) {
+            if (p.expiry != null && p.expiry.getTime() < nowMillis) {
+                res.add(p.copy());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return The subset of transactionIDs that are stored purchases, without repeats.
+     */
+    @NonNull
+    List<String> knownTransactionIDs(@Nullable Collection<String> transactionIDs) {
+        if (transactionIDs == null || transactionIDs.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> res = new ArrayList<>(Math.min(transactionIDs.size(), size()));
+        Set<String> seen = transactionIDs.size() > 1 ? new HashSet<>() : null;
+        for (String id : transactionIDs) {
+            if (id != null && this.byTransactionID.containsKey(id) && (seen == null || seen.add(id))) {
+                res.add(id);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return Copies of the purchases in this snapshot whose transaction IDs aren't in
+     * other, in no particular order.
+     */
+    @NonNull
+    List<PsiCashLib.Purchase> notIn(@NonNull PurchaseIndex other) {
+        if (other.byTransactionID == this.byTransactionID) {
+            // Derived with at(), so the same purchases.
+            return Collections.emptyList();
+        }
+        List<PsiCashLib.Purchase> res = new ArrayList<>();
+        for (Map.Entry<String, PsiCashLib.Purchase> entry : this.byTransactionID.entrySet()) {
+            if (!other.byTransactionID.containsKey(entry.getKey())) {
+                res.add(entry.getValue().copy());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return This snapshot, at a later version. For a write that didn't change purchases.
+     */
+    @NonNull
+    PurchaseIndex at(long version) {
+        return new PurchaseIndex(version, this, false);
+    }
+
+    /**
+     * @return A snapshot at version, of this one plus the given added purchase.
+     */
+    @NonNull
+    PurchaseIndex with(long version, @NonNull PsiCashLib.Purchase added) {
+        PurchaseIndex res = new PurchaseIndex(version, this, true);
+        // The caller is given the same purchase, and its fields are public.
+        res.add(added.copy());
+        return res;
+    }
+
+    /**
+     * @return A snapshot at version, of this one minus the given removed purchases.
+     */
+    @NonNull
+    PurchaseIndex without(long version, @NonNull Collection<PsiCashLib.Purchase> removed) {
+        PurchaseIndex res = new PurchaseIndex(version, this, true);
+        for (PsiCashLib.Purchase p : removed) {
+            if (p.id != null) {
+                res.byTransactionID.remove(p.id);
+            }
+            if (p.authorization != null && p.authorization.id != null) {
+                res.byAuthorizationID.remove(p.authorization.id);
+            }
+        }
+        return res;
+    }
+}
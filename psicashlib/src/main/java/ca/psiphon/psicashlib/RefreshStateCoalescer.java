@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Merges concurrent (non-local) refreshState calls into a single server request.
+ *
+ * A call joins a pending request (in flight, or waiting for another network call to
+ * finish) if that request's purchase classes include all of the call's purchase classes.
+ * Every caller that joins a request gets the same RefreshStateResult, unless the caller
+ * that made the request was interrupted (by the timeout or cancellation of its async
+ * call); then the others retry.
+ *
+ * If a minimum interval is set, a call that comes within that interval of a successful
+ * refresh with compatible purchase classes gets that refresh's result without making a
+ * request at all.
+ */
+class RefreshStateCoalescer {
+    interface Refresher {
+        @NonNull
+        PsiCashLib.RefreshStateResult refresh(String[] purchaseClasses);
+    }
+
+    private static class Flight {
+        final Set<String> purchaseClasses;
+        final CountDownLatch done = new CountDownLatch(1);
+        PsiCashLib.RefreshStateResult result;
+
+        Flight(Set<String> purchaseClasses) {
+            this.purchaseClasses = purchaseClasses;
+        }
+    }
+
+    private final Object lock = new Object();
+    // Requests that have been started by a caller but not completed. Guarded by lock.
+    private final List<Flight> pending = new ArrayList<>();
+    // The most recent successful refresh, used for throttling. Guarded by lock.
+    @Nullable
+    private Flight lastSuccess;
+    private long lastSuccessNanos;
+    // Incremented by invalidate, so that a refresh that was in progress when it was called
+    // (against the old user, say) doesn't become lastSuccess. Guarded by lock.
+    private long generation;
+    private long minIntervalNanos = 0;
+
+    private long calls;
+    private long requests;
+    private long coalesced;
+    private long throttled;
+    private long notModified;
+
+    void setMinInterval(long millis) {
+        synchronized (lock) {
+            this.minIntervalNanos = millis * 1000000L;
+        }
+    }
+
+    /**
+     * Forget the last successful refresh, so that the next call isn't throttled. To be
+     * called when the user changes (reset, login, logout).
+     */
+    void invalidate() {
+        synchronized (lock) {
+            this.lastSuccess = null;
+            this.generation++;
+        }
+    }
+
+    @NonNull
+    PsiCashLib.RefreshStateStats stats() {
+        synchronized (lock) {
+            return new PsiCashLib.RefreshStateStats(calls, requests, coalesced, throttled, notModified);
+        }
+    }
+
+    @NonNull
+    PsiCashLib.RefreshStateResult refresh(@Nullable List<String> purchaseClasses, Refresher refresher) {
+        Set<String> classes = new HashSet<>();
+        if (purchaseClasses != null) {
+            classes.addAll(purchaseClasses);
+        }
+
+        boolean counted = false;
+        while (true) {
+            Flight flight = null;
+            boolean leader = false;
+            long startGeneration;
+            synchronized (lock) {
+                startGeneration = this.generation;
+                if (!counted) {
+                    calls++;
+                    counted = true;
+                }
+
+                if (this.minIntervalNanos > 0 && this.lastSuccess != null
+                        && System.nanoTime() - this.lastSuccessNanos < this.minIntervalNanos
+                        && this.lastSuccess.purchaseClasses.containsAll(classes)) {
+                    throttled++;
+                    PsiCashLib.RefreshStateResult last = this.lastSuccess.result;
+                    // The reconnect (if any) was already signalled to the original caller.
+                    return new PsiCashLib.RefreshStateResult(last.error, last.status, false, false, true);
+                }
+
+                for (Flight f : this.pending) {
+                    if (f.purchaseClasses.containsAll(classes)) {
+                        flight = f;
+                        break;
+                    }
+                }
+
+                if (flight != null) {
+                    coalesced++;
+                }
+                else {
+                    requests++;
+                    flight = new Flight(classes);
+                    this.pending.add(flight);
+                    leader = true;
+                }
+            }
+
+            if (!leader) {
+                awaitUninterruptibly(flight.done);
+                if (flight.result != null) {
+                    return flight.result;
+                }
+                // The leader was interrupted (its async call timed out or was cancelled),
+                // so its result (probably "Request cancelled") isn't this caller's. Go
+                // again, as the leader of a new request or joining another.
+                continue;
+            }
+
+            PsiCashLib.RefreshStateResult result = null;
+            try {
+                result = refresher.refresh(classes.toArray(new String[0]));
+            }
+            finally {
+                // An interrupted leader's result is only its own: the request may not have
+                // been made, and the joiners weren't cancelled. They're released with no
+                // result, and retry.
+                boolean interrupted = Thread.currentThread().isInterrupted();
+                synchronized (lock) {
+                    if (result == null) {
+                        // The refresher threw, so there's no result to share. (Not expected.)
+                        result = new PsiCashLib.RefreshStateResult(
+                                new PsiCashLib.Error("refreshState failed unexpectedly", true), null, false);
+                    }
+                    if (!interrupted) {
+                        flight.result = result;
+                    }
+                    if (result.notModified) {
+                        notModified++;
+                    }
+                    this.pending.remove(flight);
+                    if (!interrupted && result.error == null && result.status == PsiCashLib.Status.SUCCESS
+                            && this.generation == startGeneration) {
+                        this.lastSuccess = flight;
+                        this.lastSuccessNanos = System.nanoTime();
+                    }
+                }
+                flight.done.countDown();
+            }
+
+            return result;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
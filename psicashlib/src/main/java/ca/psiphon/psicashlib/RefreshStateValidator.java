@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * Makes refresh-state requests conditional, using the ETag of the last successful
+ * refresh.
+ *
+ * The core library has no notion of conditional requests, so this is done entirely in the
+ * glue: the validator is stored, If-None-Match is added to the outgoing request, and a 304
+ * means the state committed with that validator is still current, so there is nothing to
+ * apply. The core is given a NOT_MODIFIED error result, which ends its call without
+ * writing anything, and the caller (doRefreshState) reports success with notModified set.
+ *
+ * A validator only applies to a request with the same URI (which includes the purchase
+ * classes and last transaction ID) and the same auth tokens. It's only stored once the
+ * core has successfully committed the response it came with, and is invalidated by any
+ * local change to the state the server sent (a user change, or local purchase removal).
+ */
+class RefreshStateValidator {
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String ETAG = "ETag";
+    static final String AUTH_HEADER = "X-PsiCash-Auth";
+    static final String REFRESH_STATE_PATH = "/refresh-state";
+    static final int HTTP_OK = 200;
+    static final int HTTP_NOT_MODIFIED = 304;
+    // The error the core is given for a 304 to the validator.
+    static final String NOT_MODIFIED = "Not modified";
+
+    /**
+     * The state of a single refreshState call. Only used by the thread making the call.
+     */
+    static class Call {
+        // The key and ETag of a 200 response, to be stored if the core commits it.
+        private String pendingKey;
+        private String pendingETag;
+        // Whether If-None-Match was sent.
+        private boolean sentValidator;
+        // Whether the server responded that nothing changed (and the core was given the
+        // NOT_MODIFIED error).
+        boolean notModified;
+    }
+
+    // Guarded by this.
+    @Nullable
+    private String key;
+    @Nullable
+    private String etag;
+
+    /**
+     * Forget the stored validator. To be called when the user changes, or the stored
+     * purchases are changed locally.
+     */
+    synchronized void invalidate() {
+        this.key = null;
+        this.etag = null;
+    }
+
+    static boolean isRefreshStateRequest(String method, String path) {
+        return "GET".equals(method) && path != null && path.endsWith(REFRESH_STATE_PATH);
+    }
+
+    /**
+     * Adds If-None-Match to the request if there's a validator for it.
+     */
+    void prepare(@NonNull Call call, @NonNull String uri, @NonNull Map<String, String> headers) {
+        String auth = headers.get(AUTH_HEADER);
+        String reqKey = uri + "\n" + (auth == null ? "" : auth);
+        call.pendingKey = reqKey;
+        call.pendingETag = null;
+        call.sentValidator = false;
+
+        String etag;
+        synchronized (this) {
+            etag = reqKey.equals(this.key) ? this.etag : null;
+        }
+        if (etag != null) {
+            headers.put(IF_NONE_MATCH, etag);
+            call.sentValidator = true;
+        }
+    }
+
+    /**
+     * Inspects the (decoded) result of a request passed to prepare. Returns the result the
+     * core should see: for a 304 to the validator, a NOT_MODIFIED error, so that it
+     * applies nothing.
+     */
+    @NonNull
+    PsiCashLib.HTTPRequester.Result onResult(@NonNull Call call, @NonNull PsiCashLib.HTTPRequester.Result result) {
+        if (result.code == HTTP_NOT_MODIFIED && call.sentValidator) {
+            boolean current;
+            synchronized (this) {
+                // Unless it was invalidated while the request was in flight.
+                current = call.pendingKey.equals(this.key);
+            }
+            if (current) {
+                call.notModified = true;
+                PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
+                res.code = PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR;
+                res.error = NOT_MODIFIED;
+                return res;
+            }
+        }
+
+        call.notModified = false;
+        call.pendingETag = result.code == HTTP_OK ? ResponseBodyReader.firstHeader(result.headers, ETAG) : null;
+        return result;
+    }
+
+    /**
+     * Completes the call. If the core committed the response, its ETag (if any) becomes
+     * the stored validator.
+     */
+    void finish(@NonNull Call call, boolean committed) {
+        if (!committed || call.notModified) {
+            return;
+        }
+        synchronized (this) {
+            // A response without an ETag clears any previous validator.
+            this.key = call.pendingETag != null ? call.pendingKey : null;
+            this.etag = call.pendingETag;
+        }
+    }
+}
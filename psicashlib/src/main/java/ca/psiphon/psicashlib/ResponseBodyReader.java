@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads HTTP response bodies, for use by HTTPRequester implementations.
+ *
+ * If the Content-Length is known, the body is read directly into an array of that size.
+ * Otherwise it's read into pooled fixed-size chunks and copied once into an array of the
+ * final size. (Compared to ByteArrayOutputStream, that avoids the repeated growth copies
+ * and the oversized intermediate arrays.) Text is decoded as UTF-8 in one pass, after
+ * reading, so multi-byte characters split across reads are handled correctly.
+ *
+ * Compressed (gzip or deflate Content-Encoding) bodies can be decoded as they're read,
+ * with decodingStream, or after the fact, with decode.
+ */
+public final class ResponseBodyReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    public static final int DEFAULT_MAX_BODY_SIZE = 4 * 1024 * 1024;
+    // The Accept-Encoding value for the encodings that can be decoded.
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    static final int CHUNK_SIZE = 8 * 1024;
+    // The most idle chunks kept for reuse.
+    private static final int MAX_POOLED_CHUNKS = 16;
+    private static final ArrayDeque<byte[]> chunkPool = new ArrayDeque<>();
+
+    /**
+     * Thrown when a body exceeds the maximum allowed size.
+     */
+    public static class BodyTooLargeException extends IOException {
+        BodyTooLargeException(int maxSize) {
+            super("Response body exceeds maximum size of " + maxSize + " bytes");
+        }
+    }
+
+    private ResponseBodyReader() {
+    }
+
+    /**
+     * Reads the stream to its end. Does not close it.
+     * @param contentLength The expected body length, or -1 if unknown. If the stream turns
+     *                      out to be shorter or longer, the actual contents are returned.
+     * @param maxSize The maximum body size to accept.
+     * @throws BodyTooLargeException if the body (or the Content-Length) exceeds maxSize.
+     */
+    @NonNull
+    public static byte[] readBytes(InputStream in, long contentLength, int maxSize) throws IOException {
+        if (contentLength > maxSize) {
+            throw new BodyTooLargeException(maxSize);
+        }
+
+        byte[] presized = null;
+        int n = 0;
+        if (contentLength >= 0) {
+            presized = contentLength == 0 ? EMPTY : new byte[(int)contentLength];
+            n = readUpTo(in, presized, 0, presized.length);
+            if (n < presized.length) {
+                // Shorter than advertised
+                return Arrays.copyOf(presized, n);
+            }
+            int next = in.read();
+            if (next == -1) {
+                return presized;
+            }
+            // Longer than advertised. Carry on with chunks, prefixed by what we have.
+            if (n + 1 > maxSize) {
+                throw new BodyTooLargeException(maxSize);
+            }
+            presized = Arrays.copyOf(presized, n + 1);
+            presized[n] = (byte)next;
+            n++;
+        }
+
+        return readChunked(in, presized, n, maxSize);
+    }
+
+    /**
+     * Reads the stream to its end and decodes it as UTF-8. See readBytes.
+     */
+    @NonNull
+    public static String readString(InputStream in, long contentLength, int maxSize) throws IOException {
+        return new String(readBytes(in, contentLength, maxSize), UTF_8);
+    }
+
+    /**
+     * Returns true if the Content-Encoding indicates a compressed body that
+     * decodingStream can decode.
+     */
+    public static boolean isCompressed(@Nullable String contentEncoding) {
+        String enc = normalizeEncoding(contentEncoding);
+        return enc.equals("gzip") || enc.equals("x-gzip") || enc.equals("deflate");
+    }
+
+    /**
+     * Wraps the stream so that reading from it decodes the given Content-Encoding. Returns
+     * the stream itself if there's no encoding (null or "identity").
+     * Closing the returned stream closes the original.
+     * @throws IOException if the encoding isn't supported.
+     */
+    @NonNull
+    public static InputStream decodingStream(@NonNull InputStream in, @Nullable String contentEncoding) throws IOException {
+        String enc = normalizeEncoding(contentEncoding);
+        if (enc.isEmpty() || enc.equals("identity")) {
+            return in;
+        }
+        if (!isCompressed(enc)) {
+            throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+        }
+
+        // Peek at the start of the body.
+        PushbackInputStream pin = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = readUpTo(pin, header, 0, 2);
+        if (n == 0) {
+            // An empty body (such as for a 304) isn't valid gzip or deflate, but is empty.
+            return pin;
+        }
+        pin.unread(header, 0, n);
+
+        if (enc.equals("deflate")) {
+            // "deflate" should mean zlib-wrapped, but some servers send raw deflate.
+            // Tell them apart by the zlib header.
+            boolean zlib = n == 2 && (header[0] & 0x0f) == 8
+                    && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+            return new OwnedInflaterInputStream(pin, new Inflater(!zlib));
+        }
+        return new GZIPInputStream(pin, CHUNK_SIZE);
+    }
+
+    /**
+     * Decodes a body that was read without decoding. A body that starts with the gzip
+     * magic number is decoded as gzip even without a Content-Encoding, in case it was lost
+     * along the way. (A JSON body can't start with those bytes.)
+     * @param maxSize The maximum decoded size to accept.
+     * @return The decoded body, or body itself if it isn't encoded.
+     * @throws IOException if the body is corrupt, or the encoding isn't supported.
+     */
+    @NonNull
+    public static byte[] decode(@NonNull byte[] body, @Nullable String contentEncoding, int maxSize) throws IOException {
+        String enc = normalizeEncoding(contentEncoding);
+        if ((enc.isEmpty() || enc.equals("identity")) && hasGzipMagic(body)) {
+            enc = "gzip";
+        }
+        if (enc.isEmpty() || enc.equals("identity")) {
+            return body;
+        }
+        try (InputStream in = decodingStream(new ByteArrayInputStream(body), enc)) {
+            return readBytes(in, -1, maxSize);
+        }
+    }
+
+    /**
+     * Returns the first value of the named header, or null. Header names are matched
+     * case-insensitively.
+     */
+    @Nullable
+    static String firstHeader(@Nullable Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasGzipMagic(byte[] body) {
+        return body.length >= 2 && (body[0] & 0xff) == 0x1f && (body[1] & 0xff) == 0x8b;
+    }
+
+    private static String normalizeEncoding(@Nullable String contentEncoding) {
+        return contentEncoding == null ? "" : contentEncoding.trim().toLowerCase(Locale.US);
+    }
+
+    // InflaterInputStream doesn't release a caller-supplied Inflater's native memory on
+    // close, so this does.
+    private static class OwnedInflaterInputStream extends InflaterInputStream {
+        OwnedInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, CHUNK_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                inf.end();
+            }
+        }
+    }
+
+    // Reads the rest of the stream into chunks, and returns prefix[0, prefixLen) followed
+    // by the stream contents.
+    private static byte[] readChunked(InputStream in, byte[] prefix, int prefixLen, int maxSize) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        int total = prefixLen;
+        int lastChunkLen = 0;
+        try {
+            while (true) {
+                byte[] chunk = borrowChunk();
+                chunks.add(chunk);
+                lastChunkLen = readUpTo(in, chunk, 0, chunk.length);
+                total += lastChunkLen;
+                if (total > maxSize) {
+                    throw new BodyTooLargeException(maxSize);
+                }
+                if (lastChunkLen < chunk.length) {
+                    break;
+                }
+            }
+
+            byte[] result = new byte[total];
+            int off = 0;
+            if (prefixLen > 0) {
+                System.arraycopy(prefix, 0, result, 0, prefixLen);
+                off = prefixLen;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                int len = i == chunks.size() - 1 ? lastChunkLen : CHUNK_SIZE;
+                System.arraycopy(chunks.get(i), 0, result, off, len);
+                off += len;
+            }
+            return result;
+        }
+        finally {
+            for (byte[] chunk : chunks) {
+                returnChunk(chunk);
+            }
+        }
+    }
+
+    // Reads until buf[off, off+len) is full or the stream ends. Returns the count read.
+    private static int readUpTo(InputStream in, byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buf, off + total, len - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static byte[] borrowChunk() {
+        synchronized (chunkPool) {
+            byte[] chunk = chunkPool.pollFirst();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    private static void returnChunk(byte[] chunk) {
+        synchronized (chunkPool) {
+            if (chunkPool.size() < MAX_POOLED_CHUNKS) {
+                chunkPool.addFirst(chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small file, next to the core's datastore, holding the last known balance, hasTokens
+ * and isAccount values. initAsync reads it so that those getters can be answered while
+ * the core is still loading the datastore.
+ *
+ * It's only a cache: a missing, unreadable or unwritable file just means the getters wait
+ * for init instead. The core's datastore remains the source of truth, and the cache is
+ * rewritten from it after init and after each call that may change the values. Those
+ * rewrites (reading the values and writing the file) are done by saveLater on a single
+ * background thread, shared by all caches, and are debounced: the saves requested within
+ * SAVE_DELAY_MILLIS of each other make one write.
+ */
+class StartupCache {
+    static final String FILENAME = "psicashlib-startup";
+    private static final int VERSION = 1;
+    static final long SAVE_DELAY_MILLIS = 250;
+
+    private static final ScheduledThreadPoolExecutor saver;
+    static {
+        saver = new ScheduledThreadPoolExecutor(1, AsyncCall.daemonThreadFactory("PsiCashLib-startup-cache"));
+        // So that the thread only lives while saves are pending.
+        saver.setKeepAliveTime(30, TimeUnit.SECONDS);
+        saver.allowCoreThreadTimeOut(true);
+    }
+    // The number of saveLater saves scheduled but not yet completed, by all caches.
+    private static final AtomicInteger pendingSaves = new AtomicInteger();
+
+    interface Source {
+        /**
+         * @return The current values to save, or null if they can't be read (or shouldn't
+         * be saved to this cache any more).
+         */
+        @Nullable
+        Values read();
+    }
+
+    static class Values {
+        final long balance;
+        final boolean hasTokens;
+        final boolean isAccount;
+
+        Values(long balance, boolean hasTokens, boolean isAccount) {
+            this.balance = balance;
+            this.hasTokens = hasTokens;
+            this.isAccount = isAccount;
+        }
+
+        boolean equals(long balance, boolean hasTokens, boolean isAccount) {
+            return this.balance == balance && this.hasTokens == hasTokens && this.isAccount == isAccount;
+        }
+    }
+
+    private final String fileStoreRoot;
+    private final File file;
+    // The values last written (or read), to skip writing unchanged values. Guarded by this.
+    @Nullable
+    private Values saved;
+    // Whether a saveLater is scheduled and hasn't yet read its values. Guarded by this.
+    private boolean savePending;
+
+    StartupCache(String fileStoreRoot) {
+        this.fileStoreRoot = fileStoreRoot;
+        this.file = new File(fileStoreRoot, FILENAME);
+    }
+
+    /**
+     * @return True if this is the cache for the datastore in fileStoreRoot.
+     */
+    boolean isFor(String fileStoreRoot) {
+        return this.fileStoreRoot.equals(fileStoreRoot);
+    }
+
+    /**
+     * @return The stored values, or null if there are none (or they can't be read).
+     */
+    @Nullable
+    synchronized Values read() {
+        if (!this.file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(this.file))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            this.saved = new Values(in.readLong(), in.readBoolean(), in.readBoolean());
+            return this.saved;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores the values, if they differ from the last ones stored. Errors are ignored.
+     */
+    synchronized void save(long balance, boolean hasTokens, boolean isAccount) {
+        if (this.saved != null && this.saved.equals(balance, hasTokens, isAccount)) {
+            return;
+        }
+
+        // Written to a temp file and renamed, so a reader never sees a partial write.
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(VERSION);
+            out.writeLong(balance);
+            out.writeBoolean(hasTokens);
+            out.writeBoolean(isAccount);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return;
+        }
+        if (tmp.renameTo(this.file)) {
+            this.saved = new Values(balance, hasTokens, isAccount);
+        }
+    }
+
+    /**
+     * Saves the values that source reads, SAVE_DELAY_MILLIS from now, on the background
+     * thread. If a save is already pending, it will read the values then, so this does
+     * nothing.
+     */
+    void saveLater(Source source) {
+        synchronized (this) {
+            if (this.savePending) {
+                return;
+            }
+            this.savePending = true;
+        }
+        pendingSaves.incrementAndGet();
+        saver.schedule(() -> {
+            try {
+                synchronized (this) {
+                    this.savePending = false;
+                }
+                Values values = source.read();
+                if (values != null) {
+                    save(values.balance, values.hasTokens, values.isAccount);
+                }
+            }
+            finally {
+                pendingSaves.decrementAndGet();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits up to timeoutMillis for the saves pending (from any cache) to complete, so that
+     * a read sees them. Returns at once if there are none.
+     */
+    static void awaitSaves(long timeoutMillis) {
+        if (pendingSaves.get() == 0) {
+            return;
+        }
+        // Scheduled with the same delay as any pending save, so it runs after them.
+        FutureTask<Void> marker = new FutureTask<>(() -> { }, null);
+        saver.schedule(marker, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            marker.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Read whatever is there.
+        }
+    }
+
+    /**
+     * Removes the stored values. To be called when the datastore is reset.
+     */
+    synchronized void clear() {
+        this.saved = null;
+        //noinspection ResultOfMethodCallIgnored
+        this.file.delete();
+    }
+}
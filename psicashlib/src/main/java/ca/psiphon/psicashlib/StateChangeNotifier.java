@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.psicashlib;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Reports changes to the state an app displays (balance, token and account status, and
+ * purchases) to a StateChangeListener, as a diff against the state last reported.
+ *
+ * PsiCashLib calls changed() after each call that may have changed the state. While a
+ * listener is set, that observes the state and, if it differs from the last observation,
+ * calls the listener with the difference. So the listener only hears about real changes,
+ * and the app needn't re-read everything after every call.
+ *
+ * Neither the observation (which reads the library's state) nor the listener (which is app
+ * code) is done with this locked, so that a slow one doesn't hold up other calls that are
+ * reporting changes, and a listener that makes a call itself can't deadlock. Observations
+ * are numbered in the order they start, and one that completes after a later-numbered one
+ * has been applied is dropped: the later one started after its change was made, so already
+ * includes it. Changes are queued in the order they're applied, and delivered one at a time
+ * by whichever thread finds no delivery in progress.
+ *
+ * While no listener is set, changed() returns without taking the lock or observing.
+ *
+ * Purchases are compared as PurchaseIndex snapshots, by transaction ID. After the writes
+ * that keep the index current (removePurchases, expirePurchases), observing them doesn't
+ * read the datastore at all.
+ */
+class StateChangeNotifier {
+    interface Observer {
+        /**
+         * @return The current state, or null if it couldn't be read.
+         */
+        @Nullable
+        Observed observe();
+    }
+
+    static class Observed {
+        final long balance;
+        final boolean hasTokens;
+        final boolean isAccount;
+        final PurchaseIndex purchases;
+
+        Observed(long balance, boolean hasTokens, boolean isAccount, @NonNull PurchaseIndex purchases) {
+            this.balance = balance;
+            this.hasTokens = hasTokens;
+            this.isAccount = isAccount;
+            this.purchases = purchases;
+        }
+    }
+
+    private static class Delivery {
+        final PsiCashLib.StateChangeListener listener;
+        final PsiCashLib.StateChange change;
+
+        Delivery(PsiCashLib.StateChangeListener listener, PsiCashLib.StateChange change) {
+            this.listener = listener;
+            this.change = change;
+        }
+    }
+
+    private final Observer observer;
+    // Written with this locked; read without it by isActive.
+    @Nullable
+    private volatile PsiCashLib.StateChangeListener listener;
+    // All guarded by this.
+    // The state last reported (or observed when the listener was set). Null if there's no
+    // listener, or the state couldn't be read.
+    @Nullable
+    private Observed last;
+    // Changes observed but not yet delivered, oldest first.
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    // Whether a thread is delivering the queued changes.
+    private boolean delivering;
+    // The number given to the last observation started, and to the one last applied (to
+    // last).
+    private long observationSeq;
+    private long appliedSeq;
+
+    StateChangeNotifier(Observer observer) {
+        this.observer = observer;
+    }
+
+    boolean isActive() {
+        return this.listener != null;
+    }
+
+    /**
+     * Sets the listener (or null to stop), and observes the state that later changes will
+     * be relative to.
+     * @return False if the state couldn't be read. The first change after that will then
+     * only set the baseline, and not be reported.
+     */
+    boolean setListener(@Nullable PsiCashLib.StateChangeListener listener) {
+        long seq;
+        synchronized (this) {
+            this.listener = listener;
+            this.last = null;
+            if (listener == null) {
+                return true;
+            }
+            seq = ++this.observationSeq;
+        }
+        Observed current = this.observer.observe();
+        synchronized (this) {
+            if (current != null && this.listener == listener && seq > this.appliedSeq) {
+                this.last = current;
+                this.appliedSeq = seq;
+            }
+        }
+        return current != null;
+    }
+
+    /**
+     * Observes the state and reports any change to the listener. Unless another thread is
+     * delivering changes (in which case it delivers this one too), the listener is called
+     * on this thread before this returns.
+     */
+    void changed() {
+        if (!isActive()) {
+            return;
+        }
+        PsiCashLib.StateChangeListener listener;
+        long seq;
+        synchronized (this) {
+            listener = this.listener;
+            if (listener == null) {
+                return;
+            }
+            seq = ++this.observationSeq;
+        }
+        Observed current = this.observer.observe();
+        if (current == null) {
+            // The change will be included in the next one that can be read.
+            return;
+        }
+        synchronized (this) {
+            if (this.listener != listener || seq < this.appliedSeq) {
+                // The listener was replaced, or a later observation (which includes this
+                // change) was applied, meanwhile.
+                return;
+            }
+            Observed prev = this.last;
+            this.last = current;
+            this.appliedSeq = seq;
+            if (prev == null) {
+                return;
+            }
+            PsiCashLib.StateChange change = diff(prev, current);
+            if (change != null) {
+                this.queue.add(new Delivery(listener, change));
+            }
+            if (this.delivering || this.queue.isEmpty()) {
+                return;
+            }
+            this.delivering = true;
+        }
+        deliver();
+    }
+
+    // Delivers queued changes until there are none left. Called with delivering set.
+    private void deliver() {
+        boolean done = false;
+        try {
+            while (true) {
+                Delivery next;
+                synchronized (this) {
+                    next = this.queue.poll();
+                    if (next == null) {
+                        this.delivering = false;
+                        done = true;
+                        return;
+                    }
+                    if (next.listener != this.listener) {
+                        // Replaced (or removed) since the change was observed.
+                        continue;
+                    }
+                }
+                next.listener.onStateChanged(next.change);
+            }
+        }
+        finally {
+            if (!done) {
+                // The listener threw. The rest of the queue goes with the next change.
+                synchronized (this) {
+                    this.delivering = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The change from prev to current, or null if there isn't one.
+     */
+    @Nullable
+    static PsiCashLib.StateChange diff(@NonNull Observed prev, @NonNull Observed current) {
+        List<PsiCashLib.Purchase> added = current.purchases.notIn(prev.purchases);
+        List<PsiCashLib.Purchase> removed = prev.purchases.notIn(current.purchases);
+        if (prev.balance == current.balance && prev.hasTokens == current.hasTokens
+                && prev.isAccount == current.isAccount && added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        return new PsiCashLib.StateChange(
+                prev.balance != current.balance ? current.balance : null,
+                prev.hasTokens != current.hasTokens ? current.hasTokens : null,
+                prev.isAccount != current.isAccount ? current.isAccount : null,
+                added, removed);
+    }
+}
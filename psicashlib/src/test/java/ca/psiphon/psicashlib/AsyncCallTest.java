@@ -0,0 +1,138 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncCallTest {
+    private static final AsyncCall.ErrorResult<PsiCashLib.Error> ERROR_RESULT = error -> error;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void success() throws Exception {
+        PsiCashLib.Error expected = new PsiCashLib.Error("not really an error");
+        AtomicReference<PsiCashLib.Error> callbackResult = new AtomicReference<>();
+        CountDownLatch called = new CountDownLatch(1);
+
+        Future<PsiCashLib.Error> f = AsyncCall.submit(executor, () -> expected, ERROR_RESULT, 0,
+                result -> {
+                    callbackResult.set(result);
+                    called.countDown();
+                });
+
+        assertSame(expected, f.get(10, TimeUnit.SECONDS));
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertSame(expected, callbackResult.get());
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicReference<PsiCashLib.Error> callbackResult = new AtomicReference<>();
+        CountDownLatch called = new CountDownLatch(1);
+
+        Future<PsiCashLib.Error> f = AsyncCall.submit(executor, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+            finished.countDown();
+            return new PsiCashLib.Error("too late");
+        }, ERROR_RESULT, 50, result -> {
+            callbackResult.set(result);
+            called.countDown();
+        });
+
+        PsiCashLib.Error res = f.get(10, TimeUnit.SECONDS);
+        assertEquals("Call timed out", res.message);
+        assertFalse(res.critical);
+        assertTrue(called.await(10, TimeUnit.SECONDS));
+        assertSame(res, callbackResult.get());
+
+        // The worker was interrupted, and the late result didn't replace the timeout
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(interrupted.get());
+        assertEquals("Call timed out", f.get().message);
+
+        // The interrupt mustn't leak into the executor's next task
+        Future<Boolean> next = executor.submit(() -> Thread.currentThread().isInterrupted());
+        assertFalse(next.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelBeforeStart() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        // Occupy the single executor thread
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+
+        AtomicBoolean ran = new AtomicBoolean();
+        AtomicBoolean calledBack = new AtomicBoolean();
+        Future<PsiCashLib.Error> f = AsyncCall.submit(executor, () -> {
+            ran.set(true);
+            return null;
+        }, ERROR_RESULT, 0, result -> calledBack.set(true));
+
+        assertTrue(f.cancel(true));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertFalse(ran.get());
+        assertFalse(calledBack.get());
+        try {
+            f.get();
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void exceptionBecomesErrorResult() throws InterruptedException, ExecutionException {
+        Future<PsiCashLib.Error> f = AsyncCall.submit(executor, () -> {
+            throw new IllegalStateException("boom");
+        }, ERROR_RESULT, 0, null);
+
+        PsiCashLib.Error res = f.get();
+        assertTrue(res.critical);
+        assertTrue(res.message.contains("boom"));
+    }
+
+    @Test
+    public void rejected() throws InterruptedException, ExecutionException {
+        executor.shutdown();
+        Future<PsiCashLib.Error> f = AsyncCall.submit(executor, () -> null, ERROR_RESULT, 0, null);
+        assertTrue(f.isDone());
+        assertFalse(f.get().critical);
+    }
+}
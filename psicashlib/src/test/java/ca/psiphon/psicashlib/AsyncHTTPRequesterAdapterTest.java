@@ -0,0 +1,90 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AsyncHTTPRequesterAdapterTest {
+    private static PsiCashLib.HTTPRequester.Result okResult() {
+        PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
+        res.code = 200;
+        res.body = "body";
+        return res;
+    }
+
+    @Test
+    public void completeLater() {
+        PsiCashLib.HTTPRequester.Result expected = okResult();
+        PsiCashLib.HTTPRequester requester = new AsyncHTTPRequesterAdapter((reqParams, completion) ->
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        fail("interrupted");
+                    }
+                    completion.complete(expected);
+                }).start());
+
+        assertSame(expected, requester.httpRequest(new PsiCashLib.HTTPRequester.ReqParams()));
+    }
+
+    @Test
+    public void completeSynchronously() {
+        PsiCashLib.HTTPRequester.Result expected = okResult();
+        PsiCashLib.HTTPRequester requester = new AsyncHTTPRequesterAdapter((reqParams, completion) -> {
+            completion.complete(expected);
+            // Extra completions are ignored
+            completion.complete(new PsiCashLib.HTTPRequester.Result());
+        });
+
+        assertSame(expected, requester.httpRequest(new PsiCashLib.HTTPRequester.ReqParams()));
+    }
+
+    @Test
+    public void nullResult() {
+        PsiCashLib.HTTPRequester requester = new AsyncHTTPRequesterAdapter((reqParams, completion) ->
+                completion.complete(null));
+
+        PsiCashLib.HTTPRequester.Result res = requester.httpRequest(new PsiCashLib.HTTPRequester.ReqParams());
+        assertEquals(PsiCashLib.HTTPRequester.Result.CRITICAL_ERROR, res.code);
+        assertNotNull(res.error);
+    }
+
+    @Test
+    public void interruptCancels() throws InterruptedException {
+        AtomicReference<PsiCashLib.AsyncHTTPRequester.Completion> pending = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        PsiCashLib.HTTPRequester requester = new AsyncHTTPRequesterAdapter((reqParams, completion) -> {
+            pending.set(completion);
+            started.countDown();
+        });
+
+        AtomicReference<PsiCashLib.HTTPRequester.Result> result = new AtomicReference<>();
+        AtomicReference<Boolean> stillInterrupted = new AtomicReference<>();
+        Thread caller = new Thread(() -> {
+            result.set(requester.httpRequest(new PsiCashLib.HTTPRequester.ReqParams()));
+            stillInterrupted.set(Thread.currentThread().isInterrupted());
+        });
+        caller.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        caller.interrupt();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!pending.get().isCancelled()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        // Still waiting for the requester to complete
+        assertTrue(caller.isAlive());
+        PsiCashLib.HTTPRequester.Result expected = okResult();
+        pending.get().complete(expected);
+        caller.join();
+        assertSame(expected, result.get());
+        assertTrue(stillInterrupted.get());
+    }
+}
@@ -0,0 +1,107 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AuthorizationCacheTest {
+    private static PsiCashLib.Authorization auth(String id) {
+        PsiCashLib.Authorization auth = new PsiCashLib.Authorization();
+        auth.id = id;
+        auth.accessType = "speed-boost";
+        auth.expires = new Date(1000);
+        auth.encoded = "encoded-" + id;
+        return auth;
+    }
+
+    @Test
+    public void hitsAndMisses() {
+        AuthorizationCache cache = new AuthorizationCache(4);
+        assertNull(cache.get("encoded-a"));
+        cache.put("encoded-a", auth("a"));
+        PsiCashLib.Authorization got = cache.get("encoded-a");
+        assertNotNull(got);
+        assertEquals("a", got.id);
+        assertEquals("speed-boost", got.accessType);
+        assertEquals(new Date(1000), got.expires);
+        assertEquals("encoded-a", got.encoded);
+
+        PsiCashLib.DecodeAuthorizationCacheStats stats = cache.stats();
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.size);
+        assertEquals(4, stats.capacity);
+    }
+
+    @Test
+    public void copies() {
+        AuthorizationCache cache = new AuthorizationCache(4);
+        PsiCashLib.Authorization put = auth("a");
+        cache.put("encoded-a", put);
+        put.id = "changed";
+
+        PsiCashLib.Authorization got = cache.get("encoded-a");
+        assertEquals("a", got.id);
+        got.id = "changed";
+        got.expires.setTime(0);
+        got = cache.get("encoded-a");
+        assertEquals("a", got.id);
+        assertEquals(new Date(1000), got.expires);
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        AuthorizationCache cache = new AuthorizationCache(2);
+        cache.put("a", auth("a"));
+        cache.put("b", auth("b"));
+        // a is now more recently used than b
+        assertNotNull(cache.get("a"));
+        cache.put("c", auth("c"));
+
+        assertEquals(2, cache.stats().size);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+
+        cache.clear();
+        assertEquals(0, cache.stats().size);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final AuthorizationCache cache = new AuthorizationCache(8);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    String key = "k" + ((i + offset) % 16);
+                    PsiCashLib.Authorization got = cache.get(key);
+                    if (got == null) {
+                        cache.put(key, auth(key));
+                    }
+                    else if (!key.equals(got.id)) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        PsiCashLib.DecodeAuthorizationCacheStats stats = cache.stats();
+        assertEquals(40000, stats.hits + stats.misses);
+        assertTrue(stats.size <= 8);
+    }
+}
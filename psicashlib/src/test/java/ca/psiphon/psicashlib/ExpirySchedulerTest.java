@@ -0,0 +1,256 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ExpirySchedulerTest {
+    // Stands in for the datastore: expirePurchases removes and returns the purchases whose
+    // expiry has passed.
+    private static class FakeStore implements ExpiryScheduler.Expirer {
+        final List<PsiCashLib.Purchase> purchases = new ArrayList<>();
+        final AtomicInteger calls = new AtomicInteger();
+        // The number of calls to answer with nothing, as if the clocks disagreed.
+        volatile int ignoreCalls;
+
+        @Override
+        public synchronized List<PsiCashLib.Purchase> expirePurchases() {
+            calls.incrementAndGet();
+            List<PsiCashLib.Purchase> res = new ArrayList<>();
+            if (ignoreCalls > 0) {
+                ignoreCalls--;
+                return res;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<PsiCashLib.Purchase> it = purchases.iterator(); it.hasNext(); ) {
+                PsiCashLib.Purchase p = it.next();
+                if (p.expiry.getTime() <= now) {
+                    res.add(p);
+                    it.remove();
+                }
+            }
+            return res;
+        }
+
+        synchronized PsiCashLib.Purchase add(String id, long expiresIn) {
+            PsiCashLib.Purchase p = new PsiCashLib.Purchase();
+            p.id = id;
+            p.expiry = new Date(System.currentTimeMillis() + expiresIn);
+            purchases.add(p);
+            return p;
+        }
+    }
+
+    private FakeStore store;
+    private ExpiryScheduler scheduler;
+    private LinkedBlockingQueue<List<PsiCashLib.Purchase>> batches;
+    private PsiCashLib.ExpiryListener listener;
+
+    @Before
+    public void setUp() {
+        store = new FakeStore();
+        scheduler = new ExpiryScheduler(store);
+        batches = new LinkedBlockingQueue<>();
+        listener = batches::add;
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.setListener(null, null);
+    }
+
+    private static List<String> ids(List<PsiCashLib.Purchase> purchases) {
+        List<String> res = new ArrayList<>();
+        for (PsiCashLib.Purchase p : purchases) {
+            res.add(p.id);
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    public void batches() throws InterruptedException {
+        PsiCashLib.Purchase a = store.add("a", 200);
+        PsiCashLib.Purchase b = store.add("b", 200);
+        b.expiry = a.expiry;
+        store.add("c", 500);
+        scheduler.setListener(listener, new ArrayList<>(store.purchases));
+        assertEquals(3, scheduler.size());
+
+        // a and b expire together
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Arrays.asList("a", "b"), ids(batch));
+        assertTrue(System.currentTimeMillis() >= a.expiry.getTime());
+
+        batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("c"), ids(batch));
+
+        // One wakeup per expiry time
+        assertEquals(2, store.calls.get());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void alreadyExpired() throws InterruptedException {
+        store.add("a", -1000);
+        scheduler.setListener(listener, new ArrayList<>(store.purchases));
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("a"), ids(batch));
+    }
+
+    @Test
+    public void addedAndRemoved() throws InterruptedException {
+        scheduler.setListener(listener, Collections.emptyList());
+        PsiCashLib.Purchase a = store.add("a", 150);
+        scheduler.add(a);
+        PsiCashLib.Purchase b = store.add("b", 100);
+        scheduler.add(b);
+        // Removed before it expires (as by removePurchases), so it isn't expired or reported
+        synchronized (store) {
+            store.purchases.remove(b);
+        }
+        scheduler.removed(Collections.singletonList(b));
+
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("a"), ids(batch));
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, store.calls.get());
+    }
+
+    @Test
+    public void reloadLater() throws InterruptedException {
+        // Inactive: nothing is loaded
+        AtomicInteger loads = new AtomicInteger();
+        scheduler.reloadLater(() -> {
+            loads.incrementAndGet();
+            return null;
+        });
+
+        scheduler.setListener(listener, Collections.emptyList());
+        store.add("a", 200);
+        CountDownLatch loaded = new CountDownLatch(1);
+        scheduler.reloadLater(() -> {
+            loads.incrementAndGet();
+            loaded.countDown();
+            synchronized (store) {
+                return new ArrayList<>(store.purchases);
+            }
+        });
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+
+        // The reload is expired on time as usual
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("a"), ids(batch));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void reloadOvertakenByAdd() throws InterruptedException {
+        scheduler.setListener(listener, Collections.emptyList());
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch added = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        scheduler.reloadLater(() -> {
+            if (loads.incrementAndGet() == 1) {
+                // A purchase is added after this load read the store
+                List<PsiCashLib.Purchase> res;
+                synchronized (store) {
+                    res = new ArrayList<>(store.purchases);
+                }
+                loading.countDown();
+                try {
+                    added.await();
+                } catch (InterruptedException e) {
+                    fail("interrupted");
+                }
+                return res;
+            }
+            synchronized (store) {
+                return new ArrayList<>(store.purchases);
+            }
+        });
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        scheduler.add(store.add("a", 200));
+        added.countDown();
+
+        // The stale load is discarded and redone, so the added purchase isn't dropped
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("a"), ids(batch));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void noPurchasesNoWakeups() throws InterruptedException {
+        // Purchases without an expiry aren't scheduled
+        PsiCashLib.Purchase p = new PsiCashLib.Purchase();
+        p.id = "no-expiry";
+        scheduler.setListener(listener, Collections.singletonList(p));
+        assertEquals(0, scheduler.size());
+        Thread.sleep(200);
+        assertEquals(0, store.calls.get());
+    }
+
+    @Test
+    public void retry() throws InterruptedException {
+        // The store doesn't consider the purchase expired at first
+        store.ignoreCalls = 2;
+        store.add("a", 50);
+        scheduler.setListener(listener, new ArrayList<>(store.purchases));
+
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("a"), ids(batch));
+        assertEquals(3, store.calls.get());
+    }
+
+    @Test
+    public void reset() throws InterruptedException {
+        scheduler.setListener(listener, Collections.singletonList(store.add("a", 100)));
+        // As after a refresh that replaced the purchases
+        PsiCashLib.Purchase b;
+        synchronized (store) {
+            store.purchases.clear();
+            b = store.add("b", 150);
+        }
+        scheduler.reset(Collections.singletonList(b));
+        assertEquals(1, scheduler.size());
+
+        List<PsiCashLib.Purchase> batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Collections.singletonList("b"), ids(batch));
+        assertEquals(1, store.calls.get());
+    }
+
+    @Test
+    public void stop() throws InterruptedException {
+        scheduler.setListener(listener, Collections.singletonList(store.add("a", 100)));
+        assertTrue(scheduler.isActive());
+        scheduler.setListener(null, null);
+        assertFalse(scheduler.isActive());
+        assertEquals(0, scheduler.size());
+
+        // Not tracked while stopped
+        scheduler.add(store.add("b", 50));
+        assertEquals(0, scheduler.size());
+
+        assertNull(batches.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, store.calls.get());
+    }
+}
@@ -0,0 +1,126 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ISO8601Test {
+    // Reference parser for checking results.
+    private static long reference(String s) throws ParseException {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        f.setLenient(false);
+        return f.parse(s).getTime();
+    }
+
+    @Test
+    public void withoutFraction() throws ParseException {
+        assertEquals(0L, ISO8601.parseMillis("1970-01-01T00:00:00Z"));
+        assertEquals(reference("2019-01-14T17:22:23.000Z"), ISO8601.parseMillis("2019-01-14T17:22:23Z"));
+        assertEquals(reference("2000-02-29T23:59:59.000Z"), ISO8601.parseMillis("2000-02-29T23:59:59Z"));
+        assertEquals(reference("1969-12-31T23:59:59.000Z"), ISO8601.parseMillis("1969-12-31T23:59:59Z"));
+    }
+
+    @Test
+    public void withMilliseconds() throws ParseException {
+        String[] corpus = {
+                "1970-01-01T00:00:00.001Z",
+                "2018-12-31T23:59:59.999Z",
+                "2019-01-14T17:22:23.168Z",
+                "2020-02-29T12:00:00.500Z",
+                "2038-01-19T03:14:07.123Z",
+                "2100-03-01T00:00:00.000Z",
+                "9999-12-31T23:59:59.999Z",
+        };
+        for (String s : corpus) {
+            assertEquals(s, reference(s), ISO8601.parseMillis(s));
+        }
+    }
+
+    @Test
+    public void withOtherPrecisions() throws ParseException {
+        long base = reference("2019-01-14T17:22:23.000Z");
+
+        // Server timestamps, like authorization Expires, have nanosecond precision
+        assertEquals(base + 168, ISO8601.parseMillis("2019-01-14T17:22:23.168764129Z"));
+        assertEquals(base + 999, ISO8601.parseMillis("2019-01-14T17:22:23.999999999Z"));
+        assertEquals(base, ISO8601.parseMillis("2019-01-14T17:22:23.000000001Z"));
+        // Microseconds
+        assertEquals(base + 168, ISO8601.parseMillis("2019-01-14T17:22:23.168764Z"));
+        // Fewer than three digits
+        assertEquals(base + 500, ISO8601.parseMillis("2019-01-14T17:22:23.5Z"));
+        assertEquals(base + 160, ISO8601.parseMillis("2019-01-14T17:22:23.16Z"));
+    }
+
+    @Test
+    public void invalid() {
+        String[] corpus = {
+                "",
+                "2019-01-14",
+                "2019-01-14T17:22:23",
+                "2019-01-14T17:22:23.168",
+                "2019-01-14 17:22:23Z",
+                "2019-01-14T17:22:23+00:00",
+                "2019/01/14T17:22:23Z",
+                "2019-01-14T17:22:23.Z",
+                "2019-01-14T17:22:23.1687641291Z",
+                "2019-01-14T17:22:23.168ZZ",
+                "2019-01-14T17:22:23Zjunk",
+                "2019-13-14T17:22:23Z",
+                "2019-00-14T17:22:23Z",
+                "2019-02-29T17:22:23Z",
+                "2019-04-31T17:22:23Z",
+                "2019-01-00T17:22:23Z",
+                "2019-01-14T24:00:00Z",
+                "2019-01-14T17:60:23Z",
+                "2019-01-14T17:22:60Z",
+                "2019-01-14T17:2a:23Z",
+                "-019-01-14T17:22:23Z",
+        };
+        for (String s : corpus) {
+            try {
+                ISO8601.parseMillis(s);
+                fail("should have failed to parse: " + s);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final String s = "2019-01-14T17:22:23.168764129Z";
+        final long expected;
+        try {
+            expected = ISO8601.parseMillis(s);
+        } catch (ParseException e) {
+            throw new AssertionError(e);
+        }
+
+        final boolean[] failed = {false};
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    try {
+                        if (ISO8601.parseMillis(s) != expected) {
+                            failed[0] = true;
+                        }
+                    } catch (ParseException e) {
+                        failed[0] = true;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed[0]);
+    }
+}
@@ -0,0 +1,144 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricsRecorderTest {
+    private static final PsiCashLib.Metrics.Call REFRESH = PsiCashLib.Metrics.Call.REFRESH_STATE;
+    private static final PsiCashLib.Metrics.Phase NETWORK = PsiCashLib.Metrics.Phase.NETWORK;
+
+    @Test
+    public void buckets() {
+        assertEquals(0, MetricsRecorder.bucketFor(0));
+        assertEquals(0, MetricsRecorder.bucketFor(999));
+        assertEquals(1, MetricsRecorder.bucketFor(1000));
+        assertEquals(1, MetricsRecorder.bucketFor(1999));
+        assertEquals(2, MetricsRecorder.bucketFor(2000));
+        assertEquals(11, MetricsRecorder.bucketFor(1000L * 1024));
+        assertEquals(MetricsRecorder.BUCKETS - 1, MetricsRecorder.bucketFor(Long.MAX_VALUE));
+
+        // Every duration is below its bucket's upper bound
+        for (long micros : new long[]{0, 1, 3, 100, 12345, 999999}) {
+            int bucket = MetricsRecorder.bucketFor(micros * 1000);
+            assertTrue(micros < PsiCashLib.Metrics.Histogram.bucketUpperBoundMicros(bucket));
+        }
+    }
+
+    @Test
+    public void histogram() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        // 90 fast (~10us) and 10 slow (~10ms)
+        for (int i = 0; i < 90; i++) {
+            recorder.recordTiming(REFRESH, NETWORK, 10000);
+        }
+        for (int i = 0; i < 10; i++) {
+            recorder.recordTiming(REFRESH, NETWORK, 10000000);
+        }
+
+        PsiCashLib.Metrics metrics = recorder.snapshot();
+        PsiCashLib.Metrics.Histogram h = metrics.latency(REFRESH, NETWORK);
+        assertEquals(100, h.count);
+        assertEquals(90L * 10000 + 10L * 10000000, h.sumNanos);
+        assertEquals(h.sumNanos / 100, h.meanNanos());
+        assertEquals(16, h.percentileMicros(50));
+        assertEquals(16, h.percentileMicros(90));
+        assertEquals(16384, h.percentileMicros(91));
+        assertEquals(16384, h.percentileMicros(100));
+
+        // Other histograms are unaffected
+        assertEquals(0, metrics.latency(REFRESH, PsiCashLib.Metrics.Phase.TOTAL).count);
+        assertEquals(0, metrics.latency(PsiCashLib.Metrics.Call.ACCOUNT_LOGIN, NETWORK).count);
+        assertEquals(0, metrics.latency(PsiCashLib.Metrics.Call.ACCOUNT_LOGIN, NETWORK).percentileMicros(50));
+
+        // The snapshot doesn't change
+        recorder.recordTiming(REFRESH, NETWORK, 10000);
+        assertEquals(100, metrics.latency(REFRESH, NETWORK).count);
+        assertEquals(101, recorder.snapshot().latency(REFRESH, NETWORK).count);
+    }
+
+    @Test
+    public void httpResults() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        recorder.recordHTTPResult(REFRESH, 200, 0, 1000);
+        recorder.recordHTTPResult(REFRESH, 200, 0, 500);
+        recorder.recordHTTPResult(REFRESH, 304, 0, 0);
+        recorder.recordHTTPResult(REFRESH, 401, 10, 20);
+        recorder.recordHTTPResult(REFRESH, 503, 0, 0);
+        recorder.recordHTTPResult(REFRESH, 999, 0, 0);
+        recorder.recordHTTPResult(REFRESH, PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR, 0, 0);
+        recorder.recordHTTPResult(REFRESH, PsiCashLib.HTTPRequester.Result.CRITICAL_ERROR, 0, 0);
+        recorder.recordHTTPResult(PsiCashLib.Metrics.Call.NEW_EXPIRING_PURCHASE, 200, 100, 200);
+
+        PsiCashLib.Metrics metrics = recorder.snapshot();
+        assertEquals(2, metrics.statusCount(REFRESH, 2));
+        assertEquals(1, metrics.statusCount(REFRESH, 3));
+        assertEquals(1, metrics.statusCount(REFRESH, 4));
+        assertEquals(1, metrics.statusCount(REFRESH, 5));
+        assertEquals(1, metrics.statusCount(REFRESH, 0));
+        assertEquals(0, metrics.statusCount(REFRESH, 6));
+        assertEquals(1, metrics.recoverableErrors(REFRESH));
+        assertEquals(1, metrics.criticalErrors(REFRESH));
+        assertEquals(8, metrics.requests(REFRESH));
+        assertEquals(10, metrics.bytesOut(REFRESH));
+        assertEquals(1520, metrics.bytesIn(REFRESH));
+
+        assertEquals(1, metrics.requests(PsiCashLib.Metrics.Call.NEW_EXPIRING_PURCHASE));
+        assertEquals(100, metrics.bytesOut(PsiCashLib.Metrics.Call.NEW_EXPIRING_PURCHASE));
+        assertEquals(200, metrics.bytesIn(PsiCashLib.Metrics.Call.NEW_EXPIRING_PURCHASE));
+    }
+
+    @Test
+    public void sink() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        final List<String> received = new ArrayList<>();
+        recorder.setSink(new PsiCashLib.MetricsSink() {
+            @Override
+            public void onTiming(PsiCashLib.Metrics.Call call, PsiCashLib.Metrics.Phase phase, long nanos) {
+                received.add(call + " " + phase + " " + nanos);
+            }
+
+            @Override
+            public void onHTTPResult(PsiCashLib.Metrics.Call call, int code, long bytesOut, long bytesIn) {
+                received.add(call + " " + code + " " + bytesOut + " " + bytesIn);
+            }
+        });
+
+        recorder.recordTiming(REFRESH, NETWORK, 1234);
+        recorder.recordHTTPResult(REFRESH, 200, 1, 2);
+        recorder.setSink(null);
+        recorder.recordTiming(REFRESH, NETWORK, 1234);
+
+        assertEquals(2, received.size());
+        assertEquals("REFRESH_STATE NETWORK 1234", received.get(0));
+        assertEquals("REFRESH_STATE 200 1 2", received.get(1));
+    }
+
+    @Test
+    public void noAllocation() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+
+        MetricsRecorder recorder = new MetricsRecorder();
+        long threadId = Thread.currentThread().getId();
+        for (int round = 0; round < 3; round++) {
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100000; i++) {
+                recorder.recordTiming(REFRESH, NETWORK, i * 1000L);
+                recorder.recordHTTPResult(REFRESH, 200, 10, 100);
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+            if (round > 0) {
+                // Allow a little for the measurement itself
+                assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+            }
+        }
+    }
+}
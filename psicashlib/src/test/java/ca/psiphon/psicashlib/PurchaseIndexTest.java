@@ -0,0 +1,149 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PurchaseIndexTest {
+    private static PsiCashLib.Purchase purchase(String id, String authID) {
+        PsiCashLib.Purchase p = new PsiCashLib.Purchase();
+        p.id = id;
+        p.transactionClass = "speed-boost";
+        p.distinguisher = "1hr";
+        p.expiry = new Date(1000);
+        if (authID != null) {
+            p.authorization = new PsiCashLib.Authorization();
+            p.authorization.id = authID;
+            p.authorization.accessType = "speed-boost";
+            p.authorization.expires = new Date(2000);
+            p.authorization.encoded = "encoded-" + authID;
+        }
+        return p;
+    }
+
+    private static List<PsiCashLib.Purchase> purchases() {
+        return Arrays.asList(purchase("t1", "a1"), purchase("t2", null), purchase("t3", "a3"));
+    }
+
+    private static List<String> ids(List<PsiCashLib.Purchase> purchases) {
+        List<String> res = new ArrayList<>();
+        for (PsiCashLib.Purchase p : purchases) {
+            res.add(p.id);
+        }
+        return res;
+    }
+
+    @Test
+    public void byAuthorizationIDs() {
+        PurchaseIndex index = new PurchaseIndex(2, purchases());
+        assertEquals(2, index.version);
+        assertEquals(3, index.size());
+
+        // In the order asked for, skipping unknown, null and repeated IDs
+        assertEquals(Arrays.asList("t3", "t1"),
+                ids(index.byAuthorizationIDs(Arrays.asList("a3", "nope", null, "a1", "a3"))));
+        assertEquals(Collections.singletonList("t1"), ids(index.byAuthorizationIDs(Collections.singletonList("a1"))));
+        assertTrue(index.byAuthorizationIDs(Collections.singletonList("t2")).isEmpty());
+        assertTrue(index.byAuthorizationIDs(Collections.emptyList()).isEmpty());
+        assertTrue(index.byAuthorizationIDs(null).isEmpty());
+    }
+
+    @Test
+    public void resultsAreCopies() {
+        PurchaseIndex index = new PurchaseIndex(0, purchases());
+        PsiCashLib.Purchase p = index.byAuthorizationIDs(Collections.singletonList("a1")).get(0);
+        assertEquals("t1", p.id);
+        assertEquals("speed-boost", p.transactionClass);
+        assertEquals("1hr", p.distinguisher);
+        assertEquals(new Date(1000), p.expiry);
+        assertEquals("a1", p.authorization.id);
+        assertEquals(new Date(2000), p.authorization.expires);
+        assertEquals("encoded-a1", p.authorization.encoded);
+
+        p.id = "changed";
+        p.expiry.setTime(0);
+        p.authorization.id = "changed";
+        p = index.byAuthorizationIDs(Collections.singletonList("a1")).get(0);
+        assertEquals("t1", p.id);
+        assertEquals(new Date(1000), p.expiry);
+        assertEquals("a1", p.authorization.id);
+    }
+
+    @Test
+    public void knownTransactionIDs() {
+        PurchaseIndex index = new PurchaseIndex(0, purchases());
+        assertEquals(Arrays.asList("t2", "t1"),
+                index.knownTransactionIDs(Arrays.asList("t2", "x", null, "t1", "t2")));
+        assertTrue(index.knownTransactionIDs(Collections.singletonList("x")).isEmpty());
+        assertTrue(index.knownTransactionIDs(null).isEmpty());
+    }
+
+    @Test
+    public void byTransactionIDs() {
+        PurchaseIndex index = new PurchaseIndex(0, purchases());
+        assertEquals(Arrays.asList("t3", "t2"),
+                ids(index.byTransactionIDs(Arrays.asList("t3", "x", null, "t2", "t3"))));
+        assertTrue(index.byTransactionIDs(null).isEmpty());
+
+        // Copies
+        index.byTransactionIDs(Collections.singletonList("t1")).get(0).id = "changed";
+        assertEquals(Collections.singletonList("t1"), ids(index.byTransactionIDs(Collections.singletonList("t1"))));
+    }
+
+    @Test
+    public void expiredBefore() {
+        List<PsiCashLib.Purchase> purchases = new ArrayList<>(purchases());
+        purchases.get(1).expiry = new Date(500);
+        purchases.get(2).expiry = null;
+        PurchaseIndex index = new PurchaseIndex(0, purchases);
+        assertTrue(index.expiredBefore(500).isEmpty());
+        assertEquals(Collections.singletonList("t2"), ids(index.expiredBefore(501)));
+        List<String> expired = ids(index.expiredBefore(5000));
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("t1", "t2"), expired);
+    }
+
+    @Test
+    public void without() {
+        PurchaseIndex index = new PurchaseIndex(0, purchases());
+        PurchaseIndex updated = index.without(2, Collections.singletonList(purchase("t1", "a1")));
+        assertEquals(2, updated.version);
+        assertEquals(2, updated.size());
+        assertTrue(updated.byAuthorizationIDs(Collections.singletonList("a1")).isEmpty());
+        assertTrue(updated.knownTransactionIDs(Collections.singletonList("t1")).isEmpty());
+        assertEquals(Collections.singletonList("t3"), ids(updated.byAuthorizationIDs(Collections.singletonList("a3"))));
+
+        // The original is unchanged
+        assertEquals(3, index.size());
+        assertEquals(Collections.singletonList("t1"), ids(index.byAuthorizationIDs(Collections.singletonList("a1"))));
+
+        PurchaseIndex same = updated.at(4);
+        assertEquals(4, same.version);
+        assertEquals(2, same.size());
+    }
+
+    @Test
+    public void with() {
+        PurchaseIndex index = new PurchaseIndex(0, purchases());
+        PsiCashLib.Purchase added = purchase("t4", "a4");
+        PurchaseIndex updated = index.with(2, added);
+        assertEquals(2, updated.version);
+        assertEquals(4, updated.size());
+        assertEquals(Collections.singletonList("t4"), ids(updated.byAuthorizationIDs(Collections.singletonList("a4"))));
+        assertEquals(Collections.singletonList("t4"), updated.knownTransactionIDs(Collections.singletonList("t4")));
+
+        // Changing the added purchase doesn't change the snapshot
+        added.id = "changed";
+        assertEquals(Collections.singletonList("t4"), ids(updated.byAuthorizationIDs(Collections.singletonList("a4"))));
+
+        // The original is unchanged
+        assertEquals(3, index.size());
+        assertTrue(index.byAuthorizationIDs(Collections.singletonList("a4")).isEmpty());
+    }
+}
@@ -0,0 +1,229 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RefreshStateCoalescerTest {
+    // Refresher that blocks until released, recording the purchase classes of each request.
+    private static class BlockingRefresher implements RefreshStateCoalescer.Refresher {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        final List<List<String>> requestClasses = Collections.synchronizedList(new ArrayList<>());
+        PsiCashLib.Status status = PsiCashLib.Status.SUCCESS;
+
+        @Override
+        public PsiCashLib.RefreshStateResult refresh(String[] purchaseClasses) {
+            requests.incrementAndGet();
+            requestClasses.add(Arrays.asList(purchaseClasses));
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                fail("interrupted");
+            }
+            return new PsiCashLib.RefreshStateResult(null, status, true);
+        }
+    }
+
+    private static Thread refreshInThread(RefreshStateCoalescer c, List<String> classes, RefreshStateCoalescer.Refresher r,
+                                          AtomicReference<PsiCashLib.RefreshStateResult> out) {
+        Thread t = new Thread(() -> out.set(c.refresh(classes, r)));
+        t.start();
+        return t;
+    }
+
+    private static void awaitStat(RefreshStateCoalescer c, long coalesced) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (c.stats().coalesced < coalesced) {
+            assertTrue("timed out waiting for callers to join", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareResult() throws InterruptedException {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        BlockingRefresher r = new BlockingRefresher();
+
+        AtomicReference<PsiCashLib.RefreshStateResult> leaderRes = new AtomicReference<>();
+        Thread leader = refreshInThread(c, Arrays.asList("speed-boost", "other"), r, leaderRes);
+        assertTrue(r.started.await(10, TimeUnit.SECONDS));
+
+        final int followers = 5;
+        List<Thread> threads = new ArrayList<>();
+        List<AtomicReference<PsiCashLib.RefreshStateResult>> results = new ArrayList<>();
+        for (int i = 0; i < followers; i++) {
+            AtomicReference<PsiCashLib.RefreshStateResult> res = new AtomicReference<>();
+            results.add(res);
+            // Subsets (including empty) of the in-flight classes are compatible
+            List<String> classes = i % 2 == 0 ? Collections.singletonList("speed-boost") : null;
+            threads.add(refreshInThread(c, classes, r, res));
+        }
+        awaitStat(c, followers);
+
+        r.release.countDown();
+        leader.join();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, r.requests.get());
+        for (AtomicReference<PsiCashLib.RefreshStateResult> res : results) {
+            assertSame(leaderRes.get(), res.get());
+        }
+
+        PsiCashLib.RefreshStateStats stats = c.stats();
+        assertEquals(followers + 1, stats.calls);
+        assertEquals(1, stats.requests);
+        assertEquals(followers, stats.coalesced);
+        assertEquals(0, stats.throttled);
+    }
+
+    @Test
+    public void incompatibleClassesNotCoalesced() throws InterruptedException {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        BlockingRefresher r = new BlockingRefresher();
+
+        AtomicReference<PsiCashLib.RefreshStateResult> res1 = new AtomicReference<>();
+        Thread t1 = refreshInThread(c, Collections.singletonList("speed-boost"), r, res1);
+        assertTrue(r.started.await(10, TimeUnit.SECONDS));
+
+        // Superset of the in-flight classes, so it needs its own request
+        AtomicReference<PsiCashLib.RefreshStateResult> res2 = new AtomicReference<>();
+        Thread t2 = refreshInThread(c, Arrays.asList("speed-boost", "other"), r, res2);
+
+        r.release.countDown();
+        t1.join();
+        t2.join();
+
+        assertEquals(2, r.requests.get());
+        assertEquals(0, c.stats().coalesced);
+        assertTrue(r.requestClasses.get(1).containsAll(Arrays.asList("speed-boost", "other")));
+    }
+
+    @Test
+    public void minInterval() {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        BlockingRefresher r = new BlockingRefresher();
+        r.release.countDown();
+
+        // Disabled by default
+        c.refresh(null, r);
+        c.refresh(null, r);
+        assertEquals(2, r.requests.get());
+
+        c.setMinInterval(60 * 1000);
+        PsiCashLib.RefreshStateResult res = c.refresh(Collections.singletonList("speed-boost"), r);
+        assertEquals(3, r.requests.get());
+        assertTrue(res.reconnectRequired);
+
+        // Within the interval, with compatible classes
+        res = c.refresh(null, r);
+        assertEquals(3, r.requests.get());
+        assertNull(res.error);
+        assertEquals(PsiCashLib.Status.SUCCESS, res.status);
+        // The reconnect was already signalled to the first caller
+        assertFalse(res.reconnectRequired);
+        assertEquals(1, c.stats().throttled);
+
+        // Incompatible classes aren't throttled
+        c.refresh(Arrays.asList("speed-boost", "other"), r);
+        assertEquals(4, r.requests.get());
+
+        // Invalidation (user change) clears the throttle
+        c.invalidate();
+        c.refresh(null, r);
+        assertEquals(5, r.requests.get());
+    }
+
+    @Test
+    public void invalidateDuringRefresh() throws InterruptedException {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        BlockingRefresher r = new BlockingRefresher();
+        c.setMinInterval(60 * 1000);
+
+        AtomicReference<PsiCashLib.RefreshStateResult> res = new AtomicReference<>();
+        Thread t = refreshInThread(c, null, r, res);
+        assertTrue(r.started.await(10, TimeUnit.SECONDS));
+        // The user changes while the request is in flight, so its result isn't the new
+        // user's and mustn't throttle the next call.
+        c.invalidate();
+        r.release.countDown();
+        t.join();
+        assertEquals(PsiCashLib.Status.SUCCESS, res.get().status);
+
+        c.refresh(null, r);
+        assertEquals(2, r.requests.get());
+        assertEquals(0, c.stats().throttled);
+    }
+
+    @Test
+    public void failureNotThrottled() {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        BlockingRefresher r = new BlockingRefresher();
+        r.release.countDown();
+        r.status = PsiCashLib.Status.SERVER_ERROR;
+        c.setMinInterval(60 * 1000);
+
+        c.refresh(null, r);
+        c.refresh(null, r);
+        assertEquals(2, r.requests.get());
+        assertEquals(0, c.stats().throttled);
+    }
+
+    @Test
+    public void interruptedLeaderNotShared() throws InterruptedException, ExecutionException {
+        RefreshStateCoalescer c = new RefreshStateCoalescer();
+        // The first request blocks until interrupted and then fails, as makeHTTPRequest does
+        // for an interrupted thread. Later ones succeed.
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger requests = new AtomicInteger();
+        RefreshStateCoalescer.Refresher r = purchaseClasses -> {
+            if (requests.incrementAndGet() == 1) {
+                started.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new PsiCashLib.RefreshStateResult(new PsiCashLib.Error("Request cancelled"), null, false);
+            }
+            return new PsiCashLib.RefreshStateResult(null, PsiCashLib.Status.SUCCESS, false);
+        };
+
+        // The leader is an async call that times out
+        Future<PsiCashLib.RefreshStateResult> leader = AsyncCall.submit(Executors.newSingleThreadExecutor(),
+                () -> c.refresh(null, r), e -> new PsiCashLib.RefreshStateResult(e, null, false), 300, null);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // A synchronous caller joins it
+        AtomicReference<PsiCashLib.RefreshStateResult> joinerRes = new AtomicReference<>();
+        Thread joiner = refreshInThread(c, null, r, joinerRes);
+        awaitStat(c, 1);
+
+        joiner.join(10000);
+        assertFalse(joiner.isAlive());
+        assertNotNull(leader.get().error);
+
+        // The joiner wasn't cancelled, so it made its own request rather than getting the
+        // leader's error
+        assertNull(joinerRes.get().error);
+        assertEquals(PsiCashLib.Status.SUCCESS, joinerRes.get().status);
+        assertEquals(2, requests.get());
+        assertEquals(2, c.stats().requests);
+    }
+}
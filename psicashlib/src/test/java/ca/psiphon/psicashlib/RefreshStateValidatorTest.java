@@ -0,0 +1,189 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RefreshStateValidatorTest {
+    private static final String URI = "https://api.example.com/v1/refresh-state?class=speed-boost";
+
+    private static Map<String, String> headers(String auth) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(RefreshStateValidator.AUTH_HEADER, auth);
+        return headers;
+    }
+
+    private static PsiCashLib.HTTPRequester.Result result(int code, String etag) {
+        PsiCashLib.HTTPRequester.Result res = new PsiCashLib.HTTPRequester.Result();
+        res.code = code;
+        if (code == 200) {
+            res.body = "{\"etag\":" + etag + "}";
+        }
+        if (etag != null) {
+            Map<String, List<String>> h = new HashMap<>();
+            // Header name case shouldn't matter
+            h.put("etag", Collections.singletonList(etag));
+            res.headers = h;
+        }
+        return res;
+    }
+
+    // Performs a request/response cycle, and returns the request headers sent.
+    private static Map<String, String> cycle(RefreshStateValidator validator, String uri, String auth,
+                                             PsiCashLib.HTTPRequester.Result response, boolean committed,
+                                             RefreshStateValidator.Call call) {
+        Map<String, String> headers = headers(auth);
+        validator.prepare(call, uri, headers);
+        PsiCashLib.HTTPRequester.Result res = validator.onResult(call, response);
+        validator.finish(call, committed && res.code == 200);
+        return headers;
+    }
+
+    @Test
+    public void isRefreshStateRequest() {
+        assertTrue(RefreshStateValidator.isRefreshStateRequest("GET", "/v1/refresh-state"));
+        assertFalse(RefreshStateValidator.isRefreshStateRequest("POST", "/v1/refresh-state"));
+        assertFalse(RefreshStateValidator.isRefreshStateRequest("POST", "/v1/tokens"));
+        assertFalse(RefreshStateValidator.isRefreshStateRequest("GET", null));
+    }
+
+    @Test
+    public void notModified() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+
+        // No validator yet
+        RefreshStateValidator.Call call = new RefreshStateValidator.Call();
+        Map<String, String> sent = cycle(validator, URI, "tokens", result(200, "\"v1\""), true, call);
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+        assertFalse(call.notModified);
+
+        // Validator sent, server says not modified
+        call = new RefreshStateValidator.Call();
+        Map<String, String> headers = headers("tokens");
+        validator.prepare(call, URI, headers);
+        assertEquals("\"v1\"", headers.get(RefreshStateValidator.IF_NONE_MATCH));
+        PsiCashLib.HTTPRequester.Result res = validator.onResult(call, result(304, null));
+        // The core gets an error, so that it applies nothing (and isn't given a body to
+        // reparse)
+        assertEquals(PsiCashLib.HTTPRequester.Result.RECOVERABLE_ERROR, res.code);
+        assertEquals(RefreshStateValidator.NOT_MODIFIED, res.error);
+        assertNull(res.body);
+        assertNull(res.bodyBytes);
+        assertTrue(call.notModified);
+        validator.finish(call, true);
+
+        // The validator is still good
+        call = new RefreshStateValidator.Call();
+        sent = cycle(validator, URI, "tokens", result(200, "\"v2\""), true, call);
+        assertEquals("\"v1\"", sent.get(RefreshStateValidator.IF_NONE_MATCH));
+        assertFalse(call.notModified);
+
+        // And was replaced by the new one
+        sent = cycle(validator, URI, "tokens", result(304, null), false, new RefreshStateValidator.Call());
+        assertEquals("\"v2\"", sent.get(RefreshStateValidator.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void invalidatedInFlight() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+        cycle(validator, URI, "tokens", result(200, "\"v1\""), true, new RefreshStateValidator.Call());
+
+        // Invalidated after the validator was sent; the 304 is passed through
+        RefreshStateValidator.Call call = new RefreshStateValidator.Call();
+        Map<String, String> headers = headers("tokens");
+        validator.prepare(call, URI, headers);
+        assertEquals("\"v1\"", headers.get(RefreshStateValidator.IF_NONE_MATCH));
+        validator.invalidate();
+        PsiCashLib.HTTPRequester.Result res = validator.onResult(call, result(304, null));
+        assertEquals(304, res.code);
+        assertFalse(call.notModified);
+    }
+
+    @Test
+    public void removeThen304() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+        cycle(validator, URI, "tokens", result(200, "\"v1\""), true, new RefreshStateValidator.Call());
+
+        // A purchase is removed locally (removePurchases and expirePurchases invalidate), so
+        // the stored state no longer matches the v1 response. The next refresh must not be
+        // conditional: a 304 would leave the state without the purchase the server has.
+        validator.invalidate();
+        RefreshStateValidator.Call call = new RefreshStateValidator.Call();
+        Map<String, String> headers = headers("tokens");
+        validator.prepare(call, URI, headers);
+        assertNull(headers.get(RefreshStateValidator.IF_NONE_MATCH));
+        // A (misbehaving) server's 304 is passed through as-is, not treated as success
+        PsiCashLib.HTTPRequester.Result res = validator.onResult(call, result(304, null));
+        assertEquals(304, res.code);
+        assertFalse(call.notModified);
+        validator.finish(call, false);
+
+        // The full response that follows provides the next validator
+        call = new RefreshStateValidator.Call();
+        Map<String, String> sent = cycle(validator, URI, "tokens", result(200, "\"v2\""), true, call);
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+        sent = cycle(validator, URI, "tokens", result(304, null), false, new RefreshStateValidator.Call());
+        assertEquals("\"v2\"", sent.get(RefreshStateValidator.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void keyMismatch() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+        cycle(validator, URI, "tokens", result(200, "\"v1\""), true, new RefreshStateValidator.Call());
+
+        // Different purchase classes
+        Map<String, String> sent = cycle(validator, URI + "&class=other", "tokens",
+                result(200, null), false, new RefreshStateValidator.Call());
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+
+        // Different tokens
+        sent = cycle(validator, URI, "other-tokens", result(200, null), false, new RefreshStateValidator.Call());
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+
+        // Same again
+        sent = cycle(validator, URI, "tokens", result(200, null), false, new RefreshStateValidator.Call());
+        assertEquals("\"v1\"", sent.get(RefreshStateValidator.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void notCommitted() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+
+        // The core didn't commit the response, so its ETag mustn't be used
+        cycle(validator, URI, "tokens", result(200, "\"v1\""), false, new RefreshStateValidator.Call());
+        Map<String, String> sent = cycle(validator, URI, "tokens", result(200, null), true, new RefreshStateValidator.Call());
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+    }
+
+    @Test
+    public void unsolicited304() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+
+        // A 304 without a validator having been sent is passed through as-is
+        RefreshStateValidator.Call call = new RefreshStateValidator.Call();
+        validator.prepare(call, URI, headers("tokens"));
+        PsiCashLib.HTTPRequester.Result res = validator.onResult(call, result(304, null));
+        assertEquals(304, res.code);
+        assertFalse(call.notModified);
+    }
+
+    @Test
+    public void invalidate() {
+        RefreshStateValidator validator = new RefreshStateValidator();
+        cycle(validator, URI, "tokens", result(200, "\"v1\""), true, new RefreshStateValidator.Call());
+
+        // A committed response without an ETag clears the validator
+        cycle(validator, URI, "tokens", result(200, null), true, new RefreshStateValidator.Call());
+        Map<String, String> sent = cycle(validator, URI, "tokens", result(200, "\"v2\""), true, new RefreshStateValidator.Call());
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+
+        validator.invalidate();
+        sent = cycle(validator, URI, "tokens", result(200, null), true, new RefreshStateValidator.Call());
+        assertNull(sent.get(RefreshStateValidator.IF_NONE_MATCH));
+    }
+}
@@ -0,0 +1,264 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ResponseBodyReaderTest {
+    private static final int MAX = ResponseBodyReader.DEFAULT_MAX_BODY_SIZE;
+
+    private static byte[] randomBytes(int len, long seed) {
+        byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    // Returns at most `step` bytes per read, like a network stream.
+    private static InputStream trickle(byte[] data, final int step) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, step));
+            }
+        };
+    }
+
+    @Test
+    public void knownLength() throws IOException {
+        byte[] data = randomBytes(100000, 1);
+        assertArrayEquals(data, ResponseBodyReader.readBytes(trickle(data, 1000), data.length, MAX));
+    }
+
+    @Test
+    public void unknownLength() throws IOException {
+        // Exact multiples of the chunk size, and either side of them
+        int[] lengths = {0, 1, ResponseBodyReader.CHUNK_SIZE - 1, ResponseBodyReader.CHUNK_SIZE,
+                ResponseBodyReader.CHUNK_SIZE + 1, 3 * ResponseBodyReader.CHUNK_SIZE, 100000};
+        for (int len : lengths) {
+            byte[] data = randomBytes(len, len);
+            assertArrayEquals("len=" + len, data, ResponseBodyReader.readBytes(trickle(data, 777), -1, MAX));
+        }
+    }
+
+    @Test
+    public void contentLengthMismatch() throws IOException {
+        byte[] data = randomBytes(20000, 2);
+
+        // Stream shorter than advertised
+        assertArrayEquals(data, ResponseBodyReader.readBytes(new ByteArrayInputStream(data), data.length + 500, MAX));
+
+        // Stream longer than advertised
+        assertArrayEquals(data, ResponseBodyReader.readBytes(new ByteArrayInputStream(data), data.length - 500, MAX));
+        assertArrayEquals(data, ResponseBodyReader.readBytes(new ByteArrayInputStream(data), 0, MAX));
+    }
+
+    @Test
+    public void empty() throws IOException {
+        assertEquals(0, ResponseBodyReader.readBytes(new ByteArrayInputStream(new byte[0]), 0, MAX).length);
+        assertEquals(0, ResponseBodyReader.readBytes(new ByteArrayInputStream(new byte[0]), -1, MAX).length);
+        assertEquals("", ResponseBodyReader.readString(new ByteArrayInputStream(new byte[0]), -1, MAX));
+    }
+
+    @Test
+    public void maxSize() throws IOException {
+        byte[] data = randomBytes(5000, 3);
+
+        // Exactly at the limit is fine
+        assertArrayEquals(data, ResponseBodyReader.readBytes(new ByteArrayInputStream(data), data.length, data.length));
+        assertArrayEquals(data, ResponseBodyReader.readBytes(new ByteArrayInputStream(data), -1, data.length));
+
+        // Content-Length over the limit
+        try {
+            ResponseBodyReader.readBytes(new ByteArrayInputStream(data), data.length, data.length - 1);
+            fail("expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // expected
+        }
+
+        // Unknown length, body over the limit
+        try {
+            ResponseBodyReader.readBytes(new ByteArrayInputStream(data), -1, data.length - 1);
+            fail("expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // expected
+        }
+
+        // Content-Length under the limit, but the body isn't
+        try {
+            ResponseBodyReader.readBytes(new ByteArrayInputStream(data), 100, data.length - 1);
+            fail("expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void text() throws IOException {
+        // Line breaks must be preserved (the old readLine loop dropped them), and multi-byte
+        // characters must survive being split across reads and chunks.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("line ").append(i).append(": Grüße ✓ 𝄞\r\n");
+        }
+        String s = sb.toString();
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(s, ResponseBodyReader.readString(trickle(data, 3), -1, MAX));
+        assertEquals(s, ResponseBodyReader.readString(trickle(data, 3), data.length, MAX));
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final int threadCount = 8;
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 50; i++) {
+                        byte[] data = randomBytes(10000 + seed * 1000 + i, seed * 1000 + i);
+                        assertArrayEquals(data, ResponseBodyReader.readBytes(trickle(data, 4096), -1, MAX));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream zip = new GZIPOutputStream(out)) {
+            zip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean raw) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        try (DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater)) {
+            zip.write(data);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] compressible(int len) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < len; i++) {
+            sb.append("{\"id\":\"").append(i).append("\",\"class\":\"speed-boost\"},");
+        }
+        return sb.substring(0, len).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void decodingStream() throws IOException {
+        byte[] data = compressible(100000);
+        Map<String, byte[]> encoded = new HashMap<>();
+        encoded.put("gzip", gzip(data));
+        encoded.put("GZip ", gzip(data));
+        encoded.put("x-gzip", gzip(data));
+        encoded.put("deflate", deflate(data, false));
+        encoded.put("identity", data);
+
+        for (Map.Entry<String, byte[]> e : encoded.entrySet()) {
+            try (InputStream in = ResponseBodyReader.decodingStream(trickle(e.getValue(), 1000), e.getKey())) {
+                assertArrayEquals(e.getKey(), data, ResponseBodyReader.readBytes(in, -1, MAX));
+            }
+        }
+
+        // Some servers send raw deflate data for "deflate"
+        try (InputStream in = ResponseBodyReader.decodingStream(trickle(deflate(data, true), 1000), "deflate")) {
+            assertArrayEquals(data, ResponseBodyReader.readBytes(in, -1, MAX));
+        }
+
+        // Empty bodies (like a 304's) are fine
+        try (InputStream in = ResponseBodyReader.decodingStream(new ByteArrayInputStream(new byte[0]), "gzip")) {
+            assertEquals(0, ResponseBodyReader.readBytes(in, -1, MAX).length);
+        }
+
+        assertTrue(ResponseBodyReader.isCompressed("gzip"));
+        assertTrue(ResponseBodyReader.isCompressed("deflate"));
+        assertFalse(ResponseBodyReader.isCompressed(null));
+        assertFalse(ResponseBodyReader.isCompressed("identity"));
+        assertFalse(ResponseBodyReader.isCompressed("br"));
+        try {
+            ResponseBodyReader.decodingStream(new ByteArrayInputStream(data), "br");
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void decode() throws IOException {
+        byte[] data = compressible(50000);
+
+        assertArrayEquals(data, ResponseBodyReader.decode(gzip(data), "gzip", MAX));
+        assertArrayEquals(data, ResponseBodyReader.decode(deflate(data, false), "deflate", MAX));
+
+        // Unencoded bodies are returned as-is
+        assertSame(data, ResponseBodyReader.decode(data, null, MAX));
+        assertSame(data, ResponseBodyReader.decode(data, "identity", MAX));
+
+        // gzip is recognized even if the Content-Encoding was lost
+        assertArrayEquals(data, ResponseBodyReader.decode(gzip(data), null, MAX));
+
+        // Corrupt data
+        byte[] corrupt = gzip(data);
+        corrupt[corrupt.length / 2] ^= 0x55;
+        corrupt[corrupt.length / 2 + 1] ^= 0x55;
+        try {
+            ResponseBodyReader.decode(corrupt, "gzip", MAX);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // The maximum size applies to the decoded body, so a small body can't decompress
+        // into something huge
+        try {
+            ResponseBodyReader.decode(gzip(new byte[10 * 1024 * 1024]), "gzip", MAX);
+            fail("expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void firstHeader() {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+        headers.put("content-encoding", Arrays.asList("gzip", "other"));
+        assertEquals("gzip", ResponseBodyReader.firstHeader(headers, "Content-Encoding"));
+        assertNull(ResponseBodyReader.firstHeader(headers, "ETag"));
+        assertNull(ResponseBodyReader.firstHeader(null, "ETag"));
+    }
+}
@@ -0,0 +1,134 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StartupCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws IOException {
+        String root = folder.getRoot().getPath();
+        StartupCache cache = new StartupCache(root);
+        assertNull(cache.read());
+
+        cache.save(1234567890123L, true, false);
+        StartupCache.Values values = new StartupCache(root).read();
+        assertNotNull(values);
+        assertEquals(1234567890123L, values.balance);
+        assertTrue(values.hasTokens);
+        assertFalse(values.isAccount);
+
+        cache.save(5, false, true);
+        values = new StartupCache(root).read();
+        assertNotNull(values);
+        assertTrue(values.equals(5, false, true));
+        assertFalse(new File(root, StartupCache.FILENAME + ".tmp").exists());
+    }
+
+    @Test
+    public void saveLater() {
+        String root = folder.getRoot().getPath();
+        StartupCache cache = new StartupCache(root);
+        AtomicInteger reads = new AtomicInteger();
+        StartupCache.Source source = () -> {
+            reads.incrementAndGet();
+            return new StartupCache.Values(7, true, true);
+        };
+
+        // Saves requested together are debounced into one
+        cache.saveLater(source);
+        cache.saveLater(source);
+        cache.saveLater(source);
+        assertNull(new StartupCache(root).read());
+        StartupCache.awaitSaves(10000);
+        assertEquals(1, reads.get());
+        StartupCache.Values values = new StartupCache(root).read();
+        assertNotNull(values);
+        assertTrue(values.equals(7, true, true));
+
+        // A source with nothing to save
+        cache.saveLater(() -> null);
+        StartupCache.awaitSaves(10000);
+        values = new StartupCache(root).read();
+        assertNotNull(values);
+        assertTrue(values.equals(7, true, true));
+    }
+
+    @Test
+    public void unchangedNotRewritten() throws IOException {
+        String root = folder.getRoot().getPath();
+        StartupCache cache = new StartupCache(root);
+        cache.save(1, true, false);
+        File file = new File(root, StartupCache.FILENAME);
+        assertTrue(file.delete());
+
+        // The same values again, so there's no write
+        cache.save(1, true, false);
+        assertFalse(file.exists());
+
+        cache.save(2, true, false);
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void readNotRewritten() throws IOException {
+        String root = folder.getRoot().getPath();
+        new StartupCache(root).save(1, true, false);
+        StartupCache cache = new StartupCache(root);
+        assertNotNull(cache.read());
+        assertTrue(cache.isFor(root));
+        File file = new File(root, StartupCache.FILENAME);
+        assertTrue(file.delete());
+
+        // The values just read, so there's no write
+        cache.save(1, true, false);
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void clear() throws IOException {
+        String root = folder.getRoot().getPath();
+        StartupCache cache = new StartupCache(root);
+        cache.save(1, true, false);
+        cache.clear();
+        assertNull(cache.read());
+
+        // Cleared, so the same values are written again
+        cache.save(1, true, false);
+        assertNotNull(cache.read());
+    }
+
+    @Test
+    public void badFile() throws IOException {
+        String root = folder.getRoot().getPath();
+        File file = new File(root, StartupCache.FILENAME);
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{0, 0, 0, 1, 2});
+        }
+        assertNull(new StartupCache(root).read());
+
+        // Unknown version
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{0, 0, 0, 99, 0, 0, 0, 0, 0, 0, 0, 1, 1, 0});
+        }
+        assertNull(new StartupCache(root).read());
+    }
+
+    @Test
+    public void unwritable() {
+        // A root that doesn't exist: saving fails quietly
+        StartupCache cache = new StartupCache(new File(folder.getRoot(), "missing").getPath());
+        cache.save(1, true, false);
+        assertNull(cache.read());
+    }
+}
@@ -0,0 +1,271 @@
+package ca.psiphon.psicashlib;
+
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StateChangeNotifierTest {
+    // Stands in for the library state; null if it can't be read.
+    private StateChangeNotifier.Observed state;
+    private StateChangeNotifier notifier;
+    private List<PsiCashLib.StateChange> changes;
+
+    @Before
+    public void setUp() {
+        state = observed(0, false, false);
+        notifier = new StateChangeNotifier(() -> state);
+        changes = new ArrayList<>();
+    }
+
+    private static PsiCashLib.Purchase purchase(String id) {
+        PsiCashLib.Purchase p = new PsiCashLib.Purchase();
+        p.id = id;
+        return p;
+    }
+
+    private static StateChangeNotifier.Observed observed(long balance, boolean hasTokens, boolean isAccount,
+                                                         String... purchaseIDs) {
+        List<PsiCashLib.Purchase> purchases = new ArrayList<>();
+        for (String id : purchaseIDs) {
+            purchases.add(purchase(id));
+        }
+        return new StateChangeNotifier.Observed(balance, hasTokens, isAccount, new PurchaseIndex(0, purchases));
+    }
+
+    private static List<String> ids(List<PsiCashLib.Purchase> purchases) {
+        List<String> res = new ArrayList<>();
+        for (PsiCashLib.Purchase p : purchases) {
+            res.add(p.id);
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    @Test
+    public void scalars() {
+        assertTrue(notifier.setListener(changes::add));
+        state = observed(100, true, false);
+        notifier.changed();
+        assertEquals(1, changes.size());
+        PsiCashLib.StateChange change = changes.get(0);
+        assertEquals(Long.valueOf(100), change.balance);
+        assertEquals(Boolean.TRUE, change.hasTokens);
+        // Unchanged
+        assertNull(change.isAccount);
+        assertTrue(change.purchasesAdded.isEmpty());
+        assertTrue(change.purchasesRemoved.isEmpty());
+
+        state = observed(100, true, true);
+        notifier.changed();
+        assertEquals(2, changes.size());
+        change = changes.get(1);
+        assertNull(change.balance);
+        assertNull(change.hasTokens);
+        assertEquals(Boolean.TRUE, change.isAccount);
+    }
+
+    @Test
+    public void purchases() {
+        state = observed(100, true, false, "a", "b");
+        assertTrue(notifier.setListener(changes::add));
+        state = observed(90, true, false, "a", "b", "c");
+        notifier.changed();
+        assertEquals(1, changes.size());
+        assertEquals(Long.valueOf(90), changes.get(0).balance);
+        assertEquals(Collections.singletonList("c"), ids(changes.get(0).purchasesAdded));
+        assertTrue(changes.get(0).purchasesRemoved.isEmpty());
+
+        // As after removePurchases, with the index derived from the last one
+        state = new StateChangeNotifier.Observed(90, true, false,
+                state.purchases.without(1, Arrays.asList(purchase("a"), purchase("b"))));
+        notifier.changed();
+        assertEquals(2, changes.size());
+        assertNull(changes.get(1).balance);
+        assertTrue(changes.get(1).purchasesAdded.isEmpty());
+        assertEquals(Arrays.asList("a", "b"), ids(changes.get(1).purchasesRemoved));
+    }
+
+    @Test
+    public void noChange() {
+        state = observed(100, true, false, "a");
+        assertTrue(notifier.setListener(changes::add));
+        notifier.changed();
+        // A new but equal snapshot, and one derived with at()
+        state = observed(100, true, false, "a");
+        notifier.changed();
+        state = new StateChangeNotifier.Observed(100, true, false, state.purchases.at(1));
+        notifier.changed();
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void unreadable() {
+        // Can't read the baseline, so the first change only sets it
+        state = null;
+        assertFalse(notifier.setListener(changes::add));
+        state = observed(100, true, false);
+        notifier.changed();
+        assertTrue(changes.isEmpty());
+
+        // A change that can't be read is included in the next one
+        state = null;
+        notifier.changed();
+        state = observed(50, true, false, "a");
+        notifier.changed();
+        assertEquals(1, changes.size());
+        assertEquals(Long.valueOf(50), changes.get(0).balance);
+        assertEquals(Collections.singletonList("a"), ids(changes.get(0).purchasesAdded));
+    }
+
+    @Test
+    public void stop() {
+        assertTrue(notifier.setListener(changes::add));
+        assertTrue(notifier.isActive());
+        assertTrue(notifier.setListener(null));
+        assertFalse(notifier.isActive());
+        state = observed(100, true, false);
+        notifier.changed();
+        assertTrue(changes.isEmpty());
+
+        // Changes while stopped aren't reported once restarted
+        assertTrue(notifier.setListener(changes::add));
+        notifier.changed();
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void copies() {
+        assertTrue(notifier.setListener(changes::add));
+        state = observed(0, false, false, "a");
+        notifier.changed();
+        PsiCashLib.Purchase added = changes.get(0).purchasesAdded.get(0);
+        // Changing a reported purchase doesn't change the snapshot
+        added.id = "changed";
+        state = new StateChangeNotifier.Observed(0, false, false,
+                state.purchases.without(1, Collections.singletonList(purchase("a"))));
+        notifier.changed();
+        assertEquals(Collections.singletonList("a"), ids(changes.get(1).purchasesRemoved));
+    }
+
+    @Test
+    public void reentrant() {
+        // A listener that makes a change itself; it's delivered after this one returns
+        assertTrue(notifier.setListener(change -> {
+            changes.add(change);
+            if (changes.size() == 1) {
+                state = observed(200, false, false);
+                notifier.changed();
+                assertEquals(1, changes.size());
+            }
+        }));
+        state = observed(100, false, false);
+        notifier.changed();
+        assertEquals(2, changes.size());
+        assertEquals(Long.valueOf(100), changes.get(0).balance);
+        assertEquals(Long.valueOf(200), changes.get(1).balance);
+    }
+
+    @Test(timeout = 10000)
+    public void slowListener() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<PsiCashLib.StateChange> delivered = Collections.synchronizedList(new ArrayList<>());
+        assertTrue(notifier.setListener(change -> {
+            delivered.add(change);
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        state = observed(100, false, false);
+        Thread first = new Thread(notifier::changed);
+        first.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // Doesn't wait for the listener, which is still busy with the first change
+        state = observed(200, false, false);
+        notifier.changed();
+        assertEquals(1, delivered.size());
+
+        // The first thread delivers the second change, in order
+        release.countDown();
+        first.join();
+        assertEquals(2, delivered.size());
+        assertEquals(Long.valueOf(100), delivered.get(0).balance);
+        assertEquals(Long.valueOf(200), delivered.get(1).balance);
+    }
+
+    @Test
+    public void inactiveDoesntObserve() {
+        AtomicInteger observations = new AtomicInteger();
+        StateChangeNotifier notifier = new StateChangeNotifier(() -> {
+            observations.incrementAndGet();
+            return state;
+        });
+        notifier.changed();
+        assertEquals(0, observations.get());
+
+        assertTrue(notifier.setListener(changes::add));
+        notifier.changed();
+        assertEquals(2, observations.get());
+
+        assertTrue(notifier.setListener(null));
+        notifier.changed();
+        assertEquals(2, observations.get());
+    }
+
+    @Test(timeout = 10000)
+    public void slowObservation() throws InterruptedException {
+        // The first thread's observation blocks (as a read might) after reading the state
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread main = Thread.currentThread();
+        StateChangeNotifier notifier = new StateChangeNotifier(() -> {
+            StateChangeNotifier.Observed res = state;
+            if (Thread.currentThread() != main && entered.getCount() > 0) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return res;
+        });
+        List<PsiCashLib.StateChange> delivered = Collections.synchronizedList(new ArrayList<>());
+        assertTrue(notifier.setListener(delivered::add));
+
+        state = observed(100, false, false);
+        Thread first = new Thread(notifier::changed);
+        first.start();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // Another change is observed and reported without waiting for the first observation
+        state = observed(200, false, false);
+        notifier.changed();
+        assertEquals(1, delivered.size());
+        assertEquals(Long.valueOf(200), delivered.get(0).balance);
+
+        // The first observation is older than the one applied, so is dropped rather than
+        // reported as a change back to 100
+        release.countDown();
+        first.join();
+        assertEquals(1, delivered.size());
+
+        state = observed(300, false, false);
+        notifier.changed();
+        assertEquals(2, delivered.size());
+        assertEquals(Long.valueOf(300), delivered.get(1).balance);
+    }
+}